@@ -1491,6 +1491,16 @@ public interface OdeMessages extends Messages {
   @Description("Warning that downloading projects will take a while")
   String downloadAllAlert();
 
+  @DefaultMessage("Your projects are being exported. The download will start when the " +
+      "export is complete.")
+  @Description("Message shown while all of the user's projects are exported in the background")
+  String exportAllProjectsInBackground();
+
+  @DefaultMessage("Server error: could not export projects. Please try again later!")
+  @Description("Error message reported when the user's projects could not be exported " +
+      "in the background.")
+  String exportAllProjectsError();
+
   @DefaultMessage("More Actions")
   @Description("Label of the button leading to more cascade items")
   String moreActionsButton();
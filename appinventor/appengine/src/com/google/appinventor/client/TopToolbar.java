@@ -44,6 +44,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.Window.Location;
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -491,6 +492,12 @@ public class TopToolbar extends Composite {
   }
 
   private static class ExportAllProjectsAction implements Command {
+    // Users with more projects than this have them exported in the background, since
+    // zipping them all could take longer than a download request may run.
+    private static final int MAX_PROJECTS_TO_DOWNLOAD_AT_ONCE = 100;
+    private static final int WAIT_INTERVAL_MILLIS = 5000;
+    private static final int MAX_WAIT_MILLIS = 10 * 60 * 1000;
+
     @Override
     public void execute() {
       Tracking.trackEvent(Tracking.PROJECT_EVENT,
@@ -498,10 +505,49 @@ public class TopToolbar extends Composite {
 
       // Is there a way to disable the Download All button until this completes?
       if (Window.confirm(MESSAGES.downloadAllAlert())) {
+        if (Ode.getInstance().getProjectManager().getProjects().size()
+            <= MAX_PROJECTS_TO_DOWNLOAD_AT_ONCE) {
+          Downloader.getInstance().download(ServerLayout.DOWNLOAD_SERVLET_BASE +
+              ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE);
+          return;
+        }
+        Ode.getInstance().getProjectService().exportAllProjects(
+            new OdeAsyncCallback<String>(MESSAGES.exportAllProjectsError()) {
+              @Override
+              public void onSuccess(String exportId) {
+                ErrorReporter.reportInfo(MESSAGES.exportAllProjectsInBackground());
+                waitForExport(exportId, 0);
+              }
+            });
+      }
+    }
 
-        Downloader.getInstance().download(ServerLayout.DOWNLOAD_SERVLET_BASE +
-            ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE);
+    /*
+     * Checks whether the background export is ready every few seconds, and downloads it
+     * once it is.
+     */
+    private static void waitForExport(final String exportId, final int waitedMillis) {
+      if (waitedMillis > MAX_WAIT_MILLIS) {
+        ErrorReporter.reportError(MESSAGES.exportAllProjectsError());
+        return;
       }
+      Ode.getInstance().getProjectService().isExportReady(exportId,
+          new OdeAsyncCallback<Boolean>(MESSAGES.exportAllProjectsError()) {
+            @Override
+            public void onSuccess(Boolean ready) {
+              if (ready) {
+                Downloader.getInstance().download(ServerLayout.DOWNLOAD_SERVLET_BASE +
+                    ServerLayout.DOWNLOAD_ALL_PROJECTS_EXPORT + "/" + exportId);
+                return;
+              }
+              new Timer() {
+                @Override
+                public void run() {
+                  waitForExport(exportId, waitedMillis + WAIT_INTERVAL_MILLIS);
+                }
+              }.schedule(WAIT_INTERVAL_MILLIS);
+            }
+          });
     }
   }
 
@@ -17,14 +17,19 @@ import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.rpc.AsyncCallback;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +56,10 @@ public final class EditorManager {
   // TODO(user): Make this configurable.
   private static final int AUTO_SAVE_FORCED_TIMEOUT = 30000;
 
+  // Files smaller than this many characters are always saved whole. Saving a patch makes the
+  // server read the stored file, which costs more than it saves for small files.
+  private static final int MIN_PATCH_FILE_LENGTH = 4096;
+
   // Fields used for saving and auto-saving.
   private final Set<ProjectSettings> dirtyProjectSettings;
   private final Set<FileEditor> dirtyFileEditors;
@@ -58,6 +67,21 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // The content of each file as last loaded or saved successfully by this client, keyed by
+  // savedContentKey(projectId, fileId). Later saves of the file send a patch against it.
+  private final Map<String, SavedContent> savedContents;
+
+  // Content of a file known to be on the server, and its checksum if it is known.
+  private static class SavedContent {
+    final String content;
+    final String checksum;
+
+    SavedContent(String content, String checksum) {
+      this.content = content;
+      this.checksum = checksum;
+    }
+  }
+
   private class DateHolder {
     long date;
     long projectId;
@@ -71,6 +95,7 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    savedContents = new HashMap<String, SavedContent>();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -131,6 +156,20 @@ public final class EditorManager {
     return openProjectEditors.get(projectId);
   }
 
+  /**
+   * Records the content of a file as loaded by a file editor, so that the first save of the
+   * file can send a patch against it rather than the whole content.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  the content of the file on the server
+   * @param checksum  the checksum of content, as sent by the server
+   */
+  public void recordLoadedContent(long projectId, String fileId, String content,
+      String checksum) {
+    savedContents.put(savedContentKey(projectId, fileId), new SavedContent(content, checksum));
+  }
+
   /**
    * Closes the file editors for the specified files, without saving.
    * This is used when the files are about to be deleted.
@@ -148,6 +187,7 @@ public final class EditorManager {
         if (fileEditor != null) {
           dirtyFileEditors.remove(fileEditor);
         }
+        savedContents.remove(savedContentKey(projectId, fileId));
       }
       projectEditor.closeFileEditors(fileIds);
     }
@@ -167,6 +207,12 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    Iterator<String> keys = savedContents.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(projectId + "/")) {
+        keys.remove();
+      }
+    }
   }
 
   /**
@@ -386,35 +432,89 @@ public final class EditorManager {
         final long projectId = fileDescriptor.getProjectId();
         final String fileId = fileDescriptor.getFileId();
         final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+        final FilePatch patch = createPatch(projectId, fileId, content);
+        // A patch carries the checksum of the content it produces, which saves computing it
+        // when the next patch is made.
+        final String checksum = patch == null ? null : patch.getChecksum();
+        final OdeAsyncCallback<Long> callback =
+            new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+          @Override
+          public void onSuccess(Long date) {
+            savedContents.put(savedContentKey(projectId, fileId),
+                new SavedContent(content, checksum));
+            if (dateHolder.date != 0) {
+              // This sets the project modification time to that of one of
+              // the successful file saves. It doesn't really matter which
+              // file date we use, they will all be close. However it is important
+              // to use some files date because that will be based on the server's
+              // time. If we used the local clients time, then we may be off if the
+              // client's computer's time isn't set correctly.
+              dateHolder.date = date;
+              dateHolder.projectId = projectId;
+            }
+            if (afterSavingFiles != null) {
+              afterSavingFiles.execute();
+            }
+          }
+          @Override
+          public void onFailure(Throwable caught) {
+            // Here is where we handle BlocksTruncatedException
+            if (caught instanceof BlocksTruncatedException) {
+              Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+            } else {
+              super.onFailure(caught);
+            }
+          }
+        };
+        if (patch == null) {
+          Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+              projectId, fileId, false, content, callback);
+          continue;
+        }
+        Ode.getInstance().getProjectService().savePatch(Ode.getInstance().getSessionId(),
+          projectId, fileId, patch, new AsyncCallback<Long>() {
             @Override
             public void onSuccess(Long date) {
-              if (dateHolder.date != 0) {
-                // This sets the project modification time to that of one of
-                // the successful file saves. It doesn't really matter which
-                // file date we use, they will all be close. However it is important
-                // to use some files date because that will be based on the server's
-                // time. If we used the local clients time, then we may be off if the
-                // client's computer's time isn't set correctly.
-                dateHolder.date = date;
-                dateHolder.projectId = projectId;
-              }
-              if (afterSavingFiles != null) {
-                afterSavingFiles.execute();
-              }
+              callback.onSuccess(date);
             }
             @Override
             public void onFailure(Throwable caught) {
-              // Here is where we handle BlocksTruncatedException
-              if (caught instanceof BlocksTruncatedException) {
-                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+              if (caught instanceof ChecksumedFileException) {
+                // The server's copy of the file isn't the one the patch was made against,
+                // or the patch was altered on the way. Save the whole content instead.
+                OdeLog.log("Saving whole " + fileId + ": " + caught.getMessage());
+                savedContents.remove(savedContentKey(projectId, fileId));
+                Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+                    projectId, fileId, false, content, callback);
               } else {
-                super.onFailure(caught);
+                callback.onFailure(caught);
               }
             }
           });
       }
     }
   }
+
+  /*
+   * Returns the patch from the content of the file last loaded or saved by this client to
+   * content, or null if the file should be saved whole.
+   */
+  private FilePatch createPatch(long projectId, String fileId, String content) {
+    SavedContent savedContent = savedContents.get(savedContentKey(projectId, fileId));
+    if (savedContent == null || content.length() < MIN_PATCH_FILE_LENGTH) {
+      return null;
+    }
+    try {
+      if (savedContent.checksum == null) {
+        return FilePatch.create(savedContent.content, content);
+      }
+      return FilePatch.create(savedContent.content, savedContent.checksum, content);
+    } catch (ChecksumedFileException e) {
+      return null;
+    }
+  }
+
+  private static String savedContentKey(long projectId, String fileId) {
+    return projectId + "/" + fileId;
+  }
 }
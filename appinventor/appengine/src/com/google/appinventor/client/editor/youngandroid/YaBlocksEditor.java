@@ -168,6 +168,9 @@ public final class YaBlocksEditor extends FileEditor
           this.onFailure(e);
           return;
         }
+        // Later saves of the file send a patch against the content it was loaded with.
+        Ode.getInstance().getEditorManager().recordLoadedContent(projectId, fileId, blkFileContent,
+            result.getChecksum());
         String formJson = myFormEditor.preUpgradeJsonString(); // [lyn, 2014/10/27] added formJson for upgrading
         try {
           blocksArea.loadBlocksContent(formJson, blkFileContent);
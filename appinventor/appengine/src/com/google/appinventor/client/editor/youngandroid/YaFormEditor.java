@@ -199,6 +199,9 @@ public final class YaFormEditor extends SimpleEditor implements FormChangeListen
           this.onFailure(e);
           return;
         }
+        // Later saves of the file send a patch against the content it was loaded with.
+        Ode.getInstance().getEditorManager().recordLoadedContent(projectId, fileId, contents,
+            result.getChecksum());
         final FileContentHolder fileContentHolder = new FileContentHolder(contents);
         upgradeFile(fileContentHolder, new Command() {
           @Override
@@ -0,0 +1,79 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * BackupServlet -- Take the daily backups of project source files in the background
+ *
+ * Saving a blocks or form file that hasn't been backed up for a day only records that a
+ * backup is due and queues a task for it with {@link #scheduleBackups}, so the save
+ * doesn't wait for the backup to be written. The task backs up the files a little later,
+ * together, and prunes their old backups. Like {@link GalleryCounterServlet} this Servlet
+ * is called from the task queue manager and is restricted to admin users.
+ *
+ */
+public class BackupServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BackupServlet.class.getName());
+
+  private static final String QUEUE_NAME = "backups";
+  private static final String BACKUP_URL = "/backups";
+
+  // How long, in seconds, a backup waits before it is taken. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> backupDelay = Flag.createFlag("backup.delay.seconds", 60);
+
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  /**
+   * Queues the daily backups of files of a project.
+   */
+  public static void scheduleBackups(long projectId, Collection<String> fileIds) {
+    if (fileIds.isEmpty()) {
+      return;
+    }
+    TaskOptions task = TaskOptions.Builder.withUrl(BACKUP_URL)
+        .param("project", Long.toString(projectId))
+        .countdownMillis(backupDelay.get() * 1000L);
+    for (String fileId : fileIds) {
+      task.param("file", fileId);
+    }
+    try {
+      QueueFactory.getQueue(QUEUE_NAME).add(task);
+    } catch (RuntimeException e) {
+      // The file is saved; only this day's backup of it is lost.
+      LOG.log(Level.WARNING, "Couldn't schedule backups of project " + projectId, e);
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long projectId = Long.parseLong(req.getParameter("project"));
+    String[] fileIds = req.getParameterValues("file");
+    if (fileIds != null && !storageIo.backupFiles(projectId, Arrays.asList(fileIds))) {
+      // Another task is backing up the project. Try again after it is done rather than failing
+      // the task, which would use up its retries.
+      LOG.info("Backups of project " + projectId + " are being taken; trying again later");
+      scheduleBackups(projectId, Arrays.asList(fileIds));
+    }
+  }
+}
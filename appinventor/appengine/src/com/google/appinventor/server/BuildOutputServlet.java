@@ -7,6 +7,7 @@
 package com.google.appinventor.server;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
@@ -43,6 +44,11 @@ public class BuildOutputServlet extends OdeServlet {
   // Object used to safely set cache headers in responses
   private static final CacheHeaders CACHE_HEADERS = new CacheHeadersImpl();
 
+  // How long shared caches may keep a build output, in seconds. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> publicMaxAgeSeconds =
+      Flag.createFlag("build.output.cache.seconds", 600);
+
   // Content type for response header (to avoid security vulnerabilities)
   private static final String CONTENT_TYPE = "text/html; charset=utf-8";
 
@@ -81,6 +87,15 @@ public class BuildOutputServlet extends OdeServlet {
         resp.sendError(resp.SC_NOT_FOUND, "Link has timed out");
         return;
       }
+      // The output a link leads to doesn't change, since every build gets a new link, so it
+      // may be kept by shared caches.
+      String outputPath = fileExporter.getProjectOutputFilePath(nonce.getUserId(),
+          nonce.getProjectId(), null);
+      if (outputPath != null && ProjectFileSender.send(fileExporter, req, resp,
+          nonce.getUserId(), nonce.getProjectId(), outputPath, StorageUtil.basename(outputPath),
+          publicMaxAgeSeconds.get())) {
+        return;
+      }
       downloadableFile = fileExporter.exportProjectOutputFile(nonce.getUserId(), nonce.getProjectId(), null);
 
     } catch (FileNotFoundException e) {
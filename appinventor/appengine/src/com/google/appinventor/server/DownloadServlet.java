@@ -7,6 +7,7 @@
 package com.google.appinventor.server;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.server.storage.ProjectMetadata;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
@@ -15,12 +16,16 @@ import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -35,6 +40,7 @@ public class DownloadServlet extends OdeServlet {
    *    /<baseurl>/download/project-source/<projectId>/{<title>}
    *    /<baseurl>/download/user-project-source/<projectIdOrName>/<userIdOrEmail>
    *    /<baseurl>/download/all-projects-source
+   *    /<baseurl>/download/all-projects-export/<exportId>
    *    /<baseurl>/download/file/<projectId>/<file-path>
    *    /<baseurl>/download/userfile/<file-path>
    */
@@ -42,7 +48,7 @@ public class DownloadServlet extends OdeServlet {
   // Constants for accessing split URI
   /*
    * Download kind can be: "project-output", "project-source",
-   * "all-projects-source", "file", or "userfile".
+   * "all-projects-source", "all-projects-export", "file", or "userfile".
    * Constants for these are defined in ServerLayout.
    */
   private static final int DOWNLOAD_KIND_INDEX = 3;
@@ -65,6 +71,10 @@ public class DownloadServlet extends OdeServlet {
   private static final int USER_PROJECT_USERID_INDEX = 5;
   private static final int SPLIT_LIMIT_USER_PROJECT_SOURCE = 6;
 
+  // Constants used when download kind is "all-projects-export".
+  private static final int EXPORT_ID_INDEX = 4;
+  private static final int SPLIT_LIMIT_ALL_PROJECTS_EXPORT = 5;
+
   // Constants used when download kind is "file".
   // Since the file path may contain slashes, it must be the last component in the URI.
   // PROJECT_ID_INDEX = 4 (declared above)
@@ -111,6 +121,11 @@ public class DownloadServlet extends OdeServlet {
         uriComponents = uri.split("/", SPLIT_LIMIT_PROJECT_OUTPUT);
         long projectId = Long.parseLong(uriComponents[PROJECT_ID_INDEX]);
         String target = (uriComponents.length > TARGET_INDEX) ? uriComponents[TARGET_INDEX] : null;
+        String outputPath = fileExporter.getProjectOutputFilePath(userId, projectId, target);
+        if (outputPath != null && ProjectFileSender.send(fileExporter, req, resp, userId,
+            projectId, outputPath, StorageUtil.basename(outputPath), 0)) {
+          return;
+        }
         downloadableFile = fileExporter.exportProjectOutputFile(userId, projectId, target);
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_PROJECT_SOURCE)) {
@@ -126,6 +141,11 @@ public class DownloadServlet extends OdeServlet {
         // project in the export
         boolean includeYail = userInfoProvider.getIsAdmin();
         boolean includeScreenShots = includeYail;
+        if (zipName != null) {
+          sendProjectSourceZip(resp, zipName, userId, projectId, includeProjectHistory, false,
+              includeYail, includeScreenShots);
+          return;
+        }
         ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
           projectId, includeProjectHistory, false, zipName, includeYail,
           includeScreenShots, false, false);
@@ -163,9 +183,11 @@ public class DownloadServlet extends OdeServlet {
           projectName = storageIo.getProjectName(projectUserId, projectId);
         } catch (NumberFormatException e) {
           // assume we got a name instead
-          for (Long pid: storageIo.getProjects(projectUserId)) {
-            if (storageIo.getProjectName(projectUserId, pid).equals(projectIdOrName)) {
-              projectId = pid;
+          List<Long> projectIds = storageIo.getProjects(projectUserId);
+          for (ProjectMetadata metadata :
+                   storageIo.getProjectMetadata(projectUserId, projectIds, false).values()) {
+            if (metadata.getName().equals(projectIdOrName)) {
+              projectId = metadata.getProjectId();
             }
           }
           if (projectId == 0) {
@@ -182,15 +204,24 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-          projectId, /* include history*/ true, /* include keystore */ true, zipName, true, true, false, false);
-        downloadableFile = zipFile.getRawFile();
+        sendProjectSourceZip(resp, zipName, projectUserId, projectId, /* include history*/ true,
+            /* include keystore */ true, true, true);
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        sendAllProjectsSourceZip(resp, "all-projects.zip", userId);
+        return;
+
+      } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_EXPORT)) {
+        // Download all project source files once they have been exported in the background.
+        uriComponents = uri.split("/", SPLIT_LIMIT_ALL_PROJECTS_EXPORT);
+        if (uriComponents.length <= EXPORT_ID_INDEX) {
+          throw new IllegalArgumentException("Missing export id.");
+        }
+        sendTempFile(resp, "all-projects.zip",
+            ExportAllProjectsServlet.getExportFileName(userId, uriComponents[EXPORT_ID_INDEX]));
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -198,6 +229,10 @@ public class DownloadServlet extends OdeServlet {
         long projectId = Long.parseLong(uriComponents[PROJECT_ID_INDEX]);
         String filePath = (uriComponents.length > FILE_PATH_INDEX) ?
             uriComponents[FILE_PATH_INDEX] : null;
+        if (filePath != null && ProjectFileSender.send(fileExporter, req, resp, userId,
+            projectId, filePath, StorageUtil.basename(filePath), 0)) {
+          return;
+        }
         downloadableFile = fileExporter.exportFile(userId, projectId, filePath);
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USERFILE)) {
@@ -231,4 +266,94 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Sends a project's source files as a zip, streaming each file into the response as it is
+   * read rather than building the whole zip in memory first.
+   */
+  private void sendProjectSourceZip(HttpServletResponse resp, String zipName, String userId,
+      long projectId, boolean includeProjectHistory, boolean includeAndroidKeystore,
+      boolean includeYail, boolean includeScreenShots) throws IOException {
+    // Set http response information. The length of the zip isn't known in advance.
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + zipName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(zipName));
+
+    // Attach download data
+    ServletOutputStream out = resp.getOutputStream();
+    try {
+      fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+          includeAndroidKeystore, includeYail, includeScreenShots, false, false, out);
+    } catch (IOException e) {
+      throw abortStreamedResponse(resp, zipName, e);
+    } catch (RuntimeException e) {
+      throw abortStreamedResponse(resp, zipName, e);
+    }
+    out.close();
+  }
+
+  /*
+   * Sends all of the user's projects' source files as a zip of zips, streaming each project's
+   * zip into the response as soon as it is built.
+   */
+  private void sendAllProjectsSourceZip(HttpServletResponse resp, String zipName, String userId)
+      throws IOException {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + zipName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(zipName));
+
+    ServletOutputStream out = resp.getOutputStream();
+    try {
+      fileExporter.exportAllProjectsSourceZip(userId, out);
+    } catch (IOException e) {
+      throw abortStreamedResponse(resp, zipName, e);
+    } catch (RuntimeException e) {
+      throw abortStreamedResponse(resp, zipName, e);
+    }
+    out.close();
+  }
+
+  /*
+   * Sends a temporary file written by a background export, and deletes it once it has been
+   * sent.
+   */
+  private void sendTempFile(HttpServletResponse resp, String fileName, String tempFileName)
+      throws IOException {
+    StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+    if (!storageIo.tempFileExists(tempFileName)) {
+      throw new IllegalArgumentException("Export is not ready: " + tempFileName);
+    }
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+
+    ServletOutputStream out = resp.getOutputStream();
+    InputStream in = storageIo.openTempFile(tempFileName);
+    try {
+      ByteStreams.copy(in, out);
+    } catch (IOException e) {
+      throw abortStreamedResponse(resp, fileName, e);
+    } finally {
+      in.close();
+    }
+    out.close();
+    storageIo.deleteTempFile(tempFileName);
+  }
+
+  /*
+   * Called when a streamed download fails partway, so that the client never gets a 200 response
+   * with a truncated zip. If nothing has been sent yet, the response is reset and the container
+   * reports the error. Otherwise the response is left unfinished and the container, seeing the
+   * exception, drops the connection instead of ending the response normally. Returns the
+   * exception, for the caller to rethrow.
+   */
+  private static <T extends Exception> T abortStreamedResponse(HttpServletResponse resp,
+      String fileName, T e) {
+    if (resp.isCommitted()) {
+      LOG.log(Level.WARNING, "Aborting download of " + fileName + " after it started", e);
+    } else {
+      resp.reset();
+    }
+    return e;
+  }
 }
@@ -0,0 +1,109 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * ExportAllProjectsServlet -- Export all of a user's projects in the background
+ *
+ * Exporting all the projects of a user with many projects can take longer than a
+ * user request may run, so the export can instead be queued with {@link #startExport}.
+ * This Servlet is then called from the task queue manager, which gives it up to 10
+ * minutes to run. Like {@link BlobUpgradeServlet} it is restricted to admin users.
+ *
+ * The zip of all projects is written to a temporary file named after the user and
+ * the id of the export. The file only exists once the export is complete, after
+ * which it is downloaded through {@link DownloadServlet}, which deletes it. An
+ * export that is never downloaded is deleted by a second task queued with the
+ * export, once the export has expired.
+ *
+ */
+public class ExportAllProjectsServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ExportAllProjectsServlet.class.getName());
+
+  private static final String QUEUE_NAME = "export";
+  private static final String EXPORT_URL = "/export";
+
+  // How long, in hours, an export that is never downloaded is kept. Value is specified in
+  // the <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> exportExpiry = Flag.createFlag("export.expiry.hours", 24);
+
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+  private final FileExporter fileExporter = new FileExporterImpl();
+
+  /**
+   * Queues an export of all of the user's projects and returns its id.
+   */
+  static String startExport(String userId) {
+    String exportId = UUID.randomUUID().toString();
+    QueueFactory.getQueue(QUEUE_NAME).add(Arrays.asList(
+        TaskOptions.Builder.withUrl(EXPORT_URL)
+            .param("user", userId).param("id", exportId),
+        TaskOptions.Builder.withUrl(EXPORT_URL)
+            .param("user", userId).param("id", exportId).param("delete", "true")
+            .countdownMillis(exportExpiry.get() * 3600 * 1000L)));
+    return exportId;
+  }
+
+  /**
+   * Returns the name of the temporary file that an export is written to.
+   *
+   * @throws IllegalArgumentException if exportId isn't an export id
+   */
+  static String getExportFileName(String userId, String exportId) {
+    if (!exportId.matches("[0-9a-f-]+")) {
+      throw new IllegalArgumentException("Invalid export id: " + exportId);
+    }
+    return "__TEMP__/export/" + userId + "/" + exportId + ".zip";
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String userId = req.getParameter("user");
+    String exportId = req.getParameter("id");
+    String fileName = getExportFileName(userId, exportId);
+    if (Boolean.parseBoolean(req.getParameter("delete"))) {
+      // Does nothing if the export has been downloaded.
+      LOG.info("Deleting export " + exportId + " of " + userId);
+      storageIo.deleteTempFile(fileName);
+      return;
+    }
+    LOG.info("Exporting all projects of " + userId + " as " + exportId);
+    OutputStream out = storageIo.createTempFile(fileName);
+    boolean exported = false;
+    try {
+      fileExporter.exportAllProjectsSourceZip(userId, out);
+      exported = true;
+    } catch (IllegalArgumentException e) {
+      // There is nothing to export.
+      LOG.warning("Not exporting projects of " + userId + ": " + e.getMessage());
+    } finally {
+      out.close();
+      if (!exported) {
+        // Closing the stream created the file; an incomplete export must not be downloaded.
+        storageIo.deleteTempFile(fileName);
+      }
+    }
+    // An IOException above fails the task, which the task queue retries.
+  }
+}
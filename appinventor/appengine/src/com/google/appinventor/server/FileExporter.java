@@ -6,10 +6,13 @@
 
 package com.google.appinventor.server;
 
+import com.google.appinventor.server.storage.FileVersion;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -58,16 +61,42 @@ public interface FileExporter {
     boolean fatalError, boolean forGallery) throws IOException;
 
   /**
-   * Exports all of the user's projects' source files as a zip of zips.
+   * Exports the project source files as a zip, writing it to the given stream
+   * as the files are read rather than building it in memory. The stream isn't
+   * closed.
    *
    * @param userId the userId
-   * @param zipName the desired name for the zip
-   * @return the name, contents, and number of files in the zip
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param out the stream to write the zip to
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be written
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError, boolean forGallery, OutputStream out) throws IOException;
+
+  /**
+   * Exports all of the user's projects' source files as a zip of zips, writing
+   * it to an output stream as each project is read. The output stream is not
+   * closed.
+   *
+   * @param userId the userId
+   * @param out the stream to write the zip to
+   * @return the number of files in the zip
    * @throws IllegalArgumentException if download request cannot be fulfilled
    *         (no projects)
    * @throws IOException if files cannot be written
    */
-  ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
+  int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException;
 
   /**
    * Exports a specific project file.
@@ -81,6 +110,42 @@ public interface FileExporter {
    */
   RawFile exportFile(String userId, long projectId, String filePath) throws IOException;
 
+  /**
+   * Returns the path of a project output file, such as the APK built for a
+   * target.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param target the output target platform, or null
+   * @return the full path of the file, or null if there is no output file
+   */
+  @Nullable
+  String getProjectOutputFilePath(String userId, long projectId, @Nullable String target);
+
+  /**
+   * Returns the version of a specific project file, which is used to answer
+   * conditional and range requests without reading the file.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param filePath the full path of the file
+   * @return the version of the file, or null if it isn't known
+   */
+  @Nullable
+  FileVersion getFileVersion(String userId, long projectId, String filePath);
+
+  /**
+   * Opens a stream that reads a specific project file from the given offset.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param filePath the full path of the file
+   * @param start the offset of the first byte to read
+   * @return the content of the file from start on
+   */
+  InputStream openFile(String userId, long projectId, String filePath, long start)
+      throws IOException;
+
   /**
    * Exports a specific user file.
    *
@@ -7,7 +7,9 @@
 package com.google.appinventor.server;
 
 import com.google.common.base.Strings;
-import com.google.appinventor.server.storage.ObjectifyStorageIo;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.FileVersion;
+import com.google.appinventor.server.storage.OrderedPrefetcher;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
@@ -17,8 +19,14 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -30,29 +38,24 @@ import javax.annotation.Nullable;
  */
 public final class FileExporterImpl implements FileExporter {
 
+  private static final Logger LOG = Logger.getLogger(FileExporterImpl.class.getName());
+
+  // The number of projects whose zips are built concurrently when all of a user's projects
+  // are exported. Value is specified in the <system-properties> section of
+  // appengine-web.xml.
+  private static final Flag<Integer> exportAllThreads =
+      Flag.createFlag("export.all.threads", 3);
+
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
   @Override
   public RawFile exportProjectOutputFile(String userId, long projectId, @Nullable String target)
       throws IOException {
     // Download project output file.
-    List<String> files = storageIo.getProjectOutputFiles(userId, projectId);
-    if (target != null) {
-      // Target given - filter file list
-      files = filterByFilePrefix(files, "build/" + target + '/');
-    }
-
-    // We expect the files List to contain:
-    //   build/Android/<project>.apk
-    //   build/Android/build.out
-    //   build/Android/build.err
-    // There should never be more than one .apk file.
-
-    for (String fileName : files) {
-      if (fileName.endsWith(".apk")) {
-        byte[] content = storageIo.downloadRawFile(userId, projectId, fileName);
-        return new RawFile(StorageUtil.basename(fileName), content);
-      }
+    String fileName = getProjectOutputFilePath(userId, projectId, target);
+    if (fileName != null) {
+      byte[] content = storageIo.downloadRawFile(userId, projectId, fileName);
+      return new RawFile(StorageUtil.basename(fileName), content);
     }
 
     throw new FileNotFoundException("No files to download");
@@ -68,60 +71,69 @@ public final class FileExporterImpl implements FileExporter {
     boolean fatalError,
     boolean forGallery) throws IOException {
     // Download project source files as a zip.
-    if (storageIo instanceof ObjectifyStorageIo) {
-      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
-        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
-    } else {
-      throw new IllegalArgumentException("Objectify only");
-    }
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError,
+    boolean forGallery,
+    OutputStream out) throws IOException {
+    // Stream project source files as a zip.
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, out);
   }
 
   @Override
-  public ProjectSourceZip exportAllProjectsSourceZip(String userId,
-      String zipName) throws IOException {
+  public int exportAllProjectsSourceZip(final String userId, OutputStream outputStream)
+      throws IOException {
     // Create a zip file for each project's sources.
     List<Long> projectIds = storageIo.getProjects(userId);
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    ZipOutputStream out = new ZipOutputStream(outputStream);
     int count = 0;
-    String metadata = "";
-    for (Long projectId : projectIds) {
-      try {
-        // Note: We never include Yail files when exporting all source projects
-        // even for Admins. If you are an admin and want to debug a project, download
-        // it explicitly.
-        ProjectSourceZip projectSourceZip =
-          exportProjectSourceZip(userId, projectId, false, false, null, false, false, false, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
+    Set<String> names = new HashSet<String>();
+    // Each project's zip is built by one of a few threads while the zips before it are
+    // written out, so at most that many project zips are held in memory at once.
+    OrderedPrefetcher<byte[]> prefetcher = new OrderedPrefetcher<byte[]>(
+        OrderedPrefetcher.requestThreadFactory(),
+        Math.min(projectIds.size(), exportAllThreads.get()));
+    try {
+      for (final Long projectId : projectIds) {
+        prefetcher.add(new Callable<byte[]>() {
+          @Override
+          public byte[] call() {
+            return exportProjectSourceZipBytes(userId, projectId);
           }
+        });
+      }
+      for (Long projectId : projectIds) {
+        byte[] data = prefetcher.next();
+        if (data == null) {
+          continue;
         }
-        metadata += projectSourceZip.getMetadata() + "\n";
 
+        // If necessary, rename duplicate projects
+        String name = storageIo.getProjectName(userId, projectId) + ".aia";
+        while (!names.add(name)) {
+          name = "duplicate-" + name;
+        }
+        out.putNextEntry(new ZipEntry(name));
         out.write(data, 0, data.length);
         out.closeEntry();
+        MemoryHighWaterMarkFilter.sample();
         count++;
-      } catch (IllegalArgumentException e) {
-        System.err.println("No files found for userid: " + userId +
-            " for projectid: " + projectId);
-        continue;
-      } catch (IOException e) {
-        System.err.println("IOException while reading files found for userid: " +
-            userId + " for projectid: " + projectId);
-        continue;
       }
+    } finally {
+      prefetcher.close();
     }
     if (count == 0) {
       throw new IllegalArgumentException("No files to download");
@@ -139,13 +151,31 @@ public final class FileExporterImpl implements FileExporter {
       }
     }
 
-    out.close();
+    out.finish();
+    return count;
+  }
 
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+  /*
+   * Returns the source zip of one project, or null if the project has no files or can't be
+   * read, in which case it is left out of the zip of all projects.
+   */
+  private byte[] exportProjectSourceZipBytes(String userId, long projectId) {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try {
+      // Note: We never include Yail files when exporting all source projects
+      // even for Admins. If you are an admin and want to debug a project, download
+      // it explicitly.
+      storageIo.exportProjectSourceZip(userId, projectId, false, false, false, false, false,
+          false, zip);
+    } catch (IllegalArgumentException e) {
+      LOG.warning("No files found for userid: " + userId + " for projectid: " + projectId);
+      return null;
+    } catch (IOException e) {
+      LOG.warning("IOException while reading files found for userid: " + userId
+          + " for projectid: " + projectId);
+      return null;
+    }
+    return zip.toByteArray();
   }
 
   @Override
@@ -173,6 +203,40 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public String getProjectOutputFilePath(String userId, long projectId,
+      @Nullable String target) {
+    List<String> files = storageIo.getProjectOutputFiles(userId, projectId);
+    if (target != null) {
+      // Target given - filter file list
+      files = filterByFilePrefix(files, "build/" + target + '/');
+    }
+
+    // We expect the files List to contain:
+    //   build/Android/<project>.apk
+    //   build/Android/build.out
+    //   build/Android/build.err
+    // There should never be more than one .apk file.
+
+    for (String fileName : files) {
+      if (fileName.endsWith(".apk")) {
+        return fileName;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, String filePath) {
+    return storageIo.getFileVersion(userId, projectId, filePath);
+  }
+
+  @Override
+  public InputStream openFile(String userId, long projectId, String filePath, long start)
+      throws IOException {
+    return storageIo.openRawFile(userId, projectId, filePath, start);
+  }
+
   /*
    * Filters a list of file names, removing those that don't start with the given prefix.
    */
@@ -9,6 +9,7 @@ package com.google.appinventor.server;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
+import com.google.appinventor.server.storage.ProjectMetadata;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.UploadResponse;
@@ -24,9 +25,6 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.io.ByteStreams;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -128,10 +126,8 @@ public final class FileImporterImpl implements FileImporter {
             }
 
             // Get the file content from the ZipEntry.
-            ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
-            ByteStreams.copy(zin, contentStream);
-
-            project.addRawFile(new RawFile(fileName, contentStream.toByteArray()));
+            project.addRawFile(new RawFile(fileName, readEntry(zin, entry)));
+            MemoryHighWaterMarkFilter.sample();
           }
         }
       }
@@ -160,28 +156,14 @@ public final class FileImporterImpl implements FileImporter {
     int maxAssetSizeBytes = (int) (maxAssetSizeMegs.get() * 1024 * 1024);
     int maxSizeBytes = Math.min(maxAssetSizeBytes, storageIo.getMaxJobSizeBytes());
 
-    BufferedInputStream bis = new BufferedInputStream(uploadedFileStream);
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    BufferedOutputStream bos = new BufferedOutputStream(os);
-
-    // Alledgedly since it is buffered, reading in units of one byte
-    // should be as fast as many bytes, but we can always adjust this.
-    int bytes = 0;
-    long fileLength = 0;
-    byte[] buffer = new byte[1];
-    while ((bytes = bis.read(buffer, 0, buffer.length)) != -1) {
-      bos.write(buffer, 0, bytes);
-      fileLength += bytes;
-    }
-    bos.flush();
-
-    // First check the file length, to avoid loading the file into memory if it is too large anyhow.
-    if (fileLength > maxSizeBytes) {
+    // Read at most one byte more than the limit, to avoid loading the whole file into memory if
+    // it is too large anyhow.
+    byte[] content = ByteStreams.toByteArray(
+        ByteStreams.limit(uploadedFileStream, maxSizeBytes + 1L));
+    if (content.length > maxSizeBytes) {
       throw new FileImporterException(UploadResponse.Status.FILE_TOO_LARGE);
     }
 
-    byte[] content = os.toByteArray();
-
     // If the file already exists, we will overwrite the content.
     List<String> sourceFiles = storageIo.getProjectSourceFiles(userId, projectId);
     if (!sourceFiles.contains(fileName)) {
@@ -208,15 +190,33 @@ public final class FileImporterImpl implements FileImporter {
     return storageIo.uploadTempFile(ByteStreams.toByteArray(inStream));
   }
 
+  /*
+   * Reads the content of the current zip entry. When the zip records the entry's size, the
+   * content is read straight into an array of that size rather than into a growing buffer that
+   * is copied at the end.
+   */
+  private static byte[] readEntry(ZipInputStream zin, ZipEntry entry) throws IOException {
+    long size = entry.getSize();
+    // Don't trust sizes larger than any file we accept.
+    if (size >= 0 && size <= maxAssetSizeMegs.get() * 1024 * 1024) {
+      byte[] content = new byte[(int) size];
+      ByteStreams.readFully(zin, content);
+      return content;
+    }
+    return ByteStreams.toByteArray(zin);
+  }
+
   @Override
   public Set<String> getProjectNames(final String userId) {
     List<Long> projectIds = storageIo.getProjects(userId);
-    Iterable<String> names = Iterables.transform(projectIds, new Function<Long, String>() {
-      @Override
-      public String apply(Long projectId) {
-        return storageIo.getProjectName(userId, projectId);
-      }
-    });
+    Iterable<String> names = Iterables.transform(
+        storageIo.getProjectMetadata(userId, projectIds, false).values(),
+        new Function<ProjectMetadata, String>() {
+          @Override
+          public String apply(ProjectMetadata metadata) {
+            return metadata.getName();
+          }
+        });
     return ImmutableSet.copyOf(names);
   }
 }
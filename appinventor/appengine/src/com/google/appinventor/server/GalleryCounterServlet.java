@@ -0,0 +1,90 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GalleryCounterServlet -- Roll up the download and like counters of gallery apps
+ *
+ * Downloads and likes of a gallery app are counted in sharded counters, so that
+ * they don't all update the app's entity. The first time an app is counted on after
+ * a roll up, {@link #scheduleRollUp} queues a task that adds the counts up a little
+ * later and stores them with the app, where the gallery lists are sorted on them.
+ * Like {@link ExportAllProjectsServlet} this Servlet is called from the task queue
+ * manager and is restricted to admin users.
+ *
+ */
+public class GalleryCounterServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GalleryCounterServlet.class.getName());
+
+  private static final String QUEUE_NAME = "gallerycounters";
+  private static final String ROLL_UP_URL = "/gallerycounters";
+  private static final String SCHEDULED_KEY_PREFIX = "gallerycounters:";
+
+  // How long, in seconds, counts may wait before they are rolled up. Value is specified
+  // in the <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> rollUpDelay =
+      Flag.createFlag("gallery.counter.rollup.seconds", 60);
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private final GalleryStorageIo galleryStorageIo = GalleryStorageIoInstanceHolder.INSTANCE;
+
+  /**
+   * Queues a roll up of the counters of a gallery app, unless one is already queued.
+   */
+  public static void scheduleRollUp(long galleryId) {
+    int delaySeconds = rollUpDelay.get();
+    try {
+      // Only the first count after a roll up queues a task. If memcache loses the
+      // marker, a roll up is queued twice, which is harmless.
+      if (!memcache.put(SCHEDULED_KEY_PREFIX + galleryId, Boolean.TRUE,
+          Expiration.byDeltaSeconds(delaySeconds), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+        return;
+      }
+      queueRollUp(galleryId, delaySeconds);
+    } catch (RuntimeException e) {
+      // The count is safe in its shard and is rolled up with the next one.
+      LOG.log(Level.WARNING, "Couldn't schedule roll up of gallery app " + galleryId, e);
+    }
+  }
+
+  private static void queueRollUp(long galleryId, int delaySeconds) {
+    QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(ROLL_UP_URL)
+        .param("id", Long.toString(galleryId)).countdownMillis(delaySeconds * 1000L));
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long galleryId = Long.parseLong(req.getParameter("id"));
+    if (!galleryStorageIo.rollUpCounters(galleryId)) {
+      // Another roll up of the app may have read the counters before the counts
+      // this one was queued for. Try again after it is done rather than failing
+      // the task, which would use up its retries.
+      LOG.info("Counters of gallery app " + galleryId
+          + " are being rolled up; trying again later");
+      queueRollUp(galleryId, rollUpDelay.get());
+    }
+  }
+}
@@ -6,21 +6,11 @@
 
 package com.google.appinventor.server;
 
-import com.google.appengine.api.search.Cursor;
-import com.google.appengine.api.search.DeleteException;
-import com.google.appengine.api.search.Document;
-import com.google.appengine.api.search.Field;
-import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.IndexSpec;
-import com.google.appengine.api.search.PutException;
-import com.google.appengine.api.search.Query;
-import com.google.appengine.api.search.QueryOptions;
-import com.google.appengine.api.search.Results;
-import com.google.appengine.api.search.ScoredDocument;
-import com.google.appengine.api.search.SearchException;
-import com.google.appengine.api.search.SearchServiceFactory;
-import com.google.appengine.api.search.StatusCode;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.search.AppEngineSearchBackend;
+import com.google.appinventor.server.search.EmbeddedSearchBackend;
+import com.google.appinventor.server.search.SearchBackend;
+import com.google.appinventor.server.search.SearchHits;
 import com.google.appinventor.server.storage.GalleryStorageIo;
 import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
@@ -28,28 +18,44 @@ import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
 import com.googlecode.objectify.NotFoundException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-// see sample at https://developers.google.com/appengine/docs/java/search/
-
+/**
+ * The full-text index of the gallery apps.
+ *
+ * The index is kept by a {@link SearchBackend}, chosen with the
+ * gallery.search.backend flag: "appengine" uses the App Engine Search API and
+ * "embedded" keeps the index in memory on each instance.
+ *
+ */
 public class GallerySearchIndex {
 
   private static final Logger LOG = Logger.getLogger(GallerySearchIndex.class.getName());
-  private static String GALLERYINDEX="GalleryIndex";
   private final transient GalleryStorageIo galleryStorageIo =
       GalleryStorageIoInstanceHolder.INSTANCE;
   private static volatile GallerySearchIndex  instance= null;
-  private static final int SEARCH_RETRY_MAX = 3;
-  private final int NUMBER_FOUND_ACCURACY = 100;
-  private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
+
+  // Value is specified in the <system-properties> section of appengine-web.xml.
+  private static final Flag<String> searchBackend =
+      Flag.createFlag("gallery.search.backend", "appengine");
+
+  // Number of apps read and indexed at a time when the whole gallery is indexed
+  private static final int INDEX_BATCH_SIZE = 100;
+
+  private final SearchBackend backend;
 
   /**
    * The default constructor of GallerySearchIndex
    */
   private GallerySearchIndex () {
-
+    if ("embedded".equals(searchBackend.get())) {
+      backend = new EmbeddedSearchBackend();
+    } else {
+      backend = new AppEngineSearchBackend();
+    }
   }
 
   /**
@@ -58,7 +64,9 @@ public class GallerySearchIndex {
   public static GallerySearchIndex getInstance () {
     if (instance == null) {
       synchronized (GallerySearchIndex.class) {
-        instance = new GallerySearchIndex();
+        if (instance == null) {
+          instance = new GallerySearchIndex();
+        }
       }
     }
     return instance;
@@ -69,24 +77,31 @@ public class GallerySearchIndex {
    * @param app galleryapp
    */
   public void indexApp (GalleryApp app) {
-    // take the title, description, and the user name and index it
-    // need to build up a string with all meta data
-    String indexWords = app.getTitle()+" "+app.getDescription() + " " + app.getDeveloperName();
-    // now create the doc
-    Document doc = Document.newBuilder()
-      .setId(String.valueOf(app.getGalleryAppId()))
-      .addField(Field.newBuilder().setName("content").setText(indexWords))
-      .build();
-
-    Index index = getIndex();
+    backend.index(Collections.singletonList(app));
+    backend.flush();
+  }
 
-    try {
-      index.put(doc);
-    } catch (PutException e) {
-      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-          // retry putting the document
+  /**
+   * index the most recently updated gallery apps, a batch at a time
+   * @param max the maximum number of apps to index
+   * @return the number of apps indexed
+   */
+  public int indexAll(int max) {
+    int indexed = 0;
+    String cursor = null;
+    while (indexed < max) {
+      GalleryAppListResult page = galleryStorageIo.getRecentGalleryApps(cursor,
+          Math.min(INDEX_BATCH_SIZE, max - indexed));
+      backend.index(page.getApps());
+      indexed += page.getApps().size();
+      cursor = page.getCursor();
+      if (cursor == null) {
+        break;
       }
     }
+    backend.flush();
+    LOG.info("Indexed " + indexed + " gallery apps");
+    return indexed;
   }
 
   /**
@@ -94,13 +109,8 @@ public class GallerySearchIndex {
    * @param galleryId gallery id
    */
   public void unIndexApp(long galleryId) {
-    Index index = getIndex();
-    try {
-      index.delete(String.valueOf(galleryId));
-    } catch (DeleteException e) {
-      LOG.info("error deleting index entry");
-    }
-
+    backend.remove(galleryId);
+    backend.flush();
   }
 
   /**
@@ -112,85 +122,17 @@ public class GallerySearchIndex {
    * @return GalleryAppListResult gallery applist result
    */
   public GalleryAppListResult find (String searchWords, int start, int count) {
-    //TODO page sliced has not implemented yet
     final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    final Result<Integer> size = new Result<Integer>();
-    Query query = Query.newBuilder()
-            .setOptions(QueryOptions.newBuilder()
-                    .setOffset(start)
-                    .setLimit(count)
-                    .setNumberFoundAccuracy(NUMBER_FOUND_ACCURACY)
-                    // for deployed apps, uncomment the line below to demo snippeting.
-                    // This will not work on the dev_appserver.
-                    // setFieldsToSnippet("content").
-                    .build())
-            .build(searchWords);
-
-    Results<ScoredDocument> results = null;
-    int attempts = 0;
-    boolean retry = true;
-    while (retry){
-      try {
-        if (DEBUG) {
-          LOG.info("Sending query " + query);
-        }
-        results = getIndex().search(query);
-        // search successful
-        retry = false;
-      } catch (SearchException e) {
-        if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-          attempts++;
-          LOG.info("Query failed on attempt:" + attempts);
-          // No more attempts, stop retrying
-          if (attempts >= SEARCH_RETRY_MAX) {
-            retry = false;
-          }
-        } else {
-          //Not a transient error, Do Not Retry
-          retry = false;
-          LOG.log(Level.SEVERE, "SEARCH EXCEPTION: " + e.getMessage());
-        }
+    SearchHits hits = backend.find(searchWords, start, count);
+    for (long galleryId : hits.getGalleryIds()) {
+      try{
+        GalleryApp app = galleryStorageIo.getGalleryApp(galleryId);
+        apps.add(app);
+      }catch(NotFoundException e){
+        LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + galleryId);
+        unIndexApp(galleryId);
       }
     }
-
-    if (results != null){
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        if (DEBUG) {
-          LOG.info("Find:" + document.getId());
-        }
-      }
-
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        try{
-          GalleryApp app = galleryStorageIo.getGalleryApp(Long.parseLong(document.getId()));
-          apps.add(app);
-        }catch(NotFoundException e){
-          LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + document.getId());
-          unIndexApp(Long.parseLong(document.getId()));
-        }
-      }
-      size.t = (int) results.getNumberFound();
-    } else {
-      // the search was not successful in the try and catch
-      size.t = 0;
-      LOG.info("Search failed after " + attempts + " attempts");
-    }
-    return new GalleryAppListResult(apps, size.t, searchWords);
-  }
-
-  /**
-   * @return the search index
-   */
-  private Index getIndex() {
-    IndexSpec indexSpec = IndexSpec.newBuilder().setName(GALLERYINDEX).build();
-    Index index = SearchServiceFactory.getSearchService().getIndex(indexSpec);
-    return index;
-  }
-  // Create a final object of this class to hold a modifiable result value that
-  // can be used in a method of an inner class.
-  private class Result<T> {
-    T t;
+    return new GalleryAppListResult(apps, hits.getNumberFound(), searchWords);
   }
 }
@@ -141,10 +141,7 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    */
   @Override
   public void indexAll(int count) {
-    List<GalleryApp> apps= getRecentApps(1,count).getApps();
-    for (GalleryApp app:apps) {
-      GallerySearchIndex.getInstance().indexApp(app);
-    }
+    GallerySearchIndex.getInstance().indexAll(count);
   }
 
   /**
@@ -159,33 +156,33 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
   /**
    * Returns a wrapped class which contains list of most recently
    * updated galleryApps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getRecentApps(int start,int count) {
-    return galleryStorageIo.getRecentGalleryApps(start,count);
+  public GalleryAppListResult getRecentApps(String cursor, int count) {
+    return galleryStorageIo.getRecentGalleryApps(cursor, count);
   }
 
   /**
    * Returns a wrapped class which contains list of featured gallery app
-   * @param start start index
+   * @param cursor where the page starts, or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  public GalleryAppListResult getFeaturedApp(int start, int count){
-    return galleryStorageIo.getFeaturedApp(start, count);
+  public GalleryAppListResult getFeaturedApp(String cursor, int count){
+    return galleryStorageIo.getFeaturedApp(cursor, count);
   }
 
   /**
    * Returns a wrapped class which contains list of tutorial gallery app
-   * @param start start index
+   * @param cursor where the page starts, or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  public GalleryAppListResult getTutorialApp(int start, int count){
-    return galleryStorageIo.getTutorialApp(start, count);
+  public GalleryAppListResult getTutorialApp(String cursor, int count){
+    return galleryStorageIo.getTutorialApp(cursor, count);
   }
 
   /**
@@ -228,13 +225,13 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    * Returns a wrapped class which contains a list of galleryApps
    * by a particular developer and total number of results in database
    * @param userId id of the developer
-   * @param start starting index
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getDeveloperApps(String userId, int start,int count) {
-    return galleryStorageIo.getDeveloperApps(userId, start,count);
+  public GalleryAppListResult getDeveloperApps(String userId, String cursor, int count) {
+    return galleryStorageIo.getDeveloperApps(userId, cursor, count);
   }
 
   /**
@@ -264,25 +261,25 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getMostDownloadedApps(int start, int count) {
-    return galleryStorageIo.getMostDownloadedApps(start,count);
+  public GalleryAppListResult getMostDownloadedApps(String cursor, int count) {
+    return galleryStorageIo.getMostDownloadedApps(cursor, count);
   }
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getMostLikedApps(int start, int count) {
-    return galleryStorageIo.getMostLikedApps(start,count);
+  public GalleryAppListResult getMostLikedApps(String cursor, int count) {
+    return galleryStorageIo.getMostLikedApps(cursor, count);
   }
 
   /**
@@ -0,0 +1,87 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.flags.Flag;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A filter that records the high-water mark of heap usage while a request is handled.
+ *
+ * <p>The heap is sampled when the request starts and ends, and whenever code that moves
+ * large file contents calls {@link #sample()}. Requests whose high-water mark rises more than
+ * the configured threshold above the usage at the start of the request are logged. The heap
+ * is shared by all requests on the instance, so the rise is an upper bound on what the request
+ * itself used.</p>
+ *
+ */
+public class MemoryHighWaterMarkFilter implements Filter {
+
+  private static final Logger LOG = Logger.getLogger(MemoryHighWaterMarkFilter.class.getName());
+
+  // Requests whose heap usage rises by more than this are logged. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> logThresholdMegs =
+      Flag.createFlag("memory.log.threshold.megs", 16);
+
+  // The heap usage at the start of the current request and the highest usage seen since,
+  // or null outside of a filtered request.
+  private static final ThreadLocal<long[]> usage = new ThreadLocal<long[]>();
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    long start = usedHeap();
+    usage.set(new long[] { start, start });
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      sample();
+      long peak = usage.get()[1];
+      usage.remove();
+      if (peak - start > logThresholdMegs.get() * 1024L * 1024L) {
+        String uri = (request instanceof HttpServletRequest)
+            ? ((HttpServletRequest) request).getRequestURI() : "";
+        LOG.info("Heap high-water mark for " + uri + " was " + peak + " bytes, "
+            + (peak - start) + " bytes above the start of the request");
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  /**
+   * Samples the heap usage of the current request. Does nothing outside of a filtered
+   * request.
+   */
+  public static void sample() {
+    long[] current = usage.get();
+    if (current != null) {
+      current[1] = Math.max(current[1], usedHeap());
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -18,10 +18,17 @@ import com.google.appinventor.shared.rpc.ServerLayout;
 import com.google.appinventor.shared.rpc.user.User;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -53,7 +60,9 @@ public class OdeAuthFilter implements Filter {
 
   private static final Logger LOG = Logger.getLogger(OdeAuthFilter.class.getName());
 
-  private static Crypter crypter = null; // accessed through getCrypter only
+  // A Crypter doesn't change once it is loaded, so it is read without a lock. The lock is
+  // only taken to load it.
+  private static volatile Crypter crypter = null; // accessed through getCrypter only
   private static final Object crypterSync = new Object();
 
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
@@ -66,6 +75,32 @@ public class OdeAuthFilter implements Filter {
   static final Flag<String> sessionKeyFile = Flag.createFlag("session.keyfile", "WEB-INF/authkey");
   static final Flag<Integer> idleTimeout = Flag.createFlag("session.idletimeout", 120);
   static final Flag<Integer> renewTime = Flag.createFlag("session.renew", 30);
+  // How long a decrypted cookie is remembered, in seconds. Zero turns the session cache off.
+  static final Flag<Integer> sessionCacheTime = Flag.createFlag("session.cache.seconds", 60);
+
+  // The maximum number of sessions in the session cache.
+  private static final int MAX_CACHED_SESSIONS = 10000;
+
+  // Cookies that were decrypted recently, keyed by a digest of the cookie, so that a request
+  // with a known cookie doesn't have to decrypt it again. Keeping the digest rather than the
+  // cookie means a heap dump doesn't hold usable cookies.
+  private static final ConcurrentMap<String, VerifiedSession> sessions =
+      new ConcurrentHashMap<String, VerifiedSession>();
+
+  // The stages of the filter whose time is counted.
+  private static final int STAGE_COOKIE = 0;
+  private static final int STAGE_USER = 1;
+  private static final int STAGE_WHITELIST = 2;
+  private static final int STAGE_SERVLET = 3;
+  private static final String[] STAGE_NAMES = { "cookie", "user", "whitelist", "servlet" };
+
+  // How often the filter statistics are logged, in requests.
+  private static final long LOG_INTERVAL = 10000;
+
+  private static final AtomicLongArray stageNanos = new AtomicLongArray(STAGE_NAMES.length);
+  private static final AtomicLong filteredRequests = new AtomicLong();
+  private static final AtomicLong sessionHits = new AtomicLong();
+  private static final AtomicLong sessionMisses = new AtomicLong();
 
   private final LocalUser localUser = LocalUser.getInstance();
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
@@ -99,7 +134,9 @@ public class OdeAuthFilter implements Filter {
     // }
 
     // Use Local Authentication
+    long start = System.nanoTime();
     UserInfo userInfo = getUserInfo(httpRequest);
+    stageNanos.addAndGet(STAGE_COOKIE, System.nanoTime() - start);
     if (userInfo == null) {        // Invalid Login
       if (DEBUG) {
         LOG.info("uinfo is null on login.");
@@ -131,6 +168,9 @@ public class OdeAuthFilter implements Filter {
 //    }
 
     doMyFilter(userInfo, isAdmin, isReadOnly, httpRequest, httpResponse, chain);
+    if (filteredRequests.incrementAndGet() % LOG_INTERVAL == 0) {
+      logStatistics();
+    }
   }
 
   @VisibleForTesting
@@ -139,7 +179,9 @@ public class OdeAuthFilter implements Filter {
     throws IOException, ServletException {
 
     // Setup the user object for OdeRemoteServiceServlet
+    long start = System.nanoTime();
     setUserFromUserId(userInfo.userId, isAdmin, isReadOnly);
+    stageNanos.addAndGet(STAGE_USER, System.nanoTime() - start);
 
     // If using local login, we *must* have an email address because that is how we
     // find the UserData object.
@@ -159,11 +201,16 @@ public class OdeAuthFilter implements Filter {
     }
 
     try {
-      if (useWhitelist.get() && !isUserWhitelisted()) {
-        writeWhitelistErrorMessage(response);
-        // This indicates to the client side code that the user is not on the whitelist.
-        response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-        return;  // This blocks further processing of the request.
+      if (useWhitelist.get()) {
+        start = System.nanoTime();
+        boolean whitelisted = isUserWhitelisted();
+        stageNanos.addAndGet(STAGE_WHITELIST, System.nanoTime() - start);
+        if (!whitelisted) {
+          writeWhitelistErrorMessage(response);
+          // This indicates to the client side code that the user is not on the whitelist.
+          response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+          return;  // This blocks further processing of the request.
+        }
       }
       // If user hasn't accepted terms of service, redirect them,
       // unless they're submitting the acceptance request.
@@ -185,12 +232,18 @@ public class OdeAuthFilter implements Filter {
         cook.setPath("/");
         response.addCookie(cook);
       }
+      start = System.nanoTime();
       chain.doFilter(request, response);
+      stageNanos.addAndGet(STAGE_SERVLET, System.nanoTime() - start);
     } finally {
       removeUser();
     }
   }
 
+  /*
+   * Checks the whitelist. The StorageIo keeps the whitelist in memory, so this doesn't
+   * usually leave the instance.
+   */
   @VisibleForTesting
   boolean isUserWhitelisted() {
     //return whitelist.isInWhitelist(localUser);
@@ -236,6 +289,18 @@ public class OdeAuthFilter implements Filter {
     localUser.set(null);
   }
 
+  private static void logStatistics() {
+    long requests = Math.max(filteredRequests.get(), 1);
+    StringBuilder sb = new StringBuilder("Auth filter: ");
+    sb.append(sessionHits.get()).append(" session hits, ")
+        .append(sessionMisses.get()).append(" session misses, average");
+    for (int i = 0; i < STAGE_NAMES.length; i++) {
+      sb.append(i == 0 ? " " : ", ").append(STAGE_NAMES[i]).append(' ')
+          .append(stageNanos.get(i) / requests / 1000).append(" us");
+    }
+    LOG.info(sb.toString());
+  }
+
   /* (non-Javadoc)
    * @see javax.servlet.Filter#destroy()
    */
@@ -339,6 +404,34 @@ public class OdeAuthFilter implements Filter {
     }
   }
 
+  /*
+   * The content of a cookie that was decrypted recently.
+   */
+  private static final class VerifiedSession {
+    final String userId;
+    final long ts;
+    final boolean isAdmin;
+    final boolean isReadOnly;
+    final long expires;
+
+    VerifiedSession(UserInfo uInfo, long expires) {
+      this.userId = uInfo.userId;
+      this.ts = uInfo.ts;
+      this.isAdmin = uInfo.isAdmin;
+      this.isReadOnly = uInfo.isReadOnly;
+      this.expires = expires;
+    }
+
+    UserInfo toUserInfo() {
+      UserInfo uInfo = new UserInfo();
+      uInfo.userId = userId;
+      uInfo.ts = ts;
+      uInfo.isAdmin = isAdmin;
+      uInfo.isReadOnly = isReadOnly;
+      return uInfo;
+    }
+  }
+
   public static UserInfo getUserInfo(HttpServletRequest request) {
     try {
       Cookie [] cookies = request.getCookies();
@@ -349,14 +442,21 @@ public class OdeAuthFilter implements Filter {
             if (DEBUG) {
               LOG.info("getUserInfo: rawCookie = " + rawData);
             }
-            Crypter crypter = getCrypter();
-            CookieAuth.cookie cookieToken = CookieAuth.cookie.parseFrom(
-              crypter.decrypt(Base64Coder.decode(rawData)));
-            UserInfo uInfo = new UserInfo();
-            uInfo.userId = cookieToken.getUuid();
-            uInfo.ts = cookieToken.getTs();
-            uInfo.isAdmin = cookieToken.getIsAdmin();
-            uInfo.isReadOnly = cookieToken.getIsReadOnly();
+            String digest = Hashing.sha256().hashString(rawData, Charsets.UTF_8).toString();
+            UserInfo uInfo = getCachedSession(digest);
+            if (uInfo == null) {
+              Crypter crypter = getCrypter();
+              CookieAuth.cookie cookieToken = CookieAuth.cookie.parseFrom(
+                crypter.decrypt(Base64Coder.decode(rawData)));
+              uInfo = new UserInfo();
+              uInfo.userId = cookieToken.getUuid();
+              uInfo.ts = cookieToken.getTs();
+              uInfo.isAdmin = cookieToken.getIsAdmin();
+              uInfo.isReadOnly = cookieToken.getIsReadOnly();
+              cacheSession(digest, uInfo);
+            }
+            // The timestamp is checked even for a cached session, because the cookie may
+            // have timed out since it was cached.
             if (uInfo.isValid()) {
               return uInfo;
             } else {
@@ -373,14 +473,55 @@ public class OdeAuthFilter implements Filter {
     }
   }
 
+  /*
+   * Returns the content of the cookie with the given digest if it was decrypted recently, or
+   * null if it wasn't.
+   */
+  private static UserInfo getCachedSession(String digest) {
+    VerifiedSession session = sessions.get(digest);
+    if (session == null || session.expires < System.currentTimeMillis()) {
+      sessionMisses.incrementAndGet();
+      return null;
+    }
+    sessionHits.incrementAndGet();
+    return session.toUserInfo();
+  }
+
+  /*
+   * Remembers the content of a decrypted cookie. When the cache is full, expired sessions are
+   * dropped, and if that isn't enough, all of them are.
+   */
+  private static void cacheSession(String digest, UserInfo uInfo) {
+    int cacheTime = sessionCacheTime.get();
+    if (cacheTime <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (sessions.size() >= MAX_CACHED_SESSIONS) {
+      Iterator<VerifiedSession> iterator = sessions.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().expires < now) {
+          iterator.remove();
+        }
+      }
+      if (sessions.size() >= MAX_CACHED_SESSIONS) {
+        sessions.clear();
+      }
+    }
+    sessions.put(digest, new VerifiedSession(uInfo, now + cacheTime * 1000L));
+  }
+
   private static Crypter getCrypter() throws KeyczarException {
-    synchronized(crypterSync) {
-      if (crypter != null) {
-        return crypter;
-      } else {
-        crypter = new Crypter(sessionKeyFile.get());
-        return crypter;
+    Crypter result = crypter;
+    if (result == null) {
+      synchronized(crypterSync) {
+        result = crypter;
+        if (result == null) {
+          result = new Crypter(sessionKeyFile.get());
+          crypter = result;
+        }
       }
     }
+    return result;
   }
 }
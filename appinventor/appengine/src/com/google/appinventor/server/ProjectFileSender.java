@@ -0,0 +1,108 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.FileVersion;
+import com.google.appinventor.server.util.ByteRange;
+import com.google.appinventor.server.util.CacheHeaders;
+import com.google.appinventor.server.util.CacheHeadersImpl;
+import com.google.appinventor.server.util.ModifiedHeaders;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends project files in response to download requests, using the stored version of a file
+ * to answer conditional requests ("If-None-Match" and "If-Modified-Since") without reading the
+ * file, and reading only the requested bytes of range requests, such as a resumed download of
+ * an APK.
+ *
+ */
+final class ProjectFileSender {
+
+  // Object used to safely set cache headers in responses
+  private static final CacheHeaders CACHE_HEADERS = new CacheHeadersImpl();
+
+  private ProjectFileSender() {
+  }
+
+  /**
+   * Sends a project file, or tells the requester that its copy is current. Nothing is sent if
+   * the version of the file isn't known, in which case the caller sends the whole file.
+   *
+   * @param fileExporter the exporter that reads the file
+   * @param req the request
+   * @param resp the response
+   * @param userId the owner of the project
+   * @param projectId the project id
+   * @param filePath the full path of the file
+   * @param fileName the name the file is downloaded as
+   * @param publicMaxAgeSeconds if positive, how long shared caches may keep the file;
+   *        otherwise only the requester may cache it, and must revalidate it
+   * @return whether a response was sent
+   */
+  static boolean send(FileExporter fileExporter, HttpServletRequest req,
+      HttpServletResponse resp, String userId, long projectId, String filePath, String fileName,
+      int publicMaxAgeSeconds) throws IOException {
+    FileVersion version = fileExporter.getFileVersion(userId, projectId, filePath);
+    if (version == null) {
+      return false;
+    }
+    if (publicMaxAgeSeconds > 0) {
+      CACHE_HEADERS.setCacheablePublic(resp, publicMaxAgeSeconds);
+    } else {
+      CACHE_HEADERS.setCacheablePrivate(resp);
+    }
+    resp.setHeader("ETag", version.getETag());
+    if (version.getDateModified() > 0) {
+      resp.setDateHeader("Last-Modified", version.getDateModified());
+    }
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (ModifiedHeaders.notModified(req, version.getETag(), version.getDateModified())) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+
+    // Part of the file is only sent if the requester has the rest of the current version.
+    String ifRange = req.getHeader("If-Range");
+    ByteRange range = (ifRange == null || ifRange.equals(version.getETag()))
+        ? ByteRange.parse(req.getHeader("Range"), version.getLength()) : null;
+    if (range != null && !range.isSatisfiable()) {
+      resp.setHeader("Content-Range", range.toContentRange());
+      resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return true;
+    }
+    long start = 0;
+    long count = version.getLength();
+    if (range != null) {
+      start = range.getStart();
+      count = range.getCount();
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", range.toContentRange());
+    } else {
+      resp.setStatus(HttpServletResponse.SC_OK);
+    }
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    resp.setHeader("Content-Length", Long.toString(count));
+
+    ServletOutputStream out = resp.getOutputStream();
+    InputStream in = fileExporter.openFile(userId, projectId, filePath, start);
+    try {
+      ByteStreams.copy(ByteStreams.limit(in, count), out);
+    } finally {
+      in.close();
+    }
+    out.close();
+    return true;
+  }
+}
@@ -23,6 +23,7 @@ import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectService;
@@ -41,7 +42,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -472,6 +475,24 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         content);
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree by applying a
+   * patch to its stored content.
+   *
+   * @param sessionId session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param patch  the change from the content last saved by the client
+   * @return modification date for project
+   */
+  @Override
+  public long savePatch(String sessionId, long projectId, String fileId, FilePatch patch)
+      throws InvalidSessionException, BlocksTruncatedException, ChecksumedFileException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).savePatch(userId, projectId, fileId, patch);
+  }
+
   /**
    * Saves the contents of multiple files.
    *
@@ -485,11 +506,26 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       BlocksTruncatedException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Save the files of each project together, so that they are stored with one batch
+    // operation. Later contents of the same file replace earlier ones.
+    Map<Long, Map<String, String>> contentsByProject =
+        new LinkedHashMap<Long, Map<String, String>>();
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      Map<String, String> contents = contentsByProject.get(fileAndContent.getProjectId());
+      if (contents == null) {
+        contents = new LinkedHashMap<String, String>();
+        contentsByProject.put(fileAndContent.getProjectId(), contents);
+      }
+      contents.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> entry : contentsByProject.entrySet()) {
+      long projectId = entry.getKey();
+      long projectDate = getProjectRpcImpl(userId, projectId).
+          save(userId, projectId, entry.getValue());
+      if (projectId == filesAndContent.get(filesAndContent.size() - 1).getProjectId()) {
+        date = projectDate;
+      }
     }
     return date;
   }
@@ -538,6 +574,34 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         userInfoProvider.getUser(), projectId, target);
   }
 
+  /**
+   * Starts exporting the sources of all of the user's projects in the
+   * background.
+   *
+   * @return  id of the export
+   */
+  @Override
+  public String exportAllProjects() {
+    return ExportAllProjectsServlet.startExport(userInfoProvider.getUserId());
+  }
+
+  /**
+   * Returns whether a background export of the user's projects is ready to
+   * be downloaded.
+   *
+   * @param exportId  id returned by {@link #exportAllProjects}
+   */
+  @Override
+  public boolean isExportReady(String exportId) {
+    String fileName = ExportAllProjectsServlet.getExportFileName(userInfoProvider.getUserId(),
+        exportId);
+    try {
+      return storageIo.tempFileExists(fileName);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, getThreadLocalRequest(), fileName, e);
+    }
+  }
+
   /*
    * Write the serialized response out to stdout. This is a very unusual thing
    * to do, but it allows us to create a static file version of the response
@@ -29,6 +29,10 @@ import javax.servlet.http.HttpServletResponse;
  * safety they contain an encrypted user and project ID as part of
  * their URL.
  *
+ * <p>The build server streams the result zip and sends all of it again if it cannot be stored,
+ * so each entry is read straight into storage, and storing the same entries again replaces
+ * them.
+ *
  * @author markf@google.com (Mark Friedman)
  */
 public class ReceiveBuildServlet extends OdeServlet {
@@ -69,16 +73,17 @@ public class ReceiveBuildServlet extends OdeServlet {
           break;
         }
         String fileName = zipEntry.getName();
-        byte[] fileBytes = ByteStreams.toByteArray(zipInputStream);
         if (StorageUtil.ANDROID_KEYSTORE_FILENAME.equals(fileName)) {
           LOG.info("Saving android.keystore for user: " + userId);
           storageIo.addFilesToUser(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-          storageIo.uploadRawUserFile(userId, fileName, fileBytes);
+          storageIo.uploadRawUserFile(userId, fileName, ByteStreams.toByteArray(zipInputStream));
         } else {
           String filePath = buildFileDirPath + "/" + fileName;
           LOG.info("Saving build output files: " + filePath);
           storageIo.addOutputFilesToProject(userId, projectId, filePath);
-          storageIo.uploadRawFileForce(projectId, filePath, userId, fileBytes);
+          // Large files, such as the apk, are copied from the request into storage as they are
+          // read.
+          storageIo.uploadRawFileForce(projectId, filePath, userId, zipInputStream);
         }
       }
     } finally {
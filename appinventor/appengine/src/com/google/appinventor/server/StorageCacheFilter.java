@@ -0,0 +1,44 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.CachingStorageIo;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * A filter that lets {@link CachingStorageIo} remember the project and user metadata read
+ * while a request is handled, so that reading it again later in the request is free.
+ *
+ */
+public class StorageCacheFilter implements Filter {
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    CachingStorageIo.beginRequest();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      CachingStorageIo.endRequest();
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
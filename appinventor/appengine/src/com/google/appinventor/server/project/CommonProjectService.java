@@ -11,6 +11,7 @@ import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FilePatch;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.user.User;
@@ -18,6 +19,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -287,6 +289,43 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the content of the file associated with a node in the project tree by applying a
+   * patch to its stored content. A patch that changes nothing doesn't write the file.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileId  project node whose source should be saved
+   * @param patch  the change from the content last saved by the client
+   * @return modification date for project
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#savePatch(String, long, String, FilePatch)
+   */
+  public long savePatch(String userId, long projectId, String fileId, FilePatch patch)
+      throws BlocksTruncatedException, ChecksumedFileException {
+    String content = patch.apply(
+        storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET));
+    if (patch.isEmpty()) {
+      return storageIo.getProjectDateModified(userId, projectId);
+    }
+    return save2(userId, projectId, fileId, false, content);
+  }
+
+  /**
+   * Saves the contents of several files of a project at once. Empty blocks workspaces are
+   * written like any other content.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  the content of each file, keyed by file ID
+   * @return modification date for project
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#save(String, List)
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    return storageIo.uploadFilesForce(projectId, userId, contents, StorageUtil.DEFAULT_CHARSET);
+  }
+
   /**
    * Saves a screenshot of a current blocks editor. This is called from the client side
    * whenever the user leaves a blocks editor. The data is shipped to us in base64 encoding
@@ -0,0 +1,170 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.io.CharStreams;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the progress of builds, as reported by the build server.
+ *
+ * <p>Clients poll for the result of a build every few seconds. Rather than asking the build
+ * server on every poll, the progress of a build is kept in memcache for
+ * {@link #EXPIRATION_SECONDS}, so all polls within that time share one lookup. When progress
+ * has to be fetched, the progress of every build this instance was recently polled for and
+ * that isn't in memcache is fetched with the same request.</p>
+ *
+ */
+final class BuildProgressCache {
+
+  private static final Logger LOG = Logger.getLogger(BuildProgressCache.class.getName());
+
+  private static final String MEMCACHE_KEY_PREFIX = "buildprogress:";
+
+  // How long the progress of a build is used before asking the build server again.
+  private static final int EXPIRATION_SECONDS = 2;
+
+  // Builds that haven't been polled for this long are no longer fetched along with others.
+  private static final long POLLED_BUILD_MILLIS = 60 * 1000;
+
+  // Keeps the progress request URL well below the URL fetch limit.
+  private static final int MAX_BUILDS_PER_REQUEST = 50;
+
+  private static final int TIMEOUT_MILLIS = 5 * 1000;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  // The time each build was last polled for, guarded by itself.
+  private final Map<String, Long> polledBuilds = new LinkedHashMap<String, Long>();
+
+  /**
+   * Returns the progress, from 0 to 100, of the build with the given id.
+   *
+   * @param buildServerHost  host[:port] of the build server
+   * @param buildId  the id the build was submitted with
+   */
+  int getProgress(String buildServerHost, String buildId) {
+    List<String> buildIds = markPolled(buildId);
+    // The polled builds include this one, so a single lookup covers them all.
+    List<String> keys = new ArrayList<String>();
+    for (String id : buildIds) {
+      keys.add(MEMCACHE_KEY_PREFIX + id);
+    }
+    Map<String, Object> cached = memcache.getAll(keys);
+    Object cachedProgress = cached.get(MEMCACHE_KEY_PREFIX + buildId);
+    if (cachedProgress instanceof Integer) {
+      return (Integer) cachedProgress;
+    }
+
+    List<String> missing = new ArrayList<String>();
+    missing.add(buildId);
+    for (String id : buildIds) {
+      if (!id.equals(buildId) && !cached.containsKey(MEMCACHE_KEY_PREFIX + id)
+          && missing.size() < MAX_BUILDS_PER_REQUEST) {
+        missing.add(id);
+      }
+    }
+
+    Map<String, Integer> fetched = fetchProgress(buildServerHost, missing);
+    Map<String, Integer> values = new HashMap<String, Integer>();
+    for (Map.Entry<String, Integer> entry : fetched.entrySet()) {
+      values.put(MEMCACHE_KEY_PREFIX + entry.getKey(), entry.getValue());
+    }
+    memcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    Integer progress = fetched.get(buildId);
+    return progress == null ? 0 : progress;
+  }
+
+  /**
+   * Forgets the progress of the given build, because it has finished or is about to restart.
+   */
+  void forget(String buildId) {
+    synchronized (polledBuilds) {
+      polledBuilds.remove(buildId);
+    }
+    memcache.delete(MEMCACHE_KEY_PREFIX + buildId);
+  }
+
+  /*
+   * Records that the given build was polled for, drops builds that haven't been polled for a
+   * while, and returns the ids of the remaining builds.
+   */
+  private List<String> markPolled(String buildId) {
+    long now = System.currentTimeMillis();
+    synchronized (polledBuilds) {
+      polledBuilds.remove(buildId);
+      polledBuilds.put(buildId, now);
+      // Builds are in the order they were last polled for, so the stale ones come first.
+      Iterator<Long> iterator = polledBuilds.values().iterator();
+      while (iterator.hasNext() && iterator.next() < now - POLLED_BUILD_MILLIS) {
+        iterator.remove();
+      }
+      return new ArrayList<String>(polledBuilds.keySet());
+    }
+  }
+
+  /*
+   * Asks the build server for the progress of the given builds. Builds the build server doesn't
+   * know about, and all builds if the build server can't be reached, are left out of the
+   * returned map.
+   */
+  private static Map<String, Integer> fetchProgress(String buildServerHost,
+      List<String> buildIds) {
+    Map<String, Integer> progress = new HashMap<String, Integer>();
+    try {
+      StringBuilder url = new StringBuilder("http://" + buildServerHost
+          + "/buildserver/progress");
+      char separator = '?';
+      for (String buildId : buildIds) {
+        url.append(separator).append("buildId=").append(URLEncoder.encode(buildId, "UTF-8"));
+        separator = '&';
+      }
+      HttpURLConnection connection = (HttpURLConnection) new URL(url.toString()).openConnection();
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return progress;
+      }
+      Reader reader = new InputStreamReader(connection.getInputStream(), "UTF-8");
+      JSONObject builds;
+      try {
+        builds = new JSONObject(CharStreams.toString(reader));
+      } finally {
+        reader.close();
+      }
+      for (String buildId : buildIds) {
+        JSONObject build = builds.optJSONObject(buildId);
+        if (build != null) {
+          progress.put(buildId, build.getInt("progress"));
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.INFO, "Unable to get build progress from " + buildServerHost, e);
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to parse build progress from " + buildServerHost, e);
+    }
+    return progress;
+  }
+}
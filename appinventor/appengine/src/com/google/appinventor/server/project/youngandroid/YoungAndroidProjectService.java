@@ -20,6 +20,7 @@ import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.properties.json.ServerJsonParser;
+import com.google.appinventor.server.storage.ProjectMetadata;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.properties.json.JSONParser;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -28,7 +29,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
@@ -49,9 +49,12 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -67,6 +70,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.text.DecimalFormat;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -80,7 +84,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,6 +114,9 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Build folder path
   private static final String BUILD_FOLDER = "build";
 
+  // Size of the chunks the project source is sent to the build server in
+  private static final int BUILD_REQUEST_CHUNK_SIZE = 64 * 1024;
+
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
   // host[:port] to use for connecting to the build server
@@ -121,6 +127,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       Flag.createFlag("appengine.host", "");
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  private static final BuildProgressCache buildProgressCache = new BuildProgressCache();
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -417,11 +425,16 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   @Override
   public ProjectRootNode getRootNode(String userId, long projectId) {
+    // Read the name and the source files of the project together
+    ProjectMetadata metadata = storageIo.getProjectMetadata(userId,
+        Collections.singletonList(projectId), true).get(projectId);
+    String projectName = metadata != null ? metadata.getName() : "";
+    List<String> sourceFiles = metadata != null
+        ? metadata.getSourceFiles() : Collections.<String>emptyList();
+
     // Create root, assets, and source nodes (they are mocked nodes as they don't really
     // have to exist like this on the file system)
-    ProjectRootNode rootNode =
-        new YoungAndroidProjectNode(storageIo.getProjectName(userId, projectId),
-                                    projectId);
+    ProjectRootNode rootNode = new YoungAndroidProjectNode(projectName, projectId);
     ProjectNode assetsNode = new YoungAndroidAssetsFolder(ASSETS_FOLDER);
     ProjectNode sourcesNode = new YoungAndroidSourceFolderNode(SRC_FOLDER);
     ProjectNode compsNode = new YoungAndroidComponentsFolder(EXTERNAL_COMPS_FOLDER);
@@ -434,7 +447,6 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     Map<String, ProjectNode> packagesMap = Maps.newHashMap();
 
     // Retrieve project information
-    List<String> sourceFiles = storageIo.getProjectSourceFiles(userId, projectId);
     for (String fileId : sourceFiles) {
       if (fileId.startsWith(ASSETS_FOLDER + '/')) {
         if (fileId.startsWith(EXTERNAL_COMPS_FOLDER + '/')) {
@@ -579,6 +591,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     // Store the userId and projectId based on the nonce
 
     storageIo.storeNonce(nonce, userId, projectId);
+    String buildId = getBuildId(userId, projectId, target);
+    buildProgressCache.forget(buildId);
 
     // Delete the existing build output files, if any, so that future attempts to get it won't get
     // old versions.
@@ -587,25 +601,29 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    CountingOutputStream zipFile = null;
     try {
       buildServerUrl = new URL(getBuildServerUrlStr(
           user.getUserEmail(),
           userId,
           projectId,
-          outputFileDir));
+          outputFileDir,
+          buildId));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
 
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+      // Stream the project source into the request instead of building the zip in memory first.
+      // Without a streaming mode, HttpURLConnection would buffer the whole body to learn its
+      // length.
+      connection.setChunkedStreamingMode(BUILD_REQUEST_CHUNK_SIZE);
+      zipFile = new CountingOutputStream(
+          new BufferedOutputStream(connection.getOutputStream()));
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+      fileExporter.exportProjectSourceZip(userId, projectId, false,
+          /* includeAndroidKeystore */ true, true, false, true, false, zipFile);
+      zipFile.flush();
+      zipFile.close();
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -649,7 +667,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
+      long zipFileLength = zipFile == null ? -1 : zipFile.getCount();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -668,7 +686,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
       if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+        long zipFileLength = zipFile.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -696,10 +714,11 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
   private String getBuildServerUrlStr(String userName, String userId,
-                                      long projectId, String fileName)
+                                      long projectId, String fileName, String buildId)
       throws UnsupportedEncodingException, EncryptionException {
     return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
+           + "&buildId=" + URLEncoder.encode(buildId, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
@@ -712,6 +731,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  /*
+   * Returns the id the build server tracks the progress of the given project's build under.
+   * A new build of the same project and target replaces the previous one.
+   */
+  private static String getBuildId(String userId, long projectId, String target) {
+    return Hashing.sha1().hashString(userId + "/" + projectId + "/" + target, Charsets.UTF_8)
+        .toString();
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       if (appengineHost.get()=="") {
@@ -760,70 +788,27 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
+    String buildId = getBuildId(userId, projectId, target);
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
+        buildProgressCache.forget(buildId);
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
         try {
           JSONObject buildResultJsonObj = new JSONObject(outputStr);
-          buildResult = new RpcResult(buildResultJsonObj.getInt("result"),
-                                      buildResultJsonObj.getString("output"),
-                                      buildResultJsonObj.getString("error"),
-                                      outputStr);
+          return new RpcResult(buildResultJsonObj.getInt("result"),
+                               buildResultJsonObj.getString("output"),
+                               buildResultJsonObj.getString("error"),
+                               outputStr);
         } catch (JSONException e) {
-          buildResult = new RpcResult(1, "", "");
+          return new RpcResult(1, "", "");
         }
-        break;
       }
     }
-    return buildResult;
-  }
-
-  /**
-   * Check if there are any build progress available for the given user's project
-   *
-   * @param user the User that owns the {@code projectId}.
-   * @param projectId  project id to be built
-   * @param target  build target (optional, implementation dependent)
-   */
-  public void updateCurrentProgress(User user, long projectId, String target) {
-    try {
-      String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
-      String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
-
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-          try {
-            String content = readContent(connection.getInputStream());
-            if (content != null && !content.isEmpty()) {
-              if (DEBUG) {
-                LOG.info("The current progress is " + content + "%.");
-              }
-              currentProgress = Integer.parseInt(content);
-            }
-          } catch (IOException e) {
-            // No content. That's ok.
-          }
-         }
-      } catch (MalformedURLException e) {
-        // that's ok, nothing to do
-      } catch (IOException e) {
-        // that's ok, nothing to do
-      } catch (EncryptionException e) {
-        // that's ok, nothing to do
-      } catch (RuntimeException e) {
-        // that's ok, nothing to do
-      }
+    int progress = buildProgressCache.getProgress(buildServerHost.get(), buildId);
+    if (DEBUG) {
+      LOG.info("The current progress is " + progress + "%.");
+    }
+    return new RpcResult(-1, "" + progress, ""); // Build not finished
   }
 
   // Nicely format floating number using only two decimal places
@@ -0,0 +1,157 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import com.google.appengine.api.search.DeleteException;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.PutException;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SearchException;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.search.StatusCode;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// see sample at https://developers.google.com/appengine/docs/java/search/
+
+/**
+ * Search backend that uses the App Engine Search API.
+ *
+ */
+public class AppEngineSearchBackend implements SearchBackend {
+
+  private static final Logger LOG = Logger.getLogger(AppEngineSearchBackend.class.getName());
+  private static final String GALLERYINDEX = "GalleryIndex";
+  private static final int SEARCH_RETRY_MAX = 3;
+  private static final int NUMBER_FOUND_ACCURACY = 100;
+  // The Search API takes at most this many documents per put
+  private static final int MAX_DOCUMENTS_PER_PUT = 200;
+  private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
+
+  @Override
+  public void index(List<GalleryApp> apps) {
+    for (int first = 0; first < apps.size(); first += MAX_DOCUMENTS_PER_PUT) {
+      List<GalleryApp> batch =
+          apps.subList(first, Math.min(apps.size(), first + MAX_DOCUMENTS_PER_PUT));
+      Document[] docs = new Document[batch.size()];
+      for (int i = 0; i < docs.length; i++) {
+        GalleryApp app = batch.get(i);
+        // take the title, description, and the user name and index it
+        String indexWords = app.getTitle() + " " + app.getDescription() + " "
+            + app.getDeveloperName();
+        docs[i] = Document.newBuilder()
+            .setId(String.valueOf(app.getGalleryAppId()))
+            .addField(Field.newBuilder().setName("content").setText(indexWords))
+            .build();
+      }
+      put(docs);
+    }
+  }
+
+  private void put(Document[] docs) {
+    for (int attempts = 1; ; attempts++) {
+      try {
+        getIndex().put(docs);
+        return;
+      } catch (PutException e) {
+        if (!StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())
+            || attempts >= SEARCH_RETRY_MAX) {
+          LOG.log(Level.SEVERE, "Couldn't index " + docs.length + " apps", e);
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void remove(long galleryId) {
+    try {
+      getIndex().delete(String.valueOf(galleryId));
+    } catch (DeleteException e) {
+      LOG.info("error deleting index entry");
+    }
+  }
+
+  @Override
+  public void flush() {
+    // Every change is stored as it is made.
+  }
+
+  @Override
+  public SearchHits find(String searchWords, int start, int count) {
+    Query query = Query.newBuilder()
+            .setOptions(QueryOptions.newBuilder()
+                    .setOffset(start)
+                    .setLimit(count)
+                    .setNumberFoundAccuracy(NUMBER_FOUND_ACCURACY)
+                    // for deployed apps, uncomment the line below to demo snippeting.
+                    // This will not work on the dev_appserver.
+                    // setFieldsToSnippet("content").
+                    .build())
+            .build(searchWords);
+
+    Results<ScoredDocument> results = null;
+    int attempts = 0;
+    boolean retry = true;
+    while (retry){
+      try {
+        if (DEBUG) {
+          LOG.info("Sending query " + query);
+        }
+        results = getIndex().search(query);
+        // search successful
+        retry = false;
+      } catch (SearchException e) {
+        if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
+          attempts++;
+          LOG.info("Query failed on attempt:" + attempts);
+          // No more attempts, stop retrying
+          if (attempts >= SEARCH_RETRY_MAX) {
+            retry = false;
+          }
+        } else {
+          //Not a transient error, Do Not Retry
+          retry = false;
+          LOG.log(Level.SEVERE, "SEARCH EXCEPTION: " + e.getMessage());
+        }
+      }
+    }
+
+    if (results == null) {
+      // the search was not successful in the try and catch
+      LOG.info("Search failed after " + attempts + " attempts");
+      return SearchHits.NONE;
+    }
+    List<Long> galleryIds = new ArrayList<Long>();
+    for (ScoredDocument document : results) {
+      if (DEBUG) {
+        LOG.info("Find:" + document.getId());
+      }
+      galleryIds.add(Long.parseLong(document.getId()));
+    }
+    return new SearchHits(galleryIds, (int) results.getNumberFound());
+  }
+
+  /**
+   * @return the search index
+   */
+  private Index getIndex() {
+    IndexSpec indexSpec = IndexSpec.newBuilder().setName(GALLERYINDEX).build();
+    return SearchServiceFactory.getSearchService().getIndex(indexSpec);
+  }
+}
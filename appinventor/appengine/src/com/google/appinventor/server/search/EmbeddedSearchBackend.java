@@ -0,0 +1,240 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Search backend that keeps an {@link InvertedIndex} in the memory of each
+ * instance, so that the gallery can be searched without the App Engine Search
+ * service.
+ *
+ * <p>The index is saved as a snapshot in a temporary file whenever it is
+ * flushed, and is loaded from the snapshot when an instance first searches. A
+ * version number in memcache, incremented by every save, tells the other
+ * instances to load the new snapshot. Changes are kept until they are saved:
+ * a save holds a short lock in memcache, loads the latest snapshot if another
+ * instance has saved since, applies the changes to it and writes it back, so
+ * that instances changing the index at the same time don't overwrite each
+ * other's changes. If the lock can't be had or the write fails, the changes
+ * are saved by the next flush. Reindexing the gallery builds the index when
+ * there is no snapshot yet.</p>
+ *
+ */
+public class EmbeddedSearchBackend implements SearchBackend {
+
+  private static final Logger LOG = Logger.getLogger(EmbeddedSearchBackend.class.getName());
+
+  private static final String SNAPSHOT_FILE_NAME = "__TEMP__/search/gallery-index";
+  private static final String VERSION_KEY = "gallerysearch:version";
+  private static final String SAVE_LOCK_KEY = "gallerysearch:savelock";
+
+  // How often, in milliseconds, a searching instance checks for a newer snapshot
+  private static final long VERSION_CHECK_MILLIS = 30 * 1000;
+
+  // How long a save may hold the lock before another instance may take it
+  private static final int SAVE_LOCK_SECONDS = 30;
+
+  // How many times, and how long apart in milliseconds, a save tries to get the lock
+  private static final int SAVE_LOCK_ATTEMPTS = 5;
+  private static final long SAVE_LOCK_RETRY_MILLIS = 100;
+
+  /*
+   * An app to add to the index.
+   */
+  private static class Doc {
+    final String title;
+    final String description;
+    final String author;
+
+    Doc(GalleryApp app) {
+      title = app.getTitle();
+      description = app.getDescription();
+      author = app.getDeveloperName();
+    }
+  }
+
+  private final InvertedIndex index = new InvertedIndex();
+  private final StorageIo storageIo;
+  private final MemcacheService memcache;
+
+  // Guards loading the snapshot, changing the index and saving it
+  private final Object lock = new Object();
+  private volatile boolean loaded;
+  private volatile long loadedVersion;
+  private volatile long lastVersionCheck;
+
+  // The changes this instance has made that haven't been saved yet, by gallery id. A null doc
+  // removes the app.
+  private final Map<Long, Doc> pending = new LinkedHashMap<Long, Doc>();
+
+  public EmbeddedSearchBackend() {
+    this(StorageIoInstanceHolder.INSTANCE, MemcacheServiceFactory.getMemcacheService());
+  }
+
+  public EmbeddedSearchBackend(StorageIo storageIo, MemcacheService memcache) {
+    this.storageIo = storageIo;
+    this.memcache = memcache;
+  }
+
+  @Override
+  public void index(List<GalleryApp> apps) {
+    synchronized (lock) {
+      loadLocked(true);
+      for (GalleryApp app : apps) {
+        Doc doc = new Doc(app);
+        pending.put(app.getGalleryAppId(), doc);
+        apply(app.getGalleryAppId(), doc);
+      }
+    }
+  }
+
+  @Override
+  public void remove(long galleryId) {
+    synchronized (lock) {
+      loadLocked(true);
+      // Remember the removal even if this instance's index doesn't have the app, since the
+      // snapshot saved by another instance may.
+      pending.put(galleryId, null);
+      apply(galleryId, null);
+    }
+  }
+
+  @Override
+  public void flush() {
+    synchronized (lock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      String token = acquireSaveLock();
+      if (token == null) {
+        LOG.warning("Couldn't lock the gallery search index; saving "
+            + pending.size() + " changes later");
+        return;
+      }
+      try {
+        // Start from the latest snapshot, so changes saved by other instances are kept.
+        loadLocked(true);
+        OutputStream out = storageIo.createTempFile(SNAPSHOT_FILE_NAME);
+        try {
+          index.writeTo(out);
+        } finally {
+          out.close();
+        }
+        Long version = memcache.increment(VERSION_KEY, 1, 0L);
+        if (version != null) {
+          loadedVersion = version;
+        }
+        pending.clear();
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Couldn't save the gallery search index", e);
+      } finally {
+        releaseSaveLock(token);
+      }
+    }
+  }
+
+  @Override
+  public SearchHits find(String searchWords, int start, int count) {
+    if (!loaded || System.currentTimeMillis() - lastVersionCheck >= VERSION_CHECK_MILLIS) {
+      synchronized (lock) {
+        loadLocked(false);
+      }
+    }
+    return index.search(searchWords, start, count);
+  }
+
+  /*
+   * Loads the snapshot if this instance hasn't loaded it yet, or if another instance has saved
+   * a newer one, and applies the changes that haven't been saved yet on top of it. Unless
+   * always is true, the version is checked at most every VERSION_CHECK_MILLIS.
+   */
+  private void loadLocked(boolean always) {
+    long now = System.currentTimeMillis();
+    if (!always && loaded && now - lastVersionCheck < VERSION_CHECK_MILLIS) {
+      return;
+    }
+    lastVersionCheck = now;
+    Object version = memcache.get(VERSION_KEY);
+    long currentVersion = version instanceof Long ? (Long) version : 0;
+    if (loaded && currentVersion == loadedVersion) {
+      return;
+    }
+    try {
+      if (storageIo.tempFileExists(SNAPSHOT_FILE_NAME)) {
+        InputStream in = storageIo.openTempFile(SNAPSHOT_FILE_NAME);
+        try {
+          index.readFrom(in);
+        } finally {
+          in.close();
+        }
+        LOG.info("Loaded gallery search index of " + index.size() + " apps");
+      } else {
+        LOG.warning("There is no gallery search index yet. Reindex the gallery to build it.");
+      }
+    } catch (IOException e) {
+      // Search what we have. Reindexing the gallery saves a new snapshot.
+      LOG.log(Level.WARNING, "Couldn't load the gallery search index", e);
+    }
+    for (Map.Entry<Long, Doc> change : pending.entrySet()) {
+      apply(change.getKey(), change.getValue());
+    }
+    loadedVersion = currentVersion;
+    loaded = true;
+  }
+
+  private void apply(long galleryId, Doc doc) {
+    if (doc == null) {
+      index.remove(galleryId);
+    } else {
+      index.add(galleryId, doc.title, doc.description, doc.author);
+    }
+  }
+
+  /*
+   * Takes the lock that lets one instance at a time save the snapshot. Returns the token that
+   * releases it, or null if another instance held it for all of the attempts.
+   */
+  private String acquireSaveLock() {
+    String token = UUID.randomUUID().toString();
+    for (int attempt = 0; attempt < SAVE_LOCK_ATTEMPTS; attempt++) {
+      if (memcache.put(SAVE_LOCK_KEY, token, Expiration.byDeltaSeconds(SAVE_LOCK_SECONDS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+        return token;
+      }
+      try {
+        Thread.sleep(SAVE_LOCK_RETRY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private void releaseSaveLock(String token) {
+    // Leave the lock alone if it expired and another instance has taken it.
+    if (token.equals(memcache.get(SAVE_LOCK_KEY))) {
+      memcache.delete(SAVE_LOCK_KEY);
+    }
+  }
+}
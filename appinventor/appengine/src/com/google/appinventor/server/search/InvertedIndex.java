@@ -0,0 +1,300 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-memory inverted index of gallery apps.
+ *
+ * <p>Apps are indexed by the words of their title, description and author. A
+ * search finds the apps that contain every word of the query, where a query word
+ * also matches the words it is a prefix of, so that "calc" finds "calculator".
+ * Apps are ranked by how often the query words occur in them, weighted by the
+ * field they occur in; exact matches count for more than prefix matches.</p>
+ *
+ * <p>The index can be written to a stream and read back, so that it doesn't have
+ * to be rebuilt from the datastore.</p>
+ *
+ */
+public class InvertedIndex {
+
+  // Weights of the fields of an app
+  static final float TITLE_BOOST = 3.0f;
+  static final float AUTHOR_BOOST = 2.0f;
+  static final float DESCRIPTION_BOOST = 1.0f;
+
+  // Weight of a prefix match relative to an exact match
+  static final float PREFIX_MATCH_WEIGHT = 0.5f;
+
+  private static final int SNAPSHOT_VERSION = 1;
+
+  private static class Doc {
+    final String title;
+    final String description;
+    final String author;
+
+    Doc(String title, String description, String author) {
+      this.title = title == null ? "" : title;
+      this.description = description == null ? "" : description;
+      this.author = author == null ? "" : author;
+    }
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // The indexed apps, by gallery id
+  private Map<Long, Doc> docs = new HashMap<Long, Doc>();
+
+  // For each word, the weight of the word in each app that contains it
+  private NavigableMap<String, Map<Long, Float>> postings =
+      new TreeMap<String, Map<Long, Float>>();
+
+  /**
+   * Adds an app to the index, replacing any earlier entry for it.
+   */
+  public void add(long galleryId, String title, String description, String author) {
+    Doc doc = new Doc(title, description, author);
+    lock.writeLock().lock();
+    try {
+      removeLocked(galleryId);
+      addLocked(docs, postings, galleryId, doc);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes an app from the index.
+   *
+   * @return whether the app was in the index
+   */
+  public boolean remove(long galleryId) {
+    lock.writeLock().lock();
+    try {
+      return removeLocked(galleryId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of apps in the index.
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return docs.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns a page of the apps that match a query, best match first. Apps that
+   * match equally well are returned newest (highest gallery id) first.
+   */
+  public SearchHits search(String query, int start, int count) {
+    Set<String> queryWords = new LinkedHashSet<String>(tokenize(query));
+    if (queryWords.isEmpty()) {
+      return SearchHits.NONE;
+    }
+    final Map<Long, Float> scores;
+    lock.readLock().lock();
+    try {
+      Map<Long, Float> matches = null;
+      for (String queryWord : queryWords) {
+        Map<Long, Float> wordMatches = new HashMap<Long, Float>();
+        for (Map.Entry<String, Map<Long, Float>> entry : postings.subMap(
+                 queryWord, true, queryWord + Character.MAX_VALUE, false).entrySet()) {
+          float matchWeight = entry.getKey().equals(queryWord) ? 1.0f : PREFIX_MATCH_WEIGHT;
+          for (Map.Entry<Long, Float> posting : entry.getValue().entrySet()) {
+            Float score = wordMatches.get(posting.getKey());
+            wordMatches.put(posting.getKey(), (score == null ? 0 : score)
+                + matchWeight * posting.getValue());
+          }
+        }
+        if (matches == null) {
+          matches = wordMatches;
+        } else {
+          // Every word of the query has to match.
+          matches.keySet().retainAll(wordMatches.keySet());
+          for (Map.Entry<Long, Float> match : matches.entrySet()) {
+            match.setValue(match.getValue() + wordMatches.get(match.getKey()));
+          }
+        }
+        if (matches.isEmpty()) {
+          return SearchHits.NONE;
+        }
+      }
+      scores = matches;
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    List<Long> galleryIds = new ArrayList<Long>(scores.keySet());
+    Collections.sort(galleryIds, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        int byScore = Float.compare(scores.get(b), scores.get(a));
+        return byScore != 0 ? byScore : b.compareTo(a);
+      }
+    });
+    int from = Math.min(Math.max(start, 0), galleryIds.size());
+    int to = Math.min(from + count, galleryIds.size());
+    return new SearchHits(new ArrayList<Long>(galleryIds.subList(from, to)), galleryIds.size());
+  }
+
+  /**
+   * Writes the indexed apps to a stream. The stream is not closed.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    DataOutputStream data = new DataOutputStream(gzip);
+    lock.readLock().lock();
+    try {
+      data.writeInt(SNAPSHOT_VERSION);
+      data.writeInt(docs.size());
+      for (Map.Entry<Long, Doc> entry : docs.entrySet()) {
+        data.writeLong(entry.getKey());
+        writeString(data, entry.getValue().title);
+        writeString(data, entry.getValue().description);
+        writeString(data, entry.getValue().author);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    data.flush();
+    gzip.finish();
+  }
+
+  /**
+   * Replaces the contents of the index with the apps read from a stream that
+   * was written by {@link #writeTo}. The stream is not closed.
+   *
+   * @throws IOException if the stream can't be read or isn't an index
+   */
+  public void readFrom(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+    int version = data.readInt();
+    if (version != SNAPSHOT_VERSION) {
+      throw new IOException("Unknown search index version " + version);
+    }
+    int size = data.readInt();
+    Map<Long, Doc> newDocs = new HashMap<Long, Doc>();
+    NavigableMap<String, Map<Long, Float>> newPostings = new TreeMap<String, Map<Long, Float>>();
+    for (int i = 0; i < size; i++) {
+      long galleryId = data.readLong();
+      Doc doc = new Doc(readString(data), readString(data), readString(data));
+      addLocked(newDocs, newPostings, galleryId, doc);
+    }
+    lock.writeLock().lock();
+    try {
+      docs = newDocs;
+      postings = newPostings;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Splits text into lower case words of letters and digits.
+   */
+  static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<String>();
+    if (text == null) {
+      return words;
+    }
+    String lowerCase = text.toLowerCase(Locale.ENGLISH);
+    int wordStart = -1;
+    for (int i = 0; i <= lowerCase.length(); i++) {
+      boolean inWord = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+      if (inWord && wordStart < 0) {
+        wordStart = i;
+      } else if (!inWord && wordStart >= 0) {
+        words.add(lowerCase.substring(wordStart, i));
+        wordStart = -1;
+      }
+    }
+    return words;
+  }
+
+  private static void addLocked(Map<Long, Doc> docs,
+      NavigableMap<String, Map<Long, Float>> postings, long galleryId, Doc doc) {
+    docs.put(galleryId, doc);
+    Map<String, Float> weights = new HashMap<String, Float>();
+    addWeights(weights, doc.title, TITLE_BOOST);
+    addWeights(weights, doc.description, DESCRIPTION_BOOST);
+    addWeights(weights, doc.author, AUTHOR_BOOST);
+    for (Map.Entry<String, Float> weight : weights.entrySet()) {
+      Map<Long, Float> posting = postings.get(weight.getKey());
+      if (posting == null) {
+        posting = new HashMap<Long, Float>();
+        postings.put(weight.getKey(), posting);
+      }
+      posting.put(galleryId, weight.getValue());
+    }
+  }
+
+  private static void addWeights(Map<String, Float> weights, String text, float boost) {
+    for (String word : tokenize(text)) {
+      Float weight = weights.get(word);
+      weights.put(word, (weight == null ? 0 : weight) + boost);
+    }
+  }
+
+  private boolean removeLocked(long galleryId) {
+    Doc doc = docs.remove(galleryId);
+    if (doc == null) {
+      return false;
+    }
+    Set<String> words = new LinkedHashSet<String>();
+    words.addAll(tokenize(doc.title));
+    words.addAll(tokenize(doc.description));
+    words.addAll(tokenize(doc.author));
+    for (String word : words) {
+      Map<Long, Float> posting = postings.get(word);
+      if (posting != null) {
+        posting.remove(galleryId);
+        if (posting.isEmpty()) {
+          postings.remove(word);
+        }
+      }
+    }
+    return true;
+  }
+
+  private static void writeString(DataOutputStream data, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[data.readInt()];
+    data.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
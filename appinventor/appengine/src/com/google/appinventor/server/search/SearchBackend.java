@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+
+import java.util.List;
+
+/**
+ * A full-text index of gallery apps, searched by their title, description and
+ * author.
+ *
+ */
+public interface SearchBackend {
+
+  /**
+   * Adds apps to the index, replacing any earlier entries for them.
+   *
+   * @param apps  the apps to index
+   */
+  void index(List<GalleryApp> apps);
+
+  /**
+   * Removes an app from the index.
+   *
+   * @param galleryId  gallery id of the app
+   */
+  void remove(long galleryId);
+
+  /**
+   * Makes the changes made since the last call durable. Backends that store
+   * every change as it is made do nothing.
+   */
+  void flush();
+
+  /**
+   * Searches the index.
+   *
+   * @param searchWords  the words to search for
+   * @param start  index of the first hit to return
+   * @param count  maximum number of hits to return
+   * @return the gallery ids of the hits, best first, and the total number of hits
+   */
+  SearchHits find(String searchWords, int start, int count);
+}
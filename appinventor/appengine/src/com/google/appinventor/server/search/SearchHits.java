@@ -0,0 +1,39 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the apps found by a search and the total number of apps found.
+ *
+ */
+public class SearchHits {
+  public static final SearchHits NONE = new SearchHits(Collections.<Long>emptyList(), 0);
+
+  private final List<Long> galleryIds;
+  private final int numberFound;
+
+  public SearchHits(List<Long> galleryIds, int numberFound) {
+    this.galleryIds = galleryIds;
+    this.numberFound = numberFound;
+  }
+
+  /**
+   * Returns the gallery ids of the apps on this page, best match first.
+   */
+  public List<Long> getGalleryIds() {
+    return galleryIds;
+  }
+
+  /**
+   * Returns the number of apps found, which may be an estimate.
+   */
+  public int getNumberFound() {
+    return numberFound;
+  }
+}
@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.flags.Flag;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which daily backups of a project file are kept.
+ *
+ * <p>Every backup taken in the last {@code days} days is kept. Older backups are thinned
+ * to the newest one of each week for another {@code weeks} weeks, and backups older than
+ * that are deleted. The newest backup of a file is always kept, however old it is.</p>
+ *
+ */
+final class BackupRetention {
+
+  // The number of days every daily backup is kept, and the number of weeks after that a
+  // weekly backup is kept. Values are specified in the <system-properties> section of
+  // appengine-web.xml.
+  private static final Flag<Integer> retentionDays =
+      Flag.createFlag("backup.retention.days", 30);
+  private static final Flag<Integer> retentionWeeks =
+      Flag.createFlag("backup.retention.weeks", 26);
+
+  private static final long DAY = 24 * 3600 * 1000L;
+  private static final long WEEK = 7 * DAY;
+
+  private final long days;
+  private final long weeks;
+
+  BackupRetention(int days, int weeks) {
+    this.days = days;
+    this.weeks = weeks;
+  }
+
+  /**
+   * Returns the retention policy configured by the backup.retention.days and
+   * backup.retention.weeks flags.
+   */
+  static BackupRetention fromFlags() {
+    return new BackupRetention(retentionDays.get(), retentionWeeks.get());
+  }
+
+  /**
+   * Returns which of the backups of one file are no longer kept.
+   *
+   * @param dates  the dates the backups were taken, in milliseconds
+   * @param now  the current time, in milliseconds
+   * @return the dates of the backups to delete
+   */
+  Set<Long> expired(Collection<Long> dates, long now) {
+    List<Long> newestFirst = new ArrayList<Long>(dates);
+    Collections.sort(newestFirst, Collections.reverseOrder());
+    Set<Long> expired = new HashSet<Long>();
+    Set<Long> keptWeeks = new HashSet<Long>();
+    long dailyLimit = now - days * DAY;
+    for (int i = 0; i < newestFirst.size(); i++) {
+      long date = newestFirst.get(i);
+      if (date >= dailyLimit) {
+        continue;
+      }
+      // Weeks are counted back from the end of the daily backups.
+      long week = (dailyLimit - date) / WEEK;
+      boolean newestOfWeek = keptWeeks.add(week);
+      if (i > 0 && (week >= weeks || !newestOfWeek)) {
+        expired.add(date);
+      }
+    }
+    return expired;
+  }
+}
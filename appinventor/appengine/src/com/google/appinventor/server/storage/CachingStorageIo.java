@@ -0,0 +1,1011 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A StorageIo that caches project and user metadata read from another StorageIo.
+ *
+ * <p>Reads are cached at two levels:
+ * <ul>
+ *   <li>For the length of a request, between {@link #beginRequest} and {@link #endRequest},
+ *       every cached read is remembered, so reading the same metadata again doesn't leave
+ *       the thread.</li>
+ *   <li>Across requests, immutable metadata such as project names, types, dates and file
+ *       lists is kept in a bounded in-memory LRU cache. Each entry is tagged with the version
+ *       of its project or user, which is kept in memcache and incremented by every write
+ *       through this class, on any instance. An entry is used only while its version is
+ *       current, so the cache is shared safely by all instances.</li>
+ * </ul>
+ * Users are cached across requests as well, but as they are mutable, every read returns a
+ * copy of the cached user. Other mutable objects such as {@link UserProject} are only cached
+ * within a request. The whitelist is kept in memory and read again periodically. Everything
+ * else is passed through to the underlying StorageIo.</p>
+ *
+ */
+public final class CachingStorageIo implements StorageIo {
+
+  private static final Logger LOG = Logger.getLogger(CachingStorageIo.class.getName());
+
+  private static final String VERSION_KEY_PREFIX = "storageio.version:";
+
+  // Entries older than this are not used even if their version is current, in case a version
+  // increment was lost because memcache was unavailable.
+  private static final long MAX_ENTRY_AGE_MILLIS = 5 * 60 * 1000;
+
+  // The maximum number of entries in the shared cache. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> cacheEntries = Flag.createFlag("storage.cache.entries", 10000);
+
+  // How long the whitelist is kept in memory, in seconds. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> whiteListRefreshTime =
+      Flag.createFlag("whitelist.refresh.seconds", 300);
+
+  // How often the cache statistics are logged, in reads.
+  private static final long LOG_INTERVAL = 10000;
+
+  // The values read during the current request, keyed by cache key, or null outside of a
+  // request. The versions of scopes read during the request are kept here as well.
+  private static final ThreadLocal<Map<String, Object>> requestValues =
+      new ThreadLocal<Map<String, Object>>();
+
+  private static class Entry {
+    final long version;
+    final long time;
+    final Object value;
+
+    Entry(long version, long time, Object value) {
+      this.version = version;
+      this.time = time;
+      this.value = value;
+    }
+  }
+
+  private static class WhiteList {
+    final Set<String> emails;
+    final long time;
+
+    WhiteList(Set<String> emails, long time) {
+      this.emails = emails;
+      this.time = time;
+    }
+  }
+
+  // Returned by lookup when a value isn't cached, as null may be a cached value.
+  private static final Object NOT_CACHED = new Object();
+
+  private interface Loader<T> {
+    T load();
+  }
+
+  private final StorageIo storageIo;
+  private final MemcacheService memcache;
+  private final Random random = new Random();
+
+  // The shared cache, in access order, guarded by itself.
+  private final LinkedHashMap<String, Entry> entries;
+
+  // The whitelist as it was last read, or null if it hasn't been read yet.
+  private volatile WhiteList whiteList;
+  // Whether a request is reading the whitelist again, so that others keep using the old one.
+  private final AtomicBoolean refreshingWhiteList = new AtomicBoolean();
+
+  private final AtomicLong requestHits = new AtomicLong();
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong missNanos = new AtomicLong();
+
+  /**
+   * Creates a caching StorageIo that keeps versions in the default memcache.
+   *
+   * @param storageIo  the StorageIo whose reads are cached
+   */
+  CachingStorageIo(StorageIo storageIo) {
+    this(storageIo, MemcacheServiceFactory.getMemcacheService(), cacheEntries.get());
+  }
+
+  /**
+   * Creates a caching StorageIo.
+   *
+   * @param storageIo  the StorageIo whose reads are cached
+   * @param memcache  where the versions of projects and users are kept
+   * @param maxEntries  the maximum number of entries in the shared cache
+   */
+  CachingStorageIo(StorageIo storageIo, MemcacheService memcache, final int maxEntries) {
+    this.storageIo = storageIo;
+    this.memcache = memcache;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Starts caching reads for the current request.
+   */
+  public static void beginRequest() {
+    requestValues.set(new HashMap<String, Object>());
+  }
+
+  /**
+   * Forgets the reads of the current request.
+   */
+  public static void endRequest() {
+    requestValues.remove();
+  }
+
+  /**
+   * Returns the underlying StorageIo.
+   */
+  StorageIo getStorageIo() {
+    return storageIo;
+  }
+
+  @VisibleForTesting
+  long getRequestHits() {
+    return requestHits.get();
+  }
+
+  @VisibleForTesting
+  long getSharedHits() {
+    return sharedHits.get();
+  }
+
+  @VisibleForTesting
+  long getMisses() {
+    return misses.get();
+  }
+
+  /*
+   * Returns the value of a cached read, loading it if it isn't cached. Values that may be
+   * shared are kept in the shared cache as well as in the request cache.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T read(String scope, String key, boolean shared, Loader<T> loader) {
+    String cacheKey = scope + "|" + key;
+    Long version = null;
+    if (shared && !isCachedInRequest(cacheKey)) {
+      version = getVersion(scope);
+    }
+    Object value = lookup(cacheKey, version);
+    if (value != NOT_CACHED) {
+      return (T) value;
+    }
+
+    long start = System.nanoTime();
+    T loaded = loader.load();
+    recordMiss(System.nanoTime() - start);
+    store(cacheKey, version, loaded);
+    return loaded;
+  }
+
+  private static boolean isCachedInRequest(String cacheKey) {
+    Map<String, Object> values = requestValues.get();
+    return values != null && values.containsKey(cacheKey);
+  }
+
+  /*
+   * Returns the cached value with the given key, or NOT_CACHED if there is none. The shared
+   * cache is only looked in if the current version of the key's scope is given.
+   */
+  private Object lookup(String cacheKey, @Nullable Long version) {
+    Map<String, Object> values = requestValues.get();
+    if (values != null && values.containsKey(cacheKey)) {
+      requestHits.incrementAndGet();
+      return values.get(cacheKey);
+    }
+    if (version != null) {
+      Entry entry;
+      synchronized (entries) {
+        entry = entries.get(cacheKey);
+      }
+      if (entry != null && entry.version == version
+          && entry.time > System.currentTimeMillis() - MAX_ENTRY_AGE_MILLIS) {
+        sharedHits.incrementAndGet();
+        if (values != null) {
+          values.put(cacheKey, entry.value);
+        }
+        return entry.value;
+      }
+    }
+    return NOT_CACHED;
+  }
+
+  /*
+   * Caches a value that was loaded. It is kept in the shared cache only if the version of
+   * its scope, read before it was loaded, is given.
+   */
+  private void store(String cacheKey, @Nullable Long version, Object value) {
+    if (version != null) {
+      synchronized (entries) {
+        entries.put(cacheKey, new Entry(version, System.currentTimeMillis(), value));
+      }
+    }
+    Map<String, Object> values = requestValues.get();
+    if (values != null) {
+      values.put(cacheKey, value);
+    }
+  }
+
+  private void recordMiss(long nanos) {
+    missNanos.addAndGet(nanos);
+    if (misses.incrementAndGet() % LOG_INTERVAL == 0) {
+      logStatistics();
+    }
+  }
+
+  /*
+   * Returns the current version of the given scope, or null if it isn't available. The
+   * version is read before the value it tags, so a write that happens in between makes the
+   * entry stale rather than hiding the write.
+   */
+  private Long getVersion(String scope) {
+    Map<String, Object> values = requestValues.get();
+    String versionKey = VERSION_KEY_PREFIX + scope;
+    if (values != null && values.containsKey(versionKey)) {
+      return (Long) values.get(versionKey);
+    }
+    Long version = (Long) memcache.get(versionKey);
+    if (version == null) {
+      // Start from a random version, so that entries cached before the version was evicted
+      // from memcache don't become current again.
+      memcache.put(versionKey, random.nextLong() >>> 1, null,
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      version = (Long) memcache.get(versionKey);
+    }
+    if (values != null) {
+      values.put(versionKey, version);
+    }
+    return version;
+  }
+
+  /*
+   * Returns the current versions of the given scopes, reading those that aren't known in this
+   * request from memcache together. Scopes whose version isn't available are left out.
+   */
+  private Map<String, Long> getVersions(List<String> scopes) {
+    Map<String, Long> versions = new HashMap<String, Long>();
+    Map<String, Object> values = requestValues.get();
+    List<String> versionKeys = new ArrayList<String>();
+    for (String scope : scopes) {
+      String versionKey = VERSION_KEY_PREFIX + scope;
+      if (values != null && values.containsKey(versionKey)) {
+        versions.put(scope, (Long) values.get(versionKey));
+      } else {
+        versionKeys.add(versionKey);
+      }
+    }
+    if (versionKeys.isEmpty()) {
+      return versions;
+    }
+    Map<String, Object> found = memcache.getAll(versionKeys);
+    if (found.size() < versionKeys.size()) {
+      // Start the missing versions from random values, as getVersion does.
+      Map<String, Long> initial = new HashMap<String, Long>();
+      for (String versionKey : versionKeys) {
+        if (!found.containsKey(versionKey)) {
+          initial.put(versionKey, random.nextLong() >>> 1);
+        }
+      }
+      memcache.putAll(initial, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      found = memcache.getAll(versionKeys);
+    }
+    for (String versionKey : versionKeys) {
+      Long version = (Long) found.get(versionKey);
+      if (version != null) {
+        String scope = versionKey.substring(VERSION_KEY_PREFIX.length());
+        versions.put(scope, version);
+        if (values != null) {
+          values.put(versionKey, version);
+        }
+      }
+    }
+    return versions;
+  }
+
+  /*
+   * Makes the cached reads of the given scope stale, in this request and on all instances.
+   */
+  private void invalidate(String scope) {
+    memcache.increment(VERSION_KEY_PREFIX + scope, 1, random.nextLong() >>> 1);
+    Map<String, Object> values = requestValues.get();
+    if (values != null) {
+      values.remove(VERSION_KEY_PREFIX + scope);
+      Iterator<String> keys = values.keySet().iterator();
+      while (keys.hasNext()) {
+        if (keys.next().startsWith(scope + "|")) {
+          keys.remove();
+        }
+      }
+    }
+  }
+
+  private void logStatistics() {
+    long missCount = misses.get();
+    LOG.info("StorageIo cache: " + requestHits.get() + " request hits, " + sharedHits.get()
+        + " shared hits, " + missCount + " misses, average miss "
+        + (missNanos.get() / Math.max(missCount, 1) / 1000) + " us");
+  }
+
+  private static User copyUser(User user) {
+    User copy = user.copy();
+    copy.setPassword(user.getPassword());
+    return copy;
+  }
+
+  private static String userScope(String userId) {
+    return "u" + userId;
+  }
+
+  private static String projectScope(long projectId) {
+    return "p" + projectId;
+  }
+
+  private static <T> List<T> immutableCopy(List<T> list) {
+    return Collections.unmodifiableList(new ArrayList<T>(list));
+  }
+
+  // Users
+
+  @Override
+  public User getUser(final String userId) {
+    // Callers change the users they are given, so the cached user is one that nobody else
+    // holds, and every caller gets a copy of it.
+    return copyUser(read(userScope(userId), "user", true, new Loader<User>() {
+      @Override
+      public User load() {
+        return copyUser(storageIo.getUser(userId));
+      }
+    }));
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    // May update the user's email, which is part of the cached user.
+    User user = storageIo.getUser(userId, email);
+    invalidate(userScope(userId));
+    return user;
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    return storageIo.getUserFromEmail(email);
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    storageIo.setUserEmail(userId, email);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    storageIo.setTosAccepted(userId);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public void setUserSessionId(String userId, String sessionId) {
+    storageIo.setUserSessionId(userId, sessionId);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public void setUserPassword(String userId, String password) {
+    storageIo.setUserPassword(userId, password);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    return storageIo.loadSettings(userId);
+  }
+
+  @Override
+  public void setUserName(String userId, String name) {
+    storageIo.setUserName(userId, name);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    return storageIo.getUserName(userId);
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    return storageIo.getUserLink(userId);
+  }
+
+  @Override
+  public void setUserLink(String userId, String link) {
+    storageIo.setUserLink(userId, link);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    return storageIo.getUserEmailFrequency(userId);
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, int emailFrequency) {
+    storageIo.setUserEmailFrequency(userId, emailFrequency);
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public void storeSettings(String userId, String settings) {
+    storageIo.storeSettings(userId, settings);
+    invalidate(userScope(userId));
+  }
+
+  // Projects
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    long projectId = storageIo.createProject(userId, project, projectSettings);
+    invalidate(userScope(userId));
+    return projectId;
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    storageIo.deleteProject(userId, projectId);
+    invalidate(projectScope(projectId));
+    invalidate(userScope(userId));
+  }
+
+  @Override
+  public List<Long> getProjects(final String userId) {
+    return new ArrayList<Long>(read(userScope(userId), "projects", true,
+        new Loader<List<Long>>() {
+          @Override
+          public List<Long> load() {
+            return immutableCopy(storageIo.getProjects(userId));
+          }
+        }));
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, long galleryId) {
+    storageIo.setProjectGalleryId(userId, projectId, galleryId);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, long attributionId) {
+    storageIo.setProjectAttributionId(userId, projectId, attributionId);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    return storageIo.loadProjectSettings(userId, projectId);
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    storageIo.storeProjectSettings(userId, projectId, settings);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public String getProjectType(final String userId, final long projectId) {
+    return read(projectScope(projectId), "type|" + userId, true, new Loader<String>() {
+      @Override
+      public String load() {
+        return storageIo.getProjectType(userId, projectId);
+      }
+    });
+  }
+
+  @Override
+  public UserProject getUserProject(final String userId, final long projectId) {
+    return read(projectScope(projectId), "userProject|" + userId, false,
+        new Loader<UserProject>() {
+          @Override
+          public UserProject load() {
+            return storageIo.getUserProject(userId, projectId);
+          }
+        });
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    // UserProjects are mutable, so they are made from the cached metadata each time.
+    Map<Long, ProjectMetadata> metadata = getProjectMetadata(userId, projectIds, false);
+    List<UserProject> userProjects = new ArrayList<UserProject>(metadata.size());
+    for (ProjectMetadata projectMetadata : metadata.values()) {
+      userProjects.add(projectMetadata.toUserProject());
+    }
+    return userProjects;
+  }
+
+  @Override
+  public Map<Long, ProjectMetadata> getProjectMetadata(String userId, List<Long> projectIds,
+      boolean includeSourceFiles) {
+    String key = (includeSourceFiles ? "metadataWithFiles|" : "metadata|") + userId;
+    List<String> scopes = new ArrayList<String>(projectIds.size());
+    for (long projectId : projectIds) {
+      scopes.add(projectScope(projectId));
+    }
+    Map<String, Long> versions = getVersions(scopes);
+
+    Map<Long, ProjectMetadata> cached = new HashMap<Long, ProjectMetadata>();
+    List<Long> missing = new ArrayList<Long>();
+    for (long projectId : projectIds) {
+      String scope = projectScope(projectId);
+      Object value = lookup(scope + "|" + key, versions.get(scope));
+      if (value == NOT_CACHED) {
+        missing.add(projectId);
+      } else if (value != null) {
+        cached.put(projectId, (ProjectMetadata) value);
+      }
+    }
+    if (!missing.isEmpty()) {
+      long start = System.nanoTime();
+      Map<Long, ProjectMetadata> loaded =
+          storageIo.getProjectMetadata(userId, missing, includeSourceFiles);
+      recordMiss(System.nanoTime() - start);
+      for (long projectId : missing) {
+        // Projects that don't exist are cached as well, as null.
+        String scope = projectScope(projectId);
+        ProjectMetadata projectMetadata = loaded.get(projectId);
+        store(scope + "|" + key, versions.get(scope), projectMetadata);
+        if (projectMetadata != null) {
+          cached.put(projectId, projectMetadata);
+        }
+      }
+    }
+
+    Map<Long, ProjectMetadata> metadata = new LinkedHashMap<Long, ProjectMetadata>();
+    for (long projectId : projectIds) {
+      ProjectMetadata projectMetadata = cached.get(projectId);
+      if (projectMetadata != null) {
+        metadata.put(projectId, projectMetadata);
+      }
+    }
+    return metadata;
+  }
+
+  @Override
+  public String getProjectName(final String userId, final long projectId) {
+    return read(projectScope(projectId), "name|" + userId, true, new Loader<String>() {
+      @Override
+      public String load() {
+        return storageIo.getProjectName(userId, projectId);
+      }
+    });
+  }
+
+  @Override
+  public long getProjectDateModified(final String userId, final long projectId) {
+    return read(projectScope(projectId), "dateModified|" + userId, true, new Loader<Long>() {
+      @Override
+      public Long load() {
+        return storageIo.getProjectDateModified(userId, projectId);
+      }
+    });
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    return storageIo.getProjectHistory(userId, projectId);
+  }
+
+  @Override
+  public long getProjectDateCreated(final String userId, final long projectId) {
+    return read(projectScope(projectId), "dateCreated|" + userId, true, new Loader<Long>() {
+      @Override
+      public Long load() {
+        return storageIo.getProjectDateCreated(userId, projectId);
+      }
+    });
+  }
+
+  // User files
+
+  @Override
+  public void addFilesToUser(String userId, String... fileIds) {
+    storageIo.addFilesToUser(userId, fileIds);
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    return storageIo.getUserFiles(userId);
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileId, String content, String encoding) {
+    storageIo.uploadUserFile(userId, fileId, content, encoding);
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    storageIo.uploadRawUserFile(userId, fileName, content);
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileId, String encoding) {
+    return storageIo.downloadUserFile(userId, fileId, encoding);
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    return storageIo.downloadRawUserFile(userId, fileName);
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileId) {
+    storageIo.deleteUserFile(userId, fileId);
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return storageIo.getMaxJobSizeBytes();
+  }
+
+  // Project files
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    storageIo.addSourceFilesToProject(userId, projectId, changeModDate, fileIds);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileIds) {
+    storageIo.addOutputFilesToProject(userId, projectId, fileIds);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    storageIo.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileIds) {
+    storageIo.removeOutputFilesFromProject(userId, projectId, fileIds);
+    invalidate(projectScope(projectId));
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(final String userId, final long projectId) {
+    return new ArrayList<String>(read(projectScope(projectId), "sourceFiles|" + userId, true,
+        new Loader<List<String>>() {
+          @Override
+          public List<String> load() {
+            return immutableCopy(storageIo.getProjectSourceFiles(userId, projectId));
+          }
+        }));
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(final String userId, final long projectId) {
+    return new ArrayList<String>(read(projectScope(projectId), "outputFiles|" + userId, true,
+        new Loader<List<String>>() {
+          @Override
+          public List<String> load() {
+            return immutableCopy(storageIo.getProjectOutputFiles(userId, projectId));
+          }
+        }));
+  }
+
+  @Override
+  public long getProjectGalleryId(final String userId, final long projectId) {
+    return read(projectScope(projectId), "galleryId|" + userId, true, new Loader<Long>() {
+      @Override
+      public Long load() {
+        return storageIo.getProjectGalleryId(userId, projectId);
+      }
+    });
+  }
+
+  @Override
+  public long getProjectAttributionId(final long projectId) {
+    return read(projectScope(projectId), "attributionId", true, new Loader<Long>() {
+      @Override
+      public Long load() {
+        return storageIo.getProjectAttributionId(projectId);
+      }
+    });
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    long modDate = storageIo.uploadFile(projectId, fileId, userId, content, encoding);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    long modDate = storageIo.uploadFileForce(projectId, fileId, userId, content, encoding);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public long uploadFilesForce(long projectId, String userId, Map<String, String> contents,
+      String encoding) {
+    long modDate = storageIo.uploadFilesForce(projectId, userId, contents, encoding);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    long modDate = storageIo.uploadRawFile(projectId, fileId, userId, force, content);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content) {
+    long modDate = storageIo.uploadRawFileForce(projectId, fileId, userId, content);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId,
+      InputStream content) throws IOException {
+    long modDate = storageIo.uploadRawFileForce(projectId, fileId, userId, content);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public boolean backupFiles(long projectId, List<String> fileIds) {
+    // Backups are not part of any cached metadata.
+    return storageIo.backupFiles(projectId, fileIds);
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    long modDate = storageIo.deleteFile(userId, projectId, fileId);
+    invalidate(projectScope(projectId));
+    return modDate;
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileId, String encoding) {
+    return storageIo.downloadFile(userId, projectId, fileId, encoding);
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    storageIo.recordCorruption(userId, projectId, fileId, message);
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileId) {
+    return storageIo.downloadRawFile(userId, projectId, fileId);
+  }
+
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, String fileId) {
+    return storageIo.getFileVersion(userId, projectId, fileId);
+  }
+
+  @Override
+  public InputStream openRawFile(String userId, long projectId, String fileId, long start)
+      throws IOException {
+    return storageIo.openRawFile(userId, projectId, fileId, start);
+  }
+
+  // Everything else
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    return storageIo.uploadTempFile(content);
+  }
+
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    return storageIo.createTempFile(fileName);
+  }
+
+  @Override
+  public boolean tempFileExists(String fileName) throws IOException {
+    return storageIo.tempFileExists(fileName);
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    return storageIo.openTempFile(fileName);
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    storageIo.deleteTempFile(fileName);
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    return storageIo.getCurrentMotd();
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery, boolean fatalError)
+      throws IOException {
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery,
+        fatalError);
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+      boolean includeAndroidKeystore, boolean includeYail, boolean includeScreenShots,
+      boolean forGallery, boolean fatalError, OutputStream outputStream) throws IOException {
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        outputStream);
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    return storageIo.findUserByEmail(email);
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    return storageIo.findIpAddressByKey(key);
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    storageIo.storeIpAddressByKey(key, ipAddress);
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    if (getWhiteListEmails().contains(email.toLowerCase())) {
+      return true;
+    }
+    // The address may have been added since the whitelist was read. Users who aren't on the
+    // whitelist are turned away, so checking them against the datastore is rare.
+    return storageIo.checkWhiteList(email);
+  }
+
+  @Override
+  public Set<String> getWhiteList() {
+    return Collections.unmodifiableSet(getWhiteListEmails());
+  }
+
+  /*
+   * Returns the whitelist kept in memory. When it is due to be read again, one request reads
+   * it while the others keep using the old one.
+   */
+  private Set<String> getWhiteListEmails() {
+    WhiteList current = whiteList;
+    long now = System.currentTimeMillis();
+    if (current == null) {
+      current = new WhiteList(storageIo.getWhiteList(), now);
+      whiteList = current;
+    } else if (current.time < now - whiteListRefreshTime.get() * 1000L
+        && refreshingWhiteList.compareAndSet(false, true)) {
+      try {
+        current = new WhiteList(storageIo.getWhiteList(), now);
+        whiteList = current;
+      } finally {
+        refreshingWhiteList.set(false);
+      }
+    }
+    return current.emails;
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    storageIo.storeFeedback(notes, foundIn, faultData, comments, datestamp, email, projectId);
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    return storageIo.getNoncebyValue(nonceValue);
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    storageIo.storeNonce(nonceValue, userId, projectId);
+  }
+
+  @Override
+  public void cleanupNonces() {
+    storageIo.cleanupNonces();
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    storageIo.checkUpgrade(userId);
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    storageIo.doUpgrade(userId);
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    return storageIo.getSplashConfig();
+  }
+
+  @Override
+  public StoredData.PWData createPWData(String email) {
+    return storageIo.createPWData(email);
+  }
+
+  @Override
+  public StoredData.PWData findPWData(String uid) {
+    return storageIo.findPWData(uid);
+  }
+
+  @Override
+  public void cleanuppwdata() {
+    storageIo.cleanuppwdata();
+  }
+
+  @Override
+  public List<AdminUser> searchUsers(String partialEmail) {
+    return storageIo.searchUsers(partialEmail);
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    storageIo.storeUser(user);
+    if (user.getId() != null) {
+      invalidate(userScope(user.getId()));
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+/**
+ * Identifies the current content of a project file without the content itself, so that a
+ * cached copy of the file can be validated without reading it from storage.
+ *
+ */
+public final class FileVersion {
+
+  private final String eTag;
+  private final long dateModified;
+  private final long length;
+
+  /**
+   * Creates a file version.
+   *
+   * @param hash  a hash of the file's content
+   * @param dateModified  when the content was last changed, or 0 if unknown
+   * @param length  the length of the content in bytes
+   */
+  public FileVersion(String hash, long dateModified, long length) {
+    this.eTag = "\"" + hash + "\"";
+    this.dateModified = dateModified;
+    this.length = length;
+  }
+
+  /**
+   * Returns a strong HTTP entity tag for the content.
+   */
+  public String getETag() {
+    return eTag;
+  }
+
+  /**
+   * Returns when the content was last changed, or 0 if unknown.
+   */
+  public long getDateModified() {
+    return dateModified;
+  }
+
+  /**
+   * Returns the length of the content in bytes.
+   */
+  public long getLength() {
+    return length;
+  }
+}
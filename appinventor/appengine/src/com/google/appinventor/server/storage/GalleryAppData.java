@@ -32,6 +32,10 @@ public class GalleryAppData {
   @Indexed public int numDownloads;
   @Indexed public int unreadLikes;
   @Indexed public int unreadDownloads;
+  // Totals of the download and like counter shards (see GalleryCounterShard) that
+  // have already been added to numDownloads and numLikes
+  int rolledUpDownloads;
+  int rolledUpLikes;
   long projectId;
   int status;
   long lastEmailNotificationTimeStamp;
@@ -0,0 +1,28 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * One shard of a counter of a gallery app, such as its number of downloads.
+ *
+ * <p>A counter is split over several shards, each its own entity group, so that
+ * concurrent increments of a popular app don't contend for the same entity. The
+ * counts of the shards are periodically added up and rolled into the
+ * {@link GalleryAppData} of the app.</p>
+ *
+ */
+@Unindexed
+public class GalleryCounterShard {
+  // galleryId/counter/shard
+  @Id String id;
+
+  // Total of the increments made to this shard
+  long count;
+}
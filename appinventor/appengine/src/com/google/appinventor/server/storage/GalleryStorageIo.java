@@ -66,45 +66,50 @@ public interface GalleryStorageIo {
   /**
    * Returns a wrapped class which contains list of most recently
    * updated galleryApps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getRecentGalleryApps(int start, int count);
+  GalleryAppListResult getRecentGalleryApps(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getMostDownloadedApps(int start, int count);
+  GalleryAppListResult getMostDownloadedApps(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getMostLikedApps(int start, int count);
+  GalleryAppListResult getMostLikedApps(String cursor, int count);
 
   /**
    *Returns a wrapped class which contains a list of featured gallery app
-   * @param start start index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  GalleryAppListResult getFeaturedApp(int start, int count);
+  GalleryAppListResult getFeaturedApp(String cursor, int count);
 
    /**
    *Returns a wrapped class which contains a list of tutorial gallery app
-   * @param start start index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  GalleryAppListResult getTutorialApp(int start, int count);
+  GalleryAppListResult getTutorialApp(String cursor, int count);
 
   /**
    * check if app is featured already
@@ -138,11 +143,12 @@ public interface GalleryStorageIo {
    * Returns a wrapped class which contains a list of galleryApps
    * by a particular developer and total number of results in database
    * @param userId id of developer
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getDeveloperApps(String userId, int start, int count);
+  GalleryAppListResult getDeveloperApps(String userId, String cursor, int count);
 
   /**
    * records that an app has been downloaded
@@ -150,6 +156,15 @@ public interface GalleryStorageIo {
    */
   void incrementDownloads(long galleryId);
 
+  /**
+   * adds the downloads and likes counted since the last roll up to the
+   * totals of a gallery app
+   * @param galleryId the id of gallery app
+   * @return false if another roll up of the app's counters is running, in
+   *     which case the counts are left for a later roll up
+   */
+  boolean rollUpCounters(long galleryId);
+
   /**
    * deletes an app
    * @param galleryId the id of gallery app to be deleted
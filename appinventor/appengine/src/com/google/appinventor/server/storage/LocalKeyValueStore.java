@@ -0,0 +1,364 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A small embedded key-value store that keeps its entries in memory and in a directory on
+ * local disk.
+ *
+ * <p>Keys are strings and values are byte arrays. Keys are kept sorted, so the entries whose
+ * keys start with a prefix can be listed. Every write is appended to a journal before it is
+ * applied, and the journal is replayed when the store is opened, so writes survive a restart.
+ * A write that was cut short by a crash is dropped. When the journal has grown to several
+ * times the size of the live entries, the entries are written to a snapshot and the journal
+ * is started again.</p>
+ *
+ * <p>The store may be used by several threads. Each call to {@link #write} is applied as a
+ * whole or not at all. If a write can't be appended to the journal, the journal is cut back
+ * to where it was; if even that fails, the store refuses any further writes, since the
+ * journal might no longer replay.</p>
+ *
+ */
+final class LocalKeyValueStore implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(LocalKeyValueStore.class.getName());
+
+  private static final String SNAPSHOT_FILE = "snapshot";
+  private static final String JOURNAL_FILE = "journal";
+
+  private static final byte OP_PUT = 1;
+  private static final byte OP_DELETE = 2;
+
+  // The journal is compacted when it is this many times as large as the live entries...
+  private static final int COMPACTION_RATIO = 4;
+  // ...and at least this large.
+  private static final long MIN_COMPACTION_BYTES = 16 * 1024 * 1024;
+
+  private final File directory;
+  private final boolean sync;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // The following are guarded by lock.
+  private final TreeMap<String, byte[]> entries = new TreeMap<String, byte[]>();
+  private long liveBytes;
+  private long journalBytes;
+  private FileOutputStream journalFile;
+  private DataOutputStream journal;
+  // Why the store refuses writes, or null if it doesn't.
+  private IOException failure;
+
+  /**
+   * Opens the store kept in the given directory, creating it if it doesn't exist.
+   *
+   * @param directory  where the store keeps its files
+   * @param sync  whether every write is forced to the disk before it returns. Otherwise writes
+   *              survive the process going away but may be lost if the machine does.
+   */
+  LocalKeyValueStore(File directory, boolean sync) throws IOException {
+    this.directory = directory;
+    this.sync = sync;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    readSnapshot();
+    replayJournal();
+    journalFile = new FileOutputStream(new File(directory, JOURNAL_FILE), true);
+    journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+  }
+
+  /**
+   * Returns the value of the given key, or null if there is none.
+   */
+  byte[] get(String key) {
+    lock.readLock().lock();
+    try {
+      byte[] value = entries.get(key);
+      return value == null ? null : value.clone();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the entries whose keys start with the given prefix, in key order.
+   */
+  SortedMap<String, byte[]> scan(String prefix) {
+    SortedMap<String, byte[]> result = new TreeMap<String, byte[]>();
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<String, byte[]> entry : entries.tailMap(prefix, true).entrySet()) {
+        if (!entry.getKey().startsWith(prefix)) {
+          break;
+        }
+        result.put(entry.getKey(), entry.getValue().clone());
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  void put(String key, byte[] value) throws IOException {
+    write(Collections.singletonMap(key, value), Collections.<String>emptySet());
+  }
+
+  void delete(String key) throws IOException {
+    write(Collections.<String, byte[]>emptyMap(), Collections.singleton(key));
+  }
+
+  /**
+   * Deletes the given keys and stores the given entries, as a whole.
+   */
+  void write(Map<String, byte[]> puts, Collection<String> deletes) throws IOException {
+    if (puts.isEmpty() && deletes.isEmpty()) {
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeInt(deletes.size() + puts.size());
+    for (String key : deletes) {
+      record.writeByte(OP_DELETE);
+      record.writeUTF(key);
+    }
+    for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+      record.writeByte(OP_PUT);
+      record.writeUTF(entry.getKey());
+      record.writeInt(entry.getValue().length);
+      record.write(entry.getValue());
+    }
+    byte[] data = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(data);
+
+    lock.writeLock().lock();
+    try {
+      if (journal == null) {
+        throw new IOException("Store is closed");
+      }
+      if (failure != null) {
+        throw new IOException("Store is unusable after a failed write", failure);
+      }
+      try {
+        journal.writeInt(data.length);
+        journal.write(data);
+        journal.writeLong(crc.getValue());
+        journal.flush();
+        if (sync) {
+          journalFile.getFD().sync();
+        }
+      } catch (IOException e) {
+        discardIncompleteWrite(e);
+        throw e;
+      }
+      journalBytes += data.length + 12;
+      for (String key : deletes) {
+        remove(key);
+      }
+      for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+        apply(entry.getKey(), entry.getValue().clone());
+      }
+      if (journalBytes > MIN_COMPACTION_BYTES && journalBytes > COMPACTION_RATIO * liveBytes) {
+        // The write is in the journal already, so it has succeeded even if this fails.
+        try {
+          compact();
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to compact " + directory, e);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Cuts the journal back to the end of the last complete write, so that a write that was
+   * only partly appended doesn't come back, or hide the writes after it, when the journal is
+   * replayed. Whatever part of it is still buffered is thrown away along with the stream.
+   */
+  private void discardIncompleteWrite(IOException cause) {
+    try {
+      journalFile.getChannel().truncate(journalBytes);
+      if (sync) {
+        journalFile.getFD().sync();
+      }
+      journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Unable to discard an incomplete write from " + directory, e);
+      failure = cause;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (journal != null) {
+        journal.close();
+        journal = null;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void apply(String key, byte[] value) {
+    remove(key);
+    entries.put(key, value);
+    liveBytes += key.length() + value.length;
+  }
+
+  private void remove(String key) {
+    byte[] old = entries.remove(key);
+    if (old != null) {
+      liveBytes -= key.length() + old.length;
+    }
+  }
+
+  private void readSnapshot() throws IOException {
+    File file = new File(directory, SNAPSHOT_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String key = in.readUTF();
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        apply(key, value);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Applies the writes in the journal. The journal is cut off after the last complete write,
+   * in case the last one was being appended when the process went away.
+   */
+  private void replayJournal() throws IOException {
+    File file = new File(directory, JOURNAL_FILE);
+    if (!file.exists()) {
+      return;
+    }
+    long validLength = 0;
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        byte[] data;
+        long checksum;
+        try {
+          int length = in.readInt();
+          // A damaged length; the writes before it are kept.
+          if (length < 0 || length > file.length() - validLength - 12) {
+            break;
+          }
+          data = new byte[length];
+          in.readFully(data);
+          checksum = in.readLong();
+        } catch (EOFException e) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (crc.getValue() != checksum) {
+          break;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+        int count = record.readInt();
+        for (int i = 0; i < count; i++) {
+          byte op = record.readByte();
+          String key = record.readUTF();
+          if (op == OP_PUT) {
+            byte[] value = new byte[record.readInt()];
+            record.readFully(value);
+            apply(key, value);
+          } else {
+            remove(key);
+          }
+        }
+        validLength += data.length + 12;
+      }
+    } finally {
+      in.close();
+    }
+    if (validLength < file.length()) {
+      LOG.warning("Dropping " + (file.length() - validLength) + " bytes of incomplete writes "
+          + "from " + file);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(validLength);
+      } finally {
+        raf.close();
+      }
+    }
+    journalBytes = validLength;
+  }
+
+  /*
+   * Writes the entries to a new snapshot and starts a new journal. A crash before the journal
+   * is emptied replays writes that are already in the snapshot, which does no harm, and so
+   * does a failure here: the old journal is kept and appended to until the next compaction.
+   */
+  private void compact() throws IOException {
+    File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    try {
+      out.writeInt(entries.size());
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        out.write(entry.getValue());
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    FileOutputStream newJournalFile =
+        new FileOutputStream(new File(directory, JOURNAL_FILE), false);
+    try {
+      journal.close();
+    } catch (IOException e) {
+      // Everything in it is in the snapshot.
+    }
+    journalFile = newJournalFile;
+    journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+    journalBytes = 0;
+  }
+}
@@ -0,0 +1,1950 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.FileData;
+import com.google.appinventor.server.storage.StoredData.PWData;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implements the StorageIo interface on a single machine, without App Engine.
+ *
+ * <p>Users, projects and the other records are kept in a {@link LocalKeyValueStore}, and the
+ * content of project files in a directory of blobs next to it. The checks and side effects of
+ * {@link ObjectifyStorageIo} are kept: files belong to the user who first wrote them, blocks
+ * workspaces are not emptied by accident, and blocks and form files are backed up once a
+ * day.</p>
+ *
+ * <p>The content of a file is written to its blob before the file's record is updated, so a
+ * crash in between leaves the new content with the old record, never a record whose blob is
+ * missing.</p>
+ *
+ */
+public final class LocalStorageIo implements StorageIo {
+
+  private static final Logger LOG = Logger.getLogger(LocalStorageIo.class.getName());
+
+  // Value is specified in the <system-properties> section of appengine-web.xml.
+  private static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
+
+  // Key prefixes of the records in the store
+  private static final String USER = "user/";
+  private static final String EMAIL = "email/";
+  private static final String USER_PROJECT = "userproject/";
+  private static final String USER_FILE = "userfile/";
+  private static final String PROJECT = "project/";
+  private static final String FILE = "file/";
+  private static final String NONCE = "nonce/";
+  private static final String PWDATA = "pwdata/";
+  private static final String RENDEZVOUS = "rendezvous/";
+  private static final String WHITELIST = "whitelist/";
+  private static final String FEEDBACK = "feedback/";
+  private static final String CORRUPTION = "corruption/";
+  private static final String BACKUP = "backup/";
+  private static final String LAST_PROJECT_ID = "counter/projectId";
+  private static final String MOTD = "motd";
+  private static final String SPLASH = "splash";
+
+  private static final long MOTD_ID = 1;
+
+  private final LocalKeyValueStore store;
+  private final File blobDirectory;
+  private final File backupDirectory;
+  private final File tempDirectory;
+
+  // Read-modify-write of a user's records, or of a project's records, is done holding the
+  // user's or the project's lock.
+  private final Striped<Lock> userLocks = Striped.lock(64);
+  private final Striped<Lock> projectLocks = Striped.lock(256);
+
+  private final Object projectIdLock = new Object();
+  private long lastProjectId;  // guarded by projectIdLock
+
+  // Daily backups are taken on this thread, after the saves that make them due, as the
+  // task queue takes them for ObjectifyStorageIo.
+  private final ExecutorService backupExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("LocalStorageIo backups").setDaemon(true)
+      .build());
+
+  private static final class UserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String id;
+    String email;
+    String emaillower;
+    String name;
+    String link;
+    int emailFrequency;
+    int type;
+    boolean tosAccepted;
+    boolean isAdmin;
+    String sessionid;
+    String password;
+    String settings;
+    Date visited;
+  }
+
+  private static final class ProjectRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    long id;
+    String name;
+    String type;
+    String settings;
+    String history;
+    long dateCreated;
+    long dateModified;
+    long galleryId;
+    long attributionId;
+  }
+
+  private static final class FileRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    FileData.RoleEnum role;
+    String userId;
+    String contentHash;   // null until content is written
+    long contentLength;
+    long dateModified;
+    long lastBackup;
+  }
+
+  // A daily backup of a project file. Backups of a project that have the same content
+  // share one file in the project's backup directory, named by the MD5 hash of the content.
+  private static final class BackupRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String fileName;
+    long date;
+    String contentHash;
+  }
+
+  private static final class NonceRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String userId;
+    long projectId;
+    Date timestamp;
+  }
+
+  private static final class PWRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String email;
+    Date timestamp;
+  }
+
+  private static final class RendezvousRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String ipAddress;
+    Date used;
+  }
+
+  private static final class FeedbackRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String notes;
+    String foundIn;
+    String faultData;
+    String comments;
+    String datestamp;
+    String email;
+    String projectId;
+  }
+
+  private static final class CorruptionRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    Date timestamp;
+    String userId;
+    long projectId;
+    String fileId;
+    String message;
+  }
+
+  private static final class MotdRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String caption;
+    String content;
+  }
+
+  private static final class SplashRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+    int version;
+    int width;
+    int height;
+    String content;
+  }
+
+  /*
+   * New content of a project file, written to a temporary file until it is moved into place.
+   */
+  private static final class StagedContent {
+    final File file;
+    final String hash;
+    final long length;
+
+    StagedContent(File file, String hash, long length) {
+      this.file = file;
+      this.hash = hash;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Opens the storage kept in the given directory, creating it if it doesn't exist.
+   *
+   * @param directory  where the records and file contents are kept
+   * @param sync  whether every change is forced to the disk before it returns
+   */
+  LocalStorageIo(File directory, boolean sync) throws IOException {
+    store = new LocalKeyValueStore(new File(directory, "records"), sync);
+    blobDirectory = new File(directory, "blobs");
+    backupDirectory = new File(directory, "backups");
+    tempDirectory = new File(directory, "temp");
+    for (File dir : Arrays.asList(blobDirectory, backupDirectory, tempDirectory)) {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Unable to create " + dir);
+      }
+    }
+    Long last = read(LAST_PROJECT_ID, Long.class);
+    lastProjectId = last == null ? 0 : last;
+    initMotd();
+  }
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    Lock lock = userLocks.get(userId);
+    lock.lock();
+    try {
+      UserRecord userData = readUser(userId);
+      if (userData == null) {
+        if (email != null) { // Attempt to find them by email
+          String foundId = read(emailKey(email), String.class);
+          if (foundId != null) {
+            userData = readUser(foundId);
+            if (userData != null) {
+              LOG.info("Found based on email, userData.id = " + userData.id);
+            }
+          }
+        }
+        if (userData == null) { // No joy, create it.
+          userData = createUser(userId, email);
+        }
+      } else if (email != null && !email.equals(userData.email)) {
+        String oldEmail = userData.emaillower;
+        userData.email = email;
+        userData.emaillower = email.toLowerCase();
+        writeUser(userData, oldEmail);
+      }
+      if (userData.emailFrequency == 0) {
+        userData.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+        writeUser(userData, userData.emaillower);
+      }
+      User user = new User(userData.id, userData.email, userData.name, userData.link,
+          userData.emailFrequency, userData.tosAccepted || !requireTos.get(), userData.isAdmin,
+          userData.type, userData.sessionid);
+      user.setPassword(userData.password);
+      return user;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    UserRecord userData = null;
+    String foundId = read(emailKey(email), String.class);
+    if (foundId != null) {
+      userData = readUser(foundId);
+    }
+    if (userData == null) {
+      userData = createUser(UUID.randomUUID().toString(), email);
+    }
+    User user = new User(userData.id, email, userData.name, userData.link, 0,
+        userData.tosAccepted, false, userData.type, userData.sessionid);
+    user.setPassword(userData.password);
+    return user;
+  }
+
+  private UserRecord createUser(String userId, String email) {
+    UserRecord userData = new UserRecord();
+    userData.id = userId;
+    userData.tosAccepted = false;
+    userData.settings = "";
+    userData.email = email == null ? "" : email;
+    userData.emaillower = userData.email.toLowerCase();
+    userData.name = User.getDefaultName(email);
+    userData.type = User.USER;
+    userData.link = "";
+    userData.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+    writeUser(userData, null);
+    return userData;
+  }
+
+  /*
+   * Stores a user and keeps the email index pointing at it. oldEmail is the lower case email
+   * the user was stored with before, or null.
+   */
+  private void writeUser(UserRecord userData, @Nullable String oldEmail) {
+    Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+    List<String> deletes = new ArrayList<String>();
+    puts.put(userKey(userData.id), toBytes(userData));
+    if (!Strings.isNullOrEmpty(userData.emaillower)) {
+      puts.put(emailKey(userData.emaillower), toBytes(userData.id));
+    }
+    if (!Strings.isNullOrEmpty(oldEmail) && !oldEmail.equals(userData.emaillower)
+        && userData.id.equals(read(emailKey(oldEmail), String.class))) {
+      deletes.add(emailKey(oldEmail));
+    }
+    commit(puts, deletes, collectUserErrorInfo(userData.id));
+  }
+
+  /*
+   * Applies change to the stored user, if there is one.
+   */
+  private void updateUser(String userId, UserUpdate change) {
+    Lock lock = userLocks.get(userId);
+    lock.lock();
+    try {
+      UserRecord userData = readUser(userId);
+      if (userData != null) {
+        String oldEmail = userData.emaillower;
+        change.apply(userData);
+        writeUser(userData, oldEmail);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private interface UserUpdate {
+    void apply(UserRecord userData);
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.tosAccepted = true;
+      }
+    });
+  }
+
+  @Override
+  public void setUserEmail(String userId, String inputemail) {
+    final String email = inputemail.toLowerCase();
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.email = email;
+        userData.emaillower = email;
+      }
+    });
+  }
+
+  @Override
+  public void setUserSessionId(String userId, final String sessionId) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.sessionid = sessionId;
+      }
+    });
+  }
+
+  @Override
+  public void setUserPassword(String userId, final String password) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.password = password;
+      }
+    });
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    UserRecord userData = readUser(userId);
+    return userData == null ? "" : userData.settings;
+  }
+
+  @Override
+  public void setUserName(String userId, final String name) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.name = name;
+      }
+    });
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    UserRecord userData = readUser(userId);
+    return userData == null ? "unknown" : userData.name;
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    UserRecord userData = readUser(userId);
+    return userData == null ? "unknown" : userData.link;
+  }
+
+  @Override
+  public void setUserLink(String userId, final String link) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.link = link;
+      }
+    });
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    UserRecord userData = readUser(userId);
+    return userData == null ? User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY : userData.emailFrequency;
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, final int emailFrequency) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.emailFrequency = emailFrequency;
+      }
+    });
+  }
+
+  @Override
+  public void storeSettings(String userId, final String settings) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void apply(UserRecord userData) {
+        userData.settings = settings;
+        userData.visited = new Date(); // Indicate that this person was active now
+      }
+    });
+  }
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    long projectId;
+    synchronized (projectIdLock) {
+      projectId = ++lastProjectId;
+      commit(Collections.singletonMap(LAST_PROJECT_ID, toBytes(projectId)),
+          Collections.<String>emptySet(), collectUserErrorInfo(userId));
+    }
+    long date = System.currentTimeMillis();
+    ProjectRecord pd = new ProjectRecord();
+    pd.id = projectId;
+    pd.dateCreated = date;
+    pd.dateModified = date;
+    pd.history = project.getProjectHistory();
+    pd.name = project.getProjectName();
+    pd.settings = projectSettings;
+    pd.type = project.getProjectType();
+    pd.galleryId = UserProject.NOTPUBLISHED;
+    pd.attributionId = UserProject.FROMSCRATCH;
+
+    Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+    puts.put(projectKey(projectId), toBytes(pd));
+    puts.put(userProjectKey(userId, projectId), toBytes(projectSettings));
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        try {
+          createRawFile(projectId, userId, file.getFileName(),
+              file.getContent().getBytes(StorageUtil.DEFAULT_CHARSET), puts);
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, file.getFileName()), e);
+        }
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        try {
+          createRawFile(projectId, userId, file.getFileName(), file.getContent(), puts);
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, file.getFileName()), e);
+        }
+      }
+      commit(puts, Collections.<String>emptySet(),
+          collectUserProjectErrorInfo(userId, projectId));
+    } finally {
+      lock.unlock();
+    }
+    return projectId;
+  }
+
+  /*
+   * Writes the content of a new source file and adds its record to puts.
+   */
+  private void createRawFile(long projectId, String userId, String fileName, byte[] content,
+      Map<String, byte[]> puts) throws IOException {
+    StagedContent staged = stage(content);
+    Files.move(staged.file.toPath(), blobFile(projectId, fileName).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    FileRecord fd = new FileRecord();
+    fd.role = FileData.RoleEnum.SOURCE;
+    fd.userId = userId;
+    fd.contentHash = staged.hash;
+    fd.contentLength = staged.length;
+    fd.dateModified = System.currentTimeMillis();
+    puts.put(fileKey(projectId, fileName), toBytes(fd));
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      List<String> deletes = new ArrayList<String>();
+      deletes.add(userProjectKey(userId, projectId));
+      deletes.addAll(store.scan(filePrefix(projectId)).keySet());
+      deletes.add(projectKey(projectId));
+      commit(Collections.<String, byte[]>emptyMap(), deletes,
+          collectUserProjectErrorInfo(userId, projectId));
+      // Daily backups are kept, as they are in GCS.
+      File[] blobs = projectBlobDirectory(projectId).listFiles();
+      if (blobs != null) {
+        for (File blob : blobs) {
+          if (!blob.delete()) {
+            LOG.log(Level.WARNING, "Unable to delete " + blob + " while deleting project");
+          }
+        }
+      }
+      projectBlobDirectory(projectId).delete();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    String prefix = userProjectPrefix(userId);
+    List<Long> projects = new ArrayList<Long>();
+    for (String key : store.scan(prefix).keySet()) {
+      projects.add(Long.parseLong(key.substring(prefix.length())));
+    }
+    return projects;
+  }
+
+  /*
+   * Applies change to the stored project, if there is one.
+   */
+  private void updateProject(String userId, long projectId, ProjectUpdate change) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      ProjectRecord pd = readProject(projectId);
+      if (pd != null) {
+        change.apply(pd);
+        commit(Collections.singletonMap(projectKey(projectId), toBytes(pd)),
+            Collections.<String>emptySet(), collectUserProjectErrorInfo(userId, projectId));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private interface ProjectUpdate {
+    void apply(ProjectRecord pd);
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, final long galleryId) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void apply(ProjectRecord pd) {
+        pd.galleryId = galleryId;
+      }
+    });
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, final long attributionId) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void apply(ProjectRecord pd) {
+        pd.attributionId = attributionId;
+      }
+    });
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? "" : pd.settings;
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, final String settings) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void apply(ProjectRecord pd) {
+        pd.settings = settings;
+      }
+    });
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    // We only have one project type, no need to ask about it
+    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    if (pd == null) {
+      return null;
+    }
+    return new UserProject(projectId, pd.name, pd.type, pd.dateCreated, pd.dateModified,
+        pd.galleryId, pd.attributionId);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    List<UserProject> projects = new ArrayList<UserProject>(projectIds.size());
+    for (ProjectMetadata metadata : getProjectMetadata(userId, projectIds, false).values()) {
+      projects.add(metadata.toUserProject());
+    }
+    return projects;
+  }
+
+  @Override
+  public Map<Long, ProjectMetadata> getProjectMetadata(String userId, List<Long> projectIds,
+      boolean includeSourceFiles) {
+    Map<Long, ProjectMetadata> metadata = new LinkedHashMap<Long, ProjectMetadata>();
+    for (Long projectId : projectIds) {
+      ProjectRecord pd = readProject(projectId);
+      if (pd == null) {
+        continue;
+      }
+      List<String> sourceFiles = null;
+      if (includeSourceFiles) {
+        sourceFiles = getProjectFiles(projectId, FileData.RoleEnum.SOURCE);
+      }
+      metadata.put(projectId, new ProjectMetadata(pd.id, pd.name, pd.type, pd.dateCreated,
+          pd.dateModified, pd.galleryId, pd.attributionId, sourceFiles));
+    }
+    return metadata;
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? "" : pd.name;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.dateModified;
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? "" : pd.history;
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.dateCreated;
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.galleryId;
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    ProjectRecord pd = readProject(projectId);
+    return pd == null ? UserProject.FROMSCRATCH : pd.attributionId;
+  }
+
+  @Override
+  public void addFilesToUser(String userId, String... fileNames) {
+    Lock lock = userLocks.get(userId);
+    lock.lock();
+    try {
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      for (String fileName : fileNames) {
+        String key = userFileKey(userId, fileName);
+        if (store.get(key) == null) {
+          puts.put(key, new byte[0]);
+        }
+      }
+      commit(puts, Collections.<String>emptySet(), collectUserErrorInfo(userId, fileNames[0]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    String prefix = userFilePrefix(userId);
+    List<String> fileList = new ArrayList<String>();
+    for (String key : store.scan(prefix).keySet()) {
+      fileList.add(key.substring(prefix.length()));
+    }
+    return fileList;
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileName, String content, String encoding) {
+    byte[] bytes;
+    try {
+      bytes = content.getBytes(encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+    uploadRawUserFile(userId, fileName, bytes);
+  }
+
+  /*
+   * SPECIAL CASE: If fileName == StorageUtil.USER_BACKBACK_FILENAME and the
+   * content is "[]", we *delete* the file because the default value returned
+   * if the file doesn't exist is "[]" (the JSON empty list).
+   */
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    byte [] empty = new byte[] { (byte)0x5b, (byte)0x5d }; // "[]" in bytes
+    String key = userFileKey(userId, fileName);
+    if (fileName.equals(StorageUtil.USER_BACKPACK_FILENAME) && Arrays.equals(empty, content)) {
+      commit(Collections.<String, byte[]>emptyMap(), Collections.singleton(key),
+          collectUserErrorInfo(userId, fileName));
+    } else {
+      commit(Collections.singletonMap(key, content), Collections.<String>emptySet(),
+          collectUserErrorInfo(userId, fileName));
+    }
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, " +
+          collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    byte[] content = store.get(userFileKey(userId, fileName));
+    if (content == null) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+          new FileNotFoundException(fileName));
+    }
+    return content;
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileName) {
+    commit(Collections.<String, byte[]>emptyMap(),
+        Collections.singleton(userFileKey(userId, fileName)),
+        collectUserErrorInfo(userId, fileName));
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    addFilesToProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileNames) {
+    addFilesToProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private void addFilesToProject(String userId, long projectId, FileData.RoleEnum role,
+      boolean changeModDate, String... fileNames) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      for (String fileName : fileNames) {
+        FileRecord fd = readFile(projectId, fileName);
+        if (fd == null) {
+          fd = new FileRecord();
+          fd.role = role;
+          fd.userId = userId;
+          puts.put(fileKey(projectId, fileName), toBytes(fd));
+        } else if (!fd.role.equals(role)) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(null, projectId, fileName),
+              new IllegalStateException("File role change is not supported"));
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(projectId, puts);
+      }
+      commit(puts, Collections.<String>emptySet(),
+          collectProjectErrorInfo(userId, projectId, fileNames[0]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+        fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private void removeFilesFromProject(String userId, long projectId, FileData.RoleEnum role,
+      boolean changeModDate, String... fileNames) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      List<String> deletes = new ArrayList<String>();
+      for (String fileName : fileNames) {
+        FileRecord fd = readFile(projectId, fileName);
+        if (fd != null) {
+          if (fd.role.equals(role)) {
+            deletes.add(fileKey(projectId, fileName));
+          } else {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(null, projectId, fileName),
+                new IllegalStateException("File role change is not supported"));
+          }
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(projectId, puts);
+      }
+      commit(puts, deletes, collectProjectErrorInfo(userId, projectId, fileNames[0]));
+      for (String fileName : fileNames) {
+        blobFile(projectId, fileName).delete();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    return getProjectFiles(projectId, FileData.RoleEnum.SOURCE);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    return getProjectFiles(projectId, FileData.RoleEnum.TARGET);
+  }
+
+  private List<String> getProjectFiles(long projectId, FileData.RoleEnum role) {
+    String prefix = filePrefix(projectId);
+    List<String> fileList = new ArrayList<String>();
+    for (Map.Entry<String, byte[]> entry : store.scan(prefix).entrySet()) {
+      if (fromBytes(entry.getValue(), FileRecord.class).role.equals(role)) {
+        fileList.add(entry.getKey().substring(prefix.length()));
+      }
+    }
+    return fileList;
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileName, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileName, String userId, String content,
+      String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFilesForce(long projectId, String userId, Map<String, String> contents,
+      String encoding) {
+    Map<String, StagedContent> staged = new LinkedHashMap<String, StagedContent>();
+    try {
+      for (Map.Entry<String, String> entry : contents.entrySet()) {
+        try {
+          staged.put(entry.getKey(), stage(entry.getValue().getBytes(encoding)));
+        } catch (UnsupportedEncodingException e) {
+          throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+              + collectProjectErrorInfo(null, projectId, entry.getKey()), e);
+        }
+      }
+      return storeFiles(projectId, userId, true, staged);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, contents.keySet().toString()), e);
+    } finally {
+      discard(staged.values());
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    Map<String, StagedContent> staged = new LinkedHashMap<String, StagedContent>();
+    try {
+      staged.put(fileName, stage(content));
+      return storeFiles(projectId, userId, force, staged);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      discard(staged.values());
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId,
+      byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId,
+      InputStream content) throws IOException {
+    // Check the owner before reading the content, which may be large.
+    getFileRecord(userId, projectId, fileName);
+    Map<String, StagedContent> staged = new LinkedHashMap<String, StagedContent>();
+    try {
+      staged.put(fileName, stage(content));
+      return storeFiles(projectId, userId, true, staged);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    } finally {
+      discard(staged.values());
+    }
+  }
+
+  /*
+   * Moves staged content into place as the content of the given project files, and returns
+   * the project's modification date. All of the files are checked before any of them are
+   * changed.
+   */
+  private long storeFiles(long projectId, String userId, boolean force,
+      Map<String, StagedContent> contents) throws BlocksTruncatedException, IOException {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      Map<String, FileRecord> files = new LinkedHashMap<String, FileRecord>();
+      for (Map.Entry<String, StagedContent> entry : contents.entrySet()) {
+        String fileName = entry.getKey();
+        FileRecord fd = readFile(projectId, fileName);
+        // <Screen>.yail files are missing when user converts AI1 project to AI2
+        // instead of blowing up, just create a <Screen>.yail file
+        if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))) {
+          fd = new FileRecord();
+          fd.role = FileData.RoleEnum.SOURCE;
+          fd.userId = userId;
+        }
+        Preconditions.checkState(fd != null);
+        checkOwner(fd, userId, projectId);
+        // Likely this is an empty blocks workspace. See if we had previous content and
+        // refuse to overwrite it, unless we *really* want to save it.
+        if (!force && fileName.endsWith(".bky") && entry.getValue().length < 125
+            && fd.contentLength > 120) {
+          throw new BlocksTruncatedException();
+        }
+        files.put(fileName, fd);
+      }
+
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      List<String> backups = new ArrayList<String>();
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, FileRecord> entry : files.entrySet()) {
+        String fileName = entry.getKey();
+        FileRecord fd = entry.getValue();
+        StagedContent content = contents.get(fileName);
+        File blob = blobFile(projectId, fileName);
+        Files.move(content.file.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        if (considerBackup(fileName) && (fd.lastBackup + TWENTYFOURHOURS) < now) {
+          backups.add(fileName);
+          fd.lastBackup = now;
+        }
+        fd.contentHash = content.hash;
+        fd.contentLength = content.length;
+        fd.dateModified = now;
+        // Old file not marked with ownership, mark it now
+        if (fd.userId == null || fd.userId.equals("")) {
+          fd.userId = userId;
+        }
+        puts.put(fileKey(projectId, fileName), toBytes(fd));
+      }
+      long modDate = updateProjectModDate(projectId, puts);
+      store.write(puts, Collections.<String>emptySet());
+      scheduleBackups(projectId, backups);
+      return modDate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void scheduleBackups(final long projectId, final List<String> fileNames) {
+    if (fileNames.isEmpty()) {
+      return;
+    }
+    try {
+      backupExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            backupFiles(projectId, fileNames);
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to back up files of project " + projectId, e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The file is saved; only this day's backup of it is lost.
+      LOG.log(Level.WARNING, "Unable to schedule backups of project " + projectId, e);
+    }
+  }
+
+  @Override
+  public boolean backupFiles(long projectId, List<String> fileNames) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      // The backups of the project's files, keyed by record key. A new backup taken in the
+      // same second as an earlier one of the file replaces it.
+      Map<String, BackupRecord> backups = new HashMap<String, BackupRecord>();
+      for (Map.Entry<String, byte[]> entry : store.scan(backupPrefix(projectId)).entrySet()) {
+        backups.put(entry.getKey(), fromBytes(entry.getValue(), BackupRecord.class));
+      }
+
+      long now = System.currentTimeMillis();
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      for (String fileName : new LinkedHashSet<String>(fileNames)) {
+        File blob = blobFile(projectId, fileName);
+        if (readFile(projectId, fileName) == null || !blob.exists()) {
+          continue;             // Deleted since
+        }
+        byte[] content = Files.readAllBytes(blob.toPath());
+        BackupRecord backup = new BackupRecord();
+        backup.fileName = fileName;
+        backup.date = now;
+        backup.contentHash = Hashing.md5().hashBytes(content).toString();
+        File backupContent = new File(projectBackupDirectory(projectId), backup.contentHash);
+        if (!backupContent.exists()) {
+          StagedContent staged = stage(content);
+          Files.move(staged.file.toPath(), backupContent.toPath(),
+              StandardCopyOption.ATOMIC_MOVE);
+        }
+        String key = backupKey(projectId, fileName + "." + formattedTime() + ".backup");
+        puts.put(key, toBytes(backup));
+        backups.put(key, backup);
+      }
+
+      // Prune the backups that are no longer kept
+      Map<String, List<Long>> datesByFile = new HashMap<String, List<Long>>();
+      for (BackupRecord backup : backups.values()) {
+        List<Long> dates = datesByFile.get(backup.fileName);
+        if (dates == null) {
+          dates = new ArrayList<Long>();
+          datesByFile.put(backup.fileName, dates);
+        }
+        dates.add(backup.date);
+      }
+      BackupRetention retention = BackupRetention.fromFlags();
+      Map<String, Set<Long>> expiredByFile = new HashMap<String, Set<Long>>();
+      for (Map.Entry<String, List<Long>> entry : datesByFile.entrySet()) {
+        expiredByFile.put(entry.getKey(), retention.expired(entry.getValue(), now));
+      }
+      List<String> deletes = new ArrayList<String>();
+      Set<String> keptHashes = new HashSet<String>();
+      for (Map.Entry<String, BackupRecord> entry : backups.entrySet()) {
+        BackupRecord backup = entry.getValue();
+        if (expiredByFile.get(backup.fileName).contains(backup.date)) {
+          deletes.add(entry.getKey());
+        } else {
+          keptHashes.add(backup.contentHash);
+        }
+      }
+      store.write(puts, deletes);
+
+      // Delete the contents no backup refers to any more
+      File[] contents = projectBackupDirectory(projectId).listFiles();
+      if (contents != null) {
+        for (File content : contents) {
+          if (!keptHashes.contains(content.getName()) && !content.delete()) {
+            LOG.log(Level.WARNING, "Unable to delete " + content + " while pruning backups");
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fileNames.toString()), e);
+    } finally {
+      lock.unlock();
+    }
+    // The project lock makes calls for the same project wait for each other.
+    return true;
+  }
+
+  private static boolean considerBackup(String fileName) {
+    return (fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm")); // Form Definitions
+  }
+
+  /*
+   * Adds the project's new modification date to puts and returns it. As in
+   * ObjectifyStorageIo, the date is only moved if it is more than a minute old. Called with
+   * the project's lock held.
+   */
+  private long updateProjectModDate(long projectId, Map<String, byte[]> puts) {
+    long modDate = System.currentTimeMillis();
+    ProjectRecord pd = readProject(projectId);
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    if (modDate > (pd.dateModified + 1000*60)) {
+      pd.dateModified = modDate;
+      puts.put(projectKey(projectId), toBytes(pd));
+    } else {
+      // return the (old) dateModified
+      modDate = pd.dateModified;
+    }
+    return modDate;
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileName) {
+    Lock lock = projectLocks.get(projectId);
+    lock.lock();
+    try {
+      FileRecord fd = readFile(projectId, fileName);
+      if (fd != null) {
+        checkOwner(fd, userId, projectId);
+      }
+      Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+      long modDate = updateProjectModDate(projectId, puts);
+      commit(puts, Collections.singleton(fileKey(projectId, fileName)),
+          collectProjectErrorInfo(userId, projectId, fileName));
+      blobFile(projectId, fileName).delete();
+      return modDate;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    CorruptionRecord data = new CorruptionRecord();
+    data.timestamp = new Date();
+    data.userId = userId;
+    data.fileId = fileId;
+    data.projectId = projectId;
+    data.message = message;
+    commit(Collections.singletonMap(CORRUPTION + UUID.randomUUID(), toBytes(data)),
+        Collections.<String>emptySet(), null);
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileName) {
+    if (getFileRecord(userId, projectId, fileName) == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+    try {
+      return readBlob(projectId, fileName);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, String fileName) {
+    FileRecord fd = getFileRecord(userId, projectId, fileName);
+    if (fd == null) {
+      return null;
+    }
+    if (fd.contentHash == null) {
+      // The file was added without content.
+      return new FileVersion(Hashing.md5().hashBytes(new byte[0]).toString(), 0, 0);
+    }
+    return new FileVersion(fd.contentHash, fd.dateModified, fd.contentLength);
+  }
+
+  @Override
+  public InputStream openRawFile(String userId, long projectId, String fileName, long start)
+      throws IOException {
+    if (getFileRecord(userId, projectId, fileName) == null) {
+      throw new FileNotFoundException("No data for " + fileName);
+    }
+    File blob = blobFile(projectId, fileName);
+    if (!blob.exists()) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    InputStream in = new FileInputStream(blob);
+    ByteStreams.skipFully(in, start);
+    return in;
+  }
+
+  /*
+   * Returns the record of a project file, or null if the file doesn't exist. Throws an error
+   * if the file belongs to another user.
+   */
+  private FileRecord getFileRecord(String userId, long projectId, String fileName) {
+    FileRecord fd = readFile(projectId, fileName);
+    if (fd != null) {
+      checkOwner(fd, userId, projectId);
+    }
+    return fd;
+  }
+
+  private void checkOwner(FileRecord fd, String userId, long projectId) {
+    if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery, boolean fatalError)
+      throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int fileCount = exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError,
+        zipFile);
+    String projectName = getProjectName(userId, projectId);
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, boolean includeYail,
+      boolean includeScreenShots, boolean forGallery, boolean fatalError,
+      OutputStream outputStream) throws IOException {
+    String prefix = filePrefix(projectId);
+    List<String> fileNames = new ArrayList<String>();
+    for (Map.Entry<String, byte[]> entry : store.scan(prefix).entrySet()) {
+      String fileName = entry.getKey().substring(prefix.length());
+      if (fileName.startsWith("assets/external_comps") && forGallery) {
+        throw new IOException("FATAL Error, external component in gallery app");
+      }
+      if (!fromBytes(entry.getValue(), FileRecord.class).role.equals(FileData.RoleEnum.SOURCE)) {
+        continue;
+      }
+      if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
+        // Skip legacy remix history files that were previous stored with the project
+        continue;
+      }
+      if (fileName.startsWith("screenshots") && !includeScreenShots) {
+        // Only include screenshots if asked...
+        continue;
+      }
+      if (fileName.endsWith(".yail") && !includeYail) {
+        // Don't include YAIL files when exporting projects; they may contain secrets.
+        continue;
+      }
+      fileNames.add(fileName);
+    }
+    if (fileNames.isEmpty()) {
+      // can't close out since will get a ZipException due to the lack of files
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    ZipOutputStream out = new ZipOutputStream(outputStream);
+    out.setComment("Built with MIT App Inventor");
+    int fileCount = 0;
+    for (String fileName : fileNames) {
+      out.putNextEntry(new ZipEntry(fileName));
+      File blob = blobFile(projectId, fileName);
+      if (blob.exists()) {
+        Files.copy(blob.toPath(), out);
+      } else if (fatalError) {
+        throw new IOException("FATAL Error reading file " + fileName);
+      }
+      out.closeEntry();
+      fileCount++;
+    }
+    ProjectRecord pd = readProject(projectId);
+    if (includeProjectHistory && pd != null && !Strings.isNullOrEmpty(pd.history)) {
+      byte[] data = pd.history.getBytes(StorageUtil.DEFAULT_CHARSET);
+      out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+      out.write(data, 0, data.length);
+      out.closeEntry();
+      fileCount++;
+    }
+    if (includeAndroidKeystore) {
+      byte[] keystore = store.get(userFileKey(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+      if (keystore != null && keystore.length > 0) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(keystore, 0, keystore.length);
+        out.closeEntry();
+        fileCount++;
+      }
+    }
+    // Finish rather than close the zip, so the caller's stream is left open.
+    out.finish();
+    return fileCount;
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    String fileName = "__TEMP__/" + UUID.randomUUID().toString();
+    OutputStream out = createTempFile(fileName);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    return fileName;
+  }
+
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    return new FileOutputStream(tempFile("createTempFile", fileName));
+  }
+
+  @Override
+  public boolean tempFileExists(String fileName) throws IOException {
+    return tempFile("tempFileExists", fileName).exists();
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    File file = tempFile("openTempFile", fileName);
+    if (!file.exists()) {
+      throw new FileNotFoundException(fileName);
+    }
+    return new FileInputStream(file);
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    tempFile("deleteTempFile", fileName).delete();
+  }
+
+  private File tempFile(String operation, String fileName) {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException(operation + " (" + fileName + ") Invalid File Name");
+    }
+    return new File(tempDirectory, encode(fileName));
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    MotdRecord motdData = read(MOTD, MotdRecord.class);
+    if (motdData != null) { // it shouldn't be!
+      return new Motd(MOTD_ID, motdData.caption, motdData.content);
+    } else {
+      return new Motd(MOTD_ID, "Oops, no message of the day!", null);
+    }
+  }
+
+  private void initMotd() {
+    if (store.get(MOTD) == null) {
+      MotdRecord firstMotd = new MotdRecord();
+      firstMotd.caption = "Hello!";
+      firstMotd.content = "Welcome to the experimental App Inventor system from MIT. " +
+          "This is still a prototype.  It would be a good idea to frequently back up " +
+          "your projects to local storage.";
+      commit(Collections.singletonMap(MOTD, toBytes(firstMotd)),
+          Collections.<String>emptySet(), "Initing MOTD");
+    }
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    String userId = read(emailKey(email), String.class);
+    if (userId == null) {
+      throw new NoSuchElementException("Couldn't find a user with email " + email);
+    }
+    return userId;
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    RendezvousRecord data = read(RENDEZVOUS + encode(key), RendezvousRecord.class);
+    return data == null ? null : data.ipAddress;
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    RendezvousRecord data = new RendezvousRecord();
+    data.ipAddress = ipAddress;
+    data.used = new Date(); // So we can cleanup old entries
+    commit(Collections.singletonMap(RENDEZVOUS + encode(key), toBytes(data)),
+        Collections.<String>emptySet(), null);
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    return store.get(WHITELIST + encode(email.toLowerCase())) != null;
+  }
+
+  @Override
+  public Set<String> getWhiteList() {
+    Set<String> emails = new HashSet<String>();
+    for (String key : store.scan(WHITELIST).keySet()) {
+      emails.add(decode(key.substring(WHITELIST.length())));
+    }
+    return emails;
+  }
+
+  /**
+   * Adds an email address to the whitelist.
+   */
+  @VisibleForTesting
+  void addToWhiteList(String email) {
+    commit(Collections.singletonMap(WHITELIST + encode(email.toLowerCase()), new byte[0]),
+        Collections.<String>emptySet(), null);
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    FeedbackRecord data = new FeedbackRecord();
+    data.notes = notes;
+    data.foundIn = foundIn;
+    data.faultData = faultData;
+    data.comments = comments;
+    data.datestamp = datestamp;
+    data.email = email;
+    data.projectId = projectId;
+    commit(Collections.singletonMap(FEEDBACK + UUID.randomUUID(), toBytes(data)),
+        Collections.<String>emptySet(), null);
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    NonceRecord data = read(NONCE + encode(nonceValue), NonceRecord.class);
+    if (data == null) {
+      return null;
+    }
+    return new Nonce(nonceValue, data.userId, data.projectId, data.timestamp);
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    NonceRecord data = new NonceRecord();
+    data.userId = userId;
+    data.projectId = projectId;
+    data.timestamp = new Date();
+    commit(Collections.singletonMap(NONCE + encode(nonceValue), toBytes(data)),
+        Collections.<String>emptySet(), null);
+  }
+
+  // Cleanup expired nonces which are older then 3 hours. Normal Nonce lifetime
+  // is 2 hours. So for one hour they persist and return "link expired" instead of
+  // "link not found" (after the object itself is removed).
+  @Override
+  public void cleanupNonces() {
+    long expired = System.currentTimeMillis() - 3600*3*1000L;
+    List<String> deletes = new ArrayList<String>();
+    for (Map.Entry<String, byte[]> entry : store.scan(NONCE).entrySet()) {
+      if (fromBytes(entry.getValue(), NonceRecord.class).timestamp.getTime() < expired) {
+        deletes.add(entry.getKey());
+      }
+    }
+    try {
+      store.write(Collections.<String, byte[]>emptyMap(), deletes);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Exception during cleanupNonces", e);
+    }
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    // Files are only ever kept in the blob directory; there is nothing to upgrade.
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    // Files are only ever kept in the blob directory; there is nothing to upgrade.
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    SplashRecord sd = read(SPLASH, SplashRecord.class);
+    if (sd == null) {   // If we don't have Splash Data, create it
+      sd = new SplashRecord();
+      sd.version = 0;
+      sd.content = "<b>Welcome to MIT App Inventor</b>";
+      sd.width = 350;
+      sd.height = 100;
+      commit(Collections.singletonMap(SPLASH, toBytes(sd)), Collections.<String>emptySet(),
+          null);
+    }
+    return new SplashConfig(sd.version, sd.width, sd.height, sd.content);
+  }
+
+  @Override
+  public PWData createPWData(String email) {
+    PWData pwData = new PWData();
+    pwData.id = UUID.randomUUID().toString();
+    pwData.email = email;
+    pwData.timestamp = new Date();
+    PWRecord data = new PWRecord();
+    data.email = pwData.email;
+    data.timestamp = pwData.timestamp;
+    commit(Collections.singletonMap(PWDATA + encode(pwData.id), toBytes(data)),
+        Collections.<String>emptySet(), null);
+    return pwData;
+  }
+
+  @Override
+  public PWData findPWData(String uid) {
+    PWRecord data = read(PWDATA + encode(uid), PWRecord.class);
+    if (data == null) {
+      return null;
+    }
+    PWData pwData = new PWData();
+    pwData.id = uid;
+    pwData.email = data.email;
+    pwData.timestamp = data.timestamp;
+    return pwData;
+  }
+
+  // Remove expired PWData. Note: we remove data after 24 hours.
+  @Override
+  public void cleanuppwdata() {
+    long expired = System.currentTimeMillis() - 3600*24*1000L;
+    List<String> deletes = new ArrayList<String>();
+    for (Map.Entry<String, byte[]> entry : store.scan(PWDATA).entrySet()) {
+      if (fromBytes(entry.getValue(), PWRecord.class).timestamp.getTime() < expired) {
+        deletes.add(entry.getKey());
+      }
+    }
+    try {
+      store.write(Collections.<String, byte[]>emptyMap(), deletes);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Exception during cleanuppwdata", e);
+    }
+  }
+
+  // The routines below are part of the user admin interface. Called from AdminInfoServiceImpl
+
+  @Override
+  public List<AdminUser> searchUsers(String partialEmail) {
+    List<AdminUser> retval = new ArrayList<AdminUser>();
+    String from = emailKey(partialEmail);
+    for (Map.Entry<String, byte[]> entry : store.scan(EMAIL).entrySet()) {
+      if (entry.getKey().compareTo(from) < 0) {
+        continue;
+      }
+      UserRecord user = readUser(fromBytes(entry.getValue(), String.class));
+      if (user == null) {
+        continue;
+      }
+      boolean isModerator = (user.type == User.MODERATOR);
+      retval.add(new AdminUser(user.id, user.name, user.email, user.tosAccepted,
+          user.isAdmin, isModerator, user.visited));
+      if (retval.size() > 20) {
+        break;
+      }
+    }
+    return retval;
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    UserRecord userData = null;
+    if (user.getId() != null) {
+      userData = readUser(user.getId());
+    }
+    if (userData != null) {
+      String oldEmail = userData.emaillower;
+      userData.email = user.getEmail();
+      userData.emaillower = userData.email.toLowerCase();
+      String password = user.getPassword();
+      if (password != null && !password.equals("")) {
+        userData.password = user.getPassword();
+      }
+      userData.isAdmin = user.getIsAdmin();
+      userData.type = user.getIsModerator() ? User.MODERATOR : User.USER;
+      writeUser(userData, oldEmail);
+    } else {            // New User
+      if (store.get(emailKey(user.getEmail())) != null) {
+        throw new AdminInterfaceException("User Already exists = " + user.getEmail());
+      }
+      userData = new UserRecord();
+      userData.id = UUID.randomUUID().toString();
+      userData.tosAccepted = false;
+      userData.settings = "";
+      userData.email = user.getEmail();
+      userData.emaillower = user.getEmail().toLowerCase();
+      userData.link = "";
+      userData.name = User.getDefaultName(user.getEmail());
+      userData.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+      userData.type = user.getIsModerator() ? User.MODERATOR : User.USER;
+      if (!user.getPassword().equals("")) {
+        userData.password = user.getPassword();
+      }
+      userData.isAdmin = user.getIsAdmin();
+      writeUser(userData, null);
+    }
+  }
+
+  // ********* Records *********
+
+  private UserRecord readUser(String userId) {
+    return read(userKey(userId), UserRecord.class);
+  }
+
+  private ProjectRecord readProject(long projectId) {
+    return read(projectKey(projectId), ProjectRecord.class);
+  }
+
+  private FileRecord readFile(long projectId, String fileName) {
+    return read(fileKey(projectId, fileName), FileRecord.class);
+  }
+
+  private <T> T read(String key, Class<T> type) {
+    byte[] value = store.get(key);
+    return value == null ? null : fromBytes(value, type);
+  }
+
+  private void commit(Map<String, byte[]> puts, Collection<String> deletes, String errorInfo) {
+    try {
+      store.write(puts, deletes);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  private static byte[] toBytes(Serializable value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // Writing to memory doesn't fail.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static <T> T fromBytes(byte[] value, Class<T> type) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value));
+      return type.cast(in.readObject());
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unable to read a " + type.getName(), e);
+    } catch (ClassNotFoundException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unable to read a " + type.getName(), e);
+    }
+  }
+
+  private static String userKey(String userId) {
+    return USER + encode(userId);
+  }
+
+  private static String emailKey(String email) {
+    return EMAIL + encode(email.toLowerCase());
+  }
+
+  private static String userProjectPrefix(String userId) {
+    return USER_PROJECT + encode(userId) + "/";
+  }
+
+  private static String userProjectKey(String userId, long projectId) {
+    return userProjectPrefix(userId) + projectId;
+  }
+
+  private static String userFilePrefix(String userId) {
+    return USER_FILE + encode(userId) + "/";
+  }
+
+  private static String userFileKey(String userId, String fileName) {
+    return userFilePrefix(userId) + fileName;
+  }
+
+  private static String projectKey(long projectId) {
+    return PROJECT + projectId;
+  }
+
+  private static String filePrefix(long projectId) {
+    return FILE + projectId + "/";
+  }
+
+  private static String fileKey(long projectId, String fileName) {
+    return filePrefix(projectId) + fileName;
+  }
+
+  private static String backupPrefix(long projectId) {
+    return BACKUP + projectId + "/";
+  }
+
+  private static String backupKey(long projectId, String backupName) {
+    return backupPrefix(projectId) + backupName;
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, StorageUtil.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, StorageUtil.DEFAULT_CHARSET);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // ********* Blobs *********
+
+  private File projectBlobDirectory(long projectId) {
+    return new File(blobDirectory, Long.toString(projectId));
+  }
+
+  private File projectBackupDirectory(long projectId) {
+    File dir = new File(backupDirectory, Long.toString(projectId));
+    dir.mkdirs();
+    return dir;
+  }
+
+  private File blobFile(long projectId, String fileName) {
+    File dir = projectBlobDirectory(projectId);
+    dir.mkdirs();
+    return new File(dir, encode(fileName));
+  }
+
+  /*
+   * Returns the content of a file, or no bytes if the file was added without content.
+   */
+  private byte[] readBlob(long projectId, String fileName) throws IOException {
+    File blob = blobFile(projectId, fileName);
+    return blob.exists() ? Files.readAllBytes(blob.toPath()) : new byte[0];
+  }
+
+  private StagedContent stage(byte[] content) throws IOException {
+    File file = File.createTempFile("upload", null, tempDirectory);
+    Files.write(file.toPath(), content);
+    return new StagedContent(file, Hashing.md5().hashBytes(content).toString(), content.length);
+  }
+
+  private StagedContent stage(InputStream content) throws IOException {
+    File file = File.createTempFile("upload", null, tempDirectory);
+    HashingOutputStream out = new HashingOutputStream(Hashing.md5(), new FileOutputStream(file));
+    long length;
+    try {
+      length = ByteStreams.copy(content, out);
+    } finally {
+      out.close();
+    }
+    return new StagedContent(file, out.hash().toString(), length);
+  }
+
+  /*
+   * Deletes staged content that wasn't moved into place.
+   */
+  private static void discard(Collection<StagedContent> contents) {
+    for (StagedContent content : contents) {
+      content.file.delete();
+    }
+  }
+
+  // Return time in ISO_8660 format
+  private static String formattedTime() {
+    java.text.SimpleDateFormat formatter = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    return formatter.format(new java.util.Date());
+  }
+
+  private static String collectUserErrorInfo(final String userId) {
+    return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+
+  // ********* METHODS BELOW ARE ONLY FOR TESTING *********
+
+  /**
+   * Returns the names of the daily backups of a project's files.
+   */
+  @VisibleForTesting
+  List<String> getBackups(long projectId) {
+    String prefix = backupPrefix(projectId);
+    List<String> backups = new ArrayList<String>();
+    for (String key : store.scan(prefix).keySet()) {
+      backups.add(key.substring(prefix.length()));
+    }
+    return backups;
+  }
+
+  /**
+   * Returns the number of distinct contents the daily backups of a project's files keep.
+   */
+  @VisibleForTesting
+  int getBackupContentCount(long projectId) {
+    String[] names = new File(backupDirectory, Long.toString(projectId)).list();
+    return names == null ? 0 : names.length;
+  }
+
+  /**
+   * Waits for the backups scheduled so far to be taken.
+   */
+  @VisibleForTesting
+  void waitForBackups() throws InterruptedException, ExecutionException {
+    backupExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get();
+  }
+
+  /**
+   * Takes the backups scheduled so far and closes the store. The instance may not be used
+   * afterwards.
+   */
+  @VisibleForTesting
+  void close() throws IOException {
+    backupExecutor.shutdown();
+    try {
+      backupExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    store.close();
+  }
+}
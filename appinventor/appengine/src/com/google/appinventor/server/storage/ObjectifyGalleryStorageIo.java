@@ -9,11 +9,23 @@ package com.google.appinventor.server.storage;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.GalleryCounterServlet;
 import com.google.appinventor.server.GalleryEmail;
 import com.google.appinventor.server.GallerySearchIndex;
 import com.google.appinventor.server.flags.Flag;
@@ -32,6 +44,7 @@ import com.googlecode.objectify.Key;
 import com.googlecode.objectify.NotFoundException;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
 
 /**
  * Implements the GalleryStorageIo interface using Objectify as the underlying data
@@ -53,6 +66,55 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   private static final int MAX_JOB_RETRIES = 10;
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // Number of shards of each counter of an app. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> counterShards =
+      Flag.createFlag("gallery.counter.shards", 20);
+
+  // Names of the counters kept in GalleryCounterShards
+  private static final String DOWNLOADS_COUNTER = "downloads";
+  private static final String LIKES_COUNTER = "likes";
+
+  private static final Random random = new Random();
+
+  // Only one roll up of the counters of an app runs at a time. It holds a lock
+  // kept in memcache under this prefix and the app's id, which expires after
+  // this many seconds if it isn't released.
+  private static final String COUNTER_LOCK_KEY_PREFIX = "gallerycounterlock:";
+  private static final int COUNTER_LOCK_SECONDS = 60;
+  private static final int COUNTER_LOCK_ATTEMPTS = 10;
+  private static final long COUNTER_LOCK_RETRY_MILLIS = 100;
+
+  // How long, in seconds, the first page of each gallery list is cached. Value is
+  // specified in the <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> listCacheSeconds =
+      Flag.createFlag("gallery.list.cache.seconds", 60);
+
+  // The numbers of apps in the gallery lists are kept in memcache under these
+  // names, and recounted at least this often to correct any drift.
+  private static final String COUNT_KEY_PREFIX = "gallerycount:";
+  private static final String ACTIVE_COUNT = "active";
+  private static final String FEATURED_COUNT = "featured";
+  private static final String TUTORIAL_COUNT = "tutorial";
+  private static final String DEVELOPER_COUNT_PREFIX = "developer:";
+  private static final int COUNT_CACHE_SECONDS = 3600;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  // A first page of a gallery list and when it was read
+  private static class CachedPage {
+    final long time = System.currentTimeMillis();
+    final GalleryAppListResult result;
+
+    CachedPage(GalleryAppListResult result) {
+      this.result = result;
+    }
+  }
+
+  // First pages of the gallery lists by list name and page size
+  private static final ConcurrentMap<String, CachedPage> firstPages =
+      new ConcurrentHashMap<String, CachedPage>();
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
@@ -87,6 +149,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     ObjectifyService.register(GalleryAppAttributionData.class);
     ObjectifyService.register(GalleryAppReportData.class);
     ObjectifyService.register(GalleryModerationActionData.class);
+    ObjectifyService.register(GalleryCounterShard.class);
   }
 
   // we'll need to talk to the StorageIo to get developer names, so...
@@ -150,6 +213,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "gallery error", e);
     }
+    adjustCachedCount(ACTIVE_COUNT, 1);
+    adjustCachedCount(DEVELOPER_COUNT_PREFIX + userId, 1);
+    clearFirstPages();
     GalleryApp gApp = new GalleryApp();
     makeGalleryApp(galleryAppData.t, gApp);
     return gApp;
@@ -168,124 +234,94 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   /**
    * Returns a wrapped class which contains list of most recently
    * updated galleryApps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getRecentGalleryApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
+  public GalleryAppListResult getRecentGalleryApps(String cursor, final int count) {
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return getAppDataPage("recent", datastore.query(GalleryAppData.class)
+        .order("-dateModified").filter("active", true), cursor, count, ACTIVE_COUNT);
   }
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getMostDownloadedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
+  public GalleryAppListResult getMostDownloadedApps(String cursor, final int count) {
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    return getAppDataPage("downloaded", datastore.query(GalleryAppData.class)
+        .order("-numDownloads").filter("active", true), cursor, count, ACTIVE_COUNT);
   }
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getMostLikedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed
-
+  public GalleryAppListResult getMostLikedApps(String cursor, final int count) {
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData : datastore.query(GalleryAppData.class)
-           .filter("active", true)
-           .order("-numLikes")
-           .order("-numDownloads")
-           .offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-
-    // The line below is a PROBLEM. It is *very expensive*
-    // We either need to keep separate track of the number of apps in the
-    // Gallery, or we need to cache this value somewhere so we are
-    // not computing it all the time!
-    int totalCount = datastore.query(GalleryAppData.class).filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
-
+    return getAppDataPage("liked", datastore.query(GalleryAppData.class)
+        .filter("active", true)
+        .order("-numLikes")
+        .order("-numDownloads"), cursor, count, ACTIVE_COUNT);
   }
 
   /**
    * Returns a wrapped class which contains a list of featured gallery app
-   * @param start start index
+   * @param cursor where the page starts, or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  public GalleryAppListResult getFeaturedApp(int start, int count){
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
+  public GalleryAppListResult getFeaturedApp(String cursor, int count){
+    GalleryAppListResult result = getCachedFirstPage("featured", cursor, count);
+    if (result != null) {
+      return result;
+    }
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppFeatureData appFeatureData:datastore.query(GalleryAppFeatureData.class).offset(start).limit(count)) {
-      Long galleryId = appFeatureData.galleryKey.getId();
-      GalleryApp gApp = new GalleryApp();
-      GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-      makeGalleryApp(galleryAppData, gApp);
-      apps.add(gApp);
+    List<GalleryAppFeatureData> page = new ArrayList<GalleryAppFeatureData>();
+    String nextCursor = fetchPage(datastore.query(GalleryAppFeatureData.class), cursor, count, page);
+    List<Key<GalleryAppData>> galleryKeys = new ArrayList<Key<GalleryAppData>>();
+    for (GalleryAppFeatureData appFeatureData : page) {
+      galleryKeys.add(appFeatureData.galleryKey);
     }
-
-    int totalCount = datastore.query(GalleryAppFeatureData.class).count();
-    return new GalleryAppListResult(apps, totalCount);
+    result = new GalleryAppListResult(makeGalleryApps(datastore, galleryKeys),
+        getCachedCount(FEATURED_COUNT, datastore.query(GalleryAppFeatureData.class)));
+    result.setCursor(nextCursor);
+    cacheFirstPage("featured", cursor, count, result);
+    return result;
   }
 
   /**
    * Returns a wrapped class which contains a list of tutorial gallery app
-   * @param start start index
+   * @param cursor where the page starts, or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  public GalleryAppListResult getTutorialApp(int start, int count){
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
+  public GalleryAppListResult getTutorialApp(String cursor, int count){
+    GalleryAppListResult result = getCachedFirstPage("tutorial", cursor, count);
+    if (result != null) {
+      return result;
+    }
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppTutorialData appTutorialData:datastore.query(GalleryAppTutorialData.class).offset(start).limit(count)) {
-      Long galleryId = appTutorialData.galleryKey.getId();
-      GalleryApp gApp = new GalleryApp();
-      GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-      makeGalleryApp(galleryAppData, gApp);
-      apps.add(gApp);
+    List<GalleryAppTutorialData> page = new ArrayList<GalleryAppTutorialData>();
+    String nextCursor = fetchPage(datastore.query(GalleryAppTutorialData.class), cursor, count, page);
+    List<Key<GalleryAppData>> galleryKeys = new ArrayList<Key<GalleryAppData>>();
+    for (GalleryAppTutorialData appTutorialData : page) {
+      galleryKeys.add(appTutorialData.galleryKey);
     }
-
-    int totalCount = datastore.query(GalleryAppTutorialData.class).count();
-    return new GalleryAppListResult(apps, totalCount);
+    result = new GalleryAppListResult(makeGalleryApps(datastore, galleryKeys),
+        getCachedCount(TUTORIAL_COUNT, datastore.query(GalleryAppTutorialData.class)));
+    result.setCursor(nextCursor);
+    cacheFirstPage("tutorial", cursor, count, result);
+    return result;
   }
 
   /**
@@ -343,6 +379,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       datastore.put(appFeatureData);
       result.t = true;
     }
+    adjustCachedCount(FEATURED_COUNT, result.t ? 1 : -1);
+    clearFirstPages();
     return result.t;
   }
 
@@ -369,6 +407,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       datastore.put(appTutorialData);
       result.t = true;
     }
+    adjustCachedCount(TUTORIAL_COUNT, result.t ? 1 : -1);
+    clearFirstPages();
     return result.t;
   }
 
@@ -376,48 +416,172 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * Returns a wrapped class which contains a list of galleryApps
    * by a particular developer and total number of results in database
    * @param userId id of developer
-   * @param start starting index of apps you want
+   * @param cursor where the page starts, or null for the first page
    * @param count number of apps you want
    * @return list of {@link GalleryApp}
    */  @Override
-  public GalleryAppListResult getDeveloperApps(String userId, int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // if i try to run this in runjobwithretries it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so i grabbed
-
+  public GalleryAppListResult getDeveloperApps(String userId, String cursor, final int count) {
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).filter("userId",userId).filter("active", true).offset(start).limit(count)) {
+    List<GalleryAppData> page = new ArrayList<GalleryAppData>();
+    String nextCursor = fetchPage(datastore.query(GalleryAppData.class)
+        .filter("userId", userId).filter("active", true), cursor, count, page);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (GalleryAppData appData : page) {
       GalleryApp gApp = new GalleryApp();
       makeGalleryApp(appData, gApp);
       apps.add(gApp);
     }
-    int totalCount = datastore.query(GalleryAppData.class).filter("userId",userId).filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+    int totalCount = getCachedCount(DEVELOPER_COUNT_PREFIX + userId, datastore
+        .query(GalleryAppData.class).filter("userId", userId).filter("active", true));
+    GalleryAppListResult result = new GalleryAppListResult(apps, totalCount);
+    result.setCursor(nextCursor);
+    return result;
   }
 
- /**
-   * Records that an app has been downloaded
+  /**
+   * Records that an app has been downloaded. The download is counted in a
+   * counter shard and added to the app's number of downloads by the next
+   * {@link #rollUpCounters}.
    * @param galleryId the id of gallery app that was downloaded
    */
   @Override
   public void incrementDownloads(final long galleryId) {
+    incrementCounter(galleryId, DOWNLOADS_COUNTER, 1);
+  }
 
+  /**
+   * Adds the downloads and likes counted in the counter shards of an app since
+   * the last roll up to the app's totals, which the gallery lists are sorted on.
+   * @param galleryId the id of gallery app
+   * @return false if another roll up of the app's counters is running
+   */
+  @Override
+  public boolean rollUpCounters(final long galleryId) {
+    String lock = acquireCounterLock(galleryId, 1);
+    if (lock == null) {
+      return false;
+    }
+    try {
+      rollUpCountersLocked(galleryId);
+    } finally {
+      releaseCounterLock(galleryId, lock);
+    }
+    return true;
+  }
+
+  /*
+   * Rolls up the counters of an app. The caller holds the app's counter lock,
+   * so the shard totals read here are not older than those of a roll up that
+   * commits after this one.
+   */
+  private void rollUpCountersLocked(final long galleryId) {
+    // The shards are in other entity groups than the app, so they are read
+    // outside of the transaction.
+    Objectify shardDatastore = ObjectifyService.begin();
+    final long downloads = getCounterTotal(shardDatastore, galleryId, DOWNLOADS_COUNTER);
+    final long likes = getCounterTotal(shardDatastore, galleryId, LIKES_COUNTER);
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
           GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
+          if (galleryAppData == null) {
+            return;
+          }
+          int newDownloads = (int) (downloads - galleryAppData.rolledUpDownloads);
+          int newLikes = (int) (likes - galleryAppData.rolledUpLikes);
+          if (newDownloads == 0 && newLikes == 0) {
+            return;
           }
+          // The totals are not clamped, so that a count that went wrong shows
+          // rather than being lost.
+          galleryAppData.numDownloads += newDownloads;
+          galleryAppData.unreadDownloads += newDownloads;
+          galleryAppData.numLikes += newLikes;
+          galleryAppData.unreadLikes += newLikes;
+          galleryAppData.rolledUpDownloads = (int) downloads;
+          galleryAppData.rolledUpLikes = (int) likes;
+          datastore.put(galleryAppData);
         }
       });
     } catch (ObjectifyException e) {
-       throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
+      throw CrashReport.createAndLogError(LOG, null,
+          "error in galleryStorageIo.rollUpCounters", e);
+    }
+  }
+
+  /*
+   * Takes the lock on the counters of an app, trying the given number of times.
+   * Returns the token that releases it, or null if another request held it for
+   * all of the attempts.
+   */
+  private String acquireCounterLock(long galleryId, int attempts) {
+    String token = UUID.randomUUID().toString();
+    for (int attempt = 0; attempt < attempts; attempt++) {
+      if (attempt > 0) {
+        try {
+          Thread.sleep(COUNTER_LOCK_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      if (memcache.put(COUNTER_LOCK_KEY_PREFIX + galleryId, token,
+          Expiration.byDeltaSeconds(COUNTER_LOCK_SECONDS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+        return token;
+      }
     }
+    return null;
+  }
+
+  private void releaseCounterLock(long galleryId, String token) {
+    // Leave the lock alone if it expired and another request has taken it.
+    if (token.equals(memcache.get(COUNTER_LOCK_KEY_PREFIX + galleryId))) {
+      memcache.delete(COUNTER_LOCK_KEY_PREFIX + galleryId);
+    }
+  }
+
+  /*
+   * Adds delta to a randomly chosen shard of a counter of an app and schedules
+   * a roll up of the app's counters. Each shard is its own entity group, so
+   * concurrent increments rarely conflict.
+   */
+  private void incrementCounter(final long galleryId, final String counter, final int delta) {
+    final Key<GalleryCounterShard> shardKey =
+        counterShardKey(galleryId, counter, random.nextInt(counterShards.get()));
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          GalleryCounterShard shard = datastore.find(shardKey);
+          if (shard == null) {
+            shard = new GalleryCounterShard();
+            shard.id = shardKey.getName();
+          }
+          shard.count += delta;
+          datastore.put(shard);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "error in galleryStorageIo.incrementCounter", e);
+    }
+    GalleryCounterServlet.scheduleRollUp(galleryId);
+  }
+
+  /*
+   * Returns the sum of the shards of a counter of an app.
+   */
+  private long getCounterTotal(Objectify datastore, long galleryId, String counter) {
+    List<Key<GalleryCounterShard>> shardKeys = new ArrayList<Key<GalleryCounterShard>>();
+    for (int i = 0; i < counterShards.get(); i++) {
+      shardKeys.add(counterShardKey(galleryId, counter, i));
+    }
+    long total = 0;
+    for (GalleryCounterShard shard : datastore.get(shardKeys).values()) {
+      total += shard.count;
+    }
+    return total;
   }
 
   /**
@@ -512,13 +676,18 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     }
     */
     //for now, we only set app to inactive status.
+    final Result<String> deactivatedUserId = new Result<String>();
     try {
         runJobWithRetries(new JobRetryHelper() {
           @Override
           public void run(Objectify datastore) {
             // delete the GalleryApp
+            deactivatedUserId.t = null;
             GalleryAppData appData = datastore.find(galleryKey(galleryId));
             if(appData != null){
+              if (appData.active) {
+                deactivatedUserId.t = appData.userId;
+              }
               appData.active = false;
               datastore.put(appData);
             }
@@ -527,6 +696,11 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
        } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null,"gallery remove error", e);
       }
+    if (deactivatedUserId.t != null) {
+      adjustCachedCount(ACTIVE_COUNT, -1);
+      adjustCachedCount(DEVELOPER_COUNT_PREFIX + deactivatedUserId.t, -1);
+    }
+    clearFirstPages();
   }
 
 
@@ -604,21 +778,21 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int increaseLikes(final long galleryId,final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> liked = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          liked.t = false;
           GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
           if (galleryAppData != null) {
             Key<GalleryAppData> galleryKey = galleryKey(galleryId);
 
             // Make sure it isn't already liked (people have subverted the client
             // based checks!)
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                return;         // We're done, already liked.
-              }
+            if (datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)
+                .filter("userId", userId).count() > 0) {
+              return;         // We're done, already liked.
             }
 
             // Forge the like data entry
@@ -626,21 +800,18 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
             likeData.galleryKey = galleryKey;
             likeData.userId = userId;
             datastore.put(likeData);
-
-            // Retrieve the current number of likes
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            galleryAppData.numLikes = galleryAppData.numLikes + 1;
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
+            liked.t = true;
           }
         }
       });
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
-    return numLikes.t;
+    // Increase app's like/unread like count
+    if (liked.t) {
+      incrementCounter(galleryId, LIKES_COUNTER, 1);
+    }
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -652,33 +823,19 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> unliked = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                datastore.delete(likeData);
-                // break;
-                // We don't break because there might be more then one likeData object for this
-                // person
-              }
-            }
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            if(galleryAppData.numLikes > 0){
-              galleryAppData.numLikes = galleryAppData.numLikes - 1;
-            }
-
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
-            }
+          unliked.t = false;
+          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+          // We don't stop at the first one because there might be more then one
+          // likeData object for this person
+          for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class)
+                   .ancestor(galleryKey).filter("userId", userId)) {
+            datastore.delete(likeData);
+            unliked.t = true;
           }
         }
       });
@@ -686,7 +843,11 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
-    return numLikes.t;
+    // Decrease app's like/unread like count
+    if (unliked.t) {
+      incrementCounter(galleryId, LIKES_COUNTER, -1);
+    }
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -697,22 +858,17 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          //num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-          GalleryAppData galleryAppData = datastore.find(galleryKey);
-          num.t = galleryAppData.numLikes;
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
+    // The likes counted since the last roll up are added in, so that a user
+    // sees their own like right away.
+    Objectify datastore = ObjectifyService.begin();
+    GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+    if (galleryAppData == null) {
+      throw CrashReport.createAndLogError(LOG, null, collectGalleryAppErrorInfo(
+          String.valueOf(galleryId)), new NotFoundException(galleryKey(galleryId)));
     }
-    return num.t;
+    long pendingLikes =
+        getCounterTotal(datastore, galleryId, LIKES_COUNTER) - galleryAppData.rolledUpLikes;
+    return (int) Math.max(0, galleryAppData.numLikes + pendingLikes);
   }
 
   /**
@@ -755,6 +911,26 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void salvageGalleryApp(final long galleryId) {
+    // The counted likes are replaced by the number of likes found here, so the
+    // likes counted so far must not be rolled up again. A roll up running at the
+    // same time would roll them up from an older total.
+    String lock = acquireCounterLock(galleryId, COUNTER_LOCK_ATTEMPTS);
+    if (lock == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "error in galleryStorageIo.salvageGalleryApp",
+          new ConcurrentModificationException("The counters of gallery app " + galleryId
+              + " are being rolled up"));
+    }
+    try {
+      salvageGalleryAppLocked(galleryId);
+    } finally {
+      releaseCounterLock(galleryId, lock);
+    }
+  }
+
+  private void salvageGalleryAppLocked(final long galleryId) {
+    final long countedLikes =
+        getCounterTotal(ObjectifyService.begin(), galleryId, LIKES_COUNTER);
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -781,6 +957,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           num = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
           GalleryAppData galleryAppData = datastore.find(galleryKey);
           galleryAppData.numLikes = num;
+          galleryAppData.rolledUpLikes = (int) countedLikes;
           datastore.put(galleryAppData);
           LOG.info("salvage on gallerId:" + galleryId + ", total likes:" + galleryAppData.numLikes);
         }
@@ -1086,33 +1263,42 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public boolean deactivateGalleryApp(final long galleryId) {
-    final Result<Boolean> success = new Result<Boolean>();
+    final Result<GalleryAppData> changedApp = new Result<GalleryAppData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
             datastore = ObjectifyService.begin();
-            success.t = false;
+            changedApp.t = null;
             Key<GalleryAppData> galleryKey = galleryKey(galleryId);
             GalleryAppData appData = datastore.find(galleryKey);
             if(appData != null){
               appData.active = !appData.active;
               datastore.put(appData);
-              success.t = true;
-              if(appData.active){
-                GalleryApp gApp = new GalleryApp();
-                makeGalleryApp(appData, gApp);
-                GallerySearchIndex.getInstance().indexApp(gApp);
-              }else{
-                GallerySearchIndex.getInstance().unIndexApp(appData.id);
-              }
+              changedApp.t = appData;
             }
          }
       });
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.markReportAsResolved", e);
     }
-    return success.t;
+    GalleryAppData appData = changedApp.t;
+    if (appData == null) {
+      return false;
+    }
+    // Only once the change is saved, so that a retried job doesn't adjust the counts twice.
+    int delta = appData.active ? 1 : -1;
+    adjustCachedCount(ACTIVE_COUNT, delta);
+    adjustCachedCount(DEVELOPER_COUNT_PREFIX + appData.userId, delta);
+    clearFirstPages();
+    if(appData.active){
+      GalleryApp gApp = new GalleryApp();
+      makeGalleryApp(appData, gApp);
+      GallerySearchIndex.getInstance().indexApp(gApp);
+    }else{
+      GallerySearchIndex.getInstance().unIndexApp(appData.id);
+    }
+    return true;
   }
   /**
    * check if gallery app is activated
@@ -1311,7 +1497,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     galleryApp.setMoreInfo(appData.moreInfo);
     galleryApp.setCredit(appData.credit);
 
-    galleryApp.setLikes(getNumLikes(appData.id));
+    galleryApp.setLikes(appData.numLikes);
   }
 
   private static String collectGalleryAppErrorInfo(final String galleryAppId) {
@@ -1322,6 +1508,147 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     return new Key<GalleryAppData>(GalleryAppData.class, galleryId);
   }
 
+  /*
+   * Returns a page of the apps that query returns, the first page of each
+   * list coming from the cache if it is recent enough.
+   */
+  private GalleryAppListResult getAppDataPage(String list, Query<GalleryAppData> query,
+      String cursor, int count, String countName) {
+    GalleryAppListResult result = getCachedFirstPage(list, cursor, count);
+    if (result != null) {
+      return result;
+    }
+    List<GalleryAppData> page = new ArrayList<GalleryAppData>();
+    String nextCursor = fetchPage(query, cursor, count, page);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (GalleryAppData appData : page) {
+      GalleryApp gApp = new GalleryApp();
+      makeGalleryApp(appData, gApp);
+      apps.add(gApp);
+    }
+    Objectify datastore = ObjectifyService.begin();
+    result = new GalleryAppListResult(apps,
+        getCachedCount(countName, datastore.query(GalleryAppData.class).filter("active", true)));
+    result.setCursor(nextCursor);
+    cacheFirstPage(list, cursor, count, result);
+    return result;
+  }
+
+  /*
+   * Adds up to count results of query, starting at cursor, to page. Returns the
+   * cursor of the next page, or null if there are no more results. Unlike an
+   * offset, a cursor doesn't make the datastore skip over the earlier pages.
+   */
+  private <T> String fetchPage(Query<T> query, String cursor, int count, List<T> page) {
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    // One more than a page is asked for to find out whether there is a next page.
+    QueryResultIterator<T> iterator = query.limit(count + 1).iterator();
+    while (page.size() < count && iterator.hasNext()) {
+      page.add(iterator.next());
+    }
+    if (page.size() < count) {
+      return null;
+    }
+    Cursor nextCursor = iterator.getCursor();
+    return iterator.hasNext() ? nextCursor.toWebSafeString() : null;
+  }
+
+  /*
+   * Returns the GalleryApps for the given keys, read with one batch get, in the
+   * order of the keys. Apps that no longer exist are left out.
+   */
+  private List<GalleryApp> makeGalleryApps(Objectify datastore,
+      List<Key<GalleryAppData>> galleryKeys) {
+    Map<Key<GalleryAppData>, GalleryAppData> appDatas = datastore.get(galleryKeys);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (Key<GalleryAppData> galleryKey : galleryKeys) {
+      GalleryAppData appData = appDatas.get(galleryKey);
+      if (appData != null) {
+        GalleryApp gApp = new GalleryApp();
+        makeGalleryApp(appData, gApp);
+        apps.add(gApp);
+      }
+    }
+    return apps;
+  }
+
+  /*
+   * Returns the number of results of a count query, which is kept in memcache
+   * and adjusted by adjustCachedCount as apps are published, deactivated,
+   * featured and so on, rather than counted on every page.
+   */
+  private int getCachedCount(String countName, Query<?> query) {
+    Object count = memcache.get(COUNT_KEY_PREFIX + countName);
+    if (count instanceof Long) {
+      return (int) Math.max(0, (Long) count);
+    }
+    long total = query.count();
+    memcache.put(COUNT_KEY_PREFIX + countName, total,
+        Expiration.byDeltaSeconds(COUNT_CACHE_SECONDS));
+    return (int) total;
+  }
+
+  /*
+   * Adjusts a cached count after a change to the apps it counts. A count that
+   * isn't cached is counted again when it is next needed.
+   */
+  private void adjustCachedCount(String countName, long delta) {
+    memcache.increment(COUNT_KEY_PREFIX + countName, delta);
+  }
+
+  /*
+   * Returns the cached first page of a list, or null if the page isn't the
+   * first or isn't cached any more.
+   */
+  private GalleryAppListResult getCachedFirstPage(String list, String cursor, int count) {
+    if (cursor != null) {
+      return null;
+    }
+    CachedPage cachedPage = firstPages.get(list + ":" + count);
+    if (cachedPage == null || System.currentTimeMillis() - cachedPage.time
+        > listCacheSeconds.get() * 1000L) {
+      return null;
+    }
+    return copyResult(cachedPage.result);
+  }
+
+  private void cacheFirstPage(String list, String cursor, int count,
+      GalleryAppListResult result) {
+    if (cursor == null) {
+      firstPages.put(list + ":" + count, new CachedPage(copyResult(result)));
+    }
+  }
+
+  /*
+   * Returns a copy of a page of a gallery list. A cached page is shared by every request, so
+   * each request gets a copy of its own, which it may change.
+   */
+  private static GalleryAppListResult copyResult(GalleryAppListResult result) {
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (GalleryApp app : result.getApps()) {
+      apps.add(new GalleryApp(app));
+    }
+    GalleryAppListResult copy =
+        new GalleryAppListResult(apps, result.getTotalCount(), result.getKeyword());
+    copy.setCursor(result.getCursor());
+    return copy;
+  }
+
+  /*
+   * Drops the first pages cached by this instance after a change to the
+   * gallery. Other instances drop theirs when they expire.
+   */
+  private void clearFirstPages() {
+    firstPages.clear();
+  }
+
+  private Key<GalleryCounterShard> counterShardKey(long galleryId, String counter, int shard) {
+    return new Key<GalleryCounterShard>(GalleryCounterShard.class,
+        galleryId + "/" + counter + "/" + shard);
+  }
+
   private Key<GalleryAppFeatureData> galleryFeatureKey(long galleryId) {
     return new Key<GalleryAppFeatureData>(GalleryAppFeatureData.class, galleryId);
   }
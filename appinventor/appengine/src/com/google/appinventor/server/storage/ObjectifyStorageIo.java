@@ -21,10 +21,14 @@ import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.apphosting.api.ApiProxy;
+import com.google.appinventor.server.BackupServlet;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.MemoryHighWaterMarkFilter;
 import com.google.appinventor.server.Server;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.BackupData;
+import com.google.appinventor.server.storage.StoredData.BackupLockData;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
@@ -56,6 +60,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
@@ -68,6 +73,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
 // GCS imports
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
@@ -86,15 +92,22 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nullable;
 
@@ -124,10 +137,28 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final GcsService gcsService;
 
-  private static final String GCS_BUCKET_NAME;
+  @VisibleForTesting
+  static final String GCS_BUCKET_NAME;
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // How long a backup task may hold the backup lock of a project. Task queue requests end
+  // after 10 minutes.
+  private static final long BACKUP_LOCK_MILLIS = 10 * 60 * 1000;
+  private static final String BACKUP_LOCK_ID = "lock";
+
+  // Size of the blocks in which GCS objects are streamed into exported zip files
+  private static final int GCS_READ_BLOCK_SIZE = 256 * 1024;
+
+  // GCS objects up to this size are read into memory ahead of the zip writer when a project
+  // is exported; larger ones are streamed when the writer gets to them.
+  private static final long EXPORT_PREFETCH_MAX_SIZE = 1024 * 1024;
+
+  // The number of GCS objects a request reads or writes concurrently when a project is
+  // exported or several of its files are saved at once. Value is specified in the
+  // <system-properties> section of appengine-web.xml.
+  private static final Flag<Integer> gcsThreads = Flag.createFlag("gcs.threads", 8);
+
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
@@ -185,6 +216,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(UserProjectData.class);
     ObjectifyService.register(FileData.class);
     ObjectifyService.register(UserFileData.class);
+    ObjectifyService.register(BackupData.class);
+    ObjectifyService.register(BackupLockData.class);
     ObjectifyService.register(MotdData.class);
     ObjectifyService.register(RendezvousData.class);
     ObjectifyService.register(WhiteListData.class);
@@ -217,6 +250,21 @@ public class ObjectifyStorageIo implements  StorageIo {
   }
 
   ObjectifyStorageIo() {
+    this(createGcsService());
+  }
+
+  /**
+   * Creates an ObjectifyStorageIo that keeps file contents in the given GCS service, such as
+   * a local stand-in for GCS in tests.
+   */
+  @VisibleForTesting
+  ObjectifyStorageIo(GcsService gcsService) {
+    this.gcsService = gcsService;
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+    initMotd();
+  }
+
+  private static GcsService createGcsService() {
     RetryParams retryParams = new RetryParams.Builder().initialRetryDelayMillis(100)
       .retryMaxAttempts(10)
       .totalRetryPeriodMillis(10000).build();
@@ -228,9 +276,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       LOG.log(Level.INFO, "RetryParams: getRetryMinAttempts() = " + retryParams.getRetryMinAttempts());
       LOG.log(Level.INFO, "RetryParams: getTotalRetryPeriodMillis() = " + retryParams.getTotalRetryPeriodMillis());
     }
-    gcsService = GcsServiceFactory.createGcsService(retryParams);
-    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
-    initMotd();
+    return GcsServiceFactory.createGcsService(retryParams);
   }
 
   @Override
@@ -741,6 +787,9 @@ public class ObjectifyStorageIo implements  StorageIo {
     file.projectKey = projectKey;
     file.role = role;
     file.userId = userId;
+    file.contentHash = Hashing.md5().hashBytes(content).toString();
+    file.contentLength = content.length;
+    file.dateModified = System.currentTimeMillis();
     if (useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
       file.gcsName = makeGCSfileName(fileName, projectKey.getId());
@@ -993,6 +1042,53 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public Map<Long, ProjectMetadata> getProjectMetadata(final String userId,
+      final List<Long> projectIds, final boolean includeSourceFiles) {
+    final Result<Map<Long, ProjectMetadata>> result = new Result<Map<Long, ProjectMetadata>>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Map<Long, ProjectData> projectDatas = datastore.get(ProjectData.class, projectIds);
+          // Start the file queries of all the projects before reading the results of any of
+          // them, so that they run concurrently.
+          Map<Long, Iterator<FileData>> files = new HashMap<Long, Iterator<FileData>>();
+          if (includeSourceFiles) {
+            for (Long projectId : projectDatas.keySet()) {
+              files.put(projectId,
+                  datastore.query(FileData.class).ancestor(projectKey(projectId)).iterator());
+            }
+          }
+          Map<Long, ProjectMetadata> metadata = new LinkedHashMap<Long, ProjectMetadata>();
+          for (Long projectId : projectIds) {
+            ProjectData pd = projectDatas.get(projectId);
+            if (pd == null) {
+              continue;
+            }
+            List<String> sourceFiles = null;
+            if (includeSourceFiles) {
+              sourceFiles = new ArrayList<String>();
+              Iterator<FileData> iterator = files.get(projectId);
+              while (iterator.hasNext()) {
+                FileData fd = iterator.next();
+                if (fd.role.equals(FileData.RoleEnum.SOURCE)) {
+                  sourceFiles.add(fd.fileName);
+                }
+              }
+            }
+            metadata.put(projectId, new ProjectMetadata(pd.id, pd.name, pd.type,
+                pd.dateCreated, pd.dateModified, pd.galleryId, pd.attributionId, sourceFiles));
+          }
+          result.t = metadata;
+        }
+      }, false);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    return result.t;
+  }
+
   @Override
   public String getProjectName(final String userId, final long projectId) {
     final Result<String> projectName = new Result<String>();
@@ -1516,6 +1612,106 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public long uploadFilesForce(final long projectId, final String userId,
+      Map<String, String> contents, String encoding) {
+    validateGCS();
+    final Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> entry : contents.entrySet()) {
+      try {
+        rawContents.put(entry.getKey(), entry.getValue().getBytes(encoding));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+            + collectProjectErrorInfo(null, projectId, entry.getKey()), e);
+      }
+    }
+    final Result<Long> modTime = new Result<Long>();
+    final List<String> oldBlobstoreKeys = new ArrayList<String>();
+    final List<String> backups = new ArrayList<String>();
+    try {
+      JobRetryHelper job = new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException, IOException {
+          oldBlobstoreKeys.clear();
+          backups.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> keys = new ArrayList<Key<FileData>>();
+          List<String> cacheKeys = new ArrayList<String>();
+          for (String fileName : rawContents.keySet()) {
+            Key<FileData> key = projectFileKey(projectKey, fileName);
+            keys.add(key);
+            cacheKeys.add(key.getString());
+          }
+
+          // Look the files up in memcache first and get the rest with one batch get.
+          Map<String, Object> cached = memcache.getAll(cacheKeys);
+          List<Key<FileData>> uncachedKeys = new ArrayList<Key<FileData>>();
+          for (Key<FileData> key : keys) {
+            if (!cached.containsKey(key.getString())) {
+              uncachedKeys.add(key);
+            }
+          }
+          Map<Key<FileData>, FileData> stored = uncachedKeys.isEmpty()
+              ? new HashMap<Key<FileData>, FileData>() : datastore.get(uncachedKeys);
+
+          List<FileData> files = new ArrayList<FileData>();
+          Map<String, Object> cacheValues = new HashMap<String, Object>();
+          Map<String, byte[]> gcsWrites = new LinkedHashMap<String, byte[]>();
+          for (Key<FileData> key : keys) {
+            String fileName = key.getName();
+            FileData fd = (FileData) cached.get(key.getString());
+            if (fd == null) {
+              fd = stored.get(key);
+            }
+            // <Screen>.yail files are missing when user converts AI1 project to AI2
+            // instead of blowing up, just create a <Screen>.yail file
+            if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))) {
+              fd = createProjectFile(datastore, projectKey, FileData.RoleEnum.SOURCE, fileName);
+            }
+            Preconditions.checkState(fd != null);
+            if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectUserProjectErrorInfo(userId, projectId),
+                  new UnauthorizedAccessException(userId, projectId, null));
+            }
+            if (fd.isBlob) {
+              // mark the old blobstore blob for deletion
+              oldBlobstoreKeys.add(fd.blobKey);
+            }
+            byte[] content = rawContents.get(fileName);
+            updateFileContent(fd, projectId, fileName, content,
+                useGCSforFile(fileName, content.length), false, gcsWrites, backups);
+            // Old file not marked with ownership, mark it now
+            if (fd.userId == null || fd.userId.equals("")) {
+              fd.userId = userId;
+            }
+            files.add(fd);
+            cacheValues.put(key.getString(), fd);
+          }
+          writeGcsObjects(gcsWrites);
+          datastore.put(files);
+          memcache.putAll(cacheValues); // Store the updated data in memcache
+          modTime.t = updateProjectModDate(datastore, projectId, false);
+        }
+      };
+      runJobWithRetries(job, false);
+      if (job.getIOException() != null) {
+        throw job.getIOException();
+      }
+      for (String blobKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(blobKey);
+      }
+      BackupServlet.scheduleBackups(projectId, backups);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, rawContents.keySet().toString()), e);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, rawContents.keySet().toString()), e);
+    }
+    return modTime.t;
+  }
+
   private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
@@ -1549,22 +1745,76 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public long uploadRawFileForce(final long projectId, final String fileName, final String userId,
+      InputStream content) throws IOException {
+    validateGCS();
+    if (!useGCSforFile(fileName, 0)) {
+      // Files that may be kept in the datastore are small, and the datastore needs their
+      // content in memory anyway.
+      return uploadRawFileForce(projectId, fileName, userId, ByteStreams.toByteArray(content));
+    }
+    checkFileOwner(userId, projectId, fileName);
+    // Copy the content into GCS before updating the datastore, so the stream is read once even
+    // if the datastore job is retried.
+    OutputStream out = Channels.newOutputStream(gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, makeGCSfileName(fileName, projectId)),
+        GcsFileOptions.getDefaultInstance()));
+    // The GCS file is only replaced when the channel is closed, so if the stream breaks off,
+    // as when a build server's callback fails, the old content is kept until the content is
+    // sent again.
+    ByteStreams.copy(content, out);
+    out.close();
+    MemoryHighWaterMarkFilter.sample();
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, null, false);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  /*
+   * Throws an error if the given file exists and belongs to another user. Used to check the
+   * owner before content is written to GCS.
+   */
+  private void checkFileOwner(final String userId, final long projectId, final String fileName) {
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          FileData fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
+          if (fd != null && fd.userId != null && !fd.userId.equals("")
+              && !fd.userId.equals(userId)) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserProjectErrorInfo(userId, projectId),
+                new UnauthorizedAccessException(userId, projectId, null));
+          }
+        }
+      }, false);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
   @Override
   public long uploadRawFile(final long projectId, final String fileName, final String userId,
       final boolean force, final byte[] content) throws BlocksTruncatedException {
     return uploadRawFile(projectId, fileName, userId, force, content, false);
   }
 
+  /*
+   * Stores the content of a project file. If content is null, the content has already been
+   * written to the file's GCS object.
+   */
   private long uploadRawFile(final long projectId, final String fileName, final String userId,
-      final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
+      final boolean force, @Nullable final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
+    final boolean useGCS = content == null || useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
+    final List<String> backups = new ArrayList<String>();
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1572,6 +1822,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
+          backups.clear();
           Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
           fd = (FileData) memcache.get(key.getString());
           if (fd == null) {
@@ -1599,7 +1850,7 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
 
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+          if (content != null && (content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
             if (!force) {            // force is true if we *really* want to save it!
               checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
             }
@@ -1609,55 +1860,14 @@ public class ObjectifyStorageIo implements  StorageIo {
             // mark the old blobstore blob for deletion
            oldBlobstoreKey.t = fd.blobKey;
           }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
+          Map<String, byte[]> gcsWrites = new LinkedHashMap<String, byte[]>();
+          try {
+            updateFileContent(fd, projectId, fileName, content, useGCS, doingConversion,
+                gcsWrites, backups);
+            writeGcsObjects(gcsWrites);
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName), e);
           }
           // Old file not marked with ownership, mark it now
           if (fd.userId == null || fd.userId.equals("")) {
@@ -1684,6 +1894,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (oldBlobstoreKey.t != null) {
         deleteBlobstoreFile(oldBlobstoreKey.t);
       }
+      BackupServlet.scheduleBackups(projectId, backups);
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
         throw new BlocksTruncatedException();
@@ -1694,6 +1905,254 @@ public class ObjectifyStorageIo implements  StorageIo {
     return modTime.t;
   }
 
+  /*
+   * Points fd at new content. GCS objects that have to be written are added to gcsWrites,
+   * keyed by GCS name, instead of being written here, so that callers storing several files
+   * can write them concurrently. If content is null, it has already been written to the
+   * file's GCS object. Blocks and form files whose daily backup is due are added to backups;
+   * callers schedule the backups once the files are saved, and they are taken in the
+   * background by backupFiles.
+   */
+  private void updateFileContent(FileData fd, long projectId, String fileName,
+      @Nullable byte[] content, boolean useGCS, boolean doingConversion,
+      Map<String, byte[]> gcsWrites, List<String> backups) throws IOException {
+    boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
+      :false);
+    if (useGCS) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      if (content != null) {
+        gcsWrites.put(fd.gcsName, content);
+      }
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else {
+      if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
+                                  // and is now stored in the data store
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the caller already handles
+      // removing the old contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    fd.contentHash = content == null ? null : Hashing.md5().hashBytes(content).toString();
+    fd.contentLength = content == null ? 0 : content.length;
+    fd.dateModified = System.currentTimeMillis();
+    if (considerBackup && content != null && !doingConversion) {
+      if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+        backups.add(fileName);
+        fd.lastBackup = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /*
+   * Writes the given contents to GCS, keyed by GCS name. Several objects are written
+   * concurrently.
+   */
+  private void writeGcsObjects(Map<String, byte[]> gcsWrites) throws IOException {
+    if (gcsWrites.size() <= 1) {
+      for (Map.Entry<String, byte[]> entry : gcsWrites.entrySet()) {
+        writeGcsObject(entry.getKey(), entry.getValue());
+      }
+      return;
+    }
+    OrderedPrefetcher<Void> writer = new OrderedPrefetcher<Void>(
+        OrderedPrefetcher.requestThreadFactory(), Math.min(gcsWrites.size(), gcsThreads.get()));
+    try {
+      for (final Map.Entry<String, byte[]> entry : gcsWrites.entrySet()) {
+        writer.add(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            writeGcsObject(entry.getKey(), entry.getValue());
+            return null;
+          }
+        });
+      }
+      while (writer.hasNext()) {
+        writer.next();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void writeGcsObject(String gcsName, byte[] content) throws IOException {
+    GcsOutputChannel outputChannel = gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, gcsName), GcsFileOptions.getDefaultInstance());
+    outputChannel.write(ByteBuffer.wrap(content));
+    outputChannel.close();
+  }
+
+  @Override
+  public boolean backupFiles(long projectId, List<String> fileNames) {
+    validateGCS();
+    Objectify datastore = ObjectifyService.begin();
+    Key<ProjectData> projectKey = projectKey(projectId);
+    // Tasks backing up the same project at once could delete a content object that the other
+    // has just decided to reuse instead of writing, so they take turns.
+    long lock = acquireBackupLock(projectKey);
+    if (lock == 0) {
+      return false;
+    }
+    try {
+      // The backups already taken of the project's files, and the contents they share
+      Map<String, List<BackupData>> backupsByFile = new HashMap<String, List<BackupData>>();
+      Set<String> storedHashes = new HashSet<String>();
+      for (BackupData backup : datastore.query(BackupData.class).ancestor(projectKey)) {
+        backupsOf(backupsByFile, backup.fileName).add(backup);
+        storedHashes.add(backup.contentHash);
+      }
+
+      // Back up the current content of each file. The content may have changed since the
+      // backup was scheduled, which only makes the backup a little later.
+      long now = System.currentTimeMillis();
+      List<BackupData> added = new ArrayList<BackupData>();
+      for (String fileName : new LinkedHashSet<String>(fileNames)) {
+        FileData fd = datastore.find(projectFileKey(projectKey, fileName));
+        if (fd == null || !isTrue(fd.isGCS)) {
+          continue;             // Deleted since, or shrunk out of GCS
+        }
+        GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+        if (gcsService.getMetadata(gcsFileName) == null) {
+          continue;
+        }
+        byte[] content = ByteStreams.toByteArray(Channels.newInputStream(
+            gcsService.openPrefetchingReadChannel(gcsFileName, 0, GCS_READ_BLOCK_SIZE)));
+        String hash = Hashing.md5().hashBytes(content).toString();
+        if (storedHashes.add(hash)) {
+          writeGcsObject(makeBackupGCSfileName(hash, projectId), content);
+        }
+        BackupData backup = new BackupData();
+        backup.id = fileName + "." + formattedTime() + ".backup";
+        backup.projectKey = projectKey;
+        backup.fileName = fileName;
+        backup.date = now;
+        backup.contentHash = hash;
+        added.add(backup);
+        backupsOf(backupsByFile, fileName).add(backup);
+      }
+      datastore.put(added);
+
+      // Prune the backups that are no longer kept
+      BackupRetention retention = BackupRetention.fromFlags();
+      List<BackupData> expired = new ArrayList<BackupData>();
+      for (List<BackupData> backups : backupsByFile.values()) {
+        List<Long> dates = new ArrayList<Long>();
+        for (BackupData backup : backups) {
+          dates.add(backup.date);
+        }
+        Set<Long> expiredDates = retention.expired(dates, now);
+        for (BackupData backup : backups) {
+          if (expiredDates.contains(backup.date)) {
+            expired.add(backup);
+          }
+        }
+      }
+      if (expired.isEmpty()) {
+        return true;
+      }
+      datastore.delete(expired);
+      // Delete the contents no backup refers to any more.
+      Set<String> unreferenced = new HashSet<String>();
+      for (BackupData backup : expired) {
+        unreferenced.add(backup.contentHash);
+      }
+      for (BackupData backup : datastore.query(BackupData.class).ancestor(projectKey)) {
+        unreferenced.remove(backup.contentHash);
+      }
+      for (String hash : unreferenced) {
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME,
+            makeBackupGCSfileName(hash, projectId)));
+      }
+      return true;
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fileNames.toString()), e);
+    } finally {
+      releaseBackupLock(projectKey, lock);
+    }
+  }
+
+  /*
+   * Takes the backup lock of a project, unless another task holds it. Returns the time the
+   * lock lapses, which identifies it when it is released, or 0 if it is held.
+   */
+  private long acquireBackupLock(final Key<ProjectData> projectKey) {
+    final Result<Long> expires = new Result<Long>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          long now = System.currentTimeMillis();
+          BackupLockData lock = datastore.find(backupLockKey(projectKey));
+          if (lock != null && lock.expires > now) {
+            expires.t = 0L;
+            return;
+          }
+          lock = new BackupLockData();
+          lock.id = BACKUP_LOCK_ID;
+          lock.projectKey = projectKey;
+          lock.expires = now + BACKUP_LOCK_MILLIS;
+          datastore.put(lock);
+          expires.t = lock.expires;
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectKey.getId(), null), e);
+    }
+    return expires.t;
+  }
+
+  private void releaseBackupLock(final Key<ProjectData> projectKey, final long expires) {
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          BackupLockData lock = datastore.find(backupLockKey(projectKey));
+          // Leave the lock alone if it lapsed and another task has taken it.
+          if (lock != null && lock.expires == expires) {
+            datastore.delete(lock);
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      // The lock lapses by itself.
+      LOG.log(Level.WARNING, "Unable to release the backup lock of project "
+          + projectKey.getId(), e);
+    }
+  }
+
+  private static Key<BackupLockData> backupLockKey(Key<ProjectData> projectKey) {
+    return new Key<BackupLockData>(projectKey, BackupLockData.class, BACKUP_LOCK_ID);
+  }
+
+  private static List<BackupData> backupsOf(Map<String, List<BackupData>> backupsByFile,
+      String fileName) {
+    List<BackupData> backups = backupsByFile.get(fileName);
+    if (backups == null) {
+      backups = new ArrayList<BackupData>();
+      backupsByFile.put(fileName, backups);
+    }
+    return backups;
+  }
+
+  // Make the GCS file name of the backed up content with the given MD5 hash. Project files
+  // are all under src/, assets/ or youngandroidproject/, so the names can't collide.
+  private String makeBackupGCSfileName(String contentHash, long projectId) {
+    return makeGCSfileName("backups/" + contentHash, projectId);
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1954,9 +2413,190 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
-  // Note: this must be called outside of any transaction, since getBlobKey()
-  // uses the current transaction and it will most likely have the wrong
-  // entity group!
+  @Override
+  public FileVersion getFileVersion(String userId, long projectId, String fileName) {
+    FileData fd = getFileData(userId, projectId, fileName);
+    if (fd == null) {
+      return null;
+    }
+    if (fd.contentHash != null) {
+      return new FileVersion(fd.contentHash, fd.dateModified, fd.contentLength);
+    }
+    if (isTrue(fd.isGCS)) {
+      // GCS keeps a hash of each object, which is read without reading the object itself.
+      try {
+        GcsFileMetadata metadata =
+            gcsService.getMetadata(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        if (metadata == null) {
+          return null;
+        }
+        return new FileVersion(metadata.getEtag(), metadata.getLastModified().getTime(),
+            metadata.getLength());
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to read metadata of " + fd.gcsName, e);
+        return null;
+      }
+    }
+    if (!fd.isBlob) {
+      byte[] content = fd.content == null ? new byte[0] : fd.content;
+      return new FileVersion(Hashing.md5().hashBytes(content).toString(), 0, content.length);
+    }
+    return null;
+  }
+
+  @Override
+  public InputStream openRawFile(String userId, long projectId, String fileName, long start)
+      throws IOException {
+    FileData fd = getFileData(userId, projectId, fileName);
+    if (fd != null && isTrue(fd.isGCS)) {
+      return Channels.newInputStream(gcsService.openPrefetchingReadChannel(
+          new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), start, (int) EXPORT_PREFETCH_MAX_SIZE));
+    }
+    // Files in the datastore and the blobstore are read whole.
+    InputStream in = new ByteArrayInputStream(downloadRawFile(userId, projectId, fileName));
+    ByteStreams.skipFully(in, start);
+    return in;
+  }
+
+  /*
+   * Returns the datastore entity of a project file, or null if the file doesn't exist. Throws
+   * an error if the file belongs to another user.
+   */
+  private FileData getFileData(final String userId, final long projectId,
+      final String fileName) {
+    final Result<FileData> fd = new Result<FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
+          fd.t = (FileData) memcache.get(fileKey.getString());
+          if (fd.t == null) {
+            fd.t = datastore.find(fileKey);
+          }
+        }
+      }, false); // Transaction not needed
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    if (fd.t != null && fd.t.userId != null && !fd.t.userId.equals("")
+        && !fd.t.userId.equals(userId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    return fd.t;
+  }
+
+  /*
+   * What the zip writer needs to write a file being exported: either its content, or, for
+   * files too large to hold in memory, where to stream it from.
+   */
+  private static final class PrefetchedFile {
+    final byte[] content;
+    final GcsFilename gcsFileName;
+
+    PrefetchedFile(byte[] content, GcsFilename gcsFileName) {
+      this.content = content;
+      this.gcsFileName = gcsFileName;
+    }
+  }
+
+  /*
+   * Reads the content of a file being exported. Blobs, and GCS objects larger than
+   * EXPORT_PREFETCH_MAX_SIZE, are not read here but streamed into the zip file, so they are
+   * never held in memory. Called on a prefetch thread.
+   */
+  private PrefetchedFile prefetchFile(FileData fd, boolean fatalError) throws IOException {
+    if (fd.isBlob) {
+      if (fd.blobKey == null) {
+        throw new BlobReadException("blobKey is null");
+      }
+      return new PrefetchedFile(null, null);
+    } else if (isTrue(fd.isGCS)) {
+      GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+      GcsFileMetadata metadata = getExportedGcsMetadata(gcsFileName, fatalError);
+      if (metadata == null) {
+        return new PrefetchedFile(new byte[0], null);
+      } else if (metadata.getLength() > EXPORT_PREFETCH_MAX_SIZE) {
+        return new PrefetchedFile(null, gcsFileName);
+      }
+      byte[] content = new byte[(int) metadata.getLength()];
+      InputStream readStream = Channels.newInputStream(gcsService.openReadChannel(gcsFileName, 0));
+      try {
+        ByteStreams.readFully(readStream, content);
+      } finally {
+        readStream.close();
+      }
+      return new PrefetchedFile(content, null);
+    } else if (fd.content != null) {
+      return new PrefetchedFile(fd.content, null);
+    } else {
+      // content is null if file creation is interrupted
+      return new PrefetchedFile(new byte[0], null);
+    }
+  }
+
+  private void copyBlobstoreBytes(String blobKeyString, OutputStream out)
+      throws BlobReadException {
+    BlobKey blobKey = new BlobKey(blobKeyString);
+    try {
+      InputStream blobInputStream = new BlobstoreInputStream(blobKey);
+      try {
+        ByteStreams.copy(blobInputStream, out);
+      } finally {
+        blobInputStream.close();
+      }
+    } catch (IOException e) {
+      throw new BlobReadException(e, "Error trying to read blob from " + blobKey);
+    }
+  }
+
+  /*
+   * Streams the content of a GCS object being exported into out. The object is known to
+   * exist, since prefetchFile has read its metadata.
+   */
+  private void copyGcsFile(GcsFilename gcsFileName, OutputStream out) throws IOException {
+    InputStream readStream = Channels.newInputStream(
+        gcsService.openPrefetchingReadChannel(gcsFileName, 0, GCS_READ_BLOCK_SIZE));
+    try {
+      ByteStreams.copy(readStream, out);
+    } finally {
+      readStream.close();
+    }
+  }
+
+  /*
+   * Returns the metadata of a GCS object being exported, or null if the object is missing and
+   * fatalError is false.
+   */
+  private GcsFileMetadata getExportedGcsMetadata(GcsFilename gcsFileName, boolean fatalError)
+      throws IOException {
+    for (int count = 0; count < 5; count++) {
+      // The metadata is null if the object in GCS is non-existent, which would happen
+      // when people uploaded a zero length object. As of this change, we now
+      // store zero length objects into GCS, but there are plenty of older objects
+      // that are missing in GCS.
+      GcsFileMetadata metadata = gcsService.getMetadata(gcsFileName);
+      if (metadata != null) {
+        if (count > 0) {
+          LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " +
+              gcsFileName.getObjectName() + " count = " + count);
+        }
+        return metadata;
+      }
+      LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + gcsFileName.getObjectName());
+    }
+    LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " +
+        gcsFileName.getObjectName());
+    if (fatalError) {
+      throw new IOException("FATAL Error reading file from GCS filename = " +
+          gcsFileName.getObjectName());
+    }
+    return null;
+  }
+
   private byte[] getBlobstoreBytes(String blobKeyString) throws BlobReadException {
     BlobKey blobKey = new BlobKey(blobKeyString);
     if (blobKey == null) {
@@ -1992,6 +2632,48 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, includeYail, includeScreenShots, forGallery, fatalError, zipFile,
+        projectName);
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        includeYail, includeScreenShots, forGallery, fatalError, outputStream,
+        new Result<String>());
+  }
+
+  /*
+   * Writes the project's files as a zip archive to outputStream, copying each file's content
+   * from GCS, the blobstore or the datastore into the archive as it is read. Returns the number
+   * of files written and sets projectName to the name of the project.
+   */
+  private int writeProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    OutputStream outputStream,
+    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -2002,12 +2684,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    final ZipOutputStream out = new ZipOutputStream(outputStream);
     out.setComment("Built with MIT App Inventor");
 
     try {
@@ -2059,87 +2739,41 @@ public class ObjectifyStorageIo implements  StorageIo {
         throw error;
       }
       // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
+      // blobs in the job. Contents are read ahead of the zip writer by a few
+      // threads so that their round trips to GCS overlap.
+      OrderedPrefetcher<PrefetchedFile> prefetcher = new OrderedPrefetcher<PrefetchedFile>(
+          OrderedPrefetcher.requestThreadFactory(), gcsThreads.get());
+      try {
+        for (final FileData fd : fileData) {
+          prefetcher.add(new Callable<PrefetchedFile>() {
+            @Override
+            public PrefetchedFile call() throws IOException {
+              return prefetchFile(fd, fatalError);
             }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (isTrue(fd.isGCS)) {
+          });
+        }
+        for (FileData fd : fileData) {
+          fileName = fd.fileName;
           try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
+            PrefetchedFile file = prefetcher.next();
+            out.putNextEntry(new ZipEntry(fileName));
+            if (file.content != null) {
+              out.write(file.content, 0, file.content.length);
+            } else if (fd.isBlob) {
+              copyBlobstoreBytes(fd.blobKey, out);
+            } else {
+              copyGcsFile(file.gcsFileName, out);
             }
           } catch (IOException e) {
             throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
+                collectProjectErrorInfo(userId, projectId, fileName), e);
           }
-        } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+          out.closeEntry();
+          MemoryHighWaterMarkFilter.sample();
+          fileCount.t++;
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
+      } finally {
+        prefetcher.close();
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -2193,15 +2827,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
-
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
-    }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    // Finish rather than close the zip, so the caller's stream is left open.
+    out.finish();
+    return fileCount.t;
   }
 
   @Override
@@ -2292,6 +2920,18 @@ public class ObjectifyStorageIo implements  StorageIo {
     return true;
   }
 
+  @Override
+  public Set<String> getWhiteList() {
+    Objectify datastore = ObjectifyService.begin();
+    Set<String> emails = new HashSet<String>();
+    for (WhiteListData data : datastore.query(WhiteListData.class)) {
+      if (data.emailLower != null) {
+        emails.add(data.emailLower);
+      }
+    }
+    return emails;
+  }
+
   @Override
   public void storeFeedback(final String notes, final String foundIn, final String faultData,
     final String comments, final String datestamp, final String email, final String projectId) {
@@ -2583,24 +3223,35 @@ public class ObjectifyStorageIo implements  StorageIo {
     return fileName;
   }
 
+  @Override
+  public OutputStream createTempFile(String fileName) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("createTempFile (" + fileName + ") Invalid File Name");
+    }
+    return Channels.newOutputStream(gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, fileName), GcsFileOptions.getDefaultInstance()));
+  }
+
+  @Override
+  public boolean tempFileExists(String fileName) throws IOException {
+    if (!fileName.startsWith("__TEMP__")) {
+      throw new RuntimeException("tempFileExists (" + fileName + ") Invalid File Name");
+    }
+    return gcsService.getMetadata(new GcsFilename(GCS_BUCKET_NAME, fileName)) != null;
+  }
+
   @Override
   public InputStream openTempFile(String fileName) throws IOException {
     if (!fileName.startsWith("__TEMP__")) {
-      throw new RuntimeException("deleteTempFile (" + fileName + ") Invalid File Name");
+      throw new RuntimeException("openTempFile (" + fileName + ") Invalid File Name");
     }
     GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileName);
-    int fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-    ByteBuffer resultBuffer = ByteBuffer.allocate(fileSize);
-    GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-    int bytesRead = 0;
-    try {
-      while (bytesRead < fileSize) {
-        bytesRead += readChannel.read(resultBuffer);
-      }
-    } finally {
-      readChannel.close();
+    if (gcsService.getMetadata(gcsFileName) == null) {
+      throw new FileNotFoundException(fileName);
     }
-    return new ByteArrayInputStream(resultBuffer.array());
+    // Temp files may be large exports, so they are streamed rather than read into memory.
+    return Channels.newInputStream(gcsService.openPrefetchingReadChannel(gcsFileName, 0,
+        1024 * 1024));
   }
 
   @Override
@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs reads concurrently and hands their results back in the order the reads were added.
+ *
+ * <p>At most {@code parallelism} reads are running or waiting to be taken at any time, which
+ * bounds both the number of threads and the memory held by results read ahead of the
+ * consumer. A prefetcher is used by a single thread and must be closed when it is no longer
+ * needed.</p>
+ *
+ * @param <T> the type of the results
+ */
+public final class OrderedPrefetcher<T> {
+
+  private final ExecutorService executor;
+  private final int parallelism;
+
+  // Reads that haven't been started yet.
+  private final Queue<Callable<T>> pending = new ArrayDeque<Callable<T>>();
+
+  // Reads that have been started and whose results haven't been taken, in the order they
+  // were added.
+  private final Queue<Future<T>> started = new ArrayDeque<Future<T>>();
+
+  /**
+   * Creates a prefetcher.
+   *
+   * @param threadFactory  the factory for the threads that run the reads
+   * @param parallelism  the maximum number of reads that are running or waiting to be taken
+   */
+  public OrderedPrefetcher(ThreadFactory threadFactory, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    this.executor = Executors.newFixedThreadPool(parallelism, threadFactory);
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Adds a read. It is started as soon as fewer than {@code parallelism} reads are running
+   * or waiting to be taken.
+   */
+  public void add(Callable<T> read) {
+    pending.add(read);
+    startPending();
+  }
+
+  /**
+   * Returns whether there are reads whose results haven't been taken.
+   */
+  public boolean hasNext() {
+    return !started.isEmpty();
+  }
+
+  /**
+   * Waits for the earliest added read whose result hasn't been taken and returns its result.
+   *
+   * @throws IOException if the read threw an IOException
+   * @throws java.util.NoSuchElementException if there are no more reads
+   */
+  public T next() throws IOException {
+    Future<T> future = started.remove();
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a prefetched read");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      startPending();
+    }
+  }
+
+  /**
+   * Cancels the reads whose results haven't been taken and stops the threads.
+   */
+  public void close() {
+    pending.clear();
+    for (Future<T> future : started) {
+      future.cancel(true);
+    }
+    started.clear();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns a factory for threads that may make API calls on behalf of the current request,
+   * or a plain thread factory outside of App Engine, such as in tests.
+   */
+  public static ThreadFactory requestThreadFactory() {
+    ThreadFactory threadFactory = ApiProxy.getCurrentEnvironment() == null
+        ? null : ThreadManager.currentRequestThreadFactory();
+    return threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+  }
+
+  private void startPending() {
+    while (started.size() < parallelism && !pending.isEmpty()) {
+      started.add(executor.submit(pending.remove()));
+    }
+  }
+}
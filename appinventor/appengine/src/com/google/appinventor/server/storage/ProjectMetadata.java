@@ -0,0 +1,95 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.project.UserProject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * The metadata of a project, as returned by {@link StorageIo#getProjectMetadata}.
+ *
+ * <p>Instances are immutable, so they may be shared by caches.</p>
+ *
+ */
+public final class ProjectMetadata {
+  private final long projectId;
+  private final String name;
+  private final String type;
+  private final long dateCreated;
+  private final long dateModified;
+  private final long galleryId;
+  private final long attributionId;
+  private final List<String> sourceFiles;
+
+  /**
+   * Creates the metadata of a project.
+   *
+   * @param sourceFiles  the names of the source files of the project, or null if they weren't
+   *                     read
+   */
+  public ProjectMetadata(long projectId, String name, String type, long dateCreated,
+      long dateModified, long galleryId, long attributionId,
+      @Nullable List<String> sourceFiles) {
+    this.projectId = projectId;
+    this.name = name;
+    this.type = type;
+    this.dateCreated = dateCreated;
+    this.dateModified = dateModified;
+    this.galleryId = galleryId;
+    this.attributionId = attributionId;
+    this.sourceFiles = sourceFiles == null
+        ? null : Collections.unmodifiableList(new ArrayList<String>(sourceFiles));
+  }
+
+  public long getProjectId() {
+    return projectId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getDateCreated() {
+    return dateCreated;
+  }
+
+  public long getDateModified() {
+    return dateModified;
+  }
+
+  public long getGalleryId() {
+    return galleryId;
+  }
+
+  public long getAttributionId() {
+    return attributionId;
+  }
+
+  /**
+   * Returns the names of the source files of the project, or null if they weren't asked for.
+   */
+  @Nullable
+  public List<String> getSourceFiles() {
+    return sourceFiles;
+  }
+
+  /**
+   * Returns a new {@link UserProject} with this metadata.
+   */
+  public UserProject toUserProject() {
+    return new UserProject(projectId, name, type, dateCreated, dateModified, galleryId,
+        attributionId);
+  }
+}
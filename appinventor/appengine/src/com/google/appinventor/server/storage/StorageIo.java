@@ -19,9 +19,12 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -251,6 +254,18 @@ public interface StorageIo {
 
   List<UserProject> getUserProjects(String userId, List<Long> projectIds);
 
+  /**
+   * Returns the metadata of several projects, read from storage together rather than one
+   * project and one attribute at a time.
+   *
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectIds  project ids
+   * @param includeSourceFiles  whether to read the lists of source files of the projects
+   * @return the metadata of the projects that exist, keyed by project id
+   */
+  Map<Long, ProjectMetadata> getProjectMetadata(String userId, List<Long> projectIds,
+      boolean includeSourceFiles);
+
   /**
    * Returns a project name.
    *
@@ -467,6 +482,20 @@ public interface StorageIo {
    */
   long uploadFileForce(long projectId, String fileId, String userId, String content, String encoding);
 
+  /**
+   * Uploads several files of a project at once, using "force" to write even trivial
+   * workspace files. The files are looked up and stored with one batch operation each, and
+   * the project modification date is updated once.
+   *
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param contents  the content of each file, keyed by file ID
+   * @param encoding encoding of the contents
+   * @return modification date for project
+   */
+  long uploadFilesForce(long projectId, String userId, Map<String, String> contents,
+      String encoding);
+
   /**
    * Uploads a file.
    * @param projectId  project ID
@@ -489,6 +518,31 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads a file, reading its content from a stream. -- forces the save
+   * even with trivial workspace. Large files are copied into storage as they
+   * are read rather than held in memory.
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param userId the user who owns the file
+   * @param content  stream to read the file content from
+   * @return modification date for project
+   */
+  long uploadRawFileForce(long projectId, String fileId, String userId, InputStream content)
+      throws IOException;
+
+  /**
+   * Takes the daily backups of files of a project and deletes the backups of those files
+   * that are no longer kept. Saving a file only records that its backup is due; this is
+   * called later, in the background. The backups of a project are taken one call at a time.
+   *
+   * @param projectId  project ID
+   * @param fileIds  the files to back up
+   * @return true if the backups were taken, false if another call is taking backups of the
+   *         project and this one should be tried again later
+   */
+  boolean backupFiles(long projectId, List<String> fileIds);
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -530,6 +584,30 @@ public interface StorageIo {
    */
   byte[] downloadRawFile(String userId, long projectId, String fileId);
 
+  /**
+   * Returns the version of a file's content, which can be used to validate a
+   * cached copy of the file without downloading it.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileId  file ID
+   *
+   * @return  file version, or null if it isn't known
+   */
+  @Nullable FileVersion getFileVersion(String userId, long projectId, String fileId);
+
+  /**
+   * Opens a stream that reads raw file data, starting at the given offset.
+   * Large files are read as the stream is consumed rather than all at once.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param start  offset of the first byte to read
+   *
+   * @return  stream of the file content
+   */
+  InputStream openRawFile(String userId, long projectId, String fileId, long start)
+      throws IOException;
+
   /**
    * Creates a temporary file with the given content and returns
    * its file name, which will always begin with __TEMP__
@@ -539,6 +617,27 @@ public interface StorageIo {
    */
   String uploadTempFile(byte [] content) throws IOException;
 
+  /**
+   * Creates or replaces a temporary file and returns a stream that writes
+   * its content. The file only exists once the stream has been closed.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName the temporary filename
+   *
+   * @return outputstream
+   */
+  OutputStream createTempFile(String fileName) throws IOException;
+
+  /**
+   * Returns whether a temporary file exists.
+   * Verifies it is a temp file by making sure the filename
+   * begins with __TEMP__
+   *
+   * @param fileName the temporary filename
+   */
+  boolean tempFileExists(String fileName) throws IOException;
+
   /**
    * Open an input stream to a temp file.
    * Verifies it is a temp file by making sure the filename
@@ -590,6 +689,29 @@ public interface StorageIo {
     final boolean forGallery,
     final boolean fatalError) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive, writing the archive to the given
+   *  stream as the files are read. The stream isn't closed.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param outputStream  the stream to write the zip archive to
+   *
+   * @return  the number of files in the zip archive
+   * @throws IllegalArgumentException if the project has no files, in which
+   *         case nothing has been written to the stream
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean forGallery,
+    boolean fatalError,
+    OutputStream outputStream) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -628,6 +750,11 @@ public interface StorageIo {
 
   boolean checkWhiteList(String email);
 
+  /**
+   * Returns the email addresses on the whitelist, in lower case.
+   */
+  Set<String> getWhiteList();
+
   void storeFeedback(final String notes, final String foundIn, final String faultData,
     final String comments, final String datestamp, final String email, final String projectId);
 
@@ -6,17 +6,44 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
+
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
  * the references in the code to the INSTANCE.
- * 
+ *
+ * The subclass is chosen with the storage.backend flag: "objectify" keeps
+ * everything in the App Engine datastore and GCS, and "local" keeps it in the
+ * storage.local.dir directory of the machine the server runs on.
+ *
  * @author sharon@google.com (Sharon Perl)
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
-  
+  // Values are specified in the <system-properties> section of appengine-web.xml.
+  private static final Flag<String> storageBackend =
+      Flag.createFlag("storage.backend", "objectify");
+  private static final Flag<String> localDirectory =
+      Flag.createFlag("storage.local.dir", "appinventor-storage");
+  private static final Flag<Boolean> localSync = Flag.createFlag("storage.local.sync", false);
+
+  public static final StorageIo INSTANCE = createInstance();
+
   private StorageIoInstanceHolder() {} // not to be instantiated
-    
+
+  private static StorageIo createInstance() {
+    if ("local".equals(storageBackend.get())) {
+      // The local store is in the memory of this process, so it isn't cached again.
+      try {
+        return new LocalStorageIo(new File(localDirectory.get()), localSync.get());
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to open " + localDirectory.get(), e);
+      }
+    }
+    return new CachingStorageIo(new ObjectifyStorageIo());
+  }
 }
@@ -188,6 +188,13 @@ public class StoredData {
     // The GCS filename, sans bucket name
     String gcsName;
 
+    // An MD5 hash of the content, its length and when it was last written, used to answer
+    // conditional downloads without reading the content. The hash is null for files written
+    // before it was recorded and for files streamed into GCS.
+    String contentHash;
+    long contentLength;
+    long dateModified;
+
     // File settings
     String settings;
 
@@ -199,6 +206,33 @@ public class StoredData {
                                 // it yet
   }
 
+  // A daily backup of a project source file. Backups of a project that have the same
+  // content share one GCS object, named by the MD5 hash of the content.
+  @Unindexed
+  static final class BackupData {
+    // The file name followed by the date of the backup and ".backup"
+    @Id String id;
+
+    @Parent Key<ProjectData> projectKey;
+
+    String fileName;
+    long date;
+    String contentHash;
+  }
+
+  // Held by a backup task of a project while it backs up and prunes the project's backups,
+  // so that two tasks of the same project don't run at once.
+  @Unindexed
+  static final class BackupLockData {
+    // There is one lock per project, always with the same id
+    @Id String id;
+
+    @Parent Key<ProjectData> projectKey;
+
+    // When the lock lapses, in case the task holding it died
+    long expires;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
@@ -0,0 +1,104 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import javax.annotation.Nullable;
+
+/**
+ * A single range of bytes requested with an HTTP "Range" header, such as
+ * "bytes=1000-" when a download is resumed.
+ *
+ * <p>Only single ranges are supported. Requests for several ranges are
+ * answered with the whole content, which HTTP allows.</p>
+ *
+ */
+public final class ByteRange {
+  private static final String BYTES_UNIT = "bytes=";
+
+  private final long start;
+  private final long end;
+  private final long length;
+
+  private ByteRange(long start, long end, long length) {
+    this.start = start;
+    this.end = end;
+    this.length = length;
+  }
+
+  /**
+   * Parses the value of a "Range" header for content of the given length.
+   *
+   * @param header the value of the header, or null if there is none
+   * @param length the length of the content
+   * @return the requested range, or null if the whole content should be sent
+   */
+  @Nullable
+  public static ByteRange parse(@Nullable String header, long length) {
+    if (header == null || !header.startsWith(BYTES_UNIT) || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // A suffix range, e.g. "bytes=-500" for the last 500 bytes.
+        if (last.isEmpty()) {
+          return null;
+        }
+        long suffixLength = Long.parseLong(last);
+        if (suffixLength <= 0) {
+          return new ByteRange(length, length - 1, length);
+        }
+        return new ByteRange(Math.max(0, length - suffixLength), length - 1, length);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+        return null;
+      }
+      return new ByteRange(start, end, length);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether any of the requested bytes exist. A range that isn't
+   * satisfiable is answered with status 416.
+   */
+  public boolean isSatisfiable() {
+    return start < length && start <= end;
+  }
+
+  /**
+   * Returns the offset of the first byte of the range.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Returns the number of bytes in the range.
+   */
+  public long getCount() {
+    return end - start + 1;
+  }
+
+  /**
+   * Returns the value of the "Content-Range" header of the response.
+   */
+  public String toContentRange() {
+    if (!isSatisfiable()) {
+      return "bytes */" + length;
+    }
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+}
@@ -30,4 +30,15 @@ public interface CacheHeaders {
    * @param resp the response
    */
   void setCacheablePrivate(HttpServletResponse resp);
+
+  /**
+   * Marks the given response as cacheable by any cache, including shared
+   * proxies, for the given number of seconds. Only for content that doesn't
+   * change for as long as its URL is valid.
+   *
+   * @param resp the response
+   * @param maxAgeSeconds how long the response may be used without
+   *        revalidation
+   */
+  void setCacheablePublic(HttpServletResponse resp, int maxAgeSeconds);
 }
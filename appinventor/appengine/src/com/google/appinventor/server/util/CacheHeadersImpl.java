@@ -34,4 +34,12 @@ public class CacheHeadersImpl implements CacheHeaders {
     resp.setDateHeader("Expires", nowMillis);  // Forces HTTP/1.0 not to cache
     resp.setHeader("Cache-Control", "private,max-age=0");
   }
+
+  @Override
+  public void setCacheablePublic(HttpServletResponse resp, int maxAgeSeconds) {
+    long nowMillis =  System.currentTimeMillis();
+    resp.setDateHeader("Date", nowMillis);
+    resp.setDateHeader("Expires", nowMillis + maxAgeSeconds * 1000L);
+    resp.setHeader("Cache-Control", "public,max-age=" + maxAgeSeconds);
+  }
 }
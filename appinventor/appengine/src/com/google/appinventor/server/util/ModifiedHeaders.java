@@ -38,6 +38,35 @@ public class ModifiedHeaders {
     return false;
   }
 
+  /**
+   * Compares the "If-None-Match" header, or if there is none the
+   * "If-Modified-Since" header, in this request to the entity tag and
+   * modification date of the requested content.
+   *
+   * @param req the request
+   * @param eTag the entity tag of the content
+   * @param lastModified when the content was last modified, or 0 if unknown
+   * @return {@code true} iff the requester already has the content
+   */
+  public static boolean notModified(HttpServletRequest req, String eTag, long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(eTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModDate = req.getDateHeader("If-Modified-Since");
+    // HTTP dates have a resolution of one second.
+    return lastModified > 0 && ifModDate > 0 && ifModDate >= lastModified / 1000 * 1000;
+  }
+
   /**
    * Sets headers such that, if the last build time is known, it is included in
    * the "Last-Modified" header and validation is required for reuse.  If the
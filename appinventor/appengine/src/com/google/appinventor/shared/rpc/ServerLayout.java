@@ -128,6 +128,13 @@ public class ServerLayout {
    */
   public static final String DOWNLOAD_ALL_PROJECTS_SOURCE = "all-projects-source";
 
+  /**
+   * Relative path within {@link com.google.appinventor.server.DownloadServlet}
+   * for downloading all of a user's projects' sources once they have been
+   * exported in the background.
+   */
+  public static final String DOWNLOAD_ALL_PROJECTS_EXPORT = "all-projects-export";
+
   /**
    * Relative path within {@link com.google.appinventor.server.DownloadServlet}
    * for downloading a project's sources for a user other than the logged-in
@@ -0,0 +1,118 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+
+/**
+ * A change to the content of a text file, sent to the server instead of the whole file when
+ * an editor is saved.
+ *
+ * <p>The change replaces the part of the base content between a common prefix and a common
+ * suffix. Edits in the designer and the blocks editor usually touch one area of a file, so
+ * the replacement is small even for large files. The patch carries checksums (see
+ * {@link ChecksumedLoadFile#computeChecksum}) of the base content it was made against and of
+ * the content it produces, so that the server can detect that its copy of the file differs
+ * from the client's, or that the patch was altered on the way.</p>
+ *
+ */
+public class FilePatch implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 4917315683460920381L;
+
+  private String baseChecksum;
+  private int prefixLength;
+  private int suffixLength;
+  private String replacement;
+  private String checksum;
+
+  /**
+   * Default constructor (for serialization only).
+   */
+  @SuppressWarnings("unused")
+  private FilePatch() {
+  }
+
+  private FilePatch(String baseChecksum, int prefixLength, int suffixLength,
+      String replacement, String checksum) {
+    this.baseChecksum = baseChecksum;
+    this.prefixLength = prefixLength;
+    this.suffixLength = suffixLength;
+    this.replacement = replacement;
+    this.checksum = checksum;
+  }
+
+  /**
+   * Creates the patch that turns base into content.
+   */
+  public static FilePatch create(String base, String content) throws ChecksumedFileException {
+    return create(base, ChecksumedLoadFile.computeChecksum(base), content);
+  }
+
+  /**
+   * Creates the patch that turns base, whose checksum is already known, into content.
+   */
+  public static FilePatch create(String base, String baseChecksum, String content)
+      throws ChecksumedFileException {
+    int maxLength = Math.min(base.length(), content.length());
+    int prefixLength = 0;
+    while (prefixLength < maxLength && base.charAt(prefixLength) == content.charAt(prefixLength)) {
+      prefixLength++;
+    }
+    int suffixLength = 0;
+    while (suffixLength < maxLength - prefixLength
+        && base.charAt(base.length() - suffixLength - 1)
+            == content.charAt(content.length() - suffixLength - 1)) {
+      suffixLength++;
+    }
+    return new FilePatch(baseChecksum, prefixLength, suffixLength,
+        content.substring(prefixLength, content.length() - suffixLength),
+        ChecksumedLoadFile.computeChecksum(content));
+  }
+
+  /**
+   * Applies the patch to base and returns the resulting content.
+   *
+   * @throws ChecksumedFileException if base isn't the content the patch was made against, or
+   *         the result doesn't match the checksum of the patch
+   */
+  public String apply(String base) throws ChecksumedFileException {
+    if (!ChecksumedLoadFile.computeChecksum(base).equals(baseChecksum)) {
+      throw new ChecksumedFileException("Patch base doesn't match " + baseChecksum);
+    }
+    if (prefixLength < 0 || suffixLength < 0 || prefixLength + suffixLength > base.length()) {
+      throw new ChecksumedFileException("Patch doesn't fit its base");
+    }
+    String content = base.substring(0, prefixLength) + replacement
+        + base.substring(base.length() - suffixLength);
+    if (!ChecksumedLoadFile.computeChecksum(content).equals(checksum)) {
+      throw new ChecksumedFileException("Patched content doesn't match " + checksum);
+    }
+    return content;
+  }
+
+  /**
+   * Returns whether the patch leaves its base unchanged.
+   */
+  public boolean isEmpty() {
+    return replacement.length() == 0 && baseChecksum.equals(checksum);
+  }
+
+  /**
+   * Returns the checksum of the content the patch produces.
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Returns the length of the replaced text, a rough measure of the size of the patch.
+   */
+  public int getReplacementLength() {
+    return replacement.length();
+  }
+}
@@ -102,6 +102,37 @@ public class GalleryApp implements IsSerializable {
     this.imageBlobId = "SFKJF";
   }
 
+  /**
+   * Copy constructor. The copy shares nothing with the original that either
+   * can change, so a copy may be handed out while the original is kept.
+   * Fields added to this class must be copied here too.
+   */
+  public GalleryApp(GalleryApp app) {
+    this.title = app.title;
+    this.developerId = app.developerId;
+    this.developerName = app.developerName;
+    this.description = app.description;
+    this.creationDate = app.creationDate;
+    this.updateDate = app.updateDate;
+    this.projectName = app.projectName;
+    this.imageURL = app.imageURL;
+    this.downloads = app.downloads;
+    this.views = app.views;
+    this.likes = app.likes;
+    this.unreadLikes = app.unreadLikes;
+    this.unreadDownloads = app.unreadDownloads;
+    this.comments = app.comments;
+    this.imageBlobId = app.imageBlobId;
+    this.sourceBlobId = app.sourceBlobId;
+    this.galleryAppId = app.galleryAppId;
+    this.tags = app.tags == null ? null : new ArrayList<String>(app.tags);
+    this.projectId = app.projectId;
+    this.attributionId = app.attributionId;
+    this.active = app.active;
+    this.moreInfo = app.moreInfo;
+    this.credit = app.credit;
+  }
+
 
   private String title;
   private String developerId;
@@ -79,45 +79,50 @@ public interface GalleryService extends RemoteService {
   /**
    * Returns a wrapped class which contains list of most recently
    * updated galleryApps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
-  GalleryAppListResult getRecentApps(int start, int count);
+  GalleryAppListResult getRecentApps(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
-  GalleryAppListResult getMostDownloadedApps(int start, int count);
+  GalleryAppListResult getMostDownloadedApps(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
-   * @param start starting index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
-  GalleryAppListResult getMostLikedApps(int start, int count);
+  GalleryAppListResult getMostLikedApps(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of featured gallery app
-   * @param start start index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  GalleryAppListResult getFeaturedApp(int start, int count);
+  GalleryAppListResult getFeaturedApp(String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of tutorial gallery app
-   * @param start start index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count count number
    * @return list of gallery app
    */
-  GalleryAppListResult getTutorialApp(int start, int count);
+  GalleryAppListResult getTutorialApp(String cursor, int count);
 
   /**
    * check if app is featured already
@@ -151,11 +156,12 @@ public interface GalleryService extends RemoteService {
    * Returns a wrapped class which contains a list of galleryApps
    * by a particular developer and total number of results in database
    * @param userId id of the developer
-   * @param start starting index
+   * @param cursor where the page starts, as returned with the previous page,
+   *     or null for the first page
    * @param count number of apps to return
    * @return list of GalleryApps
    */
-  GalleryAppListResult getDeveloperApps(String userId, int start, int count);
+  GalleryAppListResult getDeveloperApps(String userId, String cursor, int count);
 
   /**
    * Returns a wrapped class which contains a list of galleryApps and
@@ -250,6 +250,25 @@ public interface ProjectService extends RemoteService {
   long save2(String sessionId, long projectId, String fileId, boolean force, String content) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves the content of the file associated with a node in the project tree by applying a
+   * patch to the content stored on the server. Like save2 with force false, this can throw a
+   * BlocksTruncatedException if the result is a trivial blocks file.
+   *
+   * @param sessionId current session id
+   * @param projectId  project ID
+   * @param fileId  project node whose source should be saved
+   * @param patch  the change from the content last saved by the client
+   * @return modification date for project
+   * @throws ChecksumedFileException if the stored content isn't the patch's base or the
+   *         patched content doesn't match the patch's checksum; the client should then save
+   *         the whole content with save2
+   *
+   * @see #save2(String, long, String, boolean, String)
+   */
+  long savePatch(String sessionId, long projectId, String fileId, FilePatch patch)
+      throws InvalidSessionException, BlocksTruncatedException, ChecksumedFileException;
+
   /**
    * Saves the contents of multiple files.
    *
@@ -298,6 +317,23 @@ public interface ProjectService extends RemoteService {
    */
   RpcResult getBuildResult(long projectId, String target);
 
+  /**
+   * Starts exporting the sources of all of the user's projects in the
+   * background, for users with too many projects to download them at once.
+   *
+   * @return  id of the export, to be passed to {@link #isExportReady} and
+   *          used to download the zip once it is ready
+   */
+  String exportAllProjects();
+
+  /**
+   * Returns whether a background export of the user's projects is ready to
+   * be downloaded.
+   *
+   * @param exportId  id returned by {@link #exportAllProjects}
+   */
+  boolean isExportReady(String exportId);
+
   /**
    * Adds a new file to the given project.
    *
@@ -136,6 +136,12 @@ public interface ProjectServiceAsync {
    */
   void save2(String sessionId, long projectId, String fileId, boolean force, String source, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#savePatch(String, long, String, FilePatch)
+   */
+  void savePatch(String sessionId, long projectId, String fileId, FilePatch patch,
+      AsyncCallback<Long> callback);
+
   /**
    * @see ProjectService#save(String, List)
    */
@@ -158,6 +164,16 @@ public interface ProjectServiceAsync {
    */
   void getBuildResult(long projectId, String target, AsyncCallback<RpcResult> callback);
 
+  /**
+   * @see ProjectService#exportAllProjects()
+   */
+  void exportAllProjects(AsyncCallback<String> callback);
+
+  /**
+   * @see ProjectService#isExportReady(String)
+   */
+  void isExportReady(String exportId, AsyncCallback<Boolean> callback);
+
   /**
    * @see ProjectService#addFile(long, String)
    */
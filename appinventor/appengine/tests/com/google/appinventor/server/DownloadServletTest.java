@@ -18,11 +18,15 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 /**
  * Tests for {@link DownloadServlet}. Mocks out FileExporter. Mainly tests
@@ -40,11 +44,9 @@ public class DownloadServletTest {
   private static final String DUMMY_FILENAME = "filename123";
   private static final String DUMMY_APK_FILENAME = "filename123.apk";
   private static final String DUMMY_ZIP_FILENAME = "filename123.aia";
-  private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.aia";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
 
   private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -61,7 +63,6 @@ public class DownloadServletTest {
     PowerMock.expectNew(FileExporterImpl.class).andReturn(exporterMock).anyTimes();
 
     dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
@@ -91,9 +92,10 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false, false, false, false))
-        .andReturn(dummyZipWithTitle);
+    // Projects with a title are streamed to the response.
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), isA(OutputStream.class)))
+        .andReturn(2);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -103,6 +105,28 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testStreamedDownloadFailureIsNotReportedAsSuccess() throws IOException {
+    IOException expectedException = new IOException("read failed");
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "project-source/1234/My Project Title 123");
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), eq(false), eq(false), eq(false), isA(OutputStream.class)))
+        .andThrow(expectedException);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    try {
+      download.doGet(request, response);
+      fail();
+    } catch (IOException ex) {
+      assertEquals(expectedException, ex);
+    }
+    // Nothing was sent yet, so the response is reset and the error reaches the client.
+    assertNull(response.getHeader("content-disposition"));
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testDownloadProjectSourceZipWithNonExistingProject() throws IOException {
     IllegalArgumentException expectedException = new IllegalArgumentException();
@@ -167,5 +167,32 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZip() throws IOException {
+    // A second project with the same name is renamed in the zip.
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    storageIo.createProject(USER_ID, project, SETTINGS);
+
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    assertEquals(2, exporter.exportAllProjectsSourceZip(USER_ID, zip));
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+    Map<String, byte[]> content = new HashMap<String, byte[]>();
+    ZipEntry zipEntry;
+    while ((zipEntry = zis.getNextEntry()) != null) {
+      content.put(zipEntry.getName(), ByteStreams.toByteArray(zis));
+    }
+    assertEquals(2, content.size());
+    assertTrue(content.containsKey(PROJECT_NAME + ".aia"));
+    assertTrue(content.containsKey("duplicate-" + PROJECT_NAME + ".aia"));
+  }
+
+  public void testExportAllProjectsSourceZipWithoutProjects() throws IOException {
+    try {
+      exporter.exportAllProjectsSourceZip(USER_ID + "2", new ByteArrayOutputStream());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
 }
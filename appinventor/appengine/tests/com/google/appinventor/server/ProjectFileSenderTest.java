@@ -0,0 +1,126 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import static org.easymock.EasyMock.expect;
+
+import com.google.appinventor.server.storage.FileVersion;
+import com.google.common.base.Charsets;
+
+import com.riq.MockHttpServletRequest;
+import com.riq.MockHttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for {@link ProjectFileSender}. Mocks out FileExporter.
+ *
+ */
+public class ProjectFileSenderTest extends TestCase {
+  private static final String USER_ID = "1";
+  private static final long PROJECT_ID = 1234L;
+  private static final String FILE_PATH = "build/Android/Project.apk";
+  private static final String FILE_NAME = "Project.apk";
+  private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
+  private static final byte[] CONTENT = "0123456789".getBytes(Charsets.UTF_8);
+  private static final FileVersion VERSION =
+      new FileVersion("abc123", 1500000000000L, CONTENT.length);
+
+  private FileExporter exporterMock;
+  private MockHttpServletRequest request;
+  private MockHttpServletResponse response;
+
+  @Override
+  protected void setUp() throws Exception {
+    exporterMock = EasyMock.createMock(FileExporter.class);
+    request = new MockHttpServletRequest(DOWNLOAD_URL + "file/1234/" + FILE_PATH);
+    response = new MockHttpServletResponse();
+  }
+
+  private static Object header(MockHttpServletResponse response, String name) {
+    List<Object> values = response.getHeaders(name);
+    return (values == null || values.isEmpty()) ? null : values.get(0);
+  }
+
+  private boolean send() throws Exception {
+    return ProjectFileSender.send(exporterMock, request, response, USER_ID, PROJECT_ID,
+        FILE_PATH, FILE_NAME, 0);
+  }
+
+  public void testWholeFileIsSent() throws Exception {
+    expect(exporterMock.getFileVersion(USER_ID, PROJECT_ID, FILE_PATH)).andReturn(VERSION);
+    expect(exporterMock.openFile(USER_ID, PROJECT_ID, FILE_PATH, 0))
+        .andReturn(new ByteArrayInputStream(CONTENT));
+    EasyMock.replay(exporterMock);
+
+    assertTrue(send());
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertEquals("\"abc123\"", header(response, "ETag"));
+    assertEquals("bytes", header(response, "Accept-Ranges"));
+    assertEquals("10", header(response, "Content-Length"));
+    assertEquals("attachment; filename=\"Project.apk\"", header(response, "content-disposition"));
+    assertEquals("0123456789", response.getContentAsString());
+    EasyMock.verify(exporterMock);
+  }
+
+  public void testCurrentCopyIsNotSentAgain() throws Exception {
+    request.setHeader("If-None-Match", "\"abc123\"");
+    // The file is not read.
+    expect(exporterMock.getFileVersion(USER_ID, PROJECT_ID, FILE_PATH)).andReturn(VERSION);
+    EasyMock.replay(exporterMock);
+
+    assertTrue(send());
+    assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+    assertEquals("\"abc123\"", header(response, "ETag"));
+    assertEquals(0, response.getContentAsByteArray().length);
+    EasyMock.verify(exporterMock);
+  }
+
+  public void testStaleCopyIsReplaced() throws Exception {
+    request.setHeader("If-None-Match", "\"old\"");
+    expect(exporterMock.getFileVersion(USER_ID, PROJECT_ID, FILE_PATH)).andReturn(VERSION);
+    expect(exporterMock.openFile(USER_ID, PROJECT_ID, FILE_PATH, 0))
+        .andReturn(new ByteArrayInputStream(CONTENT));
+    EasyMock.replay(exporterMock);
+
+    assertTrue(send());
+    assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    assertEquals("0123456789", response.getContentAsString());
+    EasyMock.verify(exporterMock);
+  }
+
+  public void testRangeOfCurrentVersionIsSent() throws Exception {
+    request.setHeader("Range", "bytes=4-");
+    request.setHeader("If-Range", "\"abc123\"");
+    expect(exporterMock.getFileVersion(USER_ID, PROJECT_ID, FILE_PATH)).andReturn(VERSION);
+    expect(exporterMock.openFile(USER_ID, PROJECT_ID, FILE_PATH, 4))
+        .andReturn(new ByteArrayInputStream(CONTENT, 4, CONTENT.length - 4));
+    EasyMock.replay(exporterMock);
+
+    assertTrue(send());
+    assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+    assertEquals("bytes 4-9/10", header(response, "Content-Range"));
+    assertEquals("6", header(response, "Content-Length"));
+    assertEquals("456789", response.getContentAsString());
+    EasyMock.verify(exporterMock);
+  }
+
+  public void testUnknownVersionIsLeftToTheCaller() throws Exception {
+    expect(exporterMock.getFileVersion(USER_ID, PROJECT_ID, FILE_PATH)).andReturn(null);
+    EasyMock.replay(exporterMock);
+
+    assertFalse(send());
+    assertNull(header(response, "ETag"));
+    EasyMock.verify(exporterMock);
+  }
+}
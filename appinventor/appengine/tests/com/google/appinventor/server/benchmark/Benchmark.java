@@ -0,0 +1,46 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.benchmark;
+
+/**
+ * An operation measured by {@link BenchmarkRunner}.
+ *
+ * <p>{@link #setUp} and {@link #tearDown} are not measured. {@link #run} is called once per
+ * iteration, first for the warmup iterations and then for the measured ones.</p>
+ *
+ */
+public abstract class Benchmark {
+
+  private final String name;
+
+  /**
+   * Creates a benchmark.
+   *
+   * @param name  the name the benchmark is reported and compared under, such as
+   *              "objectify.uploadRawFile"
+   */
+  protected Benchmark(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setUp() throws Exception {
+  }
+
+  /**
+   * Runs the operation once.
+   *
+   * @param iteration  the number of the iteration, counting from 0 across the warmup and the
+   *                   measured iterations
+   */
+  public abstract void run(int iteration) throws Exception;
+
+  public void tearDown() throws Exception {
+  }
+}
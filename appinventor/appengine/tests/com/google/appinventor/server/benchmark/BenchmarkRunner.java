@@ -0,0 +1,214 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.benchmark;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs {@link Benchmark}s and reports their throughput, latency and allocation.
+ *
+ * <p>Each benchmark is warmed up and then run for a number of measured iterations, one at a
+ * time on the calling thread. Results can be saved to a file and compared with the results
+ * saved by an earlier run, such as one on another commit.</p>
+ *
+ * <p>The iteration counts are read from the benchmark.warmup and benchmark.iterations system
+ * properties.</p>
+ *
+ */
+public final class BenchmarkRunner {
+
+  /**
+   * The measurements of one benchmark.
+   */
+  public static final class Result {
+    final String name;
+    final double opsPerSecond;
+    final double meanMicros;
+    final double p50Micros;
+    final double p90Micros;
+    final double p99Micros;
+    final double maxMicros;
+    final long bytesPerOp;  // -1 if the JVM doesn't count allocations
+
+    Result(String name, double opsPerSecond, double meanMicros, double p50Micros,
+        double p90Micros, double p99Micros, double maxMicros, long bytesPerOp) {
+      this.name = name;
+      this.opsPerSecond = opsPerSecond;
+      this.meanMicros = meanMicros;
+      this.p50Micros = p50Micros;
+      this.p90Micros = p90Micros;
+      this.p99Micros = p99Micros;
+      this.maxMicros = maxMicros;
+      this.bytesPerOp = bytesPerOp;
+    }
+  }
+
+  private final int warmupIterations;
+  private final int measuredIterations;
+  private final List<Result> results = new ArrayList<Result>();
+
+  public BenchmarkRunner() {
+    this(Integer.getInteger("benchmark.warmup", 20),
+        Integer.getInteger("benchmark.iterations", 200));
+  }
+
+  public BenchmarkRunner(int warmupIterations, int measuredIterations) {
+    this.warmupIterations = warmupIterations;
+    this.measuredIterations = measuredIterations;
+  }
+
+  /**
+   * Runs a benchmark and adds its result to the results of this runner.
+   */
+  public Result run(Benchmark benchmark) throws Exception {
+    benchmark.setUp();
+    try {
+      int iteration = 0;
+      for (int i = 0; i < warmupIterations; i++) {
+        benchmark.run(iteration++);
+      }
+      long[] nanos = new long[measuredIterations];
+      long allocatedBefore = allocatedBytes();
+      long start = System.nanoTime();
+      for (int i = 0; i < measuredIterations; i++) {
+        long opStart = System.nanoTime();
+        benchmark.run(iteration++);
+        nanos[i] = System.nanoTime() - opStart;
+      }
+      long elapsed = System.nanoTime() - start;
+      long allocatedAfter = allocatedBytes();
+
+      long total = 0;
+      for (long n : nanos) {
+        total += n;
+      }
+      Arrays.sort(nanos);
+      Result result = new Result(benchmark.getName(),
+          measuredIterations / (elapsed / 1e9),
+          total / 1e3 / measuredIterations,
+          percentile(nanos, 50), percentile(nanos, 90), percentile(nanos, 99),
+          nanos[nanos.length - 1] / 1e3,
+          allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / measuredIterations);
+      results.add(result);
+      return result;
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  private static double percentile(long[] sortedNanos, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sortedNanos.length) - 1;
+    return sortedNanos[Math.max(index, 0)] / 1e3;
+  }
+
+  /*
+   * Returns the number of bytes allocated by this thread so far, or -1 if the JVM doesn't
+   * count them.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) bean;
+      if (hotspotBean.isThreadAllocatedMemorySupported()
+          && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+        return hotspotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Prints a table of the results.
+   */
+  public void report(PrintStream out) {
+    out.println(String.format("%-45s %12s %10s %10s %10s %10s %10s %12s", "Benchmark", "ops/s",
+        "mean us", "p50 us", "p90 us", "p99 us", "max us", "bytes/op"));
+    for (Result result : results) {
+      out.println(String.format("%-45s %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f %12d",
+          result.name, result.opsPerSecond, result.meanMicros, result.p50Micros,
+          result.p90Micros, result.p99Micros, result.maxMicros, result.bytesPerOp));
+    }
+  }
+
+  /**
+   * Saves the results to a file, one tab separated line per benchmark, so that they can be
+   * compared with {@link #compare} or diffed.
+   */
+  public void save(File file) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (Result result : results) {
+      sb.append(result.name).append('\t')
+          .append(String.format("%.1f", result.opsPerSecond)).append('\t')
+          .append(String.format("%.1f", result.p50Micros)).append('\t')
+          .append(String.format("%.1f", result.p99Micros)).append('\t')
+          .append(result.bytesPerOp).append('\n');
+    }
+    Files.write(sb.toString(), file, Charsets.UTF_8);
+  }
+
+  /**
+   * Prints how the results differ from results saved earlier with {@link #save}.
+   */
+  public void compare(File baseline, PrintStream out) throws IOException {
+    Map<String, String[]> before = new LinkedHashMap<String, String[]>();
+    for (String line : Files.readLines(baseline, Charsets.UTF_8)) {
+      if (!line.isEmpty()) {
+        String[] fields = line.split("\t");
+        before.put(fields[0], fields);
+      }
+    }
+    out.println(String.format("%-45s %12s %12s %12s", "Compared with " + baseline.getName(),
+        "ops/s", "p50", "bytes/op"));
+    for (Result result : results) {
+      String[] fields = before.get(result.name);
+      if (fields == null) {
+        out.println(String.format("%-45s %12s", result.name, "new"));
+        continue;
+      }
+      out.println(String.format("%-45s %12s %12s %12s", result.name,
+          change(Double.parseDouble(fields[1]), result.opsPerSecond),
+          change(Double.parseDouble(fields[2]), result.p50Micros),
+          change(Long.parseLong(fields[4]), result.bytesPerOp)));
+    }
+  }
+
+  private static String change(double before, double after) {
+    if (before <= 0 || after < 0) {
+      return "n/a";
+    }
+    return String.format("%+.1f%%", (after - before) * 100 / before);
+  }
+
+  /**
+   * Reports the results, then saves them to the file named by the benchmark.results system
+   * property and compares them with the file named by benchmark.baseline, if those are set.
+   */
+  public void finish(PrintStream out) throws IOException {
+    report(out);
+    String resultsFile = System.getProperty("benchmark.results", "");
+    if (!resultsFile.isEmpty()) {
+      save(new File(resultsFile));
+      out.println("Results saved to " + resultsFile);
+    }
+    String baselineFile = System.getProperty("benchmark.baseline", "");
+    if (!baselineFile.isEmpty()) {
+      out.println();
+      compare(new File(baselineFile), out);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests for {@link EmbeddedSearchBackend}.
+ *
+ */
+public class EmbeddedSearchBackendTest extends LocalDatastoreTestCase {
+
+  private StorageIo storage;
+  private MemcacheService memcache;
+
+  // The temp files of the storage the instances share
+  private final Map<String, byte[]> tempFiles = new HashMap<String, byte[]>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    storage = EasyMock.createMock(StorageIo.class);
+    expect(storage.tempFileExists(anyObject(String.class))).andAnswer(new IAnswer<Boolean>() {
+      @Override
+      public Boolean answer() {
+        return tempFiles.containsKey(EasyMock.getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    expect(storage.openTempFile(anyObject(String.class))).andAnswer(new IAnswer<InputStream>() {
+      @Override
+      public InputStream answer() {
+        return new ByteArrayInputStream(tempFiles.get(EasyMock.getCurrentArguments()[0]));
+      }
+    }).anyTimes();
+    expect(storage.createTempFile(anyObject(String.class))).andAnswer(new IAnswer<OutputStream>() {
+      @Override
+      public OutputStream answer() {
+        final String fileName = (String) EasyMock.getCurrentArguments()[0];
+        return new ByteArrayOutputStream() {
+          @Override
+          public void close() {
+            tempFiles.put(fileName, toByteArray());
+          }
+        };
+      }
+    }).anyTimes();
+    EasyMock.replay(storage);
+  }
+
+  public void testInstancesDoNotOverwriteEachOthersChanges() throws Exception {
+    // Two instances that share the snapshot.
+    EmbeddedSearchBackend first = new EmbeddedSearchBackend(storage, memcache);
+    EmbeddedSearchBackend second = new EmbeddedSearchBackend(storage, memcache);
+    first.index(Collections.singletonList(app(1, "Tip Calculator")));
+    first.flush();
+    assertEquals(Arrays.asList(1L), second.find("calculator", 0, 10).getGalleryIds());
+
+    // Both change the index before either saves, starting from the same snapshot.
+    first.index(Collections.singletonList(app(2, "Calculator Pro")));
+    second.index(Collections.singletonList(app(3, "Calculator Quiz")));
+    second.remove(1);
+    first.flush();
+    second.flush();
+
+    // A new instance sees every change, and so does the instance that saved first once it
+    // changes the index again.
+    EmbeddedSearchBackend third = new EmbeddedSearchBackend(storage, memcache);
+    assertEquals(Arrays.asList(3L, 2L), third.find("calculator", 0, 10).getGalleryIds());
+    first.index(Collections.singletonList(app(4, "Paint Pot")));
+    assertEquals(Arrays.asList(3L, 2L), first.find("calculator", 0, 10).getGalleryIds());
+  }
+
+  public void testChangesAreKeptWhenTheSnapshotCannotBeWritten() throws Exception {
+    StorageIo failingStorage = EasyMock.createMock(StorageIo.class);
+    expect(failingStorage.tempFileExists(anyObject(String.class))).andReturn(false).anyTimes();
+    expect(failingStorage.createTempFile(anyObject(String.class)))
+        .andThrow(new IOException("GCS is unavailable"));
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    expect(failingStorage.createTempFile(eq("__TEMP__/search/gallery-index")))
+        .andReturn(snapshot);
+    EasyMock.replay(failingStorage);
+
+    EmbeddedSearchBackend backend = new EmbeddedSearchBackend(failingStorage, memcache);
+    backend.index(Collections.singletonList(app(1, "Tip Calculator")));
+    backend.flush();
+    assertEquals(0, snapshot.size());
+    // The next flush saves the change that couldn't be saved before.
+    backend.flush();
+    EasyMock.verify(failingStorage);
+
+    InvertedIndex saved = new InvertedIndex();
+    saved.readFrom(new ByteArrayInputStream(snapshot.toByteArray()));
+    assertEquals(Arrays.asList(1L), saved.search("calculator", 0, 10).getGalleryIds());
+  }
+
+  private static GalleryApp app(long galleryId, String title) {
+    return new GalleryApp(title, galleryId * 100, title, galleryId, 0);
+  }
+}
@@ -0,0 +1,76 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link InvertedIndex}.
+ *
+ */
+public class InvertedIndexTest extends TestCase {
+
+  private InvertedIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    index = new InvertedIndex();
+    index.add(1, "Tip Calculator", "Works out the tip for a bill", "alice");
+    index.add(2, "Paint Pot", "Draw on the screen with your finger", "bob");
+    index.add(3, "Quiz", "A quiz about calculus, with a calculator", "carol");
+  }
+
+  public void testTokenize() {
+    assertEquals(Arrays.asList("hello", "world", "2"),
+        InvertedIndex.tokenize("Hello, WORLD! 2"));
+    assertTrue(InvertedIndex.tokenize("  --  ").isEmpty());
+  }
+
+  public void testTitleRanksAboveDescription() {
+    SearchHits hits = index.search("calculator", 0, 10);
+    assertEquals(Arrays.asList(1L, 3L), hits.getGalleryIds());
+    assertEquals(2, hits.getNumberFound());
+  }
+
+  public void testPrefixAndAllWordsMatch() {
+    assertEquals(Arrays.asList(1L, 3L), index.search("calc", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(3L), index.search("calc quiz", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(2L), index.search("BOB", 0, 10).getGalleryIds());
+    assertEquals(0, index.search("calc bob", 0, 10).getNumberFound());
+    assertEquals(0, index.search("", 0, 10).getNumberFound());
+  }
+
+  public void testPaging() {
+    SearchHits hits = index.search("calc", 1, 10);
+    assertEquals(Arrays.asList(3L), hits.getGalleryIds());
+    assertEquals(2, hits.getNumberFound());
+    assertTrue(index.search("calc", 5, 10).getGalleryIds().isEmpty());
+  }
+
+  public void testReplaceAndRemove() {
+    index.add(1, "Tip Helper", "Works out the tip for a bill", "alice");
+    assertEquals(Arrays.asList(3L), index.search("calculator", 0, 10).getGalleryIds());
+    assertTrue(index.remove(3));
+    assertFalse(index.remove(3));
+    assertEquals(0, index.search("calculator", 0, 10).getNumberFound());
+    assertEquals(2, index.size());
+  }
+
+  public void testSnapshotRoundTrip() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.writeTo(out);
+    InvertedIndex copy = new InvertedIndex();
+    copy.add(9, "Stale", "", "");
+    copy.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(3, copy.size());
+    assertEquals(Arrays.asList(1L, 3L), copy.search("calc", 0, 10).getGalleryIds());
+    assertEquals(0, copy.search("stale", 0, 10).getNumberFound());
+  }
+}
@@ -0,0 +1,60 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link BackupRetention}.
+ *
+ */
+public class BackupRetentionTest extends TestCase {
+
+  private static final long DAY = 24 * 3600 * 1000L;
+  private static final long NOW = 1000 * DAY;
+
+  private final BackupRetention retention = new BackupRetention(7, 4);
+
+  public void testRecentBackupsAreKept() {
+    List<Long> dates = new ArrayList<Long>();
+    for (int i = 0; i < 7; i++) {
+      dates.add(NOW - i * DAY);
+    }
+    assertTrue(retention.expired(dates, NOW).isEmpty());
+  }
+
+  public void testOlderBackupsAreThinnedToOneAWeek() {
+    List<Long> dates = new ArrayList<Long>();
+    // Daily backups from 8 to 21 days ago, in the first three weeks after the daily ones
+    for (int i = 8; i <= 21; i++) {
+      dates.add(NOW - i * DAY);
+    }
+    Set<Long> expired = retention.expired(dates, NOW);
+    Set<Long> kept = new HashSet<Long>(dates);
+    kept.removeAll(expired);
+    // The newest backup of each week is kept.
+    assertEquals(new HashSet<Long>(Arrays.asList(NOW - 8 * DAY, NOW - 14 * DAY,
+        NOW - 21 * DAY)), kept);
+  }
+
+  public void testBackupsPastTheWeeksAreDeleted() {
+    List<Long> dates = Arrays.asList(NOW, NOW - 7 * DAY - 4 * 7 * DAY - DAY);
+    assertEquals(Collections.singleton(NOW - 7 * DAY - 4 * 7 * DAY - DAY),
+        retention.expired(dates, NOW));
+  }
+
+  public void testNewestBackupIsAlwaysKept() {
+    List<Long> dates = Arrays.asList(NOW - 400 * DAY, NOW - 500 * DAY);
+    assertEquals(Collections.singleton(NOW - 500 * DAY), retention.expired(dates, NOW));
+  }
+}
@@ -0,0 +1,162 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import static org.easymock.EasyMock.expect;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.user.User;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link CachingStorageIo}.
+ *
+ */
+public class CachingStorageIoTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1";
+  private static final long PROJECT_ID = 42;
+
+  private StorageIo mockStorageIo;
+  private CachingStorageIo storageIo;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mockStorageIo = EasyMock.createMock(StorageIo.class);
+    storageIo = createCachingStorageIo();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    CachingStorageIo.endRequest();
+    super.tearDown();
+  }
+
+  private CachingStorageIo createCachingStorageIo() {
+    return new CachingStorageIo(mockStorageIo, MemcacheServiceFactory.getMemcacheService(), 100);
+  }
+
+  public void testRepeatedReadsAreServedFromTheCache() throws Exception {
+    expect(mockStorageIo.getProjectName(USER_ID, PROJECT_ID)).andReturn("HelloPurr").once();
+    expect(mockStorageIo.getProjectSourceFiles(USER_ID, PROJECT_ID))
+        .andReturn(Arrays.asList("src/Screen1.scm")).once();
+    EasyMock.replay(mockStorageIo);
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals("HelloPurr", storageIo.getProjectName(USER_ID, PROJECT_ID));
+      List<String> files = storageIo.getProjectSourceFiles(USER_ID, PROJECT_ID);
+      assertEquals(Arrays.asList("src/Screen1.scm"), files);
+      // Callers may change the lists they are given without changing the cache.
+      files.add("src/Screen2.scm");
+    }
+    EasyMock.verify(mockStorageIo);
+    assertEquals(2, storageIo.getMisses());
+    assertEquals(4, storageIo.getSharedHits());
+  }
+
+  public void testWriteInvalidatesCachedReads() throws Exception {
+    expect(mockStorageIo.getProjectDateModified(USER_ID, PROJECT_ID)).andReturn(1L).once();
+    expect(mockStorageIo.uploadFileForce(PROJECT_ID, "src/Screen1.scm", USER_ID, "{}", "UTF-8"))
+        .andReturn(2L).once();
+    expect(mockStorageIo.getProjectDateModified(USER_ID, PROJECT_ID)).andReturn(2L).once();
+    EasyMock.replay(mockStorageIo);
+
+    assertEquals(1L, storageIo.getProjectDateModified(USER_ID, PROJECT_ID));
+    assertEquals(1L, storageIo.getProjectDateModified(USER_ID, PROJECT_ID));
+    storageIo.uploadFileForce(PROJECT_ID, "src/Screen1.scm", USER_ID, "{}", "UTF-8");
+    assertEquals(2L, storageIo.getProjectDateModified(USER_ID, PROJECT_ID));
+    EasyMock.verify(mockStorageIo);
+  }
+
+  public void testWriteOnAnotherInstanceInvalidatesCachedReads() throws Exception {
+    CachingStorageIo otherStorageIo = createCachingStorageIo();
+    expect(mockStorageIo.getProjects(USER_ID)).andReturn(Arrays.asList(PROJECT_ID)).once();
+    expect(mockStorageIo.getProjectName(USER_ID, PROJECT_ID)).andReturn("HelloPurr").once();
+    mockStorageIo.deleteProject(USER_ID, PROJECT_ID);
+    expect(mockStorageIo.getProjects(USER_ID)).andReturn(Arrays.<Long>asList()).once();
+    EasyMock.replay(mockStorageIo);
+
+    assertEquals(Arrays.asList(PROJECT_ID), storageIo.getProjects(USER_ID));
+    assertEquals("HelloPurr", storageIo.getProjectName(USER_ID, PROJECT_ID));
+    otherStorageIo.deleteProject(USER_ID, PROJECT_ID);
+    assertTrue(storageIo.getProjects(USER_ID).isEmpty());
+    EasyMock.verify(mockStorageIo);
+  }
+
+  public void testProjectMetadataIsReadInOneBatch() throws Exception {
+    long otherProjectId = PROJECT_ID + 1;
+    Map<Long, ProjectMetadata> loaded = new HashMap<Long, ProjectMetadata>();
+    loaded.put(PROJECT_ID, metadata(PROJECT_ID, "HelloPurr", 1L));
+    loaded.put(otherProjectId, metadata(otherProjectId, "PaintPot", 1L));
+    expect(mockStorageIo.getProjectMetadata(USER_ID, Arrays.asList(PROJECT_ID, otherProjectId),
+        false)).andReturn(loaded).once();
+    expect(mockStorageIo.uploadFileForce(PROJECT_ID, "src/Screen1.scm", USER_ID, "{}", "UTF-8"))
+        .andReturn(2L).once();
+    // Only the project that was written to is read again.
+    expect(mockStorageIo.getProjectMetadata(USER_ID, Arrays.asList(PROJECT_ID), false))
+        .andReturn(Collections.singletonMap(PROJECT_ID, metadata(PROJECT_ID, "HelloPurr", 2L)))
+        .once();
+    EasyMock.replay(mockStorageIo);
+
+    List<Long> projectIds = Arrays.asList(PROJECT_ID, otherProjectId);
+    assertEquals(2, storageIo.getUserProjects(USER_ID, projectIds).size());
+    Map<Long, ProjectMetadata> metadata = storageIo.getProjectMetadata(USER_ID, projectIds, false);
+    assertEquals(projectIds, new ArrayList<Long>(metadata.keySet()));
+    assertEquals("PaintPot", metadata.get(otherProjectId).getName());
+    storageIo.uploadFileForce(PROJECT_ID, "src/Screen1.scm", USER_ID, "{}", "UTF-8");
+    metadata = storageIo.getProjectMetadata(USER_ID, projectIds, false);
+    assertEquals(2L, metadata.get(PROJECT_ID).getDateModified());
+    EasyMock.verify(mockStorageIo);
+  }
+
+  private static ProjectMetadata metadata(long projectId, String name, long dateModified) {
+    return new ProjectMetadata(projectId, name, "YoungAndroid", 1L, dateModified, 0L, 0L, null);
+  }
+
+  public void testCachedUsersAreCopied() throws Exception {
+    User user = new User(USER_ID, "user@example.com", null, null, 0, false, false, 0, null);
+    expect(mockStorageIo.getUser(USER_ID)).andReturn(user).once();
+    mockStorageIo.setTosAccepted(USER_ID);
+    User accepted = new User(USER_ID, "user@example.com", null, null, 0, true, false, 0, null);
+    expect(mockStorageIo.getUser(USER_ID)).andReturn(accepted).once();
+    EasyMock.replay(mockStorageIo);
+
+    User first = storageIo.getUser(USER_ID);
+    assertEquals("user@example.com", first.getUserEmail());
+    // Callers may change the users they are given without changing the cache.
+    first.setIsAdmin(true);
+    User second = storageIo.getUser(USER_ID);
+    assertNotSame(first, second);
+    assertFalse(second.getIsAdmin());
+    assertFalse(second.getUserTosAccepted());
+    storageIo.setTosAccepted(USER_ID);
+    assertTrue(storageIo.getUser(USER_ID).getUserTosAccepted());
+    EasyMock.verify(mockStorageIo);
+  }
+
+  public void testWhiteListIsKeptInMemory() throws Exception {
+    expect(mockStorageIo.getWhiteList())
+        .andReturn(new HashSet<String>(Arrays.asList("user@example.com"))).once();
+    expect(mockStorageIo.checkWhiteList("new@example.com")).andReturn(true).once();
+    EasyMock.replay(mockStorageIo);
+
+    assertTrue(storageIo.checkWhiteList("User@Example.com"));
+    assertTrue(storageIo.checkWhiteList("user@example.com"));
+    // Addresses that aren't in memory are checked in storage, in case they were just added.
+    assertTrue(storageIo.checkWhiteList("new@example.com"));
+    EasyMock.verify(mockStorageIo);
+  }
+}
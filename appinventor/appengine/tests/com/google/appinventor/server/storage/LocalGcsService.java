@@ -0,0 +1,281 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for Google Cloud Storage that keeps objects in memory.
+ *
+ * <p>Every call that would be a round trip to GCS sleeps for a configurable latency first, so
+ * code that overlaps its GCS reads can be measured without a network. The number of round
+ * trips in progress at once is tracked as well.</p>
+ *
+ */
+public class LocalGcsService implements GcsService {
+
+  private static class StoredObject {
+    final byte[] content;
+    final GcsFileOptions options;
+    final Date lastModified = new Date();
+
+    StoredObject(byte[] content, GcsFileOptions options) {
+      this.content = content;
+      this.options = options;
+    }
+  }
+
+  private final ConcurrentMap<GcsFilename, StoredObject> objects =
+      new ConcurrentHashMap<GcsFilename, StoredObject>();
+  private final long latencyMillis;
+  private final AtomicInteger roundTrips = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  /**
+   * Creates a local GCS service.
+   *
+   * @param latencyMillis  how long each round trip takes
+   */
+  public LocalGcsService(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /**
+   * Returns the number of round trips made so far.
+   */
+  public int getRoundTrips() {
+    return roundTrips.get();
+  }
+
+  /**
+   * Returns the largest number of round trips that were in progress at once.
+   */
+  public int getMaxConcurrentRoundTrips() {
+    return maxInFlight.get();
+  }
+
+  @Override
+  public GcsOutputChannel createOrReplace(GcsFilename filename, GcsFileOptions options) {
+    return new OutputChannel(filename, options);
+  }
+
+  @Override
+  public void createOrReplace(GcsFilename filename, GcsFileOptions options, ByteBuffer src)
+      throws IOException {
+    roundTrip();
+    byte[] content = new byte[src.remaining()];
+    src.get(content);
+    objects.put(filename, new StoredObject(content, options));
+  }
+
+  @Override
+  public GcsInputChannel openReadChannel(GcsFilename filename, long startPosition)
+      throws IOException {
+    return new InputChannel(filename, startPosition);
+  }
+
+  @Override
+  public GcsInputChannel openPrefetchingReadChannel(GcsFilename filename, long startPosition,
+      int blockSizeBytes) {
+    return new InputChannel(filename, startPosition);
+  }
+
+  @Override
+  public GcsFileMetadata getMetadata(GcsFilename filename) throws IOException {
+    roundTrip();
+    StoredObject object = objects.get(filename);
+    if (object == null) {
+      return null;
+    }
+    return new GcsFileMetadata(filename, object.options,
+        Integer.toHexString(Arrays.hashCode(object.content)), object.content.length,
+        object.lastModified);
+  }
+
+  @Override
+  public boolean delete(GcsFilename filename) throws IOException {
+    roundTrip();
+    return objects.remove(filename) != null;
+  }
+
+  @Override
+  public void compose(Iterable<String> source, GcsFilename dest) throws IOException {
+    roundTrip();
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (String name : source) {
+      content.write(getContent(new GcsFilename(dest.getBucketName(), name)));
+    }
+    objects.put(dest, new StoredObject(content.toByteArray(),
+        GcsFileOptions.getDefaultInstance()));
+  }
+
+  @Override
+  public void copy(GcsFilename source, GcsFilename dest) throws IOException {
+    roundTrip();
+    StoredObject object = objects.get(source);
+    if (object == null) {
+      throw new FileNotFoundException(source.toString());
+    }
+    objects.put(dest, new StoredObject(object.content, object.options));
+  }
+
+  @Override
+  public void update(GcsFilename source, GcsFileOptions options) throws IOException {
+    roundTrip();
+    objects.put(source, new StoredObject(getContent(source), options));
+  }
+
+  @Override
+  public ListResult list(String bucket, ListOptions options) {
+    throw new UnsupportedOperationException("list is not supported by LocalGcsService");
+  }
+
+  private byte[] getContent(GcsFilename filename) throws FileNotFoundException {
+    StoredObject object = objects.get(filename);
+    if (object == null) {
+      throw new FileNotFoundException(filename.toString());
+    }
+    return object.content;
+  }
+
+  private void roundTrip() throws InterruptedIOException {
+    roundTrips.incrementAndGet();
+    int current = inFlight.incrementAndGet();
+    int max;
+    do {
+      max = maxInFlight.get();
+    } while (current > max && !maxInFlight.compareAndSet(max, current));
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /*
+   * Reads an object with a single round trip when it is first read from.
+   */
+  private class InputChannel implements GcsInputChannel {
+    private final GcsFilename filename;
+    private final long startPosition;
+    private ByteBuffer content;
+    private boolean open = true;
+
+    InputChannel(GcsFilename filename, long startPosition) {
+      this.filename = filename;
+      this.startPosition = startPosition;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      if (content == null) {
+        roundTrip();
+        content = ByteBuffer.wrap(getContent(filename));
+        content.position((int) Math.min(startPosition, content.limit()));
+      }
+      if (!content.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(dst.remaining(), content.remaining());
+      ByteBuffer slice = content.slice();
+      slice.limit(count);
+      dst.put(slice);
+      content.position(content.position() + count);
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() {
+      open = false;
+    }
+  }
+
+  /*
+   * Writes an object with a single round trip when the channel is closed.
+   */
+  private class OutputChannel implements GcsOutputChannel {
+    private final GcsFilename filename;
+    private final GcsFileOptions options;
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+    private boolean open = true;
+
+    OutputChannel(GcsFilename filename, GcsFileOptions options) {
+      this.filename = filename;
+      this.options = options;
+    }
+
+    @Override
+    public GcsFilename getFilename() {
+      return filename;
+    }
+
+    @Override
+    public int getBufferSizeBytes() {
+      return 256 * 1024;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      if (!open) {
+        throw new ClosedChannelException();
+      }
+      int count = src.remaining();
+      byte[] bytes = new byte[count];
+      src.get(bytes);
+      content.write(bytes);
+      return count;
+    }
+
+    @Override
+    public void waitForOutstandingWrites() {
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (open) {
+        open = false;
+        roundTrip();
+        objects.put(filename, new StoredObject(content.toByteArray(), options));
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests for {@link LocalKeyValueStore}.
+ *
+ */
+public class LocalKeyValueStoreTest extends TestCase {
+
+  private File directory;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("kvstore").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(Charsets.UTF_8);
+  }
+
+  public void testWritesSurviveReopening() throws Exception {
+    LocalKeyValueStore store = new LocalKeyValueStore(directory, true);
+    store.put("a/1", bytes("one"));
+    store.put("a/2", bytes("two"));
+    store.put("b/1", bytes("three"));
+    store.delete("a/2");
+    store.close();
+
+    store = new LocalKeyValueStore(directory, false);
+    assertTrue(Arrays.equals(bytes("one"), store.get("a/1")));
+    assertNull(store.get("a/2"));
+    assertEquals(Collections.singleton("a/1"), store.scan("a/").keySet());
+    store.close();
+  }
+
+  public void testIncompleteWriteIsDropped() throws Exception {
+    LocalKeyValueStore store = new LocalKeyValueStore(directory, false);
+    store.put("a", bytes("one"));
+    Map<String, byte[]> puts = new LinkedHashMap<String, byte[]>();
+    puts.put("b", bytes("two"));
+    puts.put("c", bytes("three"));
+    store.write(puts, Collections.singleton("a"));
+    store.close();
+
+    // Cut the last write short, as a crash while it was appended would.
+    File journal = new File(directory, "journal");
+    RandomAccessFile file = new RandomAccessFile(journal, "rw");
+    file.setLength(file.length() - 5);
+    file.close();
+
+    store = new LocalKeyValueStore(directory, false);
+    assertTrue(Arrays.equals(bytes("one"), store.get("a")));
+    assertNull(store.get("b"));
+    assertNull(store.get("c"));
+    // Writes after the dropped one are kept.
+    store.put("d", bytes("four"));
+    store.close();
+    store = new LocalKeyValueStore(directory, false);
+    assertTrue(Arrays.equals(bytes("four"), store.get("d")));
+    store.close();
+  }
+
+  public void testDamagedLengthIsDropped() throws Exception {
+    LocalKeyValueStore store = new LocalKeyValueStore(directory, false);
+    store.put("a", bytes("one"));
+    store.close();
+
+    // A length far larger than the journal must not be allocated.
+    File journal = new File(directory, "journal");
+    long length = journal.length();
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(journal, true));
+    out.writeInt(Integer.MAX_VALUE);
+    out.close();
+
+    store = new LocalKeyValueStore(directory, false);
+    assertTrue(Arrays.equals(bytes("one"), store.get("a")));
+    assertEquals(length, journal.length());
+    store.close();
+  }
+
+  public void testFailedCompactionDoesNotFailTheWrite() throws Exception {
+    // The snapshot can't be written while a directory is in its way.
+    File temp = new File(directory, "snapshot.tmp");
+    assertTrue(temp.mkdir());
+    LocalKeyValueStore store = new LocalKeyValueStore(directory, false);
+    byte[] value = new byte[4 * 1024 * 1024];
+    for (int i = 0; i < 5; i++) {
+      value[0] = (byte) i;
+      store.put("a", value);
+    }
+    store.put("b", bytes("two"));
+    store.close();
+    assertFalse(new File(directory, "snapshot").exists());
+    assertTrue(temp.delete());
+
+    store = new LocalKeyValueStore(directory, false);
+    assertEquals(4, store.get("a")[0]);
+    assertTrue(Arrays.equals(bytes("two"), store.get("b")));
+    store.close();
+  }
+
+  public void testValuesAreCopied() throws Exception {
+    LocalKeyValueStore store = new LocalKeyValueStore(directory, false);
+    byte[] value = bytes("one");
+    store.put("a", value);
+    value[0] = 'x';
+    store.get("a")[0] = 'y';
+    assertTrue(Arrays.equals(bytes("one"), store.get("a")));
+    store.close();
+  }
+}
@@ -0,0 +1,282 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link LocalStorageIo}.
+ *
+ */
+public class LocalStorageIoTest extends TestCase {
+
+  private static final String USER_ID = "100";
+  private static final String USER_EMAIL = "User100@test.com";
+  private static final String OTHER_USER_ID = "200";
+  private static final String SETTINGS = "{settings: \"none\"}";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String FORM_FILE = "src/com/yourdomain/Project1/Screen1.scm";
+  private static final String BLOCKS_FILE = "src/com/yourdomain/Project1/Screen1.bky";
+  private static final String YAIL_FILE = "src/com/yourdomain/Project1/Screen1.yail";
+  private static final String ASSET_FILE = "assets/kitty.jpg";
+  private static final String FORM_CONTENT = "#|\n$JSON\n{}\n|#";
+  private static final String BLOCKS_CONTENT =
+      "<xml>" + Strings.repeat("<block type=\"text\"></block>", 10) + "</xml>";
+  private static final byte[] ASSET_CONTENT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+
+  private File directory;
+  private LocalStorageIo storage;
+  private Project project;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = Files.createTempDirectory("localstorage").toFile();
+    storage = new LocalStorageIo(directory, false);
+
+    project = new Project(PROJECT_NAME);
+    project.setProjectType("YoungAndroid");
+    project.addTextFile(new TextFile(FORM_FILE, FORM_CONTENT));
+    project.addTextFile(new TextFile(BLOCKS_FILE, BLOCKS_CONTENT));
+    project.addRawFile(new RawFile(ASSET_FILE, ASSET_CONTENT));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    storage.close();
+    delete(directory);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private void reopen() throws Exception {
+    storage.close();
+    storage = new LocalStorageIo(directory, false);
+  }
+
+  public void testGetUser() {
+    User user = storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(USER_ID, user.getUserId());
+    assertEquals(USER_EMAIL, user.getUserEmail());
+    assertEquals(User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY, user.getUserEmailFrequency());
+    assertEquals(USER_ID, storage.findUserByEmail(USER_EMAIL.toLowerCase()));
+
+    // A new id with a known email address finds the existing user.
+    assertEquals(USER_ID, storage.getUser("other-id", USER_EMAIL).getUserId());
+
+    storage.getUser(USER_ID, "new@test.com");
+    assertEquals(USER_ID, storage.findUserByEmail("new@test.com"));
+    try {
+      storage.findUserByEmail(USER_EMAIL);
+      fail();
+    } catch (java.util.NoSuchElementException e) {
+      // expected
+    }
+  }
+
+  public void testRecordsSurviveReopening() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    storage.storeSettings(USER_ID, SETTINGS);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.uploadFile(projectId, FORM_FILE, USER_ID, FORM_CONTENT + " ", "UTF-8");
+    storage.uploadRawUserFile(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME, ASSET_CONTENT);
+
+    reopen();
+
+    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(FORM_CONTENT + " ", storage.downloadFile(USER_ID, projectId, FORM_FILE, "UTF-8"));
+    assertTrue(Arrays.equals(ASSET_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE)));
+    assertTrue(Arrays.equals(ASSET_CONTENT,
+        storage.downloadRawUserFile(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME)));
+    // Project ids aren't reused.
+    assertTrue(storage.createProject(USER_ID, project, SETTINGS) > projectId);
+  }
+
+  public void testWrongUserThrowsException() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    try {
+      storage.downloadRawFile(OTHER_USER_ID, projectId, ASSET_FILE);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof UnauthorizedAccessException);
+    }
+    try {
+      storage.uploadRawFileForce(projectId, ASSET_FILE, OTHER_USER_ID,
+          new ByteArrayInputStream(new byte[10]));
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof UnauthorizedAccessException);
+    }
+    assertTrue(Arrays.equals(ASSET_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE)));
+  }
+
+  public void testBlocksTruncation() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    try {
+      storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, "<xml></xml>", "UTF-8");
+      fail();
+    } catch (BlocksTruncatedException e) {
+      // expected
+    }
+    assertEquals(BLOCKS_CONTENT, storage.downloadFile(USER_ID, projectId, BLOCKS_FILE, "UTF-8"));
+    storage.uploadFileForce(projectId, BLOCKS_FILE, USER_ID, "<xml></xml>", "UTF-8");
+    assertEquals("<xml></xml>", storage.downloadFile(USER_ID, projectId, BLOCKS_FILE, "UTF-8"));
+  }
+
+  public void testBlocksAndFormsAreBackedUpDaily() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    assertTrue(storage.getBackups(projectId).isEmpty());
+    storage.uploadFile(projectId, FORM_FILE, USER_ID, FORM_CONTENT, "UTF-8");
+    storage.uploadFile(projectId, FORM_FILE, USER_ID, FORM_CONTENT, "UTF-8");
+    storage.uploadRawFileForce(projectId, ASSET_FILE, USER_ID, ASSET_CONTENT);
+    // Backups are taken in the background.
+    storage.waitForBackups();
+    List<String> backups = storage.getBackups(projectId);
+    assertEquals(1, backups.size());
+    assertTrue(backups.get(0).startsWith(FORM_FILE + "."));
+    assertTrue(backups.get(0).endsWith(".backup"));
+
+    // Backups outlive the project.
+    storage.deleteProject(USER_ID, projectId);
+    assertEquals(backups, storage.getBackups(projectId));
+  }
+
+  public void testBackupsShareContent() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.uploadFile(projectId, FORM_FILE, USER_ID, BLOCKS_CONTENT, "UTF-8");
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, BLOCKS_CONTENT, "UTF-8");
+    storage.waitForBackups();
+    assertEquals(2, storage.getBackups(projectId).size());
+    assertEquals(1, storage.getBackupContentCount(projectId));
+
+    // A changed file gets its own copy, and the shared one is still kept for the other.
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, BLOCKS_CONTENT + " ", "UTF-8");
+    storage.backupFiles(projectId, Arrays.asList(BLOCKS_FILE));
+    assertEquals(2, storage.getBackupContentCount(projectId));
+  }
+
+  public void testUploadFilesForce() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FORM_FILE, "form");
+    contents.put(YAIL_FILE, "yail");
+    storage.uploadFilesForce(projectId, USER_ID, contents, "UTF-8");
+    assertEquals("form", storage.downloadFile(USER_ID, projectId, FORM_FILE, "UTF-8"));
+    assertEquals("yail", storage.downloadFile(USER_ID, projectId, YAIL_FILE, "UTF-8"));
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(YAIL_FILE));
+  }
+
+  public void testAddRemoveFiles() throws Exception {
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.addOutputFilesToProject(USER_ID, projectId, "build/Project1.apk");
+    storage.uploadRawFileForce(projectId, "build/Project1.apk", USER_ID,
+        new ByteArrayInputStream(ASSET_CONTENT));
+    assertEquals(Arrays.asList("build/Project1.apk"),
+        storage.getProjectOutputFiles(USER_ID, projectId));
+    InputStream in = storage.openRawFile(USER_ID, projectId, "build/Project1.apk", 2);
+    assertTrue(Arrays.equals(new byte[] { (byte) 32, (byte) 255 }, ByteStreams.toByteArray(in)));
+    in.close();
+    FileVersion version = storage.getFileVersion(USER_ID, projectId, "build/Project1.apk");
+    assertEquals(ASSET_CONTENT.length, version.getLength());
+    try {
+      storage.removeSourceFilesFromProject(USER_ID, projectId, false, "build/Project1.apk");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    storage.removeOutputFilesFromProject(USER_ID, projectId, "build/Project1.apk");
+    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).isEmpty());
+    assertNull(storage.getFileVersion(USER_ID, projectId, "build/Project1.apk"));
+  }
+
+  public void testExportProjectSourceZip() throws Exception {
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.uploadFileForce(projectId, YAIL_FILE, USER_ID, "yail", "UTF-8");
+    storage.uploadRawUserFile(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME, ASSET_CONTENT);
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    int count = storage.exportProjectSourceZip(USER_ID, projectId, false, true, false, false,
+        false, false, zip);
+    List<String> names = new ArrayList<String>();
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      names.add(entry.getName());
+      if (entry.getName().equals(ASSET_FILE)) {
+        assertTrue(Arrays.equals(ASSET_CONTENT, ByteStreams.toByteArray(in)));
+      }
+    }
+    assertEquals(4, count);
+    assertEquals(Arrays.asList(ASSET_FILE, BLOCKS_FILE, FORM_FILE,
+        StorageUtil.ANDROID_KEYSTORE_FILENAME), names);
+  }
+
+  public void testEmptyBackpackIsDeleted() {
+    storage.uploadUserFile(USER_ID, StorageUtil.USER_BACKPACK_FILENAME, "[1]", "UTF-8");
+    assertEquals(Arrays.asList(StorageUtil.USER_BACKPACK_FILENAME),
+        storage.getUserFiles(USER_ID));
+    storage.uploadUserFile(USER_ID, StorageUtil.USER_BACKPACK_FILENAME, "[]", "UTF-8");
+    assertTrue(storage.getUserFiles(USER_ID).isEmpty());
+  }
+
+  public void testTempFiles() throws Exception {
+    String fileName = storage.uploadTempFile("test\n".getBytes(Charsets.UTF_8));
+    assertTrue(storage.tempFileExists(fileName));
+    assertEquals("test\n",
+        new String(ByteStreams.toByteArray(storage.openTempFile(fileName)), Charsets.UTF_8));
+    storage.deleteTempFile(fileName);
+    assertFalse(storage.tempFileExists(fileName));
+    try {
+      storage.deleteTempFile("frob"); // Should fail because doesn't start with __TEMP__
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+  }
+
+  public void testWhiteList() throws Exception {
+    assertFalse(storage.checkWhiteList(USER_EMAIL));
+    storage.addToWhiteList(USER_EMAIL);
+    reopen();
+    assertTrue(storage.checkWhiteList(USER_EMAIL));
+    assertEquals(1, storage.getWhiteList().size());
+    assertTrue(storage.getWhiteList().contains(USER_EMAIL.toLowerCase()));
+  }
+}
@@ -0,0 +1,172 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
+
+/**
+ * Tests for the counts and cached pages of the gallery lists, and the download and like
+ * counters of gallery apps, in {@link ObjectifyGalleryStorageIo}.
+ *
+ */
+public class ObjectifyGalleryStorageIoTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "TestUser";
+  private static final String OTHER_USER_ID = "OtherUser";
+  private static final int PAGE_SIZE = 10;
+
+  private ObjectifyGalleryStorageIo galleryStorageIo;
+  private MemcacheService memcache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    galleryStorageIo = new ObjectifyGalleryStorageIo();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+  }
+
+  private GalleryApp publish(String title, String userId) {
+    return galleryStorageIo.createGalleryApp(title, title, title + " description", "", "",
+        1L, userId);
+  }
+
+  public void testPublishingAdjustsCountsAndDropsCachedPages() throws Exception {
+    publish("First", USER_ID);
+    GalleryAppListResult recent = galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE);
+    assertEquals(1, recent.getTotalCount());
+    assertEquals(1, recent.getApps().size());
+    assertEquals(1, galleryStorageIo.getDeveloperApps(USER_ID, null, PAGE_SIZE).getTotalCount());
+
+    publish("Second", USER_ID);
+    publish("Third", OTHER_USER_ID);
+    // The counts are adjusted rather than counted again...
+    assertEquals(3L, memcache.get("gallerycount:active"));
+    assertEquals(2L, memcache.get("gallerycount:developer:" + USER_ID));
+    // ...and the page cached before the apps were published isn't returned.
+    recent = galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE);
+    assertEquals(3, recent.getTotalCount());
+    assertEquals(3, recent.getApps().size());
+    assertEquals(2, galleryStorageIo.getDeveloperApps(USER_ID, null, PAGE_SIZE).getTotalCount());
+  }
+
+  public void testDeactivatingAdjustsCountsAndDropsCachedPages() throws Exception {
+    GalleryApp first = publish("First", USER_ID);
+    publish("Second", USER_ID);
+    assertEquals(2, galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE).getTotalCount());
+    assertEquals(2, galleryStorageIo.getDeveloperApps(USER_ID, null, PAGE_SIZE).getTotalCount());
+
+    assertTrue(galleryStorageIo.deactivateGalleryApp(first.getGalleryAppId()));
+    assertEquals(1L, memcache.get("gallerycount:active"));
+    assertEquals(1L, memcache.get("gallerycount:developer:" + USER_ID));
+    GalleryAppListResult recent = galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE);
+    assertEquals(1, recent.getTotalCount());
+    assertEquals("Second", recent.getApps().get(0).getTitle());
+
+    // Deactivating an app again activates it.
+    assertTrue(galleryStorageIo.deactivateGalleryApp(first.getGalleryAppId()));
+    assertEquals(2, galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE).getTotalCount());
+    assertEquals(2, galleryStorageIo.getDeveloperApps(USER_ID, null, PAGE_SIZE).getTotalCount());
+
+    // An app that doesn't exist changes nothing.
+    assertFalse(galleryStorageIo.deactivateGalleryApp(first.getGalleryAppId() + 1000));
+    assertEquals(2L, memcache.get("gallerycount:active"));
+  }
+
+  public void testCachedPagesAreCopied() throws Exception {
+    publish("First", USER_ID);
+    GalleryAppListResult recent = galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE);
+    recent.getApps().get(0).setTitle("Changed");
+    recent.setTotalCount(99);
+
+    GalleryAppListResult cached = galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE);
+    assertEquals(1, cached.getTotalCount());
+    assertEquals("First", cached.getApps().get(0).getTitle());
+    cached.getApps().clear();
+    assertEquals(1, galleryStorageIo.getRecentGalleryApps(null, PAGE_SIZE).getApps().size());
+  }
+
+  public void testDownloadsAreRolledUp() throws Exception {
+    long galleryId = publish("First", USER_ID).getGalleryAppId();
+    for (int i = 0; i < 3; i++) {
+      galleryStorageIo.incrementDownloads(galleryId);
+    }
+    // The downloads wait in the counter shards until they are rolled up, which is queued once.
+    assertEquals(0, galleryStorageIo.getGalleryApp(galleryId).getDownloads());
+    assertTrue(memcache.contains("gallerycounters:" + galleryId));
+
+    galleryStorageIo.rollUpCounters(galleryId);
+    GalleryApp app = galleryStorageIo.getGalleryApp(galleryId);
+    assertEquals(3, app.getDownloads());
+    assertEquals(3, app.getUnreadDownloads());
+
+    // Rolling up again only adds the downloads counted since.
+    galleryStorageIo.rollUpCounters(galleryId);
+    assertEquals(3, galleryStorageIo.getGalleryApp(galleryId).getDownloads());
+    galleryStorageIo.incrementDownloads(galleryId);
+    galleryStorageIo.rollUpCounters(galleryId);
+    assertEquals(4, galleryStorageIo.getGalleryApp(galleryId).getDownloads());
+  }
+
+  public void testOnlyOneRollUpRunsAtATime() throws Exception {
+    long galleryId = publish("First", USER_ID).getGalleryAppId();
+    galleryStorageIo.incrementDownloads(galleryId);
+
+    // While another roll up holds the app's counter lock, the counts are left alone.
+    memcache.put("gallerycounterlock:" + galleryId, "other");
+    assertFalse(galleryStorageIo.rollUpCounters(galleryId));
+    assertEquals(0, galleryStorageIo.getGalleryApp(galleryId).getDownloads());
+    // A roll up of another app isn't held up.
+    long otherId = publish("Second", USER_ID).getGalleryAppId();
+    assertTrue(galleryStorageIo.rollUpCounters(otherId));
+
+    memcache.delete("gallerycounterlock:" + galleryId);
+    assertTrue(galleryStorageIo.rollUpCounters(galleryId));
+    assertEquals(1, galleryStorageIo.getGalleryApp(galleryId).getDownloads());
+    // The lock is released after the roll up.
+    assertFalse(memcache.contains("gallerycounterlock:" + galleryId));
+  }
+
+  public void testLikesAreCountedRightAwayAndRolledUp() throws Exception {
+    long galleryId = publish("First", USER_ID).getGalleryAppId();
+    assertEquals(1, galleryStorageIo.increaseLikes(galleryId, USER_ID));
+    // A user's second like isn't counted.
+    assertEquals(1, galleryStorageIo.increaseLikes(galleryId, USER_ID));
+    assertEquals(2, galleryStorageIo.increaseLikes(galleryId, OTHER_USER_ID));
+    assertTrue(galleryStorageIo.isLikedByUser(galleryId, USER_ID));
+    // The app's rolled up likes, which the lists are sorted on, lag behind.
+    assertEquals(0, galleryStorageIo.getGalleryApp(galleryId).getLikes());
+
+    galleryStorageIo.rollUpCounters(galleryId);
+    assertEquals(2, galleryStorageIo.getGalleryApp(galleryId).getLikes());
+    assertEquals(2, galleryStorageIo.getNumLikes(galleryId));
+
+    assertEquals(1, galleryStorageIo.decreaseLikes(galleryId, USER_ID));
+    assertFalse(galleryStorageIo.isLikedByUser(galleryId, USER_ID));
+    // Unliking again changes nothing.
+    assertEquals(1, galleryStorageIo.decreaseLikes(galleryId, USER_ID));
+    galleryStorageIo.rollUpCounters(galleryId);
+    GalleryApp app = galleryStorageIo.getGalleryApp(galleryId);
+    assertEquals(1, app.getLikes());
+    assertEquals(1, galleryStorageIo.getNumLikes(galleryId));
+  }
+
+  public void testSalvagedLikesAreNotRolledUpAgain() throws Exception {
+    long galleryId = publish("First", USER_ID).getGalleryAppId();
+    galleryStorageIo.increaseLikes(galleryId, USER_ID);
+    galleryStorageIo.increaseLikes(galleryId, OTHER_USER_ID);
+
+    // Salvaging recounts the likes and takes the place of a roll up.
+    galleryStorageIo.salvageGalleryApp(galleryId);
+    assertEquals(2, galleryStorageIo.getGalleryApp(galleryId).getLikes());
+    galleryStorageIo.rollUpCounters(galleryId);
+    assertEquals(2, galleryStorageIo.getGalleryApp(galleryId).getLikes());
+    assertEquals(2, galleryStorageIo.getNumLikes(galleryId));
+  }
+}
@@ -8,6 +8,8 @@ package com.google.appinventor.server.storage;
 
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.BackupData;
+import com.google.appinventor.server.storage.StoredData.BackupLockData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.component.Component;
@@ -19,9 +21,15 @@ import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjec
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
+import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -30,7 +38,16 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
 
 import org.json.JSONObject;
 
@@ -298,6 +315,71 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     oldModificationDate = modificationDate;
   }
 
+  public void testUploadFilesForce() throws Exception {
+    LocalGcsService gcsService = new LocalGcsService(0);
+    ObjectifyStorageIo gcsStorage = new ObjectifyStorageIo(gcsService);
+    final String USER_ID = "1150";
+    final String USER_EMAIL = "newuser1150@test.com";
+    gcsStorage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME,
+        gcsStorage);
+    gcsStorage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, FILE_NAME2,
+        BLOCK_FILE_NAME);
+    long oldModificationDate = gcsStorage.getProjectDateModified(USER_ID, projectId);
+
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME1, FILE_CONTENT1);
+    contents.put(FILE_NAME2, FILE_CONTENT2);
+    contents.put(BLOCK_FILE_NAME, "");
+    long modificationDate = gcsStorage.uploadFilesForce(projectId, USER_ID, contents,
+        StorageUtil.DEFAULT_CHARSET);
+    assertTrue(oldModificationDate <= modificationDate);
+    assertEquals(modificationDate, gcsStorage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(FILE_CONTENT1, gcsStorage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT2, gcsStorage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals("", gcsStorage.downloadFile(USER_ID, projectId, BLOCK_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // Files of other users can't be overwritten.
+    try {
+      gcsStorage.uploadFilesForce(projectId, "1151", contents, StorageUtil.DEFAULT_CHARSET);
+      fail();
+    } catch (RuntimeException e) {
+      // expected
+    }
+    assertEquals(FILE_CONTENT1, gcsStorage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testGetProjectMetadata() {
+    final String USER_ID = "1160";
+    final String USER_EMAIL = "newuser1160@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId2, false, FILE_NAME2);
+    storage.addOutputFilesToProject(USER_ID, projectId2, FILE_NAME_OUTPUT);
+
+    Map<Long, ProjectMetadata> metadata = storage.getProjectMetadata(USER_ID,
+        Arrays.asList(projectId2, projectId1, projectId2 + 1000), true);
+    assertEquals(Arrays.asList(projectId2, projectId1),
+        new ArrayList<Long>(metadata.keySet()));
+    ProjectMetadata project2 = metadata.get(projectId2);
+    assertEquals("Project2", project2.getName());
+    assertEquals(FAKE_PROJECT_TYPE, project2.getType());
+    assertEquals(storage.getProjectDateModified(USER_ID, projectId2),
+        project2.getDateModified());
+    assertEquals(new HashSet<String>(storage.getProjectSourceFiles(USER_ID, projectId2)),
+        new HashSet<String>(project2.getSourceFiles()));
+    assertFalse(project2.getSourceFiles().contains(FILE_NAME_OUTPUT));
+
+    metadata = storage.getProjectMetadata(USER_ID, Arrays.asList(projectId1), false);
+    assertEquals(PROJECT_NAME, metadata.get(projectId1).getName());
+    assertNull(metadata.get(projectId1).getSourceFiles());
+  }
+
   public void testAddRemoveFile() throws BlocksTruncatedException {
     final String USER_ID = "1200";
     final String USER_EMAIL = "newuser1200@test.com";
@@ -438,6 +520,41 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // TODO(sharon): should test large blob files (e.g., >2MB (chunk size), >4MB (row size));
   }
 
+  public void testExportProjectSourceZipReadsGcsFilesConcurrently() throws Exception {
+    LocalGcsService gcsService = new LocalGcsService(10);
+    ObjectifyStorageIo gcsStorage = new ObjectifyStorageIo(gcsService);
+    final String USER_ID = "1320";
+    final String USER_EMAIL = "newuser1320@test.com";
+    gcsStorage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME, gcsStorage);
+    List<String> assetNames = new ArrayList<String>();
+    for (int i = 0; i < 20; i++) {
+      String assetName = "assets/kitty" + i + ".jpg";
+      gcsStorage.addSourceFilesToProject(USER_ID, projectId, false, assetName);
+      gcsStorage.uploadRawFile(projectId, assetName, USER_ID, true, new byte[] { (byte) i });
+      assetNames.add(assetName);
+    }
+
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    int fileCount = gcsStorage.exportProjectSourceZip(USER_ID, projectId, false, false, false,
+        false, false, true, zipFile);
+
+    ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(zipFile.toByteArray()));
+    int assetCount = 0;
+    for (ZipEntry entry = zin.getNextEntry(); entry != null; entry = zin.getNextEntry()) {
+      int index = assetNames.indexOf(entry.getName());
+      if (index >= 0) {
+        assertTrue(Arrays.equals(new byte[] { (byte) index }, ByteStreams.toByteArray(zin)));
+        assetCount++;
+      }
+    }
+    assertEquals(20, assetCount);
+    assertTrue(fileCount >= 20);
+    assertTrue(gcsService.getMaxConcurrentRoundTrips() > 1);
+  }
+
   public void testOldBlockFilesInDatastoreStillWork() throws BlocksTruncatedException {
     // Create new storage object that forces storage in the datastore
     ObjectifyStorageIo oldStyleStorage = new ObjectifyStorageIo() {
@@ -519,6 +636,45 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testBackupFilesSharesContentAndTakesTurns() throws Exception {
+    LocalGcsService gcsService = new LocalGcsService(0);
+    ObjectifyStorageIo gcsStorage = new ObjectifyStorageIo(gcsService);
+    final String USER_ID = "1800";
+    gcsStorage.getUser(USER_ID, "newuser1800@test.com");
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME,
+        gcsStorage);
+    // Blocks files this large are kept in GCS, and only those are backed up.
+    String blocksFile = "src/com/yourdomain/Screen1.bky";
+    String blocks = Strings.repeat("<block/>", 10000);
+    gcsStorage.addSourceFilesToProject(USER_ID, projectId, false, blocksFile);
+    gcsStorage.uploadFileForce(projectId, blocksFile, USER_ID, blocks,
+        StorageUtil.DEFAULT_CHARSET);
+    Objectify datastore = ObjectifyService.begin();
+    Key<ProjectData> projectKey = new Key<ProjectData>(ProjectData.class, projectId);
+
+    // While another task holds the project's backup lock, no backup is taken.
+    BackupLockData lock = new BackupLockData();
+    lock.id = "lock";
+    lock.projectKey = projectKey;
+    lock.expires = System.currentTimeMillis() + 60000;
+    datastore.put(lock);
+    assertFalse(gcsStorage.backupFiles(projectId, Arrays.asList(blocksFile)));
+    assertEquals(0, datastore.query(BackupData.class).ancestor(projectKey).count());
+
+    // A lock that has lapsed is taken over, and released once the backup is taken.
+    lock.expires = System.currentTimeMillis() - 1;
+    datastore.put(lock);
+    assertTrue(gcsStorage.backupFiles(projectId, Arrays.asList(blocksFile)));
+    assertNull(datastore.find(new Key<BackupLockData>(projectKey, BackupLockData.class, "lock")));
+    List<BackupData> backups = datastore.query(BackupData.class).ancestor(projectKey).list();
+    assertEquals(1, backups.size());
+    String hash = Hashing.md5().hashBytes(blocks.getBytes(StorageUtil.DEFAULT_CHARSET))
+        .toString();
+    assertEquals(hash, backups.get(0).contentHash);
+    assertNotNull(gcsService.getMetadata(new GcsFilename(ObjectifyStorageIo.GCS_BUCKET_NAME,
+        gcsStorage.makeGCSfileName("backups/" + hash, projectId))));
+  }
+
   /*
    * Fail on the Nth call to runJobWithRetries, where N is the value of the
    * failingRun argument to the constructor. Also allows counting
@@ -0,0 +1,92 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+
+import junit.framework.TestCase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests for {@link OrderedPrefetcher}.
+ *
+ */
+public class OrderedPrefetcherTest extends TestCase {
+
+  private static final String BUCKET = "bucket";
+
+  private LocalGcsService gcsService;
+
+  @Override
+  protected void setUp() throws Exception {
+    gcsService = new LocalGcsService(20);
+    for (int i = 0; i < 16; i++) {
+      gcsService.createOrReplace(new GcsFilename(BUCKET, "file" + i),
+          GcsFileOptions.getDefaultInstance(), ByteBuffer.wrap(new byte[] { (byte) i }));
+    }
+  }
+
+  public void testResultsAreInOrderAndReadsOverlap() throws Exception {
+    OrderedPrefetcher<Long> prefetcher =
+        new OrderedPrefetcher<Long>(Executors.defaultThreadFactory(), 4);
+    try {
+      for (int i = 0; i < 16; i++) {
+        prefetcher.add(readLength("file" + i));
+      }
+      for (int i = 0; i < 16; i++) {
+        assertTrue(prefetcher.hasNext());
+        assertEquals(Long.valueOf(1), prefetcher.next());
+      }
+      assertFalse(prefetcher.hasNext());
+    } finally {
+      prefetcher.close();
+    }
+    // 16 creates, then 16 reads of which at most 4 ran at once.
+    assertEquals(32, gcsService.getRoundTrips());
+    assertTrue(gcsService.getMaxConcurrentRoundTrips() > 1);
+    assertTrue(gcsService.getMaxConcurrentRoundTrips() <= 4);
+  }
+
+  public void testReadExceptionIsThrownByNext() throws Exception {
+    OrderedPrefetcher<Long> prefetcher =
+        new OrderedPrefetcher<Long>(Executors.defaultThreadFactory(), 2);
+    try {
+      prefetcher.add(readLength("file0"));
+      prefetcher.add(readLength("missing"));
+      prefetcher.add(readLength("file1"));
+      assertEquals(Long.valueOf(1), prefetcher.next());
+      try {
+        prefetcher.next();
+        fail();
+      } catch (FileNotFoundException e) {
+        // expected
+      }
+      assertEquals(Long.valueOf(1), prefetcher.next());
+    } finally {
+      prefetcher.close();
+    }
+  }
+
+  private Callable<Long> readLength(final String name) {
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws IOException {
+        GcsFileMetadata metadata = gcsService.getMetadata(new GcsFilename(BUCKET, name));
+        if (metadata == null) {
+          throw new FileNotFoundException(name);
+        }
+        return metadata.getLength();
+      }
+    };
+  }
+}
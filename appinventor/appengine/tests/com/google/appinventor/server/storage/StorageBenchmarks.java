@@ -0,0 +1,217 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.common.testutils.TestUtils;
+import com.google.appinventor.server.benchmark.Benchmark;
+import com.google.appinventor.server.benchmark.BenchmarkRunner;
+import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
+import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.utils.config.GenerationDirectory;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the storage and project service paths that every editor session hits:
+ * saving a blocks file, exporting the project source, loading the project tree and running a
+ * datastore job.
+ *
+ * <p>The benchmarks use a project shaped like a large real one, with many screens, large
+ * blocks files and many assets. The Objectify benchmarks run against the local datastore used
+ * by the tests and an in-memory GCS whose latency is set by the benchmark.gcs.latency system
+ * property (in milliseconds, 0 by default). The benchmark.backends system property selects
+ * the backends to run, "objectify,local" by default.</p>
+ *
+ * <p>Run with "ant AiServerLibBenchmarks". See {@link BenchmarkRunner} for the properties
+ * that save the results and compare them with an earlier run.</p>
+ *
+ */
+public final class StorageBenchmarks {
+
+  private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/appengine/build/tests/appengine-generated";
+
+  private static final String USER_ID = "benchmark";
+  private static final String USER_EMAIL = "benchmark@test.com";
+  private static final String PROJECT_NAME = "Benchmark";
+  private static final String SOURCE_DIRECTORY = "src/appinventor/ai_benchmark/" + PROJECT_NAME;
+
+  private static final int SCREENS = 20;
+  private static final int BLOCKS_FILE_SIZE = 200 * 1024;
+  private static final int FORM_FILE_SIZE = 16 * 1024;
+  private static final int ASSETS = 50;
+  private static final int ASSET_SIZE = 64 * 1024;
+
+  private StorageBenchmarks() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> backends =
+        Arrays.asList(System.getProperty("benchmark.backends", "objectify,local").split(","));
+    BenchmarkRunner runner = new BenchmarkRunner();
+
+    if (backends.contains("objectify")) {
+      System.setProperty(GenerationDirectory.GENERATED_DIR_PROPERTY, APPENGINE_GENERATED_DIR);
+      LocalServiceTestHelper helper =
+          new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      helper.setUp();
+      try {
+        ObjectifyStorageIo storage = new ObjectifyStorageIo(
+            new LocalGcsService(Long.getLong("benchmark.gcs.latency", 0)));
+        long projectId = createProject(storage);
+        runStorageBenchmarks(runner, "objectify", storage, projectId);
+        runner.run(runJobWithRetries(storage, projectId));
+      } finally {
+        helper.tearDown();
+      }
+    }
+
+    if (backends.contains("local")) {
+      File directory = Files.createTempDirectory("storagebenchmarks").toFile();
+      LocalStorageIo storage = new LocalStorageIo(directory, false);
+      try {
+        long projectId = createProject(storage);
+        runStorageBenchmarks(runner, "local", storage, projectId);
+      } finally {
+        storage.close();
+        delete(directory);
+      }
+    }
+
+    runner.finish(System.out);
+  }
+
+  private static void runStorageBenchmarks(BenchmarkRunner runner, String backend,
+      StorageIo storage, long projectId) throws Exception {
+    runner.run(uploadRawFile(backend, storage, projectId));
+    runner.run(exportProjectSourceZip(backend, storage, projectId));
+    runner.run(getRootNode(backend, storage, projectId));
+  }
+
+  /*
+   * Saves a blocks file, alternating between two versions so that every save changes it.
+   */
+  private static Benchmark uploadRawFile(String backend, final StorageIo storage,
+      final long projectId) {
+    final String fileName = SOURCE_DIRECTORY + "/Screen1.bky";
+    final byte[][] versions = { blocks(1), blocks(2) };
+    return new Benchmark(backend + ".uploadRawFile") {
+      @Override
+      public void run(int iteration) throws Exception {
+        storage.uploadRawFile(projectId, fileName, USER_ID, false, versions[iteration % 2]);
+      }
+    };
+  }
+
+  private static Benchmark exportProjectSourceZip(String backend, final StorageIo storage,
+      final long projectId) {
+    return new Benchmark(backend + ".exportProjectSourceZip") {
+      @Override
+      public void run(int iteration) throws Exception {
+        storage.exportProjectSourceZip(USER_ID, projectId, false, false, false, false, false,
+            false, ByteStreams.nullOutputStream());
+      }
+    };
+  }
+
+  private static Benchmark getRootNode(String backend, StorageIo storage,
+      final long projectId) {
+    final YoungAndroidProjectService projectService = new YoungAndroidProjectService(storage);
+    return new Benchmark(backend + ".getRootNode") {
+      @Override
+      public void run(int iteration) {
+        projectService.getRootNode(USER_ID, projectId);
+      }
+    };
+  }
+
+  /*
+   * Runs a job that reads the project entity, to measure what runJobWithRetries adds to a
+   * single datastore read.
+   */
+  private static Benchmark runJobWithRetries(final ObjectifyStorageIo storage,
+      final long projectId) {
+    final ObjectifyStorageIo.JobRetryHelper job = storage.new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        datastore.find(new Key<ProjectData>(ProjectData.class, projectId));
+      }
+    };
+    return new Benchmark("objectify.runJobWithRetries") {
+      @Override
+      public void run(int iteration) throws Exception {
+        storage.runJobWithRetries(job, false);
+      }
+    };
+  }
+
+  private static long createProject(StorageIo storage) {
+    storage.getUser(USER_ID, USER_EMAIL);
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE);
+    project.addTextFile(new TextFile(YoungAndroidProjectService.PROJECT_PROPERTIES_FILE_NAME,
+        "main=appinventor.ai_benchmark." + PROJECT_NAME + ".Screen1\n"
+        + "name=" + PROJECT_NAME + "\n"));
+    for (int i = 1; i <= SCREENS; i++) {
+      String screen = SOURCE_DIRECTORY + "/Screen" + i;
+      project.addTextFile(new TextFile(screen + ".scm", text(FORM_FILE_SIZE, i)));
+      project.addRawFile(new RawFile(screen + ".bky", blocks(i)));
+    }
+    Random random = new Random(0);
+    for (int i = 1; i <= ASSETS; i++) {
+      byte[] content = new byte[ASSET_SIZE];
+      random.nextBytes(content);
+      project.addRawFile(new RawFile("assets/asset" + i + ".png", content));
+    }
+    return storage.createProject(USER_ID, project, "");
+  }
+
+  private static byte[] blocks(int seed) {
+    return text(BLOCKS_FILE_SIZE, seed).getBytes(Charsets.UTF_8);
+  }
+
+  /*
+   * Returns text of about the given size that compresses like a real source file.
+   */
+  private static String text(int size, int seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(size + 128);
+    sb.append("<xml xmlns=\"http://www.w3.org/1999/xhtml\">");
+    while (sb.length() < size) {
+      sb.append("<block type=\"component_set_get\" id=\"").append(random.nextInt())
+          .append("\" x=\"").append(random.nextInt(2000))
+          .append("\" y=\"").append(random.nextInt(2000)).append("\"></block>");
+    }
+    sb.append("</xml>");
+    return sb.toString();
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
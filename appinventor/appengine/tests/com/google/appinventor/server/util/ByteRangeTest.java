@@ -0,0 +1,48 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ByteRange}.
+ *
+ */
+public class ByteRangeTest extends TestCase {
+
+  public void testClosedRange() throws Exception {
+    ByteRange range = ByteRange.parse("bytes=100-199", 1000);
+    assertTrue(range.isSatisfiable());
+    assertEquals(100, range.getStart());
+    assertEquals(100, range.getCount());
+    assertEquals("bytes 100-199/1000", range.toContentRange());
+  }
+
+  public void testOpenRangeAndSuffixRange() throws Exception {
+    ByteRange open = ByteRange.parse("bytes=900-", 1000);
+    assertEquals(900, open.getStart());
+    assertEquals(100, open.getCount());
+    ByteRange suffix = ByteRange.parse("bytes=-300", 1000);
+    assertEquals(700, suffix.getStart());
+    assertEquals("bytes 700-999/1000", suffix.toContentRange());
+    // The end of a range is limited to the content.
+    assertEquals("bytes 500-999/1000", ByteRange.parse("bytes=500-5000", 1000).toContentRange());
+  }
+
+  public void testUnsatisfiableRange() throws Exception {
+    ByteRange range = ByteRange.parse("bytes=1000-", 1000);
+    assertFalse(range.isSatisfiable());
+    assertEquals("bytes */1000", range.toContentRange());
+  }
+
+  public void testWholeContentIsSentForOtherRanges() throws Exception {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("bytes=0-9,20-29", 1000));
+    assertNull(ByteRange.parse("items=0-9", 1000));
+    assertNull(ByteRange.parse("bytes=9-0", 1000));
+    assertNull(ByteRange.parse("bytes=abc", 1000));
+  }
+}
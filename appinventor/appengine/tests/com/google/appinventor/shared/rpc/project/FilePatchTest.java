@@ -0,0 +1,57 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link FilePatch}.
+ *
+ */
+public class FilePatchTest extends TestCase {
+  private static final String BASE = "<xml><block type=\"text\">hello</block></xml>";
+
+  public void testApplyReproducesContent() throws Exception {
+    String[] contents = {
+      "<xml><block type=\"text\">goodbye</block></xml>",
+      "<xml><block type=\"text\">hello</block><block type=\"math\"/></xml>",
+      "<xml></xml>",
+      "",
+      BASE + BASE,
+    };
+    for (String content : contents) {
+      FilePatch patch = FilePatch.create(BASE, content);
+      assertEquals(content, patch.apply(BASE));
+      assertEquals(ChecksumedLoadFile.computeChecksum(content), patch.getChecksum());
+    }
+  }
+
+  public void testReplacementCoversOnlyTheChange() throws Exception {
+    FilePatch patch = FilePatch.create(BASE, BASE.replace("hello", "help"));
+    assertEquals(1, patch.getReplacementLength());
+    assertFalse(patch.isEmpty());
+    assertTrue(FilePatch.create(BASE, BASE).isEmpty());
+  }
+
+  public void testPatchAgainstLoadedFileApplies() throws Exception {
+    // A client that loaded the file makes the patch with the checksum the server sent.
+    ChecksumedLoadFile loaded = new ChecksumedLoadFile();
+    loaded.setContent(BASE);
+    String content = BASE.replace("hello", "goodbye");
+    FilePatch patch = FilePatch.create(loaded.getContent(), loaded.getChecksum(), content);
+    assertEquals(content, patch.apply(BASE));
+  }
+
+  public void testWrongBaseIsRejected() throws Exception {
+    FilePatch patch = FilePatch.create(BASE, BASE.replace("hello", "goodbye"));
+    try {
+      patch.apply(BASE.replace("hello", "howdy"));
+      fail();
+    } catch (ChecksumedFileException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,78 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link GalleryApp}.
+ *
+ */
+public class GalleryAppTest extends TestCase {
+
+  public void testCopyHasEveryField() throws Exception {
+    // Give every field a value that no constructor does, so that a field the copy
+    // constructor leaves out shows up as a difference.
+    GalleryApp app = new GalleryApp();
+    int value = 1000;
+    for (Field field : instanceFields()) {
+      Class<?> type = field.getType();
+      value++;
+      if (type == String.class) {
+        field.set(app, "value " + value);
+      } else if (type == int.class) {
+        field.setInt(app, value);
+      } else if (type == long.class) {
+        field.setLong(app, value);
+      } else if (type == boolean.class) {
+        field.setBoolean(app, !field.getBoolean(app));
+      } else if (type == ArrayList.class) {
+        field.set(app, new ArrayList<String>(Arrays.asList("value " + value)));
+      } else {
+        fail("Don't know how to check that field " + field.getName() + " is copied");
+      }
+    }
+
+    GalleryApp copy = new GalleryApp(app);
+    for (Field field : instanceFields()) {
+      assertEquals("Field " + field.getName() + " is not copied", field.get(app),
+          field.get(copy));
+      if (field.getType() == ArrayList.class) {
+        assertNotSame("Field " + field.getName() + " is shared with the copy", field.get(app),
+            field.get(copy));
+      }
+    }
+  }
+
+  public void testCopyDoesNotChangeWithTheOriginal() throws Exception {
+    GalleryApp app = new GalleryApp();
+    app.setTitle("Tip Calculator");
+    app.setTags(new ArrayList<String>(Arrays.asList("math")));
+    GalleryApp copy = new GalleryApp(app);
+
+    app.setTitle("Changed");
+    app.getTags().add("money");
+    assertEquals("Tip Calculator", copy.getTitle());
+    assertEquals(Arrays.asList("math"), copy.getTags());
+  }
+
+  private static Field[] instanceFields() {
+    Field[] fields = GalleryApp.class.getDeclaredFields();
+    ArrayList<Field> instanceFields = new ArrayList<Field>();
+    for (Field field : fields) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        field.setAccessible(true);
+        instanceFields.add(field);
+      }
+    }
+    return instanceFields.toArray(new Field[instanceFields.size()]);
+  }
+}
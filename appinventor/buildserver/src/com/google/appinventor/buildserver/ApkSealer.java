@@ -0,0 +1,294 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CountingOutputStream;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a signed and aligned APK in one pass.
+ *
+ * <p>Entries are added from the package written by aapt and from the dex files, and are
+ * digested as they are written. Uncompressed entries are aligned to 4 bytes, as zipalign
+ * aligns them, by padding their extra field. {@link #seal} then writes the JAR signature
+ * files that jarsigner would write: the manifest of entry digests, the signature file and
+ * the PKCS#7 signature block.</p>
+ *
+ */
+final class ApkSealer implements Closeable {
+
+  // The alias of the key in the project keystores, and its password and the keystore's.
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String KEYSTORE_PASSWORD = "android";
+
+  // jarsigner names the signature files after the key alias, upper cased and cut to 8
+  // characters.
+  private static final String SIGNATURE_NAME = "META-INF/ANDROIDK";
+
+  // The algorithms App Inventor has always signed with, which every Android version accepts.
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String SIGNATURE_ALGORITHM = "MD5withRSA";
+
+  private static final int ALIGNMENT = 4;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final String CREATED_BY = "1.0 (Android)";
+
+  private final CountingOutputStream counter;
+  private final ZipOutputStream zip;
+  private final byte[] buffer = new byte[64 * 1024];
+
+  // The digest of each entry, in the order they were written.
+  private final Map<String, String> digests = new LinkedHashMap<String, String>();
+
+  /**
+   * Creates the APK file, replacing any existing one.
+   */
+  ApkSealer(File apk) throws IOException {
+    counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(apk)));
+    zip = new ZipOutputStream(counter);
+  }
+
+  /**
+   * Loads the signing key from a project keystore.
+   */
+  static KeyStore.PrivateKeyEntry loadKey(File keystore)
+      throws IOException, GeneralSecurityException {
+    KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+    InputStream in = new FileInputStream(keystore);
+    try {
+      store.load(in, KEYSTORE_PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return (KeyStore.PrivateKeyEntry) store.getEntry(KEY_ALIAS,
+        new KeyStore.PasswordProtection(KEYSTORE_PASSWORD.toCharArray()));
+  }
+
+  /**
+   * Adds the entries of a zip file, such as the package written by aapt. Entries keep the
+   * compression method they have in the zip file. Signature files are left out.
+   */
+  void addZip(File file) throws IOException {
+    ZipFile zipFile = new ZipFile(file);
+    try {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory() || isSignatureFile(entry.getName())) {
+          continue;
+        }
+        ZipEntry copy = new ZipEntry(entry.getName());
+        copy.setTime(entry.getTime());
+        copy.setMethod(entry.getMethod());
+        if (entry.getMethod() == ZipEntry.STORED) {
+          copy.setSize(entry.getSize());
+          copy.setCompressedSize(entry.getSize());
+          copy.setCrc(entry.getCrc());
+        }
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          writeEntry(copy, in);
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Adds a file, compressed, under the given name.
+   */
+  void addFile(File file, String name) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(file.lastModified());
+    InputStream in = new FileInputStream(file);
+    try {
+      writeEntry(entry, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Signs the entries added so far with the given key and finishes the APK.
+   */
+  void seal(PrivateKey key, X509Certificate certificate)
+      throws IOException, GeneralSecurityException {
+    long time = System.currentTimeMillis();
+
+    // The manifest holds the digest of each entry, and the signature file the digest of
+    // each section of the manifest.
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeAttribute(manifest, "Manifest-Version", "1.0");
+    writeAttribute(manifest, "Created-By", CREATED_BY);
+    manifest.write('\r');
+    manifest.write('\n');
+    ByteArrayOutputStream sectionDigests = new ByteArrayOutputStream();
+    for (Map.Entry<String, String> entry : digests.entrySet()) {
+      ByteArrayOutputStream section = new ByteArrayOutputStream();
+      writeAttribute(section, "Name", entry.getKey());
+      writeAttribute(section, DIGEST_ALGORITHM + "-Digest", entry.getValue());
+      section.write('\r');
+      section.write('\n');
+      byte[] bytes = section.toByteArray();
+      manifest.write(bytes);
+      writeAttribute(sectionDigests, "Name", entry.getKey());
+      writeAttribute(sectionDigests, DIGEST_ALGORITHM + "-Digest", digest(bytes));
+      sectionDigests.write('\r');
+      sectionDigests.write('\n');
+    }
+    byte[] manifestBytes = manifest.toByteArray();
+
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    writeAttribute(signatureFile, "Signature-Version", "1.0");
+    writeAttribute(signatureFile, "Created-By", CREATED_BY);
+    writeAttribute(signatureFile, DIGEST_ALGORITHM + "-Digest-Manifest", digest(manifestBytes));
+    signatureFile.write('\r');
+    signatureFile.write('\n');
+    sectionDigests.writeTo(signatureFile);
+    byte[] signatureFileBytes = signatureFile.toByteArray();
+
+    writeMetaInfEntry("META-INF/MANIFEST.MF", manifestBytes, time);
+    writeMetaInfEntry(SIGNATURE_NAME + ".SF", signatureFileBytes, time);
+    writeMetaInfEntry(SIGNATURE_NAME + ".RSA",
+        signatureBlock(signatureFileBytes, key, certificate), time);
+    zip.finish();
+  }
+
+  /**
+   * Closes the APK file. If {@link #seal} wasn't called, the file is incomplete.
+   */
+  @Override
+  public void close() throws IOException {
+    zip.close();
+  }
+
+  private void writeEntry(ZipEntry entry, InputStream in) throws IOException {
+    if (entry.getMethod() == ZipEntry.STORED) {
+      // The data of the entry follows its local header, which ends with its name and extra
+      // field. Pad the extra field so that the data starts on an aligned offset.
+      long dataStart = counter.getCount() + LOCAL_HEADER_SIZE
+          + entry.getName().getBytes(Charsets.UTF_8).length;
+      entry.setExtra(new byte[(int) ((ALIGNMENT - dataStart % ALIGNMENT) % ALIGNMENT)]);
+    }
+    zip.putNextEntry(entry);
+    MessageDigest digest = newDigest();
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      zip.write(buffer, 0, n);
+      digest.update(buffer, 0, n);
+    }
+    zip.closeEntry();
+    digests.put(entry.getName(), BaseEncoding.base64().encode(digest.digest()));
+  }
+
+  private void writeMetaInfEntry(String name, byte[] content, long time) throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(time);
+    zip.putNextEntry(entry);
+    zip.write(content);
+    zip.closeEntry();
+  }
+
+  /*
+   * Returns the PKCS#7 signature block of the signature file. As jarsigner does, the
+   * signature is over the signature file itself, with no signed attributes, and the signed
+   * content is left out of the block.
+   */
+  private static byte[] signatureBlock(byte[] signatureFile, PrivateKey key,
+      X509Certificate certificate) throws IOException, GeneralSecurityException {
+    try {
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(key), certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData =
+          generator.generate(new CMSProcessableByteArray(signatureFile), false);
+      return signedData.toASN1Structure().getEncoded(ASN1Encoding.DER);
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    } catch (CMSException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+
+  private static boolean isSignatureFile(String name) {
+    if (!name.startsWith("META-INF/")) {
+      return false;
+    }
+    String upper = name.toUpperCase();
+    return upper.equals("META-INF/MANIFEST.MF") || upper.endsWith(".SF")
+        || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String digest(byte[] bytes) {
+    return BaseEncoding.base64().encode(newDigest().digest(bytes));
+  }
+
+  /*
+   * Writes a "name: value" line of a manifest. Lines are at most 72 bytes long; longer ones
+   * are continued on lines that start with a space.
+   */
+  private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+    byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int length = Math.min(line.length, 72);
+    out.write(line, 0, length);
+    for (int offset = length; offset < line.length; offset += length) {
+      length = Math.min(line.length - offset, 71);
+      out.write('\r');
+      out.write('\n');
+      out.write(' ');
+      out.write(line, offset, length);
+    }
+    out.write('\r');
+    out.write('\n');
+  }
+}
@@ -0,0 +1,281 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A content-addressed cache of build artifacts, shared by all builds.
+ *
+ * <p>Each entry is a directory named by a key, which is a hash of everything the artifacts were
+ * built from. An entry holds files at paths relative to the directory the artifacts were built
+ * in, so a hit simply copies them back into the same place in the next build. Entries are
+ * written to a temporary directory first and then renamed into place, so readers never see a
+ * partial entry. When the total size exceeds the limit, the least recently used entries are
+ * deleted.</p>
+ *
+ */
+final class BuildCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  // Entries being written start with this prefix. Leftovers are deleted at startup.
+  private static final String TMP_PREFIX = ".tmp-";
+
+  private final File root;
+  private final long maxBytes;
+
+  // Readers copy files out of entries while holding the read lock; eviction deletes entries
+  // while holding the write lock.
+  private final ReadWriteLock entryLock = new ReentrantReadWriteLock();
+
+  // Entry sizes, in least recently used order. Guarded by itself.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f,
+      true);
+  private long totalBytes = 0;
+
+  private final AtomicInteger hitCount = new AtomicInteger(0);
+  private final AtomicInteger missCount = new AtomicInteger(0);
+  private final AtomicInteger evictionCount = new AtomicInteger(0);
+
+  /**
+   * Creates a BuildCache, picking up the entries left in the directory by a previous run.
+   *
+   * @param root  the cache directory
+   * @param maxBytes  the maximum total size of the entries
+   */
+  BuildCache(File root, long maxBytes) {
+    this.root = root;
+    this.maxBytes = maxBytes;
+    root.mkdirs();
+    File[] files = root.listFiles();
+    if (files == null) {
+      files = new File[0];
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (file.getName().startsWith(TMP_PREFIX)) {
+        FileUtils.deleteQuietly(file);
+      } else if (file.isDirectory()) {
+        long size = FileUtils.sizeOfDirectory(file);
+        entries.put(file.getName(), size);
+        totalBytes += size;
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Returns a hasher for computing cache keys.
+   */
+  static Hasher newKeyHasher() {
+    return Hashing.sha1().newHasher();
+  }
+
+  /**
+   * Adds a string to a cache key.
+   */
+  static Hasher putString(Hasher hasher, String s) {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    return hasher.putInt(bytes.length).putBytes(bytes);
+  }
+
+  /**
+   * Adds the contents of a file to a cache key.
+   */
+  static Hasher putFile(Hasher hasher, File file) throws IOException {
+    hasher.putLong(file.length());
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        hasher.putBytes(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return hasher;
+  }
+
+  /**
+   * Adds the relative paths and contents of all the files under a directory to a cache key.
+   * A missing directory hashes like an empty one.
+   */
+  static Hasher putTree(Hasher hasher, File dir) throws IOException {
+    putTree(hasher, dir, "");
+    return hasher;
+  }
+
+  private static void putTree(Hasher hasher, File dir, String prefix) throws IOException {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    Arrays.sort(names);
+    for (String name : names) {
+      File file = new File(dir, name);
+      if (file.isDirectory()) {
+        putTree(hasher, file, prefix + name + "/");
+      } else {
+        putString(hasher, prefix + name);
+        putFile(hasher, file);
+      }
+    }
+  }
+
+  /**
+   * Copies the files of an entry into the given directory.
+   *
+   * @param key  the entry key
+   * @param destDir  the directory the entry's relative paths are resolved against
+   * @return  {@code true} on a hit, {@code false} if there is no such entry
+   */
+  boolean fetch(String key, File destDir) {
+    entryLock.readLock().lock();
+    try {
+      boolean present;
+      synchronized (entries) {
+        // get() also marks the entry as most recently used.
+        present = entries.get(key) != null;
+      }
+      if (present) {
+        File entryDir = new File(root, key);
+        try {
+          FileUtils.copyDirectory(entryDir, destDir, false);
+          entryDir.setLastModified(System.currentTimeMillis());
+          hitCount.incrementAndGet();
+          return true;
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to read build cache entry " + key, e);
+        }
+      }
+    } finally {
+      entryLock.readLock().unlock();
+    }
+    missCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Stores files as a new entry. Failures are logged and otherwise ignored; the cache is only
+   * an optimization.
+   *
+   * @param key  the entry key
+   * @param baseDir  the directory the files are relative to
+   * @param files  the files to store, all under baseDir
+   */
+  void store(String key, File baseDir, Collection<File> files) {
+    synchronized (entries) {
+      if (entries.containsKey(key)) {
+        return;
+      }
+    }
+    File tmpDir = new File(root, TMP_PREFIX + UUID.randomUUID());
+    try {
+      String basePath = baseDir.getAbsolutePath() + File.separator;
+      long size = 0;
+      for (File file : files) {
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(basePath)) {
+          throw new IOException(path + " is not under " + basePath);
+        }
+        File copy = new File(tmpDir, path.substring(basePath.length()));
+        Files.createParentDirs(copy);
+        Files.copy(file, copy);
+        size += copy.length();
+      }
+      File entryDir = new File(root, key);
+      if (!tmpDir.renameTo(entryDir)) {
+        // Another build stored the same entry first.
+        FileUtils.deleteQuietly(tmpDir);
+        return;
+      }
+      synchronized (entries) {
+        entries.put(key, size);
+        totalBytes += size;
+      }
+      evict();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to write build cache entry " + key, e);
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  private void evict() {
+    entryLock.writeLock().lock();
+    try {
+      synchronized (entries) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+          Map.Entry<String, Long> entry = iterator.next();
+          iterator.remove();
+          totalBytes -= entry.getValue();
+          FileUtils.deleteQuietly(new File(root, entry.getKey()));
+          evictionCount.incrementAndGet();
+        }
+      }
+    } finally {
+      entryLock.writeLock().unlock();
+    }
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getTotalBytes() {
+    synchronized (entries) {
+      return totalBytes;
+    }
+  }
+
+  public int getEntryCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public int getHitCount() {
+    return hitCount.get();
+  }
+
+  public int getMissCount() {
+    return missCount.get();
+  }
+
+  public int getEvictionCount() {
+    return evictionCount.get();
+  }
+}
@@ -0,0 +1,215 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * The progress of one build: its status, its percentage complete and when each of its stages
+ * started and ended.
+ *
+ * <p>Builds submitted with a build id are registered so that their progress can be looked up
+ * while they are queued or running, and for {@link #RETENTION_MILLIS} after they finish.</p>
+ *
+ */
+final class BuildProgress {
+
+  enum Status { QUEUED, BUILDING, SUCCEEDED, FAILED, EXPIRED }
+
+  // How long the progress of a finished build can still be looked up.
+  static final long RETENTION_MILLIS = 10 * 60 * 1000;
+
+  private static final ConcurrentMap<String, BuildProgress> registeredBuilds =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private static class Stage {
+    final String name;
+    final long startTime;
+    final boolean concurrent;
+    long endTime = 0;
+
+    Stage(String name, long startTime, boolean concurrent) {
+      this.name = name;
+      this.startTime = startTime;
+      this.concurrent = concurrent;
+    }
+  }
+
+  private final String buildId;
+  private final long queuedTime;
+  private long startTime = 0;
+  private long endTime = 0;
+  private Status status = Status.QUEUED;
+  private int progress = 0;
+  private final List<Stage> stages = new ArrayList<Stage>();
+
+  /**
+   * Creates the progress record of a queued build. The record isn't registered.
+   *
+   * @param buildId  the build id, may be null
+   */
+  BuildProgress(String buildId) {
+    this.buildId = buildId;
+    this.queuedTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Creates the progress record of a queued build and registers it under the build id,
+   * replacing the record of an earlier build with the same id.
+   */
+  static BuildProgress register(String buildId) {
+    removeFinishedBuilds(System.currentTimeMillis() - RETENTION_MILLIS);
+    BuildProgress buildProgress = new BuildProgress(buildId);
+    registeredBuilds.put(buildId, buildProgress);
+    return buildProgress;
+  }
+
+  /**
+   * Returns the progress of the registered build with the given id, or null if there is no
+   * such build.
+   */
+  static BuildProgress lookup(String buildId) {
+    return registeredBuilds.get(buildId);
+  }
+
+  private static void removeFinishedBuilds(long finishedBefore) {
+    Iterator<BuildProgress> iterator = registeredBuilds.values().iterator();
+    while (iterator.hasNext()) {
+      BuildProgress buildProgress = iterator.next();
+      synchronized (buildProgress) {
+        if (buildProgress.endTime != 0 && buildProgress.endTime < finishedBefore) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  String getBuildId() {
+    return buildId;
+  }
+
+  synchronized boolean isFinished() {
+    return endTime != 0;
+  }
+
+  synchronized Status getStatus() {
+    return status;
+  }
+
+  synchronized int getProgress() {
+    return progress;
+  }
+
+  /**
+   * Raises the percentage complete. Stages that run concurrently report their own
+   * percentages, so a lower percentage than the current one is ignored.
+   */
+  synchronized void setProgress(int progress) {
+    this.progress = Math.max(this.progress, progress);
+  }
+
+  /**
+   * Ends the current stage, if any, and starts a new one. The first stage marks the build as
+   * started.
+   */
+  synchronized void startStage(String name) {
+    long now = System.currentTimeMillis();
+    if (status == Status.QUEUED) {
+      status = Status.BUILDING;
+      startTime = now;
+    }
+    endStage(now);
+    stages.add(new Stage(name, now, false));
+  }
+
+  /**
+   * Ends the current stage, if any, and starts a stage that runs alongside other stages. It
+   * lasts until {@link #endConcurrentStage} is called with its name.
+   */
+  synchronized void startConcurrentStage(String name) {
+    long now = System.currentTimeMillis();
+    if (status == Status.QUEUED) {
+      status = Status.BUILDING;
+      startTime = now;
+    }
+    endStage(now);
+    stages.add(new Stage(name, now, true));
+  }
+
+  /**
+   * Ends a stage started with {@link #startConcurrentStage}.
+   */
+  synchronized void endConcurrentStage(String name) {
+    for (int i = stages.size() - 1; i >= 0; i--) {
+      Stage stage = stages.get(i);
+      if (stage.concurrent && stage.endTime == 0 && stage.name.equals(name)) {
+        stage.endTime = System.currentTimeMillis();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Ends all the stages still running, if any, and marks the build as finished.
+   */
+  synchronized void finish(Status status) {
+    long now = System.currentTimeMillis();
+    for (Stage stage : stages) {
+      if (stage.endTime == 0) {
+        stage.endTime = now;
+      }
+    }
+    this.status = status;
+    if (status == Status.SUCCEEDED) {
+      progress = 100;
+    }
+    endTime = now;
+  }
+
+  private void endStage(long now) {
+    for (int i = stages.size() - 1; i >= 0; i--) {
+      Stage stage = stages.get(i);
+      if (!stage.concurrent) {
+        if (stage.endTime == 0) {
+          stage.endTime = now;
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the build's progress as a JSON object. Times are in milliseconds since the epoch;
+   * a time of 0 means the event hasn't happened yet.
+   */
+  synchronized JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    json.put("status", status.name().toLowerCase());
+    json.put("progress", progress);
+    json.put("queuedTime", queuedTime);
+    json.put("startTime", startTime);
+    json.put("endTime", endTime);
+    JSONArray stagesJson = new JSONArray();
+    for (Stage stage : stages) {
+      JSONObject stageJson = new JSONObject();
+      stageJson.put("name", stage.name);
+      stageJson.put("startTime", stage.startTime);
+      stageJson.put("endTime", stage.endTime);
+      stagesJson.put(stageJson);
+    }
+    json.put("stages", stagesJson);
+    return json;
+  }
+}
@@ -0,0 +1,176 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Sends the result of a build to the callback URL of the App Inventor server.
+ *
+ * <p>The result zip, holding the keystore, the apk and build.out, is written straight onto the
+ * connection with chunked transfer, so it is never put together in a temp file or in memory.
+ * The apk is already compressed, so it is stored rather than deflated again. If the connection
+ * fails or the server answers that it is unavailable, the zip is written again from the files
+ * still on disk, after a delay that doubles with each attempt.</p>
+ *
+ */
+final class BuildResultSender {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildResultSender.class.getName());
+
+  static final String BUILD_OUTPUT_FILENAME = "build.out";
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  private static final AtomicInteger retryCount = new AtomicInteger(0);
+  private static final AtomicInteger failureCount = new AtomicInteger(0);
+
+  private final int maxAttempts;
+  private final long retryDelayMillis;
+
+  /**
+   * Creates a BuildResultSender.
+   *
+   * @param maxAttempts  the number of times to try sending a result before giving up
+   * @param retryDelayMillis  the delay before the first retry
+   */
+  BuildResultSender(int maxAttempts, long retryDelayMillis) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  /**
+   * Sends a build result to the callback URL.
+   *
+   * @param callbackUrl  the URL to post the result zip to
+   * @param keystore  the keystore created by the build, or null
+   * @param apk  the built apk, or null if the build failed
+   * @param buildOutput  the contents of build.out
+   * @return  {@code true} if the server accepted the result, {@code false} otherwise
+   */
+  boolean send(String callbackUrl, File keystore, File apk, String buildOutput)
+      throws InterruptedException {
+    long delay = retryDelayMillis;
+    for (int attempt = 1; ; attempt++) {
+      boolean retry;
+      try {
+        int responseCode = post(callbackUrl, keystore, apk, buildOutput);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          return true;
+        }
+        LOG.severe("Bad Response Code!: " + responseCode);
+        // Only retry when the server might accept the result later.
+        retry = responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || responseCode == 429;
+      } catch (IOException e) {
+        LOG.warning("Cannot send build result to " + callbackUrl + ": " + e.getMessage());
+        retry = true;
+      }
+      if (!retry || attempt >= maxAttempts) {
+        failureCount.incrementAndGet();
+        return false;
+      }
+      retryCount.incrementAndGet();
+      LOG.info("Sending build result again in " + delay + " ms (attempt " + (attempt + 1)
+          + " of " + maxAttempts + ")");
+      Thread.sleep(delay);
+      delay *= 2;
+    }
+  }
+
+  private int post(String callbackUrl, File keystore, File apk, String buildOutput)
+      throws IOException {
+    LOG.info("CallbackURL: " + callbackUrl);
+    HttpURLConnection connection = (HttpURLConnection) new URL(callbackUrl).openConnection();
+    try {
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      // Make sure we aren't misinterpreted as
+      // form-url-encoded
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      connection.setChunkedStreamingMode(CHUNK_SIZE);
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      OutputStream out = connection.getOutputStream();
+      try {
+        writeZip(out, keystore, apk, buildOutput);
+      } finally {
+        out.close();
+      }
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Writes the result zip of a build.
+   *
+   * @param out  the stream to write the zip to; it is flushed but not closed
+   * @param keystore  the keystore created by the build, or null
+   * @param apk  the built apk, or null if the build failed
+   * @param buildOutput  the contents of build.out
+   */
+  static void writeZip(OutputStream out, File keystore, File apk, String buildOutput)
+      throws IOException {
+    ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(out));
+    if (keystore != null) {
+      zipOutputStream.putNextEntry(new ZipEntry(keystore.getName()));
+      Files.copy(keystore, zipOutputStream);
+    }
+    if (apk != null) {
+      // A stored entry needs its size and crc before its data.
+      ZipEntry apkEntry = new ZipEntry(apk.getName());
+      apkEntry.setMethod(ZipEntry.STORED);
+      apkEntry.setSize(apk.length());
+      apkEntry.setCompressedSize(apk.length());
+      apkEntry.setCrc(crc(apk));
+      zipOutputStream.putNextEntry(apkEntry);
+      Files.copy(apk, zipOutputStream);
+    }
+    zipOutputStream.putNextEntry(new ZipEntry(BUILD_OUTPUT_FILENAME));
+    zipOutputStream.write(buildOutput.getBytes(Charsets.UTF_8));
+    // Leave closing the stream to the caller, which may still need it.
+    zipOutputStream.finish();
+    zipOutputStream.flush();
+  }
+
+  private static long crc(File file) throws IOException {
+    CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), new CRC32());
+    try {
+      ByteStreams.copy(in, ByteStreams.nullOutputStream());
+    } finally {
+      in.close();
+    }
+    return in.getChecksum().getValue();
+  }
+
+  static int getRetryCount() {
+    return retryCount.get();
+  }
+
+  static int getFailureCount() {
+    return failureCount.get();
+  }
+}
@@ -7,7 +7,6 @@ package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
@@ -20,31 +19,26 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.lang.Math;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -53,6 +47,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * Top level class for exposing the building of App Inventor APK files as a RESTful web service.
@@ -79,6 +74,22 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a free build slot when --maxSimultaneousBuilds builds are running. 0 turns queuing off, so builds are rejected when all slots are busy.")
+    int maxQueuedBuilds = 20;
+
+    @Option(name = "--maxQueueWaitSeconds",
+      usage = "Maximum time a build can wait for a free build slot before it is failed. 0 means forever.")
+    int maxQueueWaitSeconds = 300;
+
+    @Option(name = "--kawaCompilerWorkers",
+      usage = "Number of warm Kawa compiler processes to keep for compiling projects in parallel. 0 means a new Kawa process is launched for every build, one at a time.")
+    int kawaCompilerWorkers = 0;
+
+    @Option(name = "--keyStorePoolSize",
+      usage = "Number of key pairs to generate ahead of time for the keystores of projects built for the first time. 0 means a key pair is generated during every such build.")
+    int keyStorePoolSize = 4;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -95,6 +106,22 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--buildCacheDir",
+      usage = "The directory to cache the compiled classes of each screen and the packaged resources in, so unchanged screens are not recompiled. If not specified, every build starts from scratch.")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+      usage = "Maximum size of the build cache, in MB. The least recently used entries are deleted when it grows larger.")
+    int buildCacheMaxMb = 2048;
+
+    @Option(name = "--callbackAttempts",
+      usage = "Number of times to try sending a build result to the App Inventor server before giving up.")
+    int callbackAttempts = 3;
+
+    @Option(name = "--callbackRetryDelayMillis",
+      usage = "Delay before sending a build result again after it could not be sent, in milliseconds. The delay doubles with each attempt.")
+    int callbackRetryDelayMillis = 2000;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -126,11 +153,16 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
+  // The build executor used to limit the number of simultaneous builds and to queue the builds
+  // that arrive while all build slots are busy.
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static QueuingExecutor buildExecutor;
+
+  // Sends build results to the App Inventor server. Like the buildExecutor, it is created after
+  // the command line options are processed.
+  private static BuildResultSender resultSender;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -144,9 +176,6 @@ public class BuildServer {
   // The android.keystore file generated by this build request, if necessary.
   private File outputKeystore;
 
-  // The zip file where we put all the build results for this request.
-  private File outputZip;
-
   // non-zero means we are shutting down, if currentTimeMillis is > then this, then we are
   // completely shutdown, otherwise we are just providing NOT OK for health checks but
   // otherwise still accepting jobs. This avoids having people get an error if the load
@@ -159,32 +188,42 @@ public class BuildServer {
   //                SHUTTING:   We have been told to shutdown, with a time delay
   //                            In this state we return bad health, but accept jobs
   //                DOWN:       We return bad health and reject jobs
-  //                DRAINING:   We have reached > 2/3 of max permitted jobs
-  //                            We return bad health (but accept jobs) until
-  //                            the number of active jobs is < 1/3 of max
+  //                DRAINING:   The build queue is under pressure: more than 2/3 of the
+  //                            build slots plus queue entries are in use, or the oldest
+  //                            queued build has waited more than half the queue deadline.
+  //                            We return bad health (but accept jobs) until less than 1/3
+  //                            is in use and the oldest queued build has waited less than a
+  //                            quarter of the queue deadline.
   private enum ShutdownState { UP, SHUTTING, DOWN, DRAINING };
 
-  private static volatile boolean draining = false; // We have exceeded 2/3 max load, waiting for
-                                                    // the load to become < 1/3 max load
+  private static volatile boolean draining = false; // The build queue is under pressure, waiting
+                                                    // for the pressure to go away
 
   @GET
   @Path("health")
   @Produces(MediaType.TEXT_PLAIN)
   public Response health() throws IOException {
     ShutdownState shut = getShutdownState();
+    Response.ResponseBuilder response;
     if (shut == ShutdownState.UP) {
       LOG.info("Healthcheck: UP");
-      return Response.ok("ok", MediaType.TEXT_PLAIN_TYPE).build();
+      response = Response.ok("ok", MediaType.TEXT_PLAIN_TYPE);
     } else if (shut == ShutdownState.DOWN) {
       LOG.info("Healthcheck: DOWN");
-      return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is shutdown").build();
+      response = Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is shutdown");
     } else if (shut == ShutdownState.DRAINING) {
       LOG.info("Healthcheck: DRAINING");
-      return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is draining").build();
+      response = Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is draining");
     } else {
       LOG.info("Healthcheck: SHUTTING");
-      return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is shutting down").build();
+      response = Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is shutting down");
     }
+    // Let load balancers see how busy we are without having to scrape /vars.
+    return response
+        .header("X-Build-Active-Tasks", buildExecutor.getActiveTaskCount())
+        .header("X-Build-Queued-Tasks", buildExecutor.getQueuedTaskCount())
+        .header("X-Build-Oldest-Queued-Wait-Ms", buildExecutor.getOldestQueuedTaskWaitMillis())
+        .build();
   }
 
   @GET
@@ -232,6 +271,8 @@ public class BuildServer {
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("retried-build-result-callbacks", BuildResultSender.getRetryCount() + "");
+    variables.put("failed-build-result-callbacks", BuildResultSender.getFailureCount() + "");
 
     // Build tasks
     int max = buildExecutor.getMaxActiveTasks();
@@ -245,6 +286,53 @@ public class BuildServer {
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
 
+    // Build queue
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    long maxQueueWait = buildExecutor.getMaxQueueWaitMillis();
+    if (maxQueueWait == 0) {
+      variables.put("maximum-queued-build-wait-in-ms", "unlimited");
+    } else {
+      variables.put("maximum-queued-build-wait-in-ms", maxQueueWait + "");
+    }
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("expired-queued-build-tasks", buildExecutor.getExpiredTaskCount() + "");
+    variables.put("oldest-queued-build-wait-in-ms",
+        buildExecutor.getOldestQueuedTaskWaitMillis() + "");
+    variables.put("average-queued-build-wait-in-ms",
+        buildExecutor.getAverageQueueWaitMillis() + "");
+
+    // Kawa compiler workers
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      variables.put("kawa-compiler-workers-allowed", kawaCompilerPool.getMaxWorkers() + "");
+      variables.put("idle-kawa-compiler-workers", kawaCompilerPool.getIdleWorkerCount() + "");
+      variables.put("started-kawa-compiler-workers",
+          kawaCompilerPool.getStartedWorkerCount() + "");
+      variables.put("retired-kawa-compiler-workers",
+          kawaCompilerPool.getRetiredWorkerCount() + "");
+      variables.put("kawa-compiler-worker-compiles", kawaCompilerPool.getCompileCount() + "");
+    }
+
+    // Keystore key pairs
+    KeyStorePool keyStorePool = ProjectBuilder.getKeyStorePool();
+    if (keyStorePool != null) {
+      variables.put("keystore-pool-size", keyStorePool.getSize() + "");
+      variables.put("keystore-pool-ready", keyStorePool.getReadyCount() + "");
+      variables.put("keystore-pool-hits", keyStorePool.getHitCount() + "");
+      variables.put("keystore-pool-misses", keyStorePool.getMissCount() + "");
+    }
+
+    // Build cache
+    BuildCache buildCache = Compiler.getBuildCache();
+    if (buildCache != null) {
+      variables.put("build-cache-hits", buildCache.getHitCount() + "");
+      variables.put("build-cache-misses", buildCache.getMissCount() + "");
+      variables.put("build-cache-evictions", buildCache.getEvictionCount() + "");
+      variables.put("build-cache-entries", buildCache.getEntryCount() + "");
+      variables.put("build-cache-size-in-bytes", buildCache.getTotalBytes() + "");
+      variables.put("maximum-build-cache-size-in-bytes", buildCache.getMaxBytes() + "");
+    }
+
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
     for (Map.Entry<String, String> variable : variables.entrySet()) {
@@ -311,7 +399,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      build(userName, zipFile);
+      build(userName, zipFile, false, new BuildProgress(null));
       String attachedFilename = outputApk.getName();
       FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
       // Set the outputApk field to null so that it won't be deleted in cleanUp().
@@ -353,17 +441,34 @@ public class BuildServer {
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE)
         .entity("Entry point unavailable unless debugging.").build();
 
+    boolean cleanUpOnExit = true;
     try {
-      buildAndCreateZip(userName, inputZipFile);
-      String attachedFilename = outputZip.getName();
-      FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
-      // Set the outputZip field to null so that it won't be deleted in cleanUp().
-      outputZip = null;
-      return Response.ok(outputZipDeleteOnClose)
+      final Result buildResult = buildAndFinish(userName, inputZipFile, false,
+          new BuildProgress(null));
+      final String buildOutputJson = genBuildOutput(buildResult);
+      String attachedFilename = inputZip.getName() + ".zip";
+      // The zip is written while the response is sent, so the build files are only cleaned up
+      // once that is done.
+      StreamingOutput outputZip = new StreamingOutput() {
+        @Override
+        public void write(OutputStream out) throws IOException {
+          try {
+            BuildResultSender.writeZip(out, buildResult.succeeded() ? outputKeystore : null,
+                buildResult.succeeded() ? outputApk : null, buildOutputJson);
+          } finally {
+            cleanUp();
+          }
+        }
+      };
+      Response response = Response.ok(outputZip)
         .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
         .build();
+      cleanUpOnExit = false;
+      return response;
     } finally {
-      cleanUp();
+      if (cleanUpOnExit) {
+        cleanUp();
+      }
     }
   }
 
@@ -391,6 +496,10 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param buildId  An id for looking up the progress of the build with the progress
+   *     endpoint, optional.
+   * @param isForCompanion  Whether to build a companion, which includes every component,
+   *     optional.
    * @param inputZipFile  The zip file representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
@@ -401,6 +510,8 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("buildId") final String buildId,
+    @QueryParam("companion") final boolean isForCompanion,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -455,6 +566,9 @@ public class BuildServer {
         }
       }
 
+      final BuildProgress buildProgress = (buildId == null || buildId.isEmpty())
+          ? new BuildProgress(null)
+          : BuildProgress.register(buildId);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
@@ -462,51 +576,48 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
+              Result buildResult =
+                  buildAndFinish(userName, inputZipFile, isForCompanion, buildProgress);
+              sendBuildResult(callbackUrlStr, buildResult);
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
             } finally {
+              if (!buildProgress.isFinished()) {
+                buildProgress.finish(BuildProgress.Status.FAILED);
+              }
               cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      Runnable expiredTask = new Runnable() {
+          @Override
+          public void run() {
+            // This request waited in the build queue for longer than --maxQueueWaitSeconds.
+            rejectedAsyncBuildRequests.incrementAndGet();
+            LOG.warning("Build for " + userName + " expired in the build queue");
+            buildProgress.finish(BuildProgress.Status.EXPIRED);
+            try {
+              Result buildResult = Result.createFailingResult("",
+                  "The build server is currently at maximum capacity. Please try again later.");
+              failedBuildRequests.getAndIncrement();
+              sendBuildResult(callbackUrlStr, buildResult);
+            } catch (Exception e) {
+              LOG.severe("Exception: " + e.getMessage());
+            } finally {
+              cleanUp();
+            }
+          }
+        };
       try {
-        buildExecutor.execute(buildTask);
+        buildExecutor.execute(userName, buildTask, expiredTask);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the build queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
+        buildProgress.finish(BuildProgress.Status.FAILED);
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
@@ -517,37 +628,61 @@ public class BuildServer {
         return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
       }
     }
+    // The entity is the progress of the build; the queue position, if the user has a build
+    // waiting for a free build slot, is returned as a header so existing clients are unaffected.
+    BuildProgress buildProgress = (buildId == null) ? null : BuildProgress.lookup(buildId);
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .header("X-Build-Queue-Position", buildExecutor.getQueuePosition(userName))
+      .entity("" + (buildProgress == null ? 0 : buildProgress.getProgress())).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
-    throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
-    outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
-    outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
-    if (buildSucceeded) {
-      if (outputKeystore != null) {
-        zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
-        Files.copy(outputKeystore, zipOutputStream);
+  /**
+   * Returns the progress of the given builds: their status, percentage complete and the start
+   * and end times of their stages. Several builds can be looked up in one request by repeating
+   * the buildId parameter.
+   *
+   * @param buildIds  the ids given to build-all-from-zip-async
+   * @return a JSON object with one member per known build id; unknown ids are left out
+   */
+  @GET
+  @Path("progress")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@QueryParam("buildId") List<String> buildIds) throws JSONException {
+    JSONObject progress = new JSONObject();
+    for (String buildId : buildIds) {
+      BuildProgress buildProgress = BuildProgress.lookup(buildId);
+      if (buildProgress != null) {
+        progress.put(buildId, buildProgress.toJson());
       }
-      zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
-      Files.copy(outputApk, zipOutputStream);
+    }
+    return Response.ok(progress.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+  }
+
+  private void sendBuildResult(String callbackUrlStr, Result buildResult)
+      throws JSONException, InterruptedException {
+    // The result zip is written straight onto the callback connection, from the apk and keystore
+    // files that are kept until cleanUp, so a failed callback can be sent again.
+    boolean buildSucceeded = buildResult.succeeded();
+    if (!resultSender.send(callbackUrlStr, buildSucceeded ? outputKeystore : null,
+        buildSucceeded ? outputApk : null, genBuildOutput(buildResult))) {
+      LOG.severe("Build " + buildCount.get() + " result could not be sent to " + callbackUrlStr);
+    }
+    checkMemory();
+  }
+
+  private Result buildAndFinish(String userName, File inputZipFile, boolean isForCompanion,
+      BuildProgress buildProgress) throws IOException, JSONException {
+    Result buildResult = build(userName, inputZipFile, isForCompanion, buildProgress);
+    if (buildResult.succeeded()) {
       successfulBuildRequests.getAndIncrement();
     } else {
       LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
       failedBuildRequests.getAndIncrement();
     }
-    zipOutputStream.putNextEntry(new ZipEntry("build.out"));
-    String buildOutputJson = genBuildOutput(buildResult);
-    PrintStream zipPrintStream = new PrintStream(zipOutputStream);
-    zipPrintStream.print(buildOutputJson);
-    zipPrintStream.flush();
-    zipOutputStream.flush();
-    zipOutputStream.close();
+    buildProgress.finish(buildResult.succeeded()
+        ? BuildProgress.Status.SUCCEEDED
+        : BuildProgress.Status.FAILED);
+    return buildResult;
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -561,15 +696,17 @@ public class BuildServer {
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
+  private Result build(String userName, File zipFile, boolean isForCompanion,
+      BuildProgress buildProgress) throws IOException {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir,
+      isForCompanion, commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir,
+      buildProgress);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -596,9 +733,6 @@ public class BuildServer {
     if (outputApk != null) {
       outputApk.delete();
     }
-    if (outputZip != null) {
-      outputZip.delete();
-    }
     if (outputDir != null) {
       outputDir.delete();
     }
@@ -625,7 +759,34 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxQueueWaitSeconds * 1000L);
+    resultSender = new BuildResultSender(commandLineOptions.callbackAttempts,
+        commandLineOptions.callbackRetryDelayMillis);
+    if (commandLineOptions.kawaCompilerWorkers > 0) {
+      Compiler.setKawaCompilerPool(new KawaCompilerPool(commandLineOptions.kawaCompilerWorkers,
+          commandLineOptions.childProcessRamMb));
+    }
+    if (commandLineOptions.keyStorePoolSize > 0) {
+      ProjectBuilder.setKeyStorePool(new KeyStorePool(commandLineOptions.keyStorePoolSize));
+    }
+    if (commandLineOptions.buildCacheDir != null) {
+      Compiler.setBuildCache(new BuildCache(new File(commandLineOptions.buildCacheDir),
+          commandLineOptions.buildCacheMaxMb * 1024L * 1024L));
+    }
+    if (commandLineOptions.buildCacheDir != null && commandLineOptions.dexCacheDir != null) {
+      // Dex the libraries of companion builds in the background, so the first companion build
+      // finds them in the build cache.
+      Thread warmer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Compiler.warmCompanionCache(commandLineOptions.dexCacheDir,
+              commandLineOptions.childProcessRamMb);
+        }
+      }, "CompanionCacheWarmer");
+      warmer.setDaemon(true);
+      warmer.start();
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -637,6 +798,17 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
+    }
+    if (commandLineOptions.kawaCompilerWorkers > 0) {
+      LOG.info("Warm Kawa compiler workers = " + commandLineOptions.kawaCompilerWorkers);
+    }
+    if (commandLineOptions.keyStorePoolSize > 0) {
+      LOG.info("Keystore key pair pool = " + commandLineOptions.keyStorePoolSize);
+    }
+    if (commandLineOptions.buildCacheDir != null) {
+      LOG.info("Build cache = " + commandLineOptions.buildCacheDir + " (" +
+          commandLineOptions.buildCacheMaxMb + " MB)");
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
@@ -662,17 +834,21 @@ public class BuildServer {
   private ShutdownState getShutdownState() {
     if (shuttingTime == 0) {
       int max = buildExecutor.getMaxActiveTasks();
-      if (max < 10) {           // Only do this scheme if we are not unlimited
-                                // (unlimited == 0) and allow more then 10 max builds
+      int capacity = max + buildExecutor.getMaxQueuedTasks();
+      if (max == 0 || capacity < 10) {  // Only do this scheme if we are not unlimited
+                                        // (unlimited == 0) and allow more then 10 max builds
+                                        // (running plus queued)
         return ShutdownState.UP;
       }
-      int active = buildExecutor.getActiveTaskCount();
+      int used = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
+      long maxWait = buildExecutor.getMaxQueueWaitMillis();
+      long oldestWait = buildExecutor.getOldestQueuedTaskWaitMillis();
       if (draining) {
-        if (active < max/3) {
+        if (used < capacity/3 && (maxWait == 0 || oldestWait < maxWait/4)) {
           draining = false;
         }
       } else {
-        if (active > max*2/3) {
+        if (used > capacity*2/3 || (maxWait != 0 && oldestWait > maxWait/2)) {
           draining = true;
         }
       }
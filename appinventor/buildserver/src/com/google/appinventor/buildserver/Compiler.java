@@ -6,15 +6,17 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
-import com.android.sdklib.build.ApkBuilder;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -22,6 +24,7 @@ import org.codehaus.jettison.json.JSONObject;
 import org.codehaus.jettison.json.JSONTokener;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -29,10 +32,13 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -40,13 +46,22 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.io.FileUtils;
+
 /**
  * Main entry point for the YAIL compiler.
  *
@@ -66,11 +81,61 @@ public final class Compiler {
    * Ext == External, ext == external, EXT == EXTERNAL
    */
 
-  public static int currentProgress = 10;
-
   // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
+  // When warm Kawa compiler workers are enabled, Kawa compiles are bounded by the size of the
+  // worker pool instead.
   private static final Object SYNC_KAWA_OR_DX = new Object();
 
+  // The pool of warm Kawa compiler processes, or null to launch a new Kawa process per build.
+  private static volatile KawaCompilerPool kawaCompilerPool = null;
+
+  // The Kawa classpath used by the warm Kawa compiler processes. It includes the libraries of all
+  // the simple components so that the same workers can compile any project without extensions.
+  private static volatile String kawaWorkerClasspath = null;
+
+  // The libraries of every simple component, sorted by name. See getAllSimpleLibraries.
+  private static volatile Set<String> allSimpleLibraries = null;
+
+  // The cache of compiled classes and packaged resources, or null to build everything from
+  // scratch.
+  private static volatile BuildCache buildCache = null;
+
+  // The modification time of the entries in the class jars given to dx. It is fixed so that the
+  // jars only change when the classes do.
+  private static final long CLASS_JAR_ENTRY_TIME = 315532800000L; // 1980-01-01
+
+  // See getToolchainCacheKey.
+  private static volatile String toolchainCacheKey = null;
+
+  // The dexed libraries shared by all companion builds, relative to the dx output directory.
+  // See fetchCompanionDex.
+  private static final String COMPANION_LIBS_JAR = "companion-libs.jar";
+  private static final String SECOND_DEX = "classes2.dex";
+
+  // Held while the companion libraries are fetched or dexed, so concurrent companion builds
+  // dex them only once.
+  private static final Object companionDexLock = new Object();
+
+  // The most libraries dx is given along with the runtimes for classes.dex; the rest go into
+  // classes2.dex. The choice of 12 libraries is arbitrary. We note that things worked to put
+  // all libraries into the first classes.dex file when we had 16 libraries and broke at 17.
+  // So this is a conservative number to try.
+  private static final int MAX_FIRST_DEX_LIBRARIES = 12;
+
+  /**
+   * Dexes the libraries shared by all companion builds. Replaced in tests.
+   */
+  interface CompanionDexer {
+    /**
+     * Dexes firstDexInputs into firstDexOutput and, unless secondDexInputs is empty,
+     * secondDexInputs into secondDexOutput.
+     *
+     * @return  {@code true} if dx succeeded, {@code false} otherwise
+     */
+    boolean dex(List<File> firstDexInputs, File firstDexOutput, List<File> secondDexInputs,
+        File secondDexOutput);
+  }
+
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
 
@@ -140,16 +205,10 @@ public final class Compiler {
 
   private static final String LINUX_AAPT_TOOL =
       "/tools/linux/aapt";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
   private static final String MAC_AAPT_TOOL =
       "/tools/mac/aapt";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
   private static final String WINDOWS_AAPT_TOOL =
       "/tools/windows/aapt";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
 
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
@@ -181,6 +240,11 @@ public final class Compiler {
    * Don't use this map directly. Please call getResource() with one of the
    * constants above to get the (temp file) path to a resource.
    */
+  private static final String RESOURCE_DIR_PREFIX = "appinventor-resources-";
+
+  // The directory resources are written to. See getResourceDir.
+  private static File resourceDir = null;
+
   private static final ConcurrentMap<String, File> resources =
       new ConcurrentHashMap<String, File>();
 
@@ -204,6 +268,7 @@ public final class Compiler {
 
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
+  private BuildProgress buildProgress = new BuildProgress(null);
   private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
 
   private JSONArray simpleCompsBuildInfo;
@@ -214,7 +279,7 @@ public final class Compiler {
   /**
    * Mapping from type name to path in project to minimize tests against the file system.
    */
-  private Map<String, String> extTypePathCache = new HashMap<String, String>();
+  private final Map<String, String> extTypePathCache = new ConcurrentHashMap<String, String>();
 
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
@@ -638,19 +703,24 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param buildProgress  the build's progress record, updated as the build goes through its
+   *                       stages
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
    */
   public static boolean compile(Project project, Set<String> compTypes,
-                                PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                final PrintStream out, PrintStream err, PrintStream userErrors,
+                                boolean isForCompanion, final String keystoreFilePath,
+                                int childProcessRam, String dexCacheDir,
+                                BuildProgress buildProgress) throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
+    final Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
                                      childProcessRam, dexCacheDir);
+    compiler.buildProgress = buildProgress;
+    buildProgress.startStage("Prepare");
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -666,54 +736,102 @@ public final class Compiler {
     compiler.generateBroadcastReceiver();
 
     // Create build directory.
-    File buildDir = createDir(project.getBuildDirectory());
+    final File buildDir = createDir(project.getBuildDirectory());
+    final File resDir = createDir(buildDir, "res");
+    final File drawableDir = createDir(resDir, "drawable");
+    final File animDir = createDir(resDir, "anim");
+    final File manifestFile = new File(buildDir, "AndroidManifest.xml");
+    final File classesDir = createDir(buildDir, "classes");
+    final File tmpDir = createDirectory(buildDir, "tmp");
+    final File deployDir = createDir(buildDir, "deploy");
+    // Several stages write into the assets directory.
+    createDir(project.getAssetsDirectory());
+
+    // The resources are packaged by AAPT while the sources are compiled by Kawa and DX. The
+    // two only meet when the apk is sealed.
+    final String dexedClassesDir = tmpDir.getAbsolutePath();
+    final String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
+        project.getProjectName() + ".ap_";
+    final String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
+        project.getProjectName() + ".apk";
+    StageGraph stages = new StageGraph(buildProgress);
 
     // Prepare application icon.
-    out.println("________Preparing application icon");
-    File resDir = createDir(buildDir, "res");
-    File drawableDir = createDir(resDir, "drawable");
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
-      return false;
-    }
-    setProgress(15);
+    stages.add("Icon", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Preparing application icon");
+        return compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"));
+      }
+    });
 
     // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
-    File animDir = createDir(resDir, "anim");
-    if (!compiler.createAnimationXml(animDir)) {
-      return false;
-    }
+    stages.add("Animations", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Creating animation xml");
+        return compiler.createAnimationXml(animDir);
+      }
+    });
 
     // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile)) {
-      return false;
-    }
-    setProgress(20);
+    stages.add("Manifest", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Generating manifest file");
+        if (!compiler.writeAndroidManifest(manifestFile)) {
+          return false;
+        }
+        compiler.setProgress(20);
+        return true;
+      }
+    });
 
     // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibs(buildDir)) {
-      return false;
-    }
+    stages.add("NativeLibs", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Attaching native libraries");
+        return compiler.insertNativeLibs(buildDir);
+      }
+    });
 
     // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachCompAssets()) {
-      return false;
-    }
+    stages.add("Assets", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Attaching component assets");
+        return compiler.attachCompAssets();
+      }
+    });
+
+    // Invoke aapt to package everything up
+    stages.add("AAPT", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Invoking AAPT");
+        if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
+          return false;
+        }
+        compiler.setProgress(40);
+        return true;
+      }
+    }, "Icon", "Animations", "Manifest", "NativeLibs", "Assets");
 
     // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDir(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    setProgress(35);
+    stages.add("Kawa", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Compiling source files");
+        if (!compiler.generateClasses(classesDir)) {
+          return false;
+        }
+        compiler.setProgress(35);
+        return true;
+      }
+    });
 
     // Invoke dx on class files
-    out.println("________Invoking DX");
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -729,45 +847,51 @@ public final class Compiler {
     // method of identifying via a hash of the path won't work when files
     // are copied into temporary storage) and processed via a hacked up version of
     // Android SDK's Dex Ant task
-    File tmpDir = createDirectory(buildDir, "tmp");
-    String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
-      return false;
-    }
-    setProgress(85);
-
-    // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDir(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
-      return false;
-    }
-    setProgress(90);
-
-    // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
-      return false;
-    }
-    setProgress(95);
-
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
+    stages.add("DX", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Invoking DX");
+        if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
+          return false;
+        }
+        compiler.setProgress(90);
+        return true;
+      }
+    }, "Kawa");
+
+    // Write the apk, signed and aligned, in one pass
+    stages.add("ApkSealer", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        out.println("________Sealing the apk file");
+        return compiler.runApkSealer(apkAbsolutePath, tmpPackageName, dexedClassesDir,
+            keystoreFilePath);
+      }
+    }, "AAPT", "DX");
+
+    ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger(0);
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "build-stage-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    boolean success;
+    try {
+      success = stages.run(executor);
+    } finally {
+      executor.shutdown();
     }
-
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
+    String timingReport = stages.getTimingReport();
+    out.print(timingReport);
+    LOG.info(timingReport);
+    if (!success) {
       return false;
     }
 
-    setProgress(100);
+    compiler.setProgress(100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -824,28 +948,44 @@ public final class Compiler {
   }
 
   /*
-   * Runs ApkBuilder by using the API instead of calling its main method because the main method
-   * can call System.exit(1), which will bring down our server.
+   * Writes the apk from the package written by aapt and the dex files, signing it with the
+   * project keystore and aligning its uncompressed entries as it goes. This replaces running
+   * ApkBuilder, jarsigner and zipalign one after the other, each of which rewrote the whole
+   * apk.
    */
-  private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClassesDir) {
+  private boolean runApkSealer(String apkAbsolutePath, String zipArchive,
+      String dexedClassesDir, String keystoreAbsolutePath) {
+    long startSeal = System.currentTimeMillis();
+    File apk = new File(apkAbsolutePath);
     try {
-      ApkBuilder apkBuilder =
-          new ApkBuilder(apkAbsolutePath, zipArchive,
-            dexedClassesDir + File.separator + "classes.dex", null, System.out);
-      if (hasSecondDex) {
-        apkBuilder.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
-          "classes2.dex");
-      }
-      apkBuilder.sealApk();
-      return true;
+      KeyStore.PrivateKeyEntry key = ApkSealer.loadKey(new File(keystoreAbsolutePath));
+      ApkSealer sealer = new ApkSealer(apk);
+      try {
+        sealer.addZip(new File(zipArchive));
+        sealer.addFile(new File(dexedClassesDir + File.separator + "classes.dex"),
+            "classes.dex");
+        if (hasSecondDex) {
+          sealer.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
+              "classes2.dex");
+        }
+        sealer.seal(key.getPrivateKey(), (X509Certificate) key.getCertificate());
+      } finally {
+        sealer.close();
+      }
     } catch (Exception e) {
       // This is fatal.
       e.printStackTrace();
-      LOG.warning("YAIL compiler - ApkBuilder failed.");
-      err.println("YAIL compiler - ApkBuilder failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ApkBuilder"));
+      apk.delete();
+      LOG.warning("YAIL compiler - ApkSealer failed.");
+      err.println("YAIL compiler - ApkSealer failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "ApkSealer"));
       return false;
     }
+    String sealTimeMessage = "Apk sealing time: " +
+        ((System.currentTimeMillis() - startSeal) / 1000.0) + " seconds";
+    out.println(sealTimeMessage);
+    LOG.info(sealTimeMessage);
+    return true;
   }
 
   /**
@@ -971,26 +1111,46 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
+      String packageName = Signatures.getPackageName(project.getMainClass());
+
+      // Reuse the classes of unchanged screens, and of the runtime, from the build cache.
+      BuildCache cache = buildCache;
+      List<String> sourcesToCompile = sourceFileNames;
+      List<String> sourceCacheKeys = Lists.newArrayListWithCapacity(sources.size());
+      String runtimeCacheKey = null;
+      boolean compileRuntime = true;
+      if (cache != null) {
+        sourcesToCompile = Lists.newArrayList();
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          File sourceFile = new File(sourceFileNames.get(i));
+          String key = getClassesCacheKey(packageName, classFileNames.get(i)
+              .substring(classesDir.getAbsolutePath().length()), sourceFile);
+          sourceCacheKeys.add(key);
+          if (!cache.fetch(key, classesDir)) {
+            sourcesToCompile.add(sourceFileNames.get(i));
+          }
+        }
+        runtimeCacheKey = getClassesCacheKey(packageName, YAIL_RUNTIME, null);
+        compileRuntime = !cache.fetch(runtimeCacheKey, classesDir);
+        out.println("Reused the classes of " +
+            (sourceFileNames.size() - sourcesToCompile.size()) + " of " +
+            sourceFileNames.size() + " screens from the build cache");
+      }
+
+      List<String> kawaCompileArgs = Lists.newArrayList();
+      Collections.addAll(kawaCompileArgs,
           "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+          "-P", packageName + ".",
           "-C");
       // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
       // source file names. The resulting .class files contain references to the source file names,
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      kawaCompileArgs.addAll(sourcesToCompile);
+      if (compileRuntime) {
+        kawaCompileArgs.add(yailRuntime);
+      }
 
       long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
@@ -998,14 +1158,36 @@ public final class Compiler {
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      KawaCompilerPool pool = kawaCompilerPool;
+      if (sourcesToCompile.isEmpty() && !compileRuntime) {
+        // Everything came from the build cache.
+        kawaSuccess = true;
+      } else if (pool != null && extCompTypes.isEmpty()) {
+        // Extensions add project specific jars to the classpath, so only projects without
+        // extensions can use the warm workers.
+        kawaSuccess = pool.compile(getKawaWorkerClasspath(), yailRuntime, kawaCompileArgs,
+            System.out, new PrintStream(kawaOutputStream, true, "UTF-8"));
+      } else {
+        List<String> kawaCommandArgs = Lists.newArrayList();
+        int mx = childProcessRamMb - 200;
+        Collections.addAll(kawaCommandArgs,
+            System.getProperty("java.home") + "/bin/java",
+            "-Dfile.encoding=UTF-8",
+            "-mx" + mx + "M",
+            "-cp", classpath.toString(),
+            "kawa.repl",
+            "-f", yailRuntime);
+        kawaCommandArgs.addAll(kawaCompileArgs);
+        String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+        synchronized (SYNC_KAWA_OR_DX) {
+          kawaSuccess = Execution.execute(null, kawaCommandLine,
+              System.out, new PrintStream(kawaOutputStream, true, "UTF-8"));
+        }
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
       }
-      String kawaOutput = kawaOutputStream.toString();
+      String kawaOutput = kawaOutputStream.toString("UTF-8");
       out.print(kawaOutput);
       String kawaCompileTimeMessage = "Kawa compile time: " +
           ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
@@ -1024,104 +1206,196 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (cache != null) {
+        storeClassesInCache(cache, classesDir, sourceFileNames, sourcesToCompile, classFileNames,
+            sourceCacheKeys, compileRuntime ? runtimeCacheKey : null);
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
       return false;
+    } catch (JSONException e) {
+      e.printStackTrace();
+      userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
+      return false;
     }
 
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + SLASH + "bin" +
-        SLASH + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-          SLASH + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + SLASH + ".." + SLASH + "bin" +
-            SLASH + "jarsigner.exe");
-      }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-        return false;
-      }
+  /*
+   * Returns the build cache key of the classes compiled from a YAIL file, or of the runtime
+   * classes if sourceFile is null. Besides the source itself, the classes depend on the
+   * toolchain, the package, the class file path and the extension jars on the classpath.
+   */
+  private String getClassesCacheKey(String packageName, String classFilePath, File sourceFile)
+      throws IOException {
+    Hasher hasher = BuildCache.newKeyHasher();
+    BuildCache.putString(hasher, "classes");
+    BuildCache.putString(hasher, getToolchainCacheKey());
+    BuildCache.putString(hasher, packageName);
+    BuildCache.putString(hasher, classFilePath);
+    Set<String> extJars = Sets.newTreeSet();
+    for (String type : extCompTypes) {
+      extJars.add(getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR);
+    }
+    for (String extJar : extJars) {
+      BuildCache.putFile(hasher, new File(extJar));
     }
+    if (sourceFile != null) {
+      BuildCache.putFile(hasher, sourceFile);
+    }
+    return hasher.hash().toString();
+  }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+  /*
+   * Stores the classes compiled from each of the compiled YAIL files in the build cache. If
+   * runtimeCacheKey is not null, the runtime was compiled too; its classes are all the classes
+   * that don't belong to a screen.
+   */
+  private static void storeClassesInCache(BuildCache cache, File classesDir,
+      List<String> sourceFileNames, List<String> compiledSourceFileNames,
+      List<String> classFileNames, List<String> sourceCacheKeys, String runtimeCacheKey) {
+    Set<File> screenClassFiles = Sets.newHashSet();
+    for (int i = 0; i < sourceFileNames.size(); i++) {
+      File classFile = new File(classFileNames.get(i));
+      List<File> classFiles = listClassFiles(classFile.getParentFile(),
+          PathUtil.trimOffExtension(classFile.getName()));
+      screenClassFiles.addAll(classFiles);
+      if (compiledSourceFileNames.contains(sourceFileNames.get(i))) {
+        cache.store(sourceCacheKeys.get(i), classesDir, classFiles);
+      }
+    }
+    if (runtimeCacheKey != null) {
+      List<File> runtimeClassFiles = Lists.newArrayList();
+      for (File file : FileUtils.listFiles(classesDir, new String[] { "class" }, true)) {
+        if (!screenClassFiles.contains(file)) {
+          runtimeClassFiles.add(file);
+        }
+      }
+      if (!runtimeClassFiles.isEmpty()) {
+        cache.store(runtimeCacheKey, classesDir, runtimeClassFiles);
+      }
     }
+  }
 
-    return true;
+  /*
+   * Returns the class files of the given top level class: the class itself and its nested
+   * classes.
+   */
+  private static List<File> listClassFiles(File dir, final String className) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.equals(className + ".class") ||
+            (name.startsWith(className + "$") && name.endsWith(".class"));
+      }
+    });
+    return (files == null) ? new ArrayList<File>() : Lists.newArrayList(files);
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDir(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+  /*
+   * Returns a key identifying the build server's tools and runtimes. It is part of every build
+   * cache key, so a new build server release doesn't reuse artifacts built by an old one. It is
+   * computed once since the resources don't change while the build server runs.
+   */
+  private static String getToolchainCacheKey() throws IOException {
+    String key = toolchainCacheKey;
+    if (key == null) {
+      Hasher hasher = BuildCache.newKeyHasher();
+      BuildCache.putString(hasher, GitBuildId.getVersion());
+      BuildCache.putString(hasher, GitBuildId.getFingerprint());
+      // Kawa names the runtime's module class after the runtime file.
+      BuildCache.putString(hasher, PathUtil.basename(getResource(YAIL_RUNTIME)));
+      for (String resource : new String[] { YAIL_RUNTIME, KAWA_RUNTIME, ACRA_RUNTIME,
+          SIMPLE_ANDROID_RUNTIME_JAR, ANDROID_RUNTIME }) {
+        BuildCache.putFile(hasher, new File(getResource(resource)));
+      }
+      key = hasher.hash().toString();
+      toolchainCacheKey = key;
     }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + SLASH + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+    return key;
+  }
+
+  /**
+   * Enables the build cache for all subsequent compilations.
+   *
+   * @param cache  the build cache, or null to build everything from scratch
+   */
+  static void setBuildCache(BuildCache cache) {
+    buildCache = cache;
+  }
+
+  static BuildCache getBuildCache() {
+    return buildCache;
+  }
+
+  /*
+   * Returns the Kawa classpath used by the warm Kawa compiler workers: the Kawa, ACRA and
+   * component runtimes plus the libraries of every simple component.
+   */
+  private String getKawaWorkerClasspath() throws IOException, JSONException {
+    String classpath = kawaWorkerClasspath;
+    if (classpath == null) {
+      Set<String> allLibs = getAllSimpleLibraries();
+      StringBuilder sb = new StringBuilder(getResource(KAWA_RUNTIME));
+      sb.append(COLON).append(getResource(ACRA_RUNTIME));
+      sb.append(COLON).append(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+      for (String lib : allLibs) {
+        sb.append(COLON).append(getResource(RUNTIME_FILES_DIR + lib));
+      }
+      sb.append(COLON).append(getResource(ANDROID_RUNTIME));
+      classpath = sb.toString();
+      kawaWorkerClasspath = classpath;
     }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+    return classpath;
+  }
+  /*
+   * Returns the libraries of every simple component, sorted by name. The build info is a
+   * resource of the build server, so it is only read once.
+   */
+  private static Set<String> getAllSimpleLibraries() throws IOException, JSONException {
+    Set<String> allLibs = allSimpleLibraries;
+    if (allLibs == null) {
+      JSONArray buildInfo = new JSONArray(Resources.toString(
+          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
+      allLibs = Sets.newTreeSet();
+      for (int i = 0; i < buildInfo.length(); i++) {
+        JSONObject compJson = buildInfo.getJSONObject(i);
+        JSONArray libs = compJson.optJSONArray(LIBRARIES_TARGET);
+        if (libs != null) {
+          for (int j = 0; j < libs.length(); j++) {
+            allLibs.add(libs.getString(j));
+          }
+        }
+      }
+      allLibs = Collections.unmodifiableSet(allLibs);
+      allSimpleLibraries = allLibs;
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
-    return true;
+    return allLibs;
+  }
+
+  /*
+   * Returns how many of the given number of libraries dx is given along with the runtimes for
+   * classes.dex. The second time through, after dx has failed, it is given none.
+   */
+  static int getFirstDexLibraryCount(int libraryCount, boolean secondTry) {
+    return secondTry ? 0 : Math.min(libraryCount, MAX_FIRST_DEX_LIBRARIES);
+  }
+
+
+  /**
+   * Enables warm Kawa compiler workers for all subsequent compilations.
+   *
+   * @param pool  the pool of workers, or null to launch a Kawa process per build
+   */
+  static void setKawaCompilerPool(KawaCompilerPool pool) {
+    kawaCompilerPool = pool;
+  }
+
+  static KawaCompilerPool getKawaCompilerPool() {
+    return kawaCompilerPool;
   }
 
   /*
@@ -1159,10 +1433,32 @@ public final class Compiler {
   }
 
   private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
+    if (isForCompanion && buildCache != null && dexCacheDir != null && extCompTypes.isEmpty()
+        && !secondTry) {
+      if (runCompanionDx(classesDir, dexedClassesDir)) {
+        return true;
+      }
+      LOG.info("DX with the cached companion libraries failed, dexing the libraries again.");
+      hasSecondDex = false;
+    }
+
     List<File> libList = new ArrayList<File>();
     List<File> inputList = new ArrayList<File>();
     List<File> class2List = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    if (buildCache != null && dexCacheDir != null) {
+      // Package the classes of each screen, and the runtime, into their own jar so that dx
+      // pre-dexes them separately and the dex cache reuses the output for unchanged screens.
+      try {
+        inputList.addAll(jarClassesByTopLevelClass(classesDir,
+            createDir(classesDir.getParentFile(), "classjars")));
+      } catch (IOException e) {
+        e.printStackTrace();
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      }
+    } else {
+      inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    }
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
@@ -1191,17 +1487,9 @@ public final class Compiler {
       }
     }
 
-    int offset = libList.size();
-    // Note: The choice of 12 libraries is arbitrary. We note that things
-    // worked to put all libraries into the first classes.dex file when we
-    // had 16 libraries and broke at 17. So this is a conservative number
-    // to try.
-    if (!secondTry) {           // First time through, try base + 12 libraries
-      if (offset > 12)
-        offset = 12;
-    } else {
-      offset = 0;               // Add NO libraries the second time through!
-    }
+    // First time through, try base + MAX_FIRST_DEX_LIBRARIES libraries. Add NO libraries the
+    // second time through!
+    int offset = getFirstDexLibraryCount(libList.size(), secondTry);
     for (int i = 0; i < offset; i++) {
       inputList.add(libList.get(i));
     }
@@ -1226,27 +1514,24 @@ public final class Compiler {
     long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
-        }
+    setProgress(50);
+    boolean dxSuccess = runDexTask(dexTask, inputList);
+    if (dxSuccess && (class2List.size() > 0)) {
+      setProgress(60);
+      dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
+      inputList = new ArrayList<File>();
+      dxSuccess = runDexTask(dexTask, class2List);
+      setProgress(75);
+      hasSecondDex = true;
+    } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
+      LOG.info("DX execution failed, trying with fewer libraries.");
+      if (secondTry) {        // Already tried the more conservative approach!
+        LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
+        err.println("YAIL compiler - DX execution failed.");
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      } else {
+        return runDx(classesDir, dexedClassesDir, true);
       }
     }
     if (!dxSuccess) {
@@ -1263,6 +1548,220 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Runs dexTask on inputs. Pre-dexing the libraries only waits for builds that need the same
+   * dex cache entries, so builds pre-dex at the same time; only the final dx run that merges
+   * them is serialized with the other builds.
+   */
+  @VisibleForTesting
+  static boolean runDexTask(DexExecTask dexTask, List<File> inputs) {
+    if (!dexTask.preDex(inputs)) {
+      return false;
+    }
+    synchronized (SYNC_KAWA_OR_DX) {
+      return dexTask.merge(inputs);
+    }
+  }
+
+  /*
+   * Runs dx for a companion build. Companion builds include every component, so everything but
+   * the project's own classes is the same in all the companion builds of this build server. That
+   * part is dexed once and kept in the build cache (see fetchCompanionDex), and each build only
+   * dexes its own classes and merges them into it.
+   */
+  private boolean runCompanionDx(File classesDir, String dexedClassesDir) {
+    File dexedDir = new File(dexedClassesDir);
+    List<File> inputList;
+    try {
+      if (!fetchCompanionDex(buildCache, dexCacheDir, childProcessRamMb, dexedDir)) {
+        return false;
+      }
+      inputList = jarClassesByTopLevelClass(classesDir,
+          createDir(classesDir.getParentFile(), "classjars"));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to prepare the companion libraries", e);
+      return false;
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to prepare the companion libraries", e);
+      return false;
+    }
+    inputList.add(new File(dexedDir, COMPANION_LIBS_JAR));
+
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setDexedLibs(dexCacheDir);
+
+    long startDx = System.currentTimeMillis();
+    setProgress(50);
+    if (!runDexTask(dexTask, inputList)) {
+      return false;
+    }
+    hasSecondDex = new File(dexedDir, SECOND_DEX).isFile();
+    setProgress(75);
+    String dxTimeMessage = "DX time: " +
+        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
+    out.println(dxTimeMessage);
+    LOG.info(dxTimeMessage);
+    return true;
+  }
+
+  /*
+   * Copies the dexed companion libraries into destDir, dexing them first if the build cache
+   * doesn't have them yet. The libraries are resources of the build server, so the entry is
+   * keyed by the build server's version.
+   */
+  private static boolean fetchCompanionDex(BuildCache cache, String dexCacheDir,
+      final int childProcessRamMb, File destDir) throws IOException, JSONException {
+    List<String> libs = Lists.newArrayList(getAllSimpleLibraries());
+    Hasher hasher = BuildCache.newKeyHasher();
+    BuildCache.putString(hasher, "companion-dex");
+    BuildCache.putString(hasher, getToolchainCacheKey());
+    List<File> libFiles = Lists.newArrayList();
+    for (String lib : libs) {
+      BuildCache.putString(hasher, lib);
+      libFiles.add(new File(getResource(RUNTIME_FILES_DIR + lib)));
+    }
+    String key = hasher.hash().toString();
+    List<File> runtimes = Lists.newArrayList(
+        new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)),
+        new File(getResource(KAWA_RUNTIME)),
+        new File(getResource(ACRA_RUNTIME)));
+
+    final String dxJar = getResource(DX_JAR);
+    createDir(new File(dexCacheDir));
+    final String dexedLibs = dexCacheDir;
+    CompanionDexer dexer = new CompanionDexer() {
+      @Override
+      public boolean dex(List<File> firstDexInputs, File firstDexOutput,
+          List<File> secondDexInputs, File secondDexOutput) {
+        DexExecTask dexTask = new DexExecTask();
+        dexTask.setExecutable(dxJar);
+        dexTask.setChildProcessRamMb(childProcessRamMb);
+        dexTask.setDexedLibs(dexedLibs);
+        dexTask.setOutput(firstDexOutput.getAbsolutePath());
+        boolean dxSuccess = runDexTask(dexTask, firstDexInputs);
+        if (dxSuccess && !secondDexInputs.isEmpty()) {
+          dexTask.setOutput(secondDexOutput.getAbsolutePath());
+          dxSuccess = runDexTask(dexTask, secondDexInputs);
+        }
+        return dxSuccess;
+      }
+    };
+    return fetchCompanionDex(cache, key, runtimes, libFiles, dexer, destDir);
+  }
+
+  /*
+   * Copies the dexed companion libraries stored under key into destDir, dexing them with dexer
+   * first if the build cache doesn't have them yet. COMPANION_LIBS_JAR holds the runtimes and
+   * the first libraries, which go into classes.dex with the project's classes, and SECOND_DEX
+   * the remaining libraries, if there are too many for one dex file.
+   */
+  static boolean fetchCompanionDex(BuildCache cache, String key, List<File> runtimes,
+      List<File> libs, CompanionDexer dexer, File destDir) {
+    synchronized (companionDexLock) {
+      if (cache.fetch(key, destDir)) {
+        return true;
+      }
+
+      // Split the libraries the same way runDx does the first time through.
+      int firstDexLibraryCount = getFirstDexLibraryCount(libs.size(), false);
+      List<File> firstDexInputs = Lists.newArrayList(runtimes);
+      firstDexInputs.addAll(libs.subList(0, firstDexLibraryCount));
+      List<File> secondDexInputs = libs.subList(firstDexLibraryCount, libs.size());
+
+      File libsJar = new File(destDir, COMPANION_LIBS_JAR);
+      File secondDex = new File(destDir, SECOND_DEX);
+      long startDx = System.currentTimeMillis();
+      if (!dexer.dex(firstDexInputs, libsJar, secondDexInputs, secondDex)) {
+        LOG.warning("DX of the companion libraries failed.");
+        return false;
+      }
+      LOG.info("Companion libraries dexed in " +
+          ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds");
+
+      List<File> files = Lists.newArrayList(libsJar);
+      if (!secondDexInputs.isEmpty()) {
+        files.add(secondDex);
+      }
+      cache.store(key, destDir, files);
+      return true;
+    }
+  }
+
+  /**
+   * Dexes the libraries shared by all companion builds and stores them in the build cache, unless
+   * they are already there, so the first companion build doesn't have to. Does nothing if the
+   * build cache is disabled.
+   *
+   * @param dexCacheDir  the directory to cache the pre-dexed libraries in
+   * @param childProcessRamMb  maximum ram that can be used by dx, in MB
+   */
+  static void warmCompanionCache(String dexCacheDir, int childProcessRamMb) {
+    BuildCache cache = buildCache;
+    if (cache == null || dexCacheDir == null) {
+      return;
+    }
+    File tmpDir = Files.createTempDir();
+    try {
+      fetchCompanionDex(cache, dexCacheDir, childProcessRamMb, tmpDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to warm the companion cache", e);
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to warm the companion cache", e);
+    } finally {
+      FileUtils.deleteQuietly(tmpDir);
+    }
+  }
+
+  /*
+   * Creates one jar per top level class in classesDir, containing the class and its nested
+   * classes. The jars only depend on the class files, not on when they were written, so the
+   * same classes always produce the same jar and hit in the dex cache.
+   */
+  private static List<File> jarClassesByTopLevelClass(File classesDir, File jarDir)
+      throws IOException {
+    Map<String, List<String>> classesByTopLevelClass = new TreeMap<String, List<String>>();
+    String basePath = classesDir.getAbsolutePath() + File.separator;
+    for (File file : FileUtils.listFiles(classesDir, new String[] { "class" }, true)) {
+      String path = file.getAbsolutePath().substring(basePath.length())
+          .replace(File.separatorChar, '/');
+      int nested = path.indexOf('$', path.lastIndexOf('/') + 1);
+      String topLevelClass = (nested == -1)
+          ? path.substring(0, path.length() - ".class".length())
+          : path.substring(0, nested);
+      List<String> paths = classesByTopLevelClass.get(topLevelClass);
+      if (paths == null) {
+        paths = Lists.newArrayList();
+        classesByTopLevelClass.put(topLevelClass, paths);
+      }
+      paths.add(path);
+    }
+
+    List<File> jars = Lists.newArrayList();
+    for (Map.Entry<String, List<String>> entry : classesByTopLevelClass.entrySet()) {
+      File jar = new File(jarDir, entry.getKey().replace('/', '.') + ".jar");
+      List<String> paths = entry.getValue();
+      Collections.sort(paths);
+      ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+          new FileOutputStream(jar)));
+      try {
+        for (String path : paths) {
+          ZipEntry zipEntry = new ZipEntry(path);
+          zipEntry.setTime(CLASS_JAR_ENTRY_TIME);
+          zip.putNextEntry(zipEntry);
+          Files.copy(new File(classesDir, path), zip);
+          zip.closeEntry();
+        }
+      } finally {
+        zip.close();
+      }
+      jars.add(jar);
+    }
+    return jars;
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDir(project.getAssetsDirectory());
@@ -1292,6 +1791,23 @@ public final class Compiler {
         "-F", tmpPackageName,
         libsDir.getAbsolutePath()
     };
+
+    // Reuse the package from the build cache if none of aapt's inputs changed.
+    BuildCache cache = buildCache;
+    File tmpPackage = new File(tmpPackageName);
+    String aaptCacheKey = null;
+    if (cache != null) {
+      try {
+        aaptCacheKey = getAaptCacheKey(aaptTool, manifestFile, resDir, tmpPackage.getName());
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to compute the AAPT cache key", e);
+      }
+      if (aaptCacheKey != null && cache.fetch(aaptCacheKey, tmpPackage.getParentFile())) {
+        out.println("Reused the packaged resources from the build cache");
+        return true;
+      }
+    }
+
     long startAapt = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
@@ -1306,9 +1822,33 @@ public final class Compiler {
     out.println(aaptTimeMessage);
     LOG.info(aaptTimeMessage);
 
+    if (aaptCacheKey != null) {
+      cache.store(aaptCacheKey, tmpPackage.getParentFile(), Collections.singletonList(tmpPackage));
+    }
     return true;
   }
 
+  /*
+   * Returns the build cache key of the package created by aapt: a hash of the manifest, the
+   * resources, the assets and the native libraries.
+   */
+  private String getAaptCacheKey(String aaptTool, File manifestFile, File resDir,
+      String packageName) throws IOException {
+    Hasher hasher = BuildCache.newKeyHasher();
+    BuildCache.putString(hasher, "aapt");
+    BuildCache.putString(hasher, getToolchainCacheKey());
+    BuildCache.putString(hasher, aaptTool);
+    BuildCache.putString(hasher, packageName);
+    BuildCache.putFile(hasher, manifestFile);
+    BuildCache.putString(hasher, "res");
+    BuildCache.putTree(hasher, resDir);
+    BuildCache.putString(hasher, "assets");
+    BuildCache.putTree(hasher, project.getAssetsDirectory());
+    BuildCache.putString(hasher, "libs");
+    BuildCache.putTree(hasher, libsDir);
+    return hasher.hash().toString();
+  }
+
   private boolean insertNativeLibs(File buildDir){
     /**
      * Native libraries are targeted for particular processor architectures.
@@ -1413,12 +1953,26 @@ public final class Compiler {
         while (prefix.length() < 3) {
           prefix = prefix + "_";
         }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
+        // The file name keeps a unique part, like a temp file name, so that the module class
+        // Kawa generates for runtime.scm can't clash with the class of a screen.
+        File resourceDir = getResourceDir();
+        file = new File(resourceDir.getAbsolutePath() + PathUtil.dirname(resourcePath),
+            prefix + resourceDir.getName().substring(RESOURCE_DIR_PREFIX.length()) + suffix);
+        if (!file.exists()) {
+          // Other build servers may be extracting the same resource, so write it to a temp file
+          // and rename it into place.
+          file.getParentFile().mkdirs();
+          File tmpFile = File.createTempFile(prefix, suffix, file.getParentFile());
+          Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
+              tmpFile);
+          tmpFile.setExecutable(true);
+          if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            if (!file.exists()) {
+              throw new IOException("Unable to create " + file);
+            }
+          }
+        }
         resources.put(resourcePath, file);
       }
       return file.getAbsolutePath();
@@ -1427,6 +1981,43 @@ public final class Compiler {
     }
   }
 
+  /*
+   * Returns the directory the resources are written to. When the build server runs from a jar,
+   * the directory is specific to that jar and is kept after the build server exits, so after a
+   * restart the resources keep their paths and modification times and the dex cache index
+   * doesn't need to hash them again. Must be called while holding the getResource lock.
+   */
+  private static File getResourceDir() throws IOException {
+    if (resourceDir == null) {
+      File codeSource = null;
+      try {
+        codeSource = new File(Compiler.class.getProtectionDomain().getCodeSource().getLocation()
+            .toURI());
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Unable to locate the build server code", e);
+      }
+      if (codeSource != null && codeSource.isFile()) {
+        String id = Hashing.md5().hashString(codeSource.getAbsolutePath() + " " +
+            codeSource.length() + " " + codeSource.lastModified(), Charsets.UTF_8).toString();
+        resourceDir = new File(System.getProperty("java.io.tmpdir"), RESOURCE_DIR_PREFIX + id);
+      } else {
+        // The classes in a directory can change without the directory changing, so use a new
+        // directory every time.
+        final File tmpDir = File.createTempFile(RESOURCE_DIR_PREFIX, "");
+        tmpDir.delete();
+        tmpDir.mkdirs();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          @Override
+          public void run() {
+            FileUtils.deleteQuietly(tmpDir);
+          }
+        });
+        resourceDir = tmpDir;
+      }
+    }
+    return resourceDir;
+  }
+
   /*
    *  Loads permissions and information on component libraries and assets.
    */
@@ -1476,32 +2067,6 @@ public final class Compiler {
     }
   }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Creates a new directory (if it doesn't exist already).
    *
@@ -1545,20 +2110,9 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
-    }
+  private void setProgress(int progress) {
+    buildProgress.setProgress(progress);
+    LOG.info("The current progress is " + progress + "%");
   }
 
   private void readBuildInfo() {
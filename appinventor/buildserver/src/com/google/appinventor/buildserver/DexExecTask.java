@@ -18,7 +18,10 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,10 +29,22 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
@@ -44,9 +59,33 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    private static final String HASH_INDEX_FILE_NAME = "dex-cache-index.txt";
+    private static final String TMP_DEXED_LIB_PREFIX = "dex-tmp-";
+    private static final long ABANDONED_FILE_AGE_MILLIS = 60 * 60 * 1000;
+
+    // The hash indexes of the dex cache directories, by directory.
+    private static final Map<String, FileHashIndex> hashIndexes =
+        new HashMap<String, FileHashIndex>();
+
+    // The dex cache entries being written, by cache file name. A build that needs an entry
+    // another build is writing waits for that build's dx run instead of starting its own.
+    private static final ConcurrentMap<String, FutureTask<File>> cacheEntriesInFlight =
+        new ConcurrentHashMap<String, FutureTask<File>>();
+
+    // Limits the number of dx processes pre-dexing at the same time. See getPreDexPermits.
+    private static Semaphore preDexPermits;
+
+    private static final ExecutorService preDexExecutor = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pre-dex-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
 
     /**
@@ -100,91 +139,249 @@ public class DexExecTask  {
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
+        // pre-dex the libraries concurrently. The number of dx processes running at the same
+        // time is bounded across all builds by preDexPermits.
+        final FileHashIndex hashIndex = getHashIndex(mDexedLibs);
+        final int count = inputs.size();
+        List<Future<File>> results = new ArrayList<Future<File>>(count);
+        for (int i = 0 ; i < count; i++) {
+            final File input = inputs.get(i);
+            if (input.isFile() && !isDexed(input)) {
+                results.add(preDexExecutor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws IOException {
+                        return preDexLibrary(input, hashIndex);
                     }
+                }));
+            } else {
+                results.add(null);
+            }
+        }
 
+        boolean allSuccessful = true;
+        for (int i = 0 ; i < count; i++) {
+            Future<File> result = results.get(i);
+            if (result == null) {
+                continue;
+            }
+            try {
+                File dexedLib = result.get();
+                if (dexedLib == null) {
+                    allSuccessful = false;
+                } else {
                     // replace the input with the pre-dex libs.
                     inputs.set(i, dexedLib);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                allSuccessful = false;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                allSuccessful = false;
             }
-            return allSuccessful;
         }
+        return allSuccessful;
     }
 
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
+    /*
+     * Returns whether the given jar already holds dex code, like the dexed companion libraries,
+     * so it can be merged as is.
+     */
+    private static boolean isDexed(File input) {
+        try {
+            ZipFile zip = new ZipFile(input);
+            try {
+                return zip.getEntry("classes.dex") != null;
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            return false;
         }
+    }
 
-        String hashed = getHashFor(inputFile);
-
-        return "dex-cached-" + hashed + ".jar";
+    /*
+     * Returns the pre-dexed version of the given library, running dx if it isn't in the cache
+     * yet, or null if dx fails.
+     */
+    private File preDexLibrary(final File input, FileHashIndex hashIndex) throws IOException {
+        // check if this libs needs to be pre-dexed
+        final String fileName = "dex-cached-" + hashIndex.getHash(input) + ".jar";
+        final File dexedLib = new File(mDexedLibs, fileName);
+
+        // Only one build dexes a given library; the others wait for it and then use its output.
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return fillCacheEntry(input, fileName, dexedLib);
+            }
+        });
+        FutureTask<File> inFlight = cacheEntriesInFlight.putIfAbsent(fileName, task);
+        if (inFlight == null) {
+            try {
+                task.run();
+            } finally {
+                cacheEntriesInFlight.remove(fileName, task);
+            }
+            inFlight = task;
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
     }
 
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
-        if (retval != null) return retval;
-        // add a hash of the original file path
+    /*
+     * Returns dexedLib, the cache entry for the given library, running dx to write it if it
+     * doesn't exist yet, or null if dx fails.
+     */
+    private File fillCacheEntry(File input, String fileName, File dexedLib) throws IOException {
+        if (dexedLib.isFile()) {
+            System.out.println(
+                String.format("Using Pre-Dexed %1$s <- %2$s",
+                  fileName, input.getAbsolutePath()));
+            return dexedLib;
+        }
+
+        System.out.println(
+            String.format("Pre-Dexing %1$s -> %2$s",
+              input.getAbsolutePath(), fileName));
+
+        // dx writes to a temporary file that is renamed into place once it is complete, so
+        // other builds (and other build servers sharing the cache) never see a partial jar.
+        File tmpDexedLib = new File(mDexedLibs,
+            TMP_DEXED_LIB_PREFIX + UUID.randomUUID() + ".jar");
+        Semaphore permits = getPreDexPermits(mChildProcessRamMb);
+        permits.acquireUninterruptibly();
+        boolean dexSuccess;
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
-            return retval;
+            dexSuccess = runDx(Collections.singleton(input), tmpDexedLib.getAbsolutePath(),
+                false /*showInput*/);
+        } finally {
+            permits.release();
+        }
+        if (!dexSuccess) {
+            tmpDexedLib.delete();
+            return null;
+        }
+        try {
+            Files.move(tmpDexedLib.toPath(), dexedLib.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            e.printStackTrace();
-            return "ERROR";
+            tmpDexedLib.delete();
+            throw e;
+        }
+        return dexedLib;
+    }
+
+    /*
+     * Returns the hash index of the given dex cache directory. The index is kept in the
+     * directory so that the hashes of unchanged libraries survive a restart.
+     */
+    private static FileHashIndex getHashIndex(String dexedLibs) {
+        synchronized (hashIndexes) {
+            FileHashIndex hashIndex = hashIndexes.get(dexedLibs);
+            if (hashIndex == null) {
+                deleteAbandonedFiles(new File(dexedLibs));
+                hashIndex = new FileHashIndex(new File(dexedLibs, HASH_INDEX_FILE_NAME));
+                hashIndexes.put(dexedLibs, hashIndex);
+            }
+            return hashIndex;
+        }
+    }
+
+    /*
+     * Deletes the temporary dx output left behind by build servers that were killed.
+     */
+    private static void deleteAbandonedFiles(File dexedLibs) {
+        File[] files = dexedLibs.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - ABANDONED_FILE_AGE_MILLIS;
+        for (File file : files) {
+            if (file.getName().startsWith(TMP_DEXED_LIB_PREFIX) && file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    /*
+     * Returns the semaphore that limits the number of concurrent pre-dex processes. By default
+     * it allows one process per core, as long as each can get childProcessRamMb of the memory
+     * not used by the build server itself.
+     */
+    private static synchronized Semaphore getPreDexPermits(int childProcessRamMb) {
+        if (preDexPermits == null) {
+            int processes = Runtime.getRuntime().availableProcessors();
+            long totalMemory = getTotalPhysicalMemory();
+            if (totalMemory > 0) {
+                long freeMb = (totalMemory - Runtime.getRuntime().maxMemory()) / (1024 * 1024);
+                processes = (int) Math.min(processes, freeMb / childProcessRamMb);
+            }
+            preDexPermits = new Semaphore(Math.max(1, processes), true);
+        }
+        return preDexPermits;
+    }
+
+    /*
+     * Replaces the semaphore that limits the number of concurrent pre-dex processes.
+     */
+    @VisibleForTesting
+    static synchronized void setPreDexPermits(int permits) {
+        preDexPermits = new Semaphore(permits, true);
+    }
+
+    /*
+     * Returns the size of the machine's physical memory in bytes, or 0 if the JVM doesn't say.
+     * getTotalPhysicalMemorySize is deprecated from Java 14 in favour of getTotalMemorySize,
+     * which the Java versions the build server supports don't have yet.
+     */
+    @SuppressWarnings("deprecation")
+    private static long getTotalPhysicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
         }
+        return 0;
     }
 
     public boolean execute(List<File> paths) {
-        // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
-        if (!successPredex) return false;
+        return preDex(paths) && merge(paths);
+    }
 
+    /**
+     * Pre-dexes the libraries in paths into the dex cache, if they aren't there yet, and
+     * replaces them in paths with their pre-dexed versions. Builds only wait for each other
+     * here when they need the same cache entry, so callers should not hold a global lock.
+     *
+     * @param paths the inputs of dx
+     * @return {@code true} if every library was pre-dexed, {@code false} otherwise
+     */
+    public boolean preDex(List<File> paths) {
+        return preDexLibraries(paths);
+    }
+
+    /**
+     * Runs dx on paths, as returned by {@link #preDex}, to write the output.
+     *
+     * @param paths the inputs of dx
+     * @return {@code true} if dx succeeded, {@code false} otherwise
+     */
+    public boolean merge(List<File> paths) {
         System.out.println(String.format(
                 "Converting compiled files and external libraries into %1$s...", mOutput));
 
         return runDx(paths, mOutput, mVerbose /*showInputs*/);
     }
 
-    private boolean runDx(File input, String output, boolean showInputs) {
-        return runDx(Collections.singleton(input), output, showInputs);
-    }
-
-    private boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
+    @VisibleForTesting
+    boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
         int mx = mChildProcessRamMb - 200;
 
         List<String> commandLineList = new ArrayList<String>();
@@ -0,0 +1,184 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index of the MD5 hashes of files.
+ *
+ * <p>A file is identified by its absolute path, size and modification time; as long as those
+ * don't change the hash is looked up instead of read from the file again. The index survives
+ * restarts in an append-only text file, one entry per line. Later lines override earlier ones,
+ * and the file is compacted when it is loaded.</p>
+ *
+ */
+final class FileHashIndex {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FileHashIndex.class.getName());
+
+  // The index is compacted when the number of entries doubles, but not below this size.
+  private static final int MIN_COMPACTION_SIZE = 1000;
+
+  private static class Entry {
+    final long size;
+    final long lastModified;
+    final String hash;
+
+    Entry(long size, long lastModified, String hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+  }
+
+  private final File indexFile;
+
+  // Guards entries and the index file.
+  private final Object lock = new Object();
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private int compactionSize = MIN_COMPACTION_SIZE;
+
+  /**
+   * Creates a FileHashIndex, loading the entries saved in the given file, if any.
+   *
+   * @param indexFile  the file the index is saved in
+   */
+  FileHashIndex(File indexFile) {
+    this.indexFile = indexFile;
+    synchronized (lock) {
+      if (load() > 0) {
+        compact();
+      }
+    }
+  }
+
+  /**
+   * Returns the hex encoded MD5 hash of the given file's contents.
+   */
+  String getHash(File file) throws IOException {
+    String path = file.getAbsolutePath();
+    long size = file.length();
+    long lastModified = file.lastModified();
+    synchronized (lock) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+        return entry.hash;
+      }
+    }
+    // Hash outside the lock, so large files don't hold up other lookups.
+    String hash = Files.hash(file, Hashing.md5()).toString();
+    if (file.length() != size || file.lastModified() != lastModified) {
+      // The file changed while we read it. Don't remember a hash that may be wrong.
+      return hash;
+    }
+    Entry entry = new Entry(size, lastModified, hash);
+    synchronized (lock) {
+      entries.put(path, entry);
+      if (entries.size() > compactionSize) {
+        // Many indexed files are temporary. Forget them once they are gone.
+        compact();
+        return hash;
+      }
+      try {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true),
+            Charsets.UTF_8);
+        try {
+          writer.write(format(path, entry));
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to update " + indexFile, e);
+      }
+    }
+    return hash;
+  }
+
+  /*
+   * Loads the index file and returns the number of lines read.
+   */
+  private int load() {
+    if (!indexFile.exists()) {
+      return 0;
+    }
+    int lines = 0;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(indexFile), Charsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          // hash size lastModified path
+          String[] fields = line.split(" ", 4);
+          if (fields.length == 4) {
+            try {
+              entries.put(fields[3], new Entry(Long.parseLong(fields[1]),
+                  Long.parseLong(fields[2]), fields[0]));
+            } catch (NumberFormatException e) {
+              // A partially written line. Ignore it.
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read " + indexFile, e);
+    }
+    return lines;
+  }
+
+  /*
+   * Drops the entries of files that no longer exist and rewrites the index file with one line
+   * per entry. Must be called while holding lock.
+   */
+  private void compact() {
+    StringBuilder sb = new StringBuilder();
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      if (new File(entry.getKey()).exists()) {
+        sb.append(format(entry.getKey(), entry.getValue()));
+      } else {
+        iterator.remove();
+      }
+    }
+    compactionSize = Math.max(MIN_COMPACTION_SIZE, 2 * entries.size());
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+    try {
+      Files.write(sb, tmpFile, Charsets.UTF_8);
+      if (!tmpFile.renameTo(indexFile)) {
+        throw new IOException("Unable to rename " + tmpFile + " to " + indexFile);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to compact " + indexFile, e);
+      tmpFile.delete();
+    }
+  }
+
+  private static String format(String path, Entry entry) {
+    return entry.hash + " " + entry.size + " " + entry.lastModified + " " + path + "\n";
+  }
+}
@@ -0,0 +1,219 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of warm Kawa compiler processes.
+ *
+ * <p>Launching a JVM and loading runtime.scm dominates the Kawa compile time of small projects.
+ * Each worker process runs {@link KawaCompilerWorker}, which loads runtime.scm once and then
+ * compiles one project at a time. Several projects are compiled in parallel, one per worker.
+ * Each worker runs with its own maximum heap; a worker is replaced after it has used more than
+ * {@link #MAX_HEAP_FRACTION} of that heap or compiled {@link #MAX_COMPILES_PER_WORKER} projects,
+ * which bounds the memory leaked by Kawa's global state.</p>
+ *
+ */
+final class KawaCompilerPool {
+
+  static final double MAX_HEAP_FRACTION = 0.75;
+  static final int MAX_COMPILES_PER_WORKER = 100;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+  private static final Joiner joiner = Joiner.on(" ");
+
+  private final int maxWorkers;
+  private final int workerRamMb;
+  private final Semaphore permits;
+  private final LinkedBlockingDeque<Worker> idleWorkers = new LinkedBlockingDeque<Worker>();
+
+  private final AtomicInteger startedWorkerCount = new AtomicInteger(0);
+  private final AtomicInteger retiredWorkerCount = new AtomicInteger(0);
+  private final AtomicInteger compileCount = new AtomicInteger(0);
+
+  /*
+   * A single compiler process and its channel.
+   */
+  private static class Worker {
+    final String classpath;
+    final Process process;
+    final DataOutputStream requests;
+    final DataInputStream responses;
+    int compiles = 0;
+
+    Worker(String classpath, Process process) {
+      this.classpath = classpath;
+      this.process = process;
+      this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    void destroy() {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Creates a KawaCompilerPool. Worker processes are started on demand.
+   *
+   * @param maxWorkers  the maximum number of compiler processes
+   * @param workerRamMb  maximum ram that can be used by each compiler process, in MB
+   */
+  KawaCompilerPool(int maxWorkers, int workerRamMb) {
+    this.maxWorkers = maxWorkers;
+    this.workerRamMb = workerRamMb;
+    this.permits = new Semaphore(maxWorkers, true);
+  }
+
+  /**
+   * Compiles with a warm compiler process, blocking until one is available.
+   *
+   * @param classpath  the Kawa compile classpath
+   * @param yailRuntime  the path of runtime.scm
+   * @param kawaArgs  the Kawa arguments, without the {@code -f runtime.scm} prefix
+   * @param out  stream to redirect the compiler's standard output to
+   * @param err  stream to redirect the compiler's standard error to
+   * @return  {@code true} if the compilation succeeds, {@code false} otherwise
+   */
+  boolean compile(String classpath, String yailRuntime, List<String> kawaArgs,
+      PrintStream out, PrintStream err) {
+    permits.acquireUninterruptibly();
+    try {
+      Worker worker = checkOutWorker(classpath, yailRuntime);
+      if (worker == null) {
+        return false;
+      }
+      LOG.log(Level.INFO, "____Compiling in warm Kawa worker: " + joiner.join(kawaArgs));
+      compileCount.incrementAndGet();
+      boolean success;
+      boolean alive;
+      long usedHeap;
+      try {
+        worker.requests.writeInt(kawaArgs.size());
+        for (String arg : kawaArgs) {
+          worker.requests.writeUTF(arg);
+        }
+        worker.requests.flush();
+
+        success = worker.responses.readBoolean();
+        alive = worker.responses.readBoolean();
+        usedHeap = worker.responses.readLong();
+        out.print(readString(worker.responses));
+        err.print(readString(worker.responses));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "____Kawa worker failure: ", e);
+        retire(worker);
+        return false;
+      }
+      worker.compiles++;
+      long maxHeap = (workerRamMb - 200) * 1024L * 1024L;
+      if (!alive || usedHeap > maxHeap * MAX_HEAP_FRACTION
+          || worker.compiles >= MAX_COMPILES_PER_WORKER) {
+        retire(worker);
+      } else {
+        idleWorkers.addFirst(worker);
+      }
+      return success;
+    } finally {
+      permits.release();
+    }
+  }
+
+  private Worker checkOutWorker(String classpath, String yailRuntime) {
+    Worker worker = idleWorkers.pollFirst();
+    if (worker != null && !worker.classpath.equals(classpath)) {
+      retire(worker);
+      worker = null;
+    }
+    if (worker == null) {
+      try {
+        worker = startWorker(classpath, yailRuntime);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "____Unable to start Kawa worker: ", e);
+        return null;
+      }
+    }
+    return worker;
+  }
+
+  private Worker startWorker(String classpath, String yailRuntime) throws IOException {
+    String workerClasspath = classpath + File.pathSeparator + getWorkerClassLocation();
+    String[] command = {
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + (workerRamMb - 200) + "M",
+        "-cp", workerClasspath,
+        KawaCompilerWorker.class.getName(),
+        yailRuntime
+    };
+    LOG.log(Level.INFO, "____Starting Kawa worker " + joiner.join(command));
+    ProcessBuilder processBuilder = new ProcessBuilder(command);
+    processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    startedWorkerCount.incrementAndGet();
+    return new Worker(classpath, processBuilder.start());
+  }
+
+  private void retire(Worker worker) {
+    retiredWorkerCount.incrementAndGet();
+    try {
+      worker.requests.close();
+    } catch (IOException e) {
+      // OK to ignore, we are getting rid of the worker.
+    }
+    worker.destroy();
+  }
+
+  private static String getWorkerClassLocation() {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to locate the Kawa worker class", e);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  public int getStartedWorkerCount() {
+    return startedWorkerCount.get();
+  }
+
+  public int getRetiredWorkerCount() {
+    return retiredWorkerCount.get();
+  }
+
+  public int getCompileCount() {
+    return compileCount.get();
+  }
+}
@@ -0,0 +1,181 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main class of a long-lived Kawa compiler process, see {@link KawaCompilerPool}.
+ *
+ * <p>The worker loads the YAIL runtime once at startup and then compiles the YAIL files of one
+ * project per request. Requests are read from stdin and responses are written to stdout (the
+ * real one; System.out and System.err are redirected to per-request buffers). This class must
+ * only depend on the JDK because it runs with the Kawa compile classpath; Kawa itself is called
+ * through reflection since it isn't on the build server's own classpath.</p>
+ *
+ * <p>A request is an int argument count followed by that many UTF strings, the Kawa command line
+ * arguments. A response is a boolean success flag, a boolean flag that is false if the worker
+ * is exiting, the used heap size as a long, and then the captured stdout and stderr, each as an
+ * int length followed by the bytes.</p>
+ *
+ */
+public final class KawaCompilerWorker {
+
+  /*
+   * An output stream whose target can be switched. System.out and System.err are replaced with
+   * these before any Kawa class is loaded, because Kawa keeps references to the streams.
+   */
+  private static class SwitchableOutputStream extends OutputStream {
+    private volatile OutputStream target;
+
+    SwitchableOutputStream(OutputStream target) {
+      this.target = target;
+    }
+
+    void setTarget(OutputStream target) {
+      this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target.flush();
+    }
+  }
+
+  private static final Object channelLock = new Object();
+  private static DataOutputStream channel;
+  private static ByteArrayOutputStream requestOut;
+  private static ByteArrayOutputStream requestErr;
+  private static boolean responded = true;
+
+  private KawaCompilerWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the YAIL runtime file to load
+   */
+  public static void main(String[] args) throws IOException {
+    channel = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(FileDescriptor.out)));
+    PrintStream originalErr = System.err;
+    SwitchableOutputStream stdout = new SwitchableOutputStream(originalErr);
+    SwitchableOutputStream stderr = new SwitchableOutputStream(originalErr);
+    System.setOut(new PrintStream(stdout, true, "UTF-8"));
+    System.setErr(new PrintStream(stderr, true, "UTF-8"));
+
+    // Kawa calls System.exit when a file fails to compile. Answer the pending request before the
+    // process goes away so the build server sees the compiler messages.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        respond(false, false);
+      }
+    });
+
+    Method processArgs;
+    Object moduleManager;
+    Method clearModules;
+    try {
+      processArgs = Class.forName("kawa.repl")
+          .getMethod("processArgs", String[].class, int.class, int.class);
+      Class<?> moduleManagerClass = Class.forName("gnu.expr.ModuleManager");
+      moduleManager = moduleManagerClass.getMethod("getInstance").invoke(null);
+      clearModules = moduleManagerClass.getMethod("clear");
+      // Load the runtime once. This is what makes the worker warm.
+      processArgs.invoke(null, new String[] { "-f", args[0] }, 0, 2);
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to start the Kawa compiler", e);
+    }
+
+    DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+    while (true) {
+      String[] kawaArgs;
+      try {
+        kawaArgs = new String[requests.readInt()];
+      } catch (EOFException e) {
+        // The build server closed the channel.
+        break;
+      }
+      for (int i = 0; i < kawaArgs.length; i++) {
+        kawaArgs[i] = requests.readUTF();
+      }
+
+      synchronized (channelLock) {
+        requestOut = new ByteArrayOutputStream();
+        requestErr = new ByteArrayOutputStream();
+        responded = false;
+      }
+      stdout.setTarget(requestOut);
+      stderr.setTarget(requestErr);
+      boolean success;
+      try {
+        // Forget the modules compiled for the previous project.
+        clearModules.invoke(moduleManager);
+        processArgs.invoke(null, kawaArgs, 0, kawaArgs.length);
+        success = true;
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace();
+        success = false;
+      } catch (Exception e) {
+        e.printStackTrace();
+        success = false;
+      }
+      System.out.flush();
+      System.err.flush();
+      stdout.setTarget(originalErr);
+      stderr.setTarget(originalErr);
+      respond(success, true);
+    }
+  }
+
+  private static void respond(boolean success, boolean alive) {
+    synchronized (channelLock) {
+      if (responded) {
+        return;
+      }
+      responded = true;
+      try {
+        Runtime runtime = Runtime.getRuntime();
+        channel.writeBoolean(success);
+        channel.writeBoolean(alive);
+        channel.writeLong(runtime.totalMemory() - runtime.freeMemory());
+        byte[] out = requestOut.toByteArray();
+        channel.writeInt(out.length);
+        channel.write(out);
+        byte[] err = requestErr.toByteArray();
+        channel.writeInt(err.length);
+        channel.write(err);
+        channel.flush();
+      } catch (IOException e) {
+        // The build server went away. Nothing to do.
+      }
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A pool of RSA key pairs for the keystores of projects that don't have one yet.
+ *
+ * <p>Generating the key pair is what makes creating a keystore slow. A background thread
+ * keeps up to {@code size} key pairs ready, and {@link #createKeyStore} takes one of them and
+ * only has to sign the certificate that carries the user's name. When the pool is empty, the
+ * key pair is generated on the spot.</p>
+ *
+ */
+final class KeyStorePool {
+
+  // The same key and certificate keytool -genkey -keyalg RSA creates.
+  static final String KEY_ALGORITHM = "RSA";
+  static final int KEY_SIZE = 2048;
+  static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the expiration # of days.
+  static final long VALIDITY_DAYS = 10000;
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStorePool.class.getName());
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final BlockingQueue<KeyPair> keyPairs;
+  private final AtomicInteger hitCount = new AtomicInteger(0);
+  private final AtomicInteger missCount = new AtomicInteger(0);
+
+  /**
+   * Creates a KeyStorePool and starts filling it.
+   *
+   * @param size  the number of key pairs to keep ready
+   */
+  KeyStorePool(int size) {
+    keyPairs = new ArrayBlockingQueue<KeyPair>(size);
+    Thread generator = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            keyPairs.put(generateKeyPair());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Cannot generate key pairs for keystores", e);
+        }
+      }
+    }, "KeyStorePool");
+    generator.setDaemon(true);
+    generator.setPriority(Thread.MIN_PRIORITY);
+    generator.start();
+  }
+
+  /**
+   * Creates a keystore with a key pair from the pool, or a new one if the pool is empty.
+   *
+   * @param pool  the pool to take the key pair from, or null to always generate a new one
+   * @param subject  the name the certificate is issued to and by
+   * @param file  the keystore file to write
+   */
+  static void createKeyStore(KeyStorePool pool, X500Principal subject, File file)
+      throws IOException, GeneralSecurityException {
+    KeyPair keyPair = pool == null ? generateKeyPair() : pool.take();
+    writeKeyStore(keyPair, subject, file);
+  }
+
+  /*
+   * Returns a key pair from the pool, or a new one if the pool is empty.
+   */
+  private KeyPair take() throws GeneralSecurityException {
+    KeyPair keyPair = keyPairs.poll();
+    if (keyPair != null) {
+      hitCount.incrementAndGet();
+      return keyPair;
+    }
+    missCount.incrementAndGet();
+    return generateKeyPair();
+  }
+
+  int getSize() {
+    return keyPairs.size() + keyPairs.remainingCapacity();
+  }
+
+  int getReadyCount() {
+    return keyPairs.size();
+  }
+
+  int getHitCount() {
+    return hitCount.get();
+  }
+
+  int getMissCount() {
+    return missCount.get();
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  /*
+   * Writes a keystore holding the key pair and a self-signed certificate for it, under the
+   * alias and passwords the compiler signs apks with.
+   */
+  private static void writeKeyStore(KeyPair keyPair, X500Principal subject, File file)
+      throws IOException, GeneralSecurityException {
+    long now = System.currentTimeMillis();
+    X509Certificate certificate;
+    try {
+      certificate = new JcaX509CertificateConverter().getCertificate(
+          new JcaX509v3CertificateBuilder(subject, new BigInteger(64, random), new Date(now),
+              new Date(now + TimeUnit.DAYS.toMillis(VALIDITY_DAYS)), subject,
+              keyPair.getPublic())
+              .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(
+                  keyPair.getPrivate())));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+
+    char[] password = ApkSealer.KEYSTORE_PASSWORD.toCharArray();
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    keyStore.load(null, password);
+    keyStore.setKeyEntry(ApkSealer.KEY_ALIAS, keyPair.getPrivate(), password,
+        new Certificate[] { certificate });
+    OutputStream out = new FileOutputStream(file);
+    try {
+      keyStore.store(out, password);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -45,6 +45,15 @@ public final class Main {
     @Option(name = "--dexCacheDir",
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache compiled classes, packaged resources and the " +
+                    "dexed companion libraries in")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+            usage = "Maximum size of the build cache, in MB.")
+    int buildCacheMaxMb = 2048;
   }
 
   private static CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -71,6 +80,11 @@ public final class Main {
       System.exit(1);
     }
 
+    if (commandLineOptions.buildCacheDir != null) {
+      Compiler.setBuildCache(new BuildCache(new File(commandLineOptions.buildCacheDir),
+          commandLineOptions.buildCacheMaxMb * 1024L * 1024L));
+    }
+
     ProjectBuilder projectBuilder = new ProjectBuilder();
     ZipFile zip = null;
     try {
@@ -84,7 +98,8 @@ public final class Main {
                                          commandLineOptions.outputDir,
                                          commandLineOptions.isForCompanion,
                                          commandLineOptions.childProcessRamMb,
-                                         commandLineOptions.dexCacheDir);
+                                         commandLineOptions.dexCacheDir,
+                                         new BuildProgress(null));
     System.exit(result.getResult());
   }
 
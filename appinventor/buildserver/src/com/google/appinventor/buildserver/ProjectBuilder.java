@@ -29,18 +29,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import javax.security.auth.x500.X500Principal;
+
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -59,6 +63,9 @@ public final class ProjectBuilder {
 
   private static final int MAX_COMPILER_MESSAGE_LENGTH = 160;
 
+  // Pre-generated key pairs for new keystores, or null to generate one for every keystore
+  private static volatile KeyStorePool keyStorePool = null;
+
   // Project folder prefixes
   // TODO(user): These constants are (or should be) also defined in
   // appengine/src/com/google/appinventor/server/project/youngandroid/YoungAndroidProjectService
@@ -119,9 +126,10 @@ public final class ProjectBuilder {
   }
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+               int childProcessRam, String dexCachePath, BuildProgress buildProgress) {
     try {
       // Download project files into a temporary directory
+      buildProgress.startStage("Extract");
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
@@ -133,6 +141,7 @@ public final class ProjectBuilder {
           return Result.createFailingResult("", "Problems processing zip file.");
         }
 
+        buildProgress.startStage("Yail");
         try {
           genYailFilesIfNecessary(sourceFiles);
         } catch (YailGenerationException e) {
@@ -147,6 +156,7 @@ public final class ProjectBuilder {
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
+          buildProgress.startStage("Keystore");
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
           saveKeystore = true;
         }
@@ -169,7 +179,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, buildProgress);
         console.close();
         userErrors.close();
 
@@ -336,32 +346,34 @@ public final class ProjectBuilder {
     return nameTypeMap;
   }
 
+  static void setKeyStorePool(KeyStorePool pool) {
+    keyStorePool = pool;
+  }
+
+  static KeyStorePool getKeyStorePool() {
+    return keyStorePool;
+  }
+
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
 
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+    // The key pair may come from the pool; the user's name is only applied to the
+    // certificate. For DNAME, US may not the right country to assign it to.
+    try {
+      X500Principal subject = new X500Principal(
+          "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US");
+      KeyStorePool.createKeyStore(keyStorePool, subject, keyStoreFile);
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.SEVERE, "Cannot create keystore", e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      // The user name doesn't make a valid distinguished name.
+      LOG.log(Level.SEVERE, "Cannot create keystore", e);
+      return null;
+    }
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -533,8 +545,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
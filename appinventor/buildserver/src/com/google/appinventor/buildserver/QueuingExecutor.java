@@ -0,0 +1,356 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing build tasks using a reusable pool of worker threads.
+ *
+ * <p>This Executor allows only a certain number of simultaneous tasks. Additional tasks are
+ * held in a bounded queue until a worker becomes free. Queued tasks are grouped by a queue key
+ * (the user name for builds) and dispatched round-robin across keys, so one user submitting
+ * many builds cannot starve everybody else. Tasks that wait in the queue longer than the
+ * configured deadline are expired instead of run; the queue is checked for them periodically,
+ * so a task expires on time even when no other task is submitted or finishes, and their
+ * handlers run on a thread of their own. Tasks are rejected only when the queue itself is
+ * full, or right away when no tasks may be queued.</p>
+ */
+final class QueuingExecutor implements Executor {
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of queued tasks. 0 means tasks are never queued.
+  private final int maxQueuedTasks;
+
+  // The maximum time a task may wait in the queue before it is expired. 0 means forever.
+  private final long maxQueueWaitMillis;
+
+  // The longest time between two checks for expired tasks.
+  private static final long MAX_EXPIRY_CHECK_MILLIS = 1000;
+
+  private final ExecutorService workers;
+
+  // Checks the queue for expired tasks, or null if tasks never expire.
+  private final ScheduledExecutorService expiryChecker;
+
+  // Runs the handlers of expired tasks, which may block, e.g. to tell the caller.
+  private final ExecutorService expiredTaskHandlers;
+
+  // lock guards activeTaskCount, queuedTaskCount, queues and the queue wait statistics.
+  private final Object lock = new Object();
+  private int activeTaskCount = 0;
+  private int queuedTaskCount = 0;
+  private long totalQueueWaitMillis = 0;
+  private int dequeuedTaskCount = 0;
+
+  // Queued tasks, grouped by queue key. The iteration order of the map is the round-robin
+  // order; a key is moved to the end after one of its tasks is dispatched.
+  private final LinkedHashMap<String, LinkedList<QueuedTask>> queues =
+      new LinkedHashMap<String, LinkedList<QueuedTask>>();
+
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger expiredTaskCount = new AtomicInteger(0);
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(QueuingExecutor.class.getName());
+
+  private static class QueuedTask {
+    final Runnable task;
+    final Runnable onExpired;
+    final long enqueueTime;
+
+    QueuedTask(Runnable task, Runnable onExpired, long enqueueTime) {
+      this.task = task;
+      this.onExpired = onExpired;
+      this.enqueueTime = enqueueTime;
+    }
+  }
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for a free worker
+   * @param maxQueueWaitMillis how long a task may wait in the queue, 0 means forever
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks, long maxQueueWaitMillis) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.maxQueueWaitMillis = maxQueueWaitMillis;
+    ThreadFactory threadFactory = newThreadFactory("build-worker-");
+    workers = (maxActiveTasks == 0)
+        ? Executors.newCachedThreadPool(threadFactory)
+        : Executors.newFixedThreadPool(maxActiveTasks, threadFactory);
+    expiredTaskHandlers = Executors.newCachedThreadPool(newThreadFactory("build-expired-"));
+    if (maxQueuedTasks > 0 && maxQueueWaitMillis > 0) {
+      long period = Math.max(1, Math.min(MAX_EXPIRY_CHECK_MILLIS, maxQueueWaitMillis / 10));
+      expiryChecker = Executors.newSingleThreadScheduledExecutor(
+          newThreadFactory("build-queue-expiry-"));
+      expiryChecker.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          expireTasks();
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    } else {
+      expiryChecker = null;
+    }
+  }
+
+  private static ThreadFactory newThreadFactory(final String namePrefix) {
+    return new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger(0);
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    execute("", runnable, null);
+  }
+
+  /**
+   * Executes the given task now if a worker is free, otherwise queues it behind the other
+   * tasks with the same queue key.
+   *
+   * @param queueKey the key used for fair dispatching, typically the user name
+   * @param runnable the task
+   * @param onExpired run instead of the task if it waits longer than the queue deadline,
+   *                  may be null
+   * @throws RejectedExecutionException if all workers are busy and the queue is full
+   */
+  public void execute(String queueKey, Runnable runnable, Runnable onExpired) {
+    if (queueKey == null) {
+      queueKey = "";
+    }
+    List<QueuedTask> expired = new ArrayList<QueuedTask>();
+    boolean start = false;
+    boolean rejected = false;
+    synchronized (lock) {
+      long now = System.currentTimeMillis();
+      removeExpiredTasks(now, expired);
+      // Check whether the executor is below maximum capacity.
+      if (maxActiveTasks == 0 || activeTaskCount < maxActiveTasks) {
+        activeTaskCount++;
+        start = true;
+      } else if (queuedTaskCount < maxQueuedTasks) {
+        LinkedList<QueuedTask> queue = queues.get(queueKey);
+        if (queue == null) {
+          queue = new LinkedList<QueuedTask>();
+          queues.put(queueKey, queue);
+        }
+        queue.addLast(new QueuedTask(runnable, onExpired, now));
+        queuedTaskCount++;
+      } else {
+        rejected = true;
+      }
+    }
+    runExpiredTasks(expired);
+    if (rejected) {
+      // If the executor is at maximum capacity and the queue is full, reject the task.
+      throw new RejectedExecutionException();
+    }
+    if (start) {
+      startTask(runnable);
+    }
+  }
+
+  private void expireTasks() {
+    List<QueuedTask> expired = new ArrayList<QueuedTask>();
+    synchronized (lock) {
+      removeExpiredTasks(System.currentTimeMillis(), expired);
+    }
+    runExpiredTasks(expired);
+  }
+
+  private void startTask(final Runnable runnable) {
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runnable.run();
+        } finally {
+          taskFinished();
+        }
+      }
+    });
+  }
+
+  private void taskFinished() {
+    List<QueuedTask> expired = new ArrayList<QueuedTask>();
+    QueuedTask next;
+    synchronized (lock) {
+      activeTaskCount--;
+      completedTaskCount.incrementAndGet();
+      next = pollNextTask(System.currentTimeMillis(), expired);
+      if (next != null) {
+        activeTaskCount++;
+      }
+    }
+    runExpiredTasks(expired);
+    if (next != null) {
+      startTask(next.task);
+    }
+  }
+
+  /*
+   * Removes and returns the next task in round-robin order, skipping over (and collecting)
+   * expired tasks. Must be called while holding lock.
+   */
+  private QueuedTask pollNextTask(long now, List<QueuedTask> expired) {
+    while (!queues.isEmpty()) {
+      String queueKey = queues.keySet().iterator().next();
+      LinkedList<QueuedTask> queue = queues.remove(queueKey);
+      QueuedTask queuedTask = queue.removeFirst();
+      queuedTaskCount--;
+      if (!queue.isEmpty()) {
+        // Move this key to the end of the round-robin order.
+        queues.put(queueKey, queue);
+      }
+      if (isExpired(queuedTask, now)) {
+        expired.add(queuedTask);
+      } else {
+        totalQueueWaitMillis += now - queuedTask.enqueueTime;
+        dequeuedTaskCount++;
+        return queuedTask;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Removes all expired tasks from the queues. Must be called while holding lock.
+   */
+  private void removeExpiredTasks(long now, List<QueuedTask> expired) {
+    Iterator<LinkedList<QueuedTask>> iterator = queues.values().iterator();
+    while (iterator.hasNext()) {
+      LinkedList<QueuedTask> queue = iterator.next();
+      // Tasks with the same key are in arrival order, so expired tasks are at the front.
+      while (!queue.isEmpty() && isExpired(queue.getFirst(), now)) {
+        expired.add(queue.removeFirst());
+        queuedTaskCount--;
+      }
+      if (queue.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private boolean isExpired(QueuedTask queuedTask, long now) {
+    return maxQueueWaitMillis > 0 && now - queuedTask.enqueueTime > maxQueueWaitMillis;
+  }
+
+  private void runExpiredTasks(List<QueuedTask> expired) {
+    for (QueuedTask queuedTask : expired) {
+      expiredTaskCount.incrementAndGet();
+      final Runnable onExpired = queuedTask.onExpired;
+      if (onExpired != null) {
+        expiredTaskHandlers.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              onExpired.run();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Expired task handler failed", e);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public long getMaxQueueWaitMillis() {
+    return maxQueueWaitMillis;
+  }
+
+  public int getActiveTaskCount() {
+    synchronized (lock) {
+      return activeTaskCount;
+    }
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return queuedTaskCount;
+    }
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public int getExpiredTaskCount() {
+    return expiredTaskCount.get();
+  }
+
+  /**
+   * Returns the average time, in milliseconds, that dispatched tasks spent in the queue.
+   */
+  public long getAverageQueueWaitMillis() {
+    synchronized (lock) {
+      return (dequeuedTaskCount == 0) ? 0 : totalQueueWaitMillis / dequeuedTaskCount;
+    }
+  }
+
+  /**
+   * Returns how long, in milliseconds, the oldest queued task has been waiting, or 0 if the
+   * queue is empty.
+   */
+  public long getOldestQueuedTaskWaitMillis() {
+    synchronized (lock) {
+      long now = System.currentTimeMillis();
+      long oldest = 0;
+      for (LinkedList<QueuedTask> queue : queues.values()) {
+        oldest = Math.max(oldest, now - queue.getFirst().enqueueTime);
+      }
+      return oldest;
+    }
+  }
+
+  /**
+   * Returns the 1-based position at which the next queued task for the given key will be
+   * dispatched, or 0 if the key has no queued tasks.
+   */
+  public int getQueuePosition(String queueKey) {
+    synchronized (lock) {
+      int position = 1;
+      for (String key : queues.keySet()) {
+        if (key.equals(queueKey)) {
+          return position;
+        }
+        position++;
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import org.codehaus.jettison.json.JSONException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The stages of a build and the stages each of them depends on.
+ *
+ * <p>{@link #run} starts each stage as soon as all the stages it depends on have succeeded, so
+ * independent stages run at the same time. Once a stage fails, no more stages are started. The
+ * time each stage took is recorded, and {@link #getTimingReport} reports them along with the
+ * critical path: the chain of stages that determined how long the build took.</p>
+ *
+ */
+final class StageGraph {
+
+  /**
+   * The work of one stage.
+   */
+  interface Task {
+    /**
+     * Runs the stage.
+     *
+     * @return  {@code true} if the stage succeeds, {@code false} otherwise
+     */
+    boolean run() throws IOException, JSONException;
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageGraph.class.getName());
+
+  private static class Stage {
+    final String name;
+    final Task task;
+    final List<Stage> dependencies;
+    boolean started = false;
+    boolean succeeded = false;
+    // Set by the thread running the graph once it has seen the stage finish.
+    boolean finished = false;
+    long startTime = 0;
+    long endTime = 0;
+
+    Stage(String name, Task task, List<Stage> dependencies) {
+      this.name = name;
+      this.task = task;
+      this.dependencies = dependencies;
+    }
+
+    long getMillis() {
+      return endTime - startTime;
+    }
+  }
+
+  private final BuildProgress buildProgress;
+
+  // The stages in the order they were added. Dependencies are always added first.
+  private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+  /**
+   * Creates an empty StageGraph.
+   *
+   * @param buildProgress  the build's progress record, which gets the start and end of each
+   *                       stage
+   */
+  StageGraph(BuildProgress buildProgress) {
+    this.buildProgress = buildProgress;
+  }
+
+  /**
+   * Adds a stage.
+   *
+   * @param name  the stage name, as shown in the build progress and the timing report
+   * @param task  the work of the stage
+   * @param dependencies  the names of the stages that must succeed before this one starts;
+   *                      they must have been added already
+   */
+  void add(String name, Task task, String... dependencies) {
+    if (stages.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate stage " + name);
+    }
+    List<Stage> dependencyStages = Lists.newArrayList();
+    for (String dependency : dependencies) {
+      Stage stage = stages.get(dependency);
+      if (stage == null) {
+        throw new IllegalArgumentException("Unknown stage " + dependency);
+      }
+      dependencyStages.add(stage);
+    }
+    stages.put(name, new Stage(name, task, dependencyStages));
+  }
+
+  /**
+   * Runs the stages on the given executor and waits for them to finish. If a stage fails or
+   * throws, the stages already running are allowed to finish and no other stages are started.
+   *
+   * @return  {@code true} if all the stages succeed, {@code false} otherwise
+   * @throws IOException  if a stage throws it
+   * @throws JSONException  if a stage throws it
+   */
+  boolean run(ExecutorService executor) throws IOException, JSONException {
+    CompletionService<Stage> completionService = new ExecutorCompletionService<Stage>(executor);
+    int running = 0;
+    boolean failed = false;
+    Throwable thrown = null;
+    while (true) {
+      if (!failed) {
+        for (final Stage stage : stages.values()) {
+          if (!stage.started && dependenciesSucceeded(stage)) {
+            stage.started = true;
+            running++;
+            completionService.submit(new Callable<Stage>() {
+              @Override
+              public Stage call() throws Exception {
+                buildProgress.startConcurrentStage(stage.name);
+                stage.startTime = System.currentTimeMillis();
+                try {
+                  stage.succeeded = stage.task.run();
+                } finally {
+                  stage.endTime = System.currentTimeMillis();
+                  buildProgress.endConcurrentStage(stage.name);
+                }
+                return stage;
+              }
+            });
+          }
+        }
+      }
+      if (running == 0) {
+        break;
+      }
+
+      Future<Stage> future;
+      try {
+        future = completionService.take();
+      } catch (InterruptedException e) {
+        // Let the running stages finish on their own; their results are no longer needed.
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      running--;
+      try {
+        Stage stage = future.get();
+        stage.finished = true;
+        if (!stage.succeeded) {
+          failed = true;
+        }
+      } catch (InterruptedException e) {
+        // Not reached: take() only returns finished futures.
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException e) {
+        failed = true;
+        if (thrown == null) {
+          thrown = e.getCause();
+        } else {
+          LOG.log(Level.WARNING, "Another stage failed too", e.getCause());
+        }
+      }
+    }
+
+    if (thrown instanceof IOException) {
+      throw (IOException) thrown;
+    } else if (thrown instanceof JSONException) {
+      throw (JSONException) thrown;
+    } else if (thrown instanceof RuntimeException) {
+      throw (RuntimeException) thrown;
+    } else if (thrown instanceof Error) {
+      throw (Error) thrown;
+    } else if (thrown != null) {
+      throw new IllegalStateException(thrown);
+    }
+    return !failed;
+  }
+
+  private static boolean dependenciesSucceeded(Stage stage) {
+    for (Stage dependency : stage.dependencies) {
+      if (!dependency.finished || !dependency.succeeded) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the names of the stages on the critical path of the last run, in the order they ran.
+   * The path ends with the stage that finished last, and each stage on it is preceded by the one
+   * of its dependencies that finished last, which is the one it had to wait for.
+   */
+  List<String> getCriticalPath() {
+    Stage last = null;
+    for (Stage stage : stages.values()) {
+      if (stage.started && (last == null || stage.endTime >= last.endTime)) {
+        last = stage;
+      }
+    }
+    List<String> path = Lists.newArrayList();
+    Stage stage = last;
+    while (stage != null) {
+      path.add(stage.name);
+      Stage latest = null;
+      for (Stage dependency : stage.dependencies) {
+        if (latest == null || dependency.endTime >= latest.endTime) {
+          latest = dependency;
+        }
+      }
+      stage = latest;
+    }
+    Collections.reverse(path);
+    return path;
+  }
+
+  /**
+   * Returns how long each stage of the last run took and its critical path.
+   */
+  String getTimingReport() {
+    StringBuilder sb = new StringBuilder("Stage times:\n");
+    for (Stage stage : stages.values()) {
+      if (stage.started) {
+        sb.append("  ").append(stage.name).append(": ")
+            .append(stage.getMillis() / 1000.0).append(" seconds\n");
+      }
+    }
+    long criticalMillis = 0;
+    StringBuilder path = new StringBuilder();
+    for (String name : getCriticalPath()) {
+      criticalMillis += stages.get(name).getMillis();
+      if (path.length() > 0) {
+        path.append(" -> ");
+      }
+      path.append(name);
+    }
+    sb.append("Critical path: ").append(path).append(" (")
+        .append(criticalMillis / 1000.0).append(" seconds)\n");
+    return sb.toString();
+  }
+}
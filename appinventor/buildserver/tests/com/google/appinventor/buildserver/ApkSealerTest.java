@@ -0,0 +1,248 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests ApkSealer class.
+ *
+ */
+public class ApkSealerTest extends TestCase {
+  private File tmpDir;
+  private KeyPair keyPair;
+  private X509Certificate certificate;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=Test");
+    certificate = new JcaX509CertificateConverter().getCertificate(
+        new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+            new Date(System.currentTimeMillis() - 3600000L),
+            new Date(System.currentTimeMillis() + 3600000L), name, keyPair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testEntriesAreCopiedAndStoredEntriesAligned() throws Exception {
+    File apk = seal();
+    ZipFile zip = new ZipFile(apk);
+    try {
+      assertEquals("<manifest/>", read(zip, "AndroidManifest.xml"));
+      assertEquals(ZipEntry.DEFLATED, zip.getEntry("AndroidManifest.xml").getMethod());
+      assertEquals("png", read(zip, "res/drawable/a.png"));
+      assertEquals(ZipEntry.STORED, zip.getEntry("res/drawable/a.png").getMethod());
+      assertEquals("ab", read(zip, "res/raw/b.ogg"));
+      assertEquals(ZipEntry.STORED, zip.getEntry("res/raw/b.ogg").getMethod());
+      assertEquals("dex", read(zip, "classes.dex"));
+      // The old signature of the package is dropped.
+      assertNull(zip.getEntry("META-INF/OLD.SF"));
+    } finally {
+      zip.close();
+    }
+
+    // Check that the data of each stored entry starts on a multiple of 4. The central
+    // directory, found through its end record at the end of the file, gives the method and
+    // the offset of the local header of each entry, and the local header the length of the
+    // name and extra field that come before the data.
+    RandomAccessFile file = new RandomAccessFile(apk, "r");
+    try {
+      long end = file.length() - 22;
+      assertEquals(0x06054b50, readInt(file, end));
+      int entries = readShort(file, end + 10);
+      long offset = readInt(file, end + 16);
+      int stored = 0;
+      for (int i = 0; i < entries; i++) {
+        assertEquals(0x02014b50, readInt(file, offset));
+        if (readShort(file, offset + 10) == ZipEntry.STORED) {
+          long header = readInt(file, offset + 42);
+          long dataStart = header + 30 + readShort(file, header + 26)
+              + readShort(file, header + 28);
+          assertEquals(0, dataStart % 4);
+          stored++;
+        }
+        offset += 46 + readShort(file, offset + 28) + readShort(file, offset + 30)
+            + readShort(file, offset + 32);
+      }
+      assertEquals(2, stored);
+    } finally {
+      file.close();
+    }
+  }
+
+  public void testSignatureCoversEveryEntry() throws Exception {
+    File apk = seal();
+    ZipFile zip = new ZipFile(apk);
+    try {
+      byte[] manifest = readBytes(zip, "META-INF/MANIFEST.MF");
+      String manifestText = new String(manifest, Charsets.UTF_8);
+      for (String name : new String[] {"AndroidManifest.xml", "res/drawable/a.png",
+          "res/raw/b.ogg", "classes.dex"}) {
+        assertTrue(manifestText.contains("Name: " + name + "\r\nSHA1-Digest: "
+            + sha1(readBytes(zip, name)) + "\r\n\r\n"));
+      }
+
+      byte[] signatureFile = readBytes(zip, "META-INF/ANDROIDK.SF");
+      String signatureText = new String(signatureFile, Charsets.UTF_8);
+      assertTrue(signatureText.contains("SHA1-Digest-Manifest: " + sha1(manifest) + "\r\n"));
+      String section = "Name: classes.dex\r\nSHA1-Digest: "
+          + sha1(readBytes(zip, "classes.dex")) + "\r\n\r\n";
+      assertTrue(signatureText.contains("Name: classes.dex\r\nSHA1-Digest: "
+          + sha1(section.getBytes(Charsets.UTF_8)) + "\r\n"));
+
+      CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signatureFile),
+          readBytes(zip, "META-INF/ANDROIDK.RSA"));
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertNull(signer.getSignedAttributes());
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testLongNamesAreWrapped() throws Exception {
+    File ap = new File(tmpDir, "long.ap_");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(ap));
+    String name = "assets/" + repeat('x', 100) + ".png";
+    out.putNextEntry(new ZipEntry(name));
+    out.write(1);
+    out.close();
+
+    File apk = new File(tmpDir, "long.apk");
+    ApkSealer sealer = new ApkSealer(apk);
+    try {
+      sealer.addZip(ap);
+      sealer.seal(keyPair.getPrivate(), certificate);
+    } finally {
+      sealer.close();
+    }
+
+    ZipFile zip = new ZipFile(apk);
+    try {
+      String manifest = new String(readBytes(zip, "META-INF/MANIFEST.MF"), Charsets.UTF_8);
+      for (String line : manifest.split("\r\n")) {
+        assertTrue(line.getBytes(Charsets.UTF_8).length <= 72);
+      }
+      assertTrue(manifest.replace("\r\n ", "").contains("Name: " + name + "\r\n"));
+    } finally {
+      zip.close();
+    }
+  }
+
+  private File seal() throws Exception {
+    File ap = new File(tmpDir, "app.ap_");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(ap));
+    out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+    out.write("<manifest/>".getBytes(Charsets.UTF_8));
+    out.closeEntry();
+    putStored(out, "res/drawable/a.png", "png");
+    putStored(out, "res/raw/b.ogg", "ab");
+    out.putNextEntry(new ZipEntry("META-INF/OLD.SF"));
+    out.write(1);
+    out.closeEntry();
+    out.close();
+    File dex = new File(tmpDir, "classes.dex");
+    Files.write("dex", dex, Charsets.UTF_8);
+
+    File apk = new File(tmpDir, "app.apk");
+    ApkSealer sealer = new ApkSealer(apk);
+    try {
+      sealer.addZip(ap);
+      sealer.addFile(dex, "classes.dex");
+      sealer.seal(keyPair.getPrivate(), certificate);
+    } finally {
+      sealer.close();
+    }
+    return apk;
+  }
+
+  private static void putStored(ZipOutputStream out, String name, String content)
+      throws Exception {
+    byte[] bytes = content.getBytes(Charsets.UTF_8);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(bytes.length);
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(bytes);
+    out.closeEntry();
+  }
+
+  private static String read(ZipFile zip, String name) throws Exception {
+    return new String(readBytes(zip, name), Charsets.UTF_8);
+  }
+
+  private static byte[] readBytes(ZipFile zip, String name) throws Exception {
+    InputStream in = zip.getInputStream(zip.getEntry(name));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int readShort(RandomAccessFile file, long offset) throws Exception {
+    file.seek(offset);
+    return file.read() | file.read() << 8;
+  }
+
+  private static long readInt(RandomAccessFile file, long offset) throws Exception {
+    return readShort(file, offset) | (long) readShort(file, offset + 2) << 16;
+  }
+
+  private static String sha1(byte[] bytes) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA1").digest(bytes));
+  }
+
+  private static String repeat(char c, int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
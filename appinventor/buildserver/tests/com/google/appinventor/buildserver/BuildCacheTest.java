@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests BuildCache class.
+ *
+ */
+public class BuildCacheTest extends TestCase {
+  private File tmpDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    cacheDir = new File(tmpDir, "cache");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testStoreAndFetch() throws Exception {
+    BuildCache cache = new BuildCache(cacheDir, 1024 * 1024);
+    File buildDir = new File(tmpDir, "build1");
+    File screen = write(buildDir, "classes/pkg/Screen1.class", "screen");
+    File frame = write(buildDir, "classes/pkg/Screen1$frame.class", "frame");
+
+    assertFalse(cache.fetch("key", new File(tmpDir, "build2")));
+    cache.store("key", buildDir, Arrays.asList(screen, frame));
+    assertEquals(1, cache.getEntryCount());
+
+    File otherBuildDir = new File(tmpDir, "build2");
+    assertTrue(cache.fetch("key", otherBuildDir));
+    assertEquals("screen", read(new File(otherBuildDir, "classes/pkg/Screen1.class")));
+    assertEquals("frame", read(new File(otherBuildDir, "classes/pkg/Screen1$frame.class")));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+
+    // Entries written by a previous run are picked up.
+    BuildCache reopened = new BuildCache(cacheDir, 1024 * 1024);
+    assertEquals(1, reopened.getEntryCount());
+    assertEquals(cache.getTotalBytes(), reopened.getTotalBytes());
+    assertTrue(reopened.fetch("key", new File(tmpDir, "build3")));
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    BuildCache cache = new BuildCache(cacheDir, 25);
+    File buildDir = new File(tmpDir, "build");
+    File a = write(buildDir, "a", "0123456789");
+    File b = write(buildDir, "b", "0123456789");
+    File c = write(buildDir, "c", "0123456789");
+
+    cache.store("a", buildDir, Collections.singletonList(a));
+    cache.store("b", buildDir, Collections.singletonList(b));
+    // Using "a" makes "b" the least recently used entry.
+    assertTrue(cache.fetch("a", new File(tmpDir, "out")));
+    cache.store("c", buildDir, Collections.singletonList(c));
+
+    assertEquals(2, cache.getEntryCount());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(20, cache.getTotalBytes());
+    assertFalse(new File(cacheDir, "b").exists());
+    assertFalse(cache.fetch("b", new File(tmpDir, "out")));
+    assertTrue(cache.fetch("c", new File(tmpDir, "out")));
+  }
+
+  public void testKeyDependsOnContentAndPath() throws Exception {
+    File dir1 = new File(tmpDir, "dir1");
+    write(dir1, "res/a.png", "png");
+    write(dir1, "res/b.xml", "xml");
+    File dir2 = new File(tmpDir, "dir2");
+    write(dir2, "res/a.png", "png");
+    write(dir2, "res/b.xml", "xml");
+    assertEquals(treeKey(dir1), treeKey(dir2));
+
+    write(dir2, "res/b.xml", "xml2");
+    assertFalse(treeKey(dir1).equals(treeKey(dir2)));
+
+    File dir3 = new File(tmpDir, "dir3");
+    write(dir3, "res/a.png", "png");
+    write(dir3, "res/c.xml", "xml");
+    assertFalse(treeKey(dir1).equals(treeKey(dir3)));
+  }
+
+  private static String treeKey(File dir) throws Exception {
+    return BuildCache.putTree(BuildCache.newKeyHasher(), dir).hash().toString();
+  }
+
+  private static File write(File dir, String path, String content) throws Exception {
+    File file = new File(dir, path);
+    Files.createParentDirs(file);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static String read(File file) throws Exception {
+    return Files.toString(file, Charsets.UTF_8);
+  }
+}
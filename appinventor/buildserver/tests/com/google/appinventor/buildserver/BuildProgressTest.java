@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+  public void testStagesAreRecorded() throws Exception {
+    BuildProgress buildProgress = new BuildProgress("build1");
+    assertEquals(BuildProgress.Status.QUEUED, buildProgress.getStatus());
+
+    buildProgress.startStage("Kawa");
+    buildProgress.setProgress(35);
+    buildProgress.startStage("DX");
+    assertEquals(BuildProgress.Status.BUILDING, buildProgress.getStatus());
+    buildProgress.finish(BuildProgress.Status.SUCCEEDED);
+
+    JSONObject json = buildProgress.toJson();
+    assertEquals("succeeded", json.getString("status"));
+    assertEquals(100, json.getInt("progress"));
+    JSONArray stages = json.getJSONArray("stages");
+    assertEquals(2, stages.length());
+    assertEquals("Kawa", stages.getJSONObject(0).getString("name"));
+    assertEquals("DX", stages.getJSONObject(1).getString("name"));
+    // The DX stage ended when the build finished.
+    assertEquals(json.getLong("endTime"), stages.getJSONObject(1).getLong("endTime"));
+    assertTrue(stages.getJSONObject(0).getLong("endTime")
+        <= stages.getJSONObject(1).getLong("startTime"));
+  }
+
+  public void testConcurrentStagesOverlap() throws Exception {
+    BuildProgress buildProgress = new BuildProgress("build1");
+    buildProgress.startStage("Prepare");
+    buildProgress.startConcurrentStage("Kawa");
+    buildProgress.startConcurrentStage("AAPT");
+    buildProgress.setProgress(35);
+    buildProgress.setProgress(20);
+    assertEquals(35, buildProgress.getProgress());
+    buildProgress.endConcurrentStage("AAPT");
+
+    JSONArray stages = buildProgress.toJson().getJSONArray("stages");
+    assertEquals(3, stages.length());
+    // Prepare ended when the concurrent stages started, and only AAPT has ended since.
+    assertTrue(stages.getJSONObject(0).getLong("endTime") != 0);
+    assertEquals(0, stages.getJSONObject(1).getLong("endTime"));
+    assertTrue(stages.getJSONObject(2).getLong("endTime") != 0);
+
+    buildProgress.finish(BuildProgress.Status.FAILED);
+    stages = buildProgress.toJson().getJSONArray("stages");
+    assertEquals(buildProgress.toJson().getLong("endTime"),
+        stages.getJSONObject(1).getLong("endTime"));
+  }
+
+  public void testBuildsAreTrackedSeparately() throws Exception {
+    BuildProgress build1 = BuildProgress.register("user1-project1");
+    BuildProgress build2 = BuildProgress.register("user2-project2");
+    build1.startStage("Kawa");
+    build1.setProgress(35);
+    build2.startStage("Prepare");
+    build2.setProgress(15);
+
+    assertEquals(35, BuildProgress.lookup("user1-project1").getProgress());
+    assertEquals(15, BuildProgress.lookup("user2-project2").getProgress());
+    assertNull(BuildProgress.lookup("user3-project3"));
+
+    // A new build of the same project replaces the old record.
+    BuildProgress rebuild1 = BuildProgress.register("user1-project1");
+    assertSame(rebuild1, BuildProgress.lookup("user1-project1"));
+    assertEquals(0, BuildProgress.lookup("user1-project1").getProgress());
+  }
+}
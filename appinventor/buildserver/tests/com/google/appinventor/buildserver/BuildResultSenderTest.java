@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests BuildResultSender class.
+ *
+ */
+public class BuildResultSenderTest extends TestCase {
+  private File tmpDir;
+  private File apk;
+  private File keystore;
+  private HttpServer server;
+  private String callbackUrl;
+
+  // The response codes the server answers with, in order; 200 once they run out.
+  private final Queue<Integer> responseCodes = new LinkedList<Integer>();
+  private final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+  private final List<String> transferEncodings =
+      Collections.synchronizedList(new ArrayList<String>());
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    apk = new File(tmpDir, "Test.apk");
+    Files.write("apk contents", apk, Charsets.UTF_8);
+    keystore = new File(tmpDir, "android.keystore");
+    Files.write("keystore contents", keystore, Charsets.UTF_8);
+
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/receivebuild", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        transferEncodings.add(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+        bodies.add(ByteStreams.toByteArray(exchange.getRequestBody()));
+        Integer responseCode;
+        synchronized (responseCodes) {
+          responseCode = responseCodes.poll();
+        }
+        exchange.sendResponseHeaders(responseCode == null ? 200 : responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    callbackUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/receivebuild/1";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop(0);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testResultIsStreamedWithStoredApk() throws Exception {
+    BuildResultSender sender = new BuildResultSender(3, 1);
+    assertTrue(sender.send(callbackUrl, keystore, apk, "{\"result\":0}"));
+
+    assertEquals(1, bodies.size());
+    assertEquals("chunked", transferEncodings.get(0));
+    ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bodies.get(0)));
+    ZipEntry entry = zip.getNextEntry();
+    assertEquals("android.keystore", entry.getName());
+    assertEquals("keystore contents", new String(ByteStreams.toByteArray(zip), Charsets.UTF_8));
+    entry = zip.getNextEntry();
+    assertEquals("Test.apk", entry.getName());
+    assertEquals(ZipEntry.STORED, entry.getMethod());
+    assertEquals("apk contents", new String(ByteStreams.toByteArray(zip), Charsets.UTF_8));
+    entry = zip.getNextEntry();
+    assertEquals(BuildResultSender.BUILD_OUTPUT_FILENAME, entry.getName());
+    assertEquals("{\"result\":0}", new String(ByteStreams.toByteArray(zip), Charsets.UTF_8));
+    assertNull(zip.getNextEntry());
+  }
+
+  public void testUnavailableServerIsRetried() throws Exception {
+    responseCodes.add(503);
+    responseCodes.add(500);
+    int retries = BuildResultSender.getRetryCount();
+    BuildResultSender sender = new BuildResultSender(3, 1);
+    assertTrue(sender.send(callbackUrl, null, null, "{\"result\":1}"));
+
+    // The whole result is sent again each time.
+    assertEquals(3, bodies.size());
+    assertTrue(Arrays.equals(bodies.get(0), bodies.get(2)));
+    assertEquals(retries + 2, BuildResultSender.getRetryCount());
+  }
+
+  public void testRejectedResultIsNotRetried() throws Exception {
+    responseCodes.add(400);
+    int failures = BuildResultSender.getFailureCount();
+    BuildResultSender sender = new BuildResultSender(3, 1);
+    assertFalse(sender.send(callbackUrl, keystore, apk, "{}"));
+    assertEquals(1, bodies.size());
+    assertEquals(failures + 1, BuildResultSender.getFailureCount());
+  }
+
+  public void testSenderGivesUpAfterMaxAttempts() throws Exception {
+    server.stop(0);
+    BuildResultSender sender = new BuildResultSender(2, 1);
+    assertFalse(sender.send(callbackUrl, keystore, apk, "{}"));
+  }
+}
@@ -6,10 +6,19 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -115,4 +124,100 @@ public class CompilerTest extends TestCase {
     // Finally, test for the name attribute of the <intent-filter>'s <action> subelement
     assertTrue(activityElementString.contains("name=\"android.intent.action.MAIN\""));
   }
+
+  public void testFirstDexLibraryCount() throws Exception {
+    assertEquals(5, Compiler.getFirstDexLibraryCount(5, false));
+    assertEquals(12, Compiler.getFirstDexLibraryCount(20, false));
+    assertEquals(0, Compiler.getFirstDexLibraryCount(20, true));
+  }
+
+  public void testCompanionDexIsFetchedFromTheBuildCache() throws Exception {
+    File tmpDir = Files.createTempDir();
+    try {
+      BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+      List<File> runtimes = Collections.singletonList(new File(tmpDir, "runtime.jar"));
+      List<File> libs = Lists.newArrayList();
+      for (int i = 0; i < 14; i++) {
+        libs.add(new File(tmpDir, "lib" + i + ".jar"));
+      }
+      FakeCompanionDexer dexer = new FakeCompanionDexer(true);
+
+      // A miss dexes the libraries, splitting them like runDx, and stores them.
+      File build1 = new File(tmpDir, "build1");
+      build1.mkdirs();
+      assertTrue(Compiler.fetchCompanionDex(cache, "key", runtimes, libs, dexer, build1));
+      assertEquals(1, dexer.calls);
+      assertEquals(13, dexer.firstDexInputs.size());
+      assertEquals(runtimes.get(0), dexer.firstDexInputs.get(0));
+      assertEquals(libs.subList(12, 14), dexer.secondDexInputs);
+      assertEquals(1, cache.getEntryCount());
+
+      // A hit copies them without dexing them again.
+      File build2 = new File(tmpDir, "build2");
+      assertTrue(Compiler.fetchCompanionDex(cache, "key", runtimes, libs, dexer, build2));
+      assertEquals(1, dexer.calls);
+      assertEquals("first", Files.toString(new File(build2, "companion-libs.jar"),
+          Charsets.UTF_8));
+      assertEquals("second", Files.toString(new File(build2, "classes2.dex"), Charsets.UTF_8));
+    } finally {
+      FileUtils.deleteDirectory(tmpDir);
+    }
+  }
+
+  public void testFailedCompanionDexIsNotCached() throws Exception {
+    File tmpDir = Files.createTempDir();
+    try {
+      BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+      List<File> runtimes = Collections.singletonList(new File(tmpDir, "runtime.jar"));
+      List<File> libs = Collections.singletonList(new File(tmpDir, "lib.jar"));
+      File build = new File(tmpDir, "build");
+      build.mkdirs();
+
+      // runDx falls back to dexing everything with the project's classes when this fails.
+      FakeCompanionDexer failingDexer = new FakeCompanionDexer(false);
+      assertFalse(Compiler.fetchCompanionDex(cache, "key", runtimes, libs, failingDexer, build));
+      assertEquals(0, cache.getEntryCount());
+
+      // The next companion build tries again.
+      FakeCompanionDexer dexer = new FakeCompanionDexer(true);
+      assertTrue(Compiler.fetchCompanionDex(cache, "key", runtimes, libs, dexer, build));
+      assertEquals(1, dexer.calls);
+      assertTrue(dexer.secondDexInputs.isEmpty());
+      assertEquals(1, cache.getEntryCount());
+    } finally {
+      FileUtils.deleteDirectory(tmpDir);
+    }
+  }
+
+  // Writes the outputs dx would, with placeholder contents, and records what it was given.
+  private static class FakeCompanionDexer implements Compiler.CompanionDexer {
+    private final boolean succeed;
+    int calls = 0;
+    List<File> firstDexInputs;
+    List<File> secondDexInputs;
+
+    FakeCompanionDexer(boolean succeed) {
+      this.succeed = succeed;
+    }
+
+    @Override
+    public boolean dex(List<File> firstDexInputs, File firstDexOutput,
+        List<File> secondDexInputs, File secondDexOutput) {
+      calls++;
+      this.firstDexInputs = Lists.newArrayList(firstDexInputs);
+      this.secondDexInputs = Lists.newArrayList(secondDexInputs);
+      if (!succeed) {
+        return false;
+      }
+      try {
+        Files.write("first", firstDexOutput, Charsets.UTF_8);
+        if (!secondDexInputs.isEmpty()) {
+          Files.write("second", secondDexOutput, Charsets.UTF_8);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    }
+  }
 }
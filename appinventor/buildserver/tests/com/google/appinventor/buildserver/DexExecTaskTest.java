@@ -0,0 +1,143 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests DexExecTask class. Replaces dx with a fake that writes its output file.
+ *
+ */
+public class DexExecTaskTest extends TestCase {
+  private File tmpDir;
+  private File dexCacheDir;
+  private File classesDir;
+  private ExecutorService builds;
+
+  // The inputs of the pre-dex runs of dx, across all tasks.
+  private final List<File> preDexedInputs = Collections.synchronizedList(new ArrayList<File>());
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    dexCacheDir = new File(tmpDir, "dexcache");
+    dexCacheDir.mkdir();
+    classesDir = new File(tmpDir, "classes");
+    classesDir.mkdir();
+    builds = Executors.newFixedThreadPool(2);
+    // Don't let the number of cores of the test machine decide whether builds overlap.
+    DexExecTask.setPreDexPermits(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    builds.shutdownNow();
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testBuildsPreDexDifferentLibrariesAtTheSameTime() throws Exception {
+    // Each pre-dex run waits for the other build's, so they only finish if they overlap.
+    CountDownLatch bothPreDexing = new CountDownLatch(2);
+    Future<Boolean> first = build(newTask(bothPreDexing, "first.dex"), library("first.jar"));
+    Future<Boolean> second = build(newTask(bothPreDexing, "second.dex"), library("second.jar"));
+
+    assertTrue(first.get(30, TimeUnit.SECONDS));
+    assertTrue(second.get(30, TimeUnit.SECONDS));
+    assertEquals(2, preDexedInputs.size());
+    assertTrue(new File(tmpDir, "first.dex").isFile());
+    assertTrue(new File(tmpDir, "second.dex").isFile());
+  }
+
+  public void testBuildsThatNeedTheSameLibraryDexItOnce() throws Exception {
+    File lib = library("lib.jar");
+    Future<Boolean> first = build(newTask(null, "first.dex"), lib);
+    Future<Boolean> second = build(newTask(null, "second.dex"), lib);
+
+    assertTrue(first.get(30, TimeUnit.SECONDS));
+    assertTrue(second.get(30, TimeUnit.SECONDS));
+    assertEquals(Lists.newArrayList(lib), preDexedInputs);
+    assertEquals(1, dexCacheDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("dex-cached-");
+      }
+    }).length);
+  }
+
+  private File library(String name) throws IOException {
+    File lib = new File(tmpDir, name);
+    Files.write(name, lib, Charsets.UTF_8);
+    return lib;
+  }
+
+  /*
+   * Runs a build that dexes its classes with lib, the way Compiler does.
+   */
+  private Future<Boolean> build(final DexExecTask task, File lib) {
+    final List<File> inputs = Lists.newArrayList(classesDir, lib);
+    return builds.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return Compiler.runDexTask(task, inputs);
+      }
+    });
+  }
+
+  /*
+   * Returns a task whose pre-dex runs count down preDexing, if it isn't null, and wait for it
+   * to reach zero.
+   */
+  private DexExecTask newTask(final CountDownLatch preDexing, String output) {
+    final String outputPath = new File(tmpDir, output).getAbsolutePath();
+    DexExecTask task = new DexExecTask() {
+      @Override
+      boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
+        if (!output.equals(outputPath)) {
+          preDexedInputs.addAll(inputs);
+          if (preDexing != null) {
+            preDexing.countDown();
+            try {
+              if (!preDexing.await(10, TimeUnit.SECONDS)) {
+                return false;
+              }
+            } catch (InterruptedException e) {
+              return false;
+            }
+          }
+        }
+        try {
+          Files.write(inputs.toString(), new File(output), Charsets.UTF_8);
+          return true;
+        } catch (IOException e) {
+          return false;
+        }
+      }
+    };
+    task.setOutput(outputPath);
+    task.setDexedLibs(dexCacheDir.getAbsolutePath());
+    return task;
+  }
+}
@@ -0,0 +1,71 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests FileHashIndex class.
+ *
+ */
+public class FileHashIndexTest extends TestCase {
+  private File tmpDir;
+  private File indexFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    indexFile = new File(tmpDir, "index.txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testHashIsRememberedAcrossRestarts() throws Exception {
+    File lib = new File(tmpDir, "lib.jar");
+    Files.write("library", lib, Charsets.UTF_8);
+    lib.setLastModified(1000000000000L);
+    String md5 = Hashing.md5().hashString("library", Charsets.UTF_8).toString();
+
+    assertEquals(md5, new FileHashIndex(indexFile).getHash(lib));
+
+    // Change the content without changing the size or the modification time. A new index
+    // reads the hash from the index file instead of the library.
+    Files.write("LIBRARY", lib, Charsets.UTF_8);
+    lib.setLastModified(1000000000000L);
+    assertEquals(md5, new FileHashIndex(indexFile).getHash(lib));
+
+    // A new modification time makes the index hash the file again.
+    lib.setLastModified(1000000001000L);
+    assertEquals(Hashing.md5().hashString("LIBRARY", Charsets.UTF_8).toString(),
+        new FileHashIndex(indexFile).getHash(lib));
+  }
+
+  public void testEntriesOfDeletedFilesAreDropped() throws Exception {
+    File lib1 = new File(tmpDir, "lib1.jar");
+    File lib2 = new File(tmpDir, "lib2.jar");
+    Files.write("library1", lib1, Charsets.UTF_8);
+    Files.write("library2", lib2, Charsets.UTF_8);
+    FileHashIndex index = new FileHashIndex(indexFile);
+    index.getHash(lib1);
+    index.getHash(lib2);
+    assertEquals(2, Files.readLines(indexFile, Charsets.UTF_8).size());
+
+    lib2.delete();
+    new FileHashIndex(indexFile);
+    assertEquals(1, Files.readLines(indexFile, Charsets.UTF_8).size());
+  }
+}
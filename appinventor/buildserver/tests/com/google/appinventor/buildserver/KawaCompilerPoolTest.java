@@ -0,0 +1,78 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import kawa.repl;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests KawaCompilerPool class.
+ *
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tmpDir;
+  private String kawaClasspath;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    kawaClasspath = new File(repl.class.getProtectionDomain().getCodeSource().getLocation()
+        .toURI()).getAbsolutePath();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testWorkerIsReusedAndSurvivesCompileErrors() throws Exception {
+    File runtime = write("runtime.scm", "(define (one) 1)\n");
+    File good = write("Good.scm", "(define (two) (+ (one) 1))\n");
+    File bad = write("Bad.scm", "(define (two) (+ (one) 1)\n");
+    File classesDir = new File(tmpDir, "classes");
+    classesDir.mkdir();
+
+    KawaCompilerPool pool = new KawaCompilerPool(1, 512);
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    PrintStream err = new PrintStream(errors, true);
+
+    assertTrue(compile(pool, runtime, classesDir, good, err));
+    assertTrue(new File(classesDir, "test/Good.class").exists());
+    assertTrue(compile(pool, runtime, classesDir, good, err));
+    assertEquals(1, pool.getStartedWorkerCount());
+
+    // Kawa exits after a compile error; the messages still come back and the worker is replaced.
+    assertFalse(compile(pool, runtime, classesDir, bad, err));
+    assertTrue(errors.toString().contains("Bad.scm"));
+    assertTrue(compile(pool, runtime, classesDir, good, err));
+    assertEquals(2, pool.getStartedWorkerCount());
+  }
+
+  private boolean compile(KawaCompilerPool pool, File runtime, File classesDir, File source,
+      PrintStream err) {
+    return pool.compile(kawaClasspath, runtime.getAbsolutePath(),
+        Arrays.asList("-d", classesDir.getAbsolutePath(), "-P", "test.", "-C",
+            source.getAbsolutePath()),
+        System.out, err);
+  }
+
+  private File write(String name, String content) throws Exception {
+    File file = new File(tmpDir, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Tests KeyStorePool class.
+ *
+ */
+public class KeyStorePoolTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ProjectBuilder.setKeyStorePool(null);
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testKeyStoreCarriesUserName() throws Exception {
+    String path = ProjectBuilder.createKeyStore("Joe \"The Tester\", Jr.", tmpDir,
+        "android.keystore");
+    assertEquals(new File(tmpDir, "android.keystore").getAbsolutePath(), path);
+
+    KeyStore.PrivateKeyEntry key = ApkSealer.loadKey(new File(path));
+    X509Certificate certificate = (X509Certificate) key.getCertificate();
+    X500Principal expected =
+        new X500Principal("CN=\"Joe \\\"The Tester\\\", Jr.\", O=AppInventor for Android, C=US");
+    assertEquals(expected, certificate.getSubjectX500Principal());
+    assertEquals(expected, certificate.getIssuerX500Principal());
+    certificate.verify(certificate.getPublicKey());
+    assertEquals("RSA", key.getPrivateKey().getAlgorithm());
+    assertTrue(certificate.getNotAfter().getTime() - System.currentTimeMillis()
+        > TimeUnit.DAYS.toMillis(KeyStorePool.VALIDITY_DAYS - 1));
+  }
+
+  public void testKeyPairsComeFromThePool() throws Exception {
+    KeyStorePool pool = new KeyStorePool(2);
+    ProjectBuilder.setKeyStorePool(pool);
+    long deadline = System.currentTimeMillis() + 60000;
+    while (pool.getReadyCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(2, pool.getReadyCount());
+    assertEquals(2, pool.getSize());
+
+    File first = new File(tmpDir, "first");
+    File second = new File(tmpDir, "second");
+    first.mkdir();
+    second.mkdir();
+    assertNotNull(ProjectBuilder.createKeyStore("first", first, "android.keystore"));
+    assertNotNull(ProjectBuilder.createKeyStore("second", second, "android.keystore"));
+    assertEquals(2, pool.getHitCount());
+    assertEquals(0, pool.getMissCount());
+
+    // Each keystore gets its own key pair.
+    assertFalse(ApkSealer.loadKey(new File(first, "android.keystore")).getCertificate()
+        .getPublicKey().equals(ApkSealer.loadKey(new File(second, "android.keystore"))
+        .getCertificate().getPublicKey()));
+  }
+}
@@ -0,0 +1,192 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ *
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testAdditionalTaskIsQueuedAndRun() throws Exception {
+    // Create the QueuingExecutor with capacity 2 and room for 1 queued task.
+    QueuingExecutor executor = new QueuingExecutor(2, 1, 0);
+
+    final CountDownLatch signal = new CountDownLatch(1);
+    executor.execute("a", new TaskThatWaitsForSignal(signal), null);
+    executor.execute("b", new TaskThatWaitsForSignal(signal), null);
+    assertEquals(2, executor.getActiveTaskCount());
+
+    // The next task doesn't get a worker, but it is queued rather than rejected.
+    final CountDownLatch ran = new CountDownLatch(1);
+    executor.execute("c", new TaskThatCountsDown(ran), null);
+    assertEquals(1, executor.getQueuedTaskCount());
+    assertEquals(1, executor.getQueuePosition("c"));
+    assertEquals(0, executor.getQueuePosition("a"));
+
+    // Once a worker becomes free the queued task runs.
+    signal.countDown();
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+  }
+
+  public void testTaskIsRejectedWhenQueueIsFull() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 1, 0);
+
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute("a", new TaskThatWaitsForSignal(signal), null);
+    executor.execute("a", new TaskThatWaitsForSignal(signal), null);
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute("b", new TaskThatWaitsForSignal(signal), null);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    signal.countDown();
+  }
+
+  public void testQueuedTasksAreDispatchedFairly() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 0);
+
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute("busy", new TaskThatWaitsForSignal(signal), null);
+
+    // User "a" queues three builds before user "b" queues one.
+    List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(4);
+    executor.execute("a", new TaskThatRecords(order, "a1", done), null);
+    executor.execute("a", new TaskThatRecords(order, "a2", done), null);
+    executor.execute("a", new TaskThatRecords(order, "a3", done), null);
+    executor.execute("b", new TaskThatRecords(order, "b1", done), null);
+    assertEquals(1, executor.getQueuePosition("a"));
+    assertEquals(2, executor.getQueuePosition("b"));
+
+    signal.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    // "b" does not have to wait behind all of "a"'s builds.
+    assertEquals("[a1, b1, a2, a3]", order.toString());
+  }
+
+  public void testExpiredTaskIsNotRun() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 1);
+
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute("a", new TaskThatWaitsForSignal(signal), null);
+    CountDownLatch ran = new CountDownLatch(1);
+    CountDownLatch expired = new CountDownLatch(1);
+    executor.execute("b", new TaskThatCountsDown(ran), new TaskThatCountsDown(expired));
+
+    Thread.sleep(50);
+    signal.countDown();
+    assertTrue(expired.await(10, TimeUnit.SECONDS));
+    assertEquals(1, ran.getCount());
+    assertEquals(1, executor.getExpiredTaskCount());
+  }
+
+  public void testAdditionalTaskIsRejectedWhenQueuingIsOff() throws Exception {
+    // Create the QueuingExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    QueuingExecutor executor = new QueuingExecutor(maxCapacity, 0, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I count down the signal.
+    CountDownLatch signal = new CountDownLatch(1);
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    signal.countDown();
+  }
+
+  public void testTaskExpiresWhileWorkersStayBusy() throws Exception {
+    QueuingExecutor executor = new QueuingExecutor(1, 10, 20);
+
+    CountDownLatch signal = new CountDownLatch(1);
+    executor.execute("a", new TaskThatWaitsForSignal(signal), null);
+    CountDownLatch ran = new CountDownLatch(1);
+    CountDownLatch expired = new CountDownLatch(1);
+    final List<Thread> handlerThreads = Collections.synchronizedList(new ArrayList<Thread>());
+    executor.execute("b", new TaskThatCountsDown(ran), new TaskThatCountsDown(expired) {
+      @Override
+      public void run() {
+        handlerThreads.add(Thread.currentThread());
+        super.run();
+      }
+    });
+
+    // Nothing else is submitted and no task finishes, yet the queued task expires.
+    assertTrue(expired.await(10, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(1, executor.getExpiredTaskCount());
+    assertNotSame(Thread.currentThread(), handlerThreads.get(0));
+    signal.countDown();
+    assertEquals(1, ran.getCount());
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch signal;
+    private TaskThatWaitsForSignal(CountDownLatch signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      try {
+        // Wait for the signal.
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatCountsDown implements Runnable {
+    private final CountDownLatch latch;
+    private TaskThatCountsDown(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static class TaskThatRecords implements Runnable {
+    private final List<String> order;
+    private final String name;
+    private final CountDownLatch done;
+    private TaskThatRecords(List<String> order, String name, CountDownLatch done) {
+      this.order = order;
+      this.name = name;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+      done.countDown();
+    }
+  }
+}
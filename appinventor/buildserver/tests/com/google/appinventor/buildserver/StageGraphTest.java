@@ -0,0 +1,140 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests StageGraph class.
+ *
+ */
+public class StageGraphTest extends TestCase {
+  private ExecutorService executor;
+  private BuildProgress buildProgress;
+  private List<String> ran;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    buildProgress = new BuildProgress(null);
+    ran = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testIndependentStagesOverlap() throws Exception {
+    // Each of the two stages waits for the other to start, so they only finish if they run
+    // at the same time.
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    StageGraph stages = new StageGraph(buildProgress);
+    stages.add("Resources", waitFor(bothStarted, "Resources", 50));
+    stages.add("Classes", waitFor(bothStarted, "Classes", 200));
+    stages.add("Seal", record("Seal"), "Resources", "Classes");
+
+    assertTrue(stages.run(executor));
+    assertEquals("Seal", ran.get(2));
+    assertEquals(Arrays.asList("Classes", "Seal"), stages.getCriticalPath());
+    String report = stages.getTimingReport();
+    assertTrue(report, report.contains("Critical path: Classes -> Seal ("));
+
+    // Each stage shows up in the build progress.
+    JSONArray json = buildProgress.toJson().getJSONArray("stages");
+    assertEquals(3, json.length());
+    for (int i = 0; i < json.length(); i++) {
+      assertTrue(json.getJSONObject(i).getLong("endTime") != 0);
+    }
+  }
+
+  public void testFailedStageStopsDependents() throws Exception {
+    StageGraph stages = new StageGraph(buildProgress);
+    stages.add("Kawa", new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        ran.add("Kawa");
+        return false;
+      }
+    });
+    stages.add("DX", record("DX"), "Kawa");
+    stages.add("Seal", record("Seal"), "DX");
+
+    assertFalse(stages.run(executor));
+    assertEquals(Arrays.asList("Kawa"), ran);
+  }
+
+  public void testExceptionsAreRethrown() throws Exception {
+    StageGraph stages = new StageGraph(buildProgress);
+    stages.add("Manifest", new StageGraph.Task() {
+      @Override
+      public boolean run() throws IOException {
+        throw new IOException("disk full");
+      }
+    });
+    stages.add("AAPT", record("AAPT"), "Manifest");
+
+    try {
+      stages.run(executor);
+      fail();
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+    assertTrue(ran.isEmpty());
+  }
+
+  public void testDependenciesMustBeAddedFirst() throws Exception {
+    StageGraph stages = new StageGraph(buildProgress);
+    try {
+      stages.add("DX", record("DX"), "Kawa");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private StageGraph.Task record(final String name) {
+    return new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        ran.add(name);
+        return true;
+      }
+    };
+  }
+
+  private StageGraph.Task waitFor(final CountDownLatch latch, final String name,
+      final long sleepMillis) {
+    return new StageGraph.Task() {
+      @Override
+      public boolean run() {
+        latch.countDown();
+        try {
+          if (!latch.await(10, TimeUnit.SECONDS)) {
+            return false;
+          }
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException e) {
+          return false;
+        }
+        ran.add(name);
+        return true;
+      }
+    };
+  }
+}